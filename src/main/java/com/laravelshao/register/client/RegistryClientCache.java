@@ -0,0 +1,268 @@
+package com.laravelshao.register.client;
+
+import com.laravelshao.register.server.core.DeltaRegistry;
+import com.laravelshao.register.server.core.RegistryHash;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry.RecentlyChangedServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry.ServiceInstanceOperation;
+import com.laravelshao.register.server.web.Applications;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 客户端注册表缓存
+ * <p>
+ * 在客户端本地保存一份注册表，定时拉取增量注册表：
+ * <ul>
+ *     <li>增量中的变更按版本号顺序应用，只应用版本号大于本地版本号的变更，重复拉取同一段增量是幂等的</li>
+ *     <li>应用后用服务端给出的注册表哈希校验本地副本，不一致时才拉取全量注册表</li>
+ *     <li>本地版本号落后于增量覆盖的区间(增量队列已经滚过去、服务端加载过快照)时拉取全量注册表</li>
+ *     <li>本地副本是不可变快照，整体替换 volatile 引用发布，查询不加锁</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/27
+ * @since 1.0.0
+ */
+public class RegistryClientCache {
+
+    /**
+     * 注册表数据源
+     */
+    private final RegistrySource source;
+
+    /**
+     * 本地注册表快照
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * 刷新线程，start 时创建
+     */
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong deltaFetchCount = new AtomicLong(0L);
+    private final AtomicLong fullFetchCount = new AtomicLong(0L);
+    private final AtomicLong hashMismatchCount = new AtomicLong(0L);
+
+    public RegistryClientCache(RegistrySource source) {
+        this.source = source;
+    }
+
+    /**
+     * 启动定时刷新：先同步拉取一次，再每隔 interval 拉取增量
+     *
+     * @param interval 刷新间隔(毫秒)
+     */
+    public synchronized void start(long interval) {
+        if (executor != null) {
+            return;
+        }
+        refresh();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "registry-client-cache-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定时刷新
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * 刷新一次本地注册表
+     */
+    public synchronized void refresh() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            fetchFull();
+            return;
+        }
+
+        DeltaRegistry deltaRegistry = source.fetchDeltaRegistry();
+        deltaFetchCount.incrementAndGet();
+        if (deltaRegistry == null || deltaRegistry.getToVersion() <= current.version) {
+            // 没有新变更，或者服务端缓存的增量注册表比本地副本旧
+            return;
+        }
+        if (deltaRegistry.getFromVersion() > current.version) {
+            // 增量覆盖不到本地版本
+            fetchFull();
+            return;
+        }
+
+        Snapshot applied = apply(current, deltaRegistry);
+        if (applied.hash != deltaRegistry.getRegistryHash()) {
+            hashMismatchCount.incrementAndGet();
+            System.out.println("客户端注册表哈希校验失败，本地版本号=" + applied.version
+                    + ", 本地哈希=" + applied.hash + ", 服务端哈希=" + deltaRegistry.getRegistryHash());
+            fetchFull();
+            return;
+        }
+        snapshot = applied;
+    }
+
+    /**
+     * 获取服务的所有服务实例
+     *
+     * @param serviceName 服务名称
+     * @return 只读MAP，key 为服务实例ID
+     */
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, ServiceInstance> serviceInstanceMap = current.registry.get(serviceName);
+        return serviceInstanceMap == null ? Collections.emptyMap() : serviceInstanceMap;
+    }
+
+    /**
+     * 获取服务实例
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return
+     */
+    public ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
+        return getServiceInstances(serviceName).get(serviceInstanceId);
+    }
+
+    /**
+     * 获取整个本地注册表
+     *
+     * @return
+     */
+    public Applications getApplications() {
+        Snapshot current = snapshot;
+        Applications applications = new Applications(current == null ? Collections.emptyMap() : current.registry);
+        if (current != null) {
+            applications.setVersion(current.version);
+            applications.setRegistryHash(current.hash);
+        }
+        return applications;
+    }
+
+    public long getVersion() {
+        Snapshot current = snapshot;
+        return current == null ? 0L : current.version;
+    }
+
+    public long getDeltaFetchCount() {
+        return deltaFetchCount.get();
+    }
+
+    public long getFullFetchCount() {
+        return fullFetchCount.get();
+    }
+
+    public long getHashMismatchCount() {
+        return hashMismatchCount.get();
+    }
+
+    /**
+     * 拉取全量注册表并整体替换本地快照
+     */
+    private void fetchFull() {
+        Applications applications = source.fetchFullRegistry();
+        fullFetchCount.incrementAndGet();
+
+        // 复制一份服务端全量注册表，哈希按复制下来的内容重新计算
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        long hash = 0L;
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+            Map<String, ServiceInstance> serviceInstanceMap = new HashMap<>(entry.getValue());
+            if (serviceInstanceMap.isEmpty()) {
+                continue;
+            }
+            for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
+                hash += RegistryHash.entryHash(serviceInstance);
+            }
+            registry.put(entry.getKey(), Collections.unmodifiableMap(serviceInstanceMap));
+        }
+        snapshot = new Snapshot(Collections.unmodifiableMap(registry), applications.getVersion(), hash);
+    }
+
+    /**
+     * 在本地快照上应用增量，生成新快照：只复制被修改的服务
+     */
+    private Snapshot apply(Snapshot current, DeltaRegistry deltaRegistry) {
+        List<RecentlyChangedServiceInstance> changes = new ArrayList<>(deltaRegistry.getRecentlyChangedQueue());
+        changes.sort((a, b) -> Long.compare(a.getVersion(), b.getVersion()));
+
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>(current.registry);
+        Map<String, Map<String, ServiceInstance>> touched = new HashMap<>();
+        long hash = current.hash;
+        for (RecentlyChangedServiceInstance change : changes) {
+            if (change.getVersion() <= current.version || change.getVersion() > deltaRegistry.getToVersion()) {
+                continue;
+            }
+            ServiceInstance serviceInstance = change.getServiceInstance();
+            String serviceName = serviceInstance.getServiceName();
+            Map<String, ServiceInstance> serviceInstanceMap = touched.get(serviceName);
+            if (serviceInstanceMap == null) {
+                Map<String, ServiceInstance> existing = registry.get(serviceName);
+                serviceInstanceMap = existing == null ? new HashMap<>() : new HashMap<>(existing);
+                touched.put(serviceName, serviceInstanceMap);
+            }
+
+            ServiceInstance previous;
+            if (ServiceInstanceOperation.REGISTER.equals(change.getServiceInstanceOperation())) {
+                previous = serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+                hash += RegistryHash.entryHash(serviceInstance);
+            } else {
+                previous = serviceInstanceMap.remove(serviceInstance.getServiceInstanceId());
+            }
+            if (previous != null) {
+                hash -= RegistryHash.entryHash(previous);
+            }
+        }
+
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : touched.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                registry.remove(entry.getKey());
+            } else {
+                registry.put(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+            }
+        }
+        return new Snapshot(Collections.unmodifiableMap(registry), deltaRegistry.getToVersion(), hash);
+    }
+
+    /**
+     * 本地注册表快照
+     */
+    private static class Snapshot {
+
+        final Map<String, Map<String, ServiceInstance>> registry;
+        final long version;
+        final long hash;
+
+        Snapshot(Map<String, Map<String, ServiceInstance>> registry, long version, long hash) {
+            this.registry = registry;
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.laravelshao.register.client;
+
+import com.laravelshao.register.server.core.DeltaRegistry;
+import com.laravelshao.register.server.web.Applications;
+import com.laravelshao.register.server.web.RegisterServerController;
+
+/**
+ * 客户端拉取注册表的数据源
+ *
+ * @author qinghua.shao
+ * @date 2022/8/27
+ * @since 1.0.0
+ */
+public interface RegistrySource {
+
+    /**
+     * 拉取全量注册表
+     *
+     * @return
+     */
+    Applications fetchFullRegistry();
+
+    /**
+     * 拉取增量注册表
+     *
+     * @return
+     */
+    DeltaRegistry fetchDeltaRegistry();
+
+    /**
+     * 直接调用同进程中的注册中心控制器，以客户端身份经过准入控制(被拒绝时抛出 RequestRejectedException，本轮刷新跳过)
+     *
+     * @param controller 注册中心控制器
+     * @param clientId   客户端标识
+     * @return
+     */
+    static RegistrySource of(RegisterServerController controller, String clientId) {
+        return new RegistrySource() {
+            @Override
+            public Applications fetchFullRegistry() {
+                return controller.fetchFullRegistry(clientId);
+            }
+
+            @Override
+            public DeltaRegistry fetchDeltaRegistry() {
+                return controller.fetchDeltaRegistry(clientId);
+            }
+        };
+    }
+
+    /**
+     * 直接调用同进程中的注册中心控制器(同进程内的组件使用，不经过准入控制)
+     *
+     * @param controller 注册中心控制器
+     * @return
+     */
+    static RegistrySource of(RegisterServerController controller) {
+        return new RegistrySource() {
+            @Override
+            public Applications fetchFullRegistry() {
+                return controller.fetchFullRegistryInternal();
+            }
+
+            @Override
+            public DeltaRegistry fetchDeltaRegistry() {
+                return controller.fetchDeltaRegistryInternal();
+            }
+        };
+    }
+}
@@ -1,5 +1,9 @@
 package com.laravelshao.register.server;
 
+import com.laravelshao.register.server.cdc.RegistryChangeCapture;
+import com.laravelshao.register.server.cluster.AntiEntropyReconciler;
+import com.laravelshao.register.server.cluster.FollowerSnapshotWarmer;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
 import com.laravelshao.register.server.core.ServiceAliveMonitor;
 import com.laravelshao.register.server.web.HeartbeatRequest;
 import com.laravelshao.register.server.web.RegisterRequest;
@@ -20,6 +24,27 @@ public class RegisterServer {
 
         RegisterServerController controller = new RegisterServerController();
 
+        // 开始处理集群同步请求之前，先从集群中的节点拉取注册表快照
+        controller.bootstrap();
+
+        // 开启后台任务检测微服务存活状态
+        ServiceAliveMonitor serviceAliveMonitor = new ServiceAliveMonitor();
+        serviceAliveMonitor.start();
+
+        // 开启后台任务与集群其它节点做反熵修复
+        AntiEntropyReconciler.getInstance();
+
+        // 只读节点开启后台任务预热注册表缓存和快照
+        FollowerSnapshotWarmer.getInstance();
+
+        // 开启后台任务把注册表变更投递给配置的输出端
+        RegistryChangeCapture.getInstance();
+
+        // 所有组件注册完后台任务后，统一启动后台任务调度
+        RegisterServerScheduler scheduler = RegisterServerScheduler.getInstance();
+        scheduler.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(scheduler::shutdown));
+
         String serviceInstanceId = UUID.randomUUID().toString().replace("-", "");
 
         // 模拟发起一个服务注册的请求
@@ -41,10 +66,6 @@ public class RegisterServer {
         // 执行心跳操作
         controller.heartbeat(heartbeatRequest);
 
-        // 开启后台线程检测微服务存活状态
-        ServiceAliveMonitor serviceAliveMonitor = new ServiceAliveMonitor();
-        serviceAliveMonitor.start();
-
         while(true) {
             Thread.sleep(30 * 1000);
         }
@@ -0,0 +1,178 @@
+package com.laravelshao.register.server.cdc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 追加写文件的输出端：每个 batch 编码为一行 JSON 追加到文件末尾
+ * <p>
+ * 打开文件时读取最后一个完整行的 toVersion 作为恢复位置，服务端重启后从这个版本号之后继续投递；
+ * 文件末尾没有换行(上次写到一半进程退出)时先补一个换行，半行内容由消费方忽略。
+ * 写入失败(包括投递超时被中断，文件 channel 随之关闭)时关闭文件，下一次投递重新打开并同样补齐半行
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class FileChangeSink implements RegistryChangeSink, Closeable {
+
+    /**
+     * 解析恢复位置时读取的行首长度，足够覆盖 batch 头部字段
+     */
+    private static final int HEAD_BYTES = 256;
+
+    /**
+     * 从文件末尾向前查找换行时每次读取的大小
+     */
+    private static final int SCAN_BYTES = 8192;
+
+    private final Path path;
+    private final boolean sync;
+    private final long resumeVersion;
+
+    /**
+     * 文件 channel，写入失败后为 null，下一次投递时重新打开
+     */
+    private FileChannel channel;
+
+    /**
+     * 构造函数
+     *
+     * @param path 文件路径，不存在时创建
+     * @param sync 每个 batch 写完后是否刷盘
+     * @throws IOException
+     */
+    public FileChangeSink(Path path, boolean sync) throws IOException {
+        this.path = path;
+        this.sync = sync;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.resumeVersion = readResumeVersion();
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 文件中已经完整投递的版本号
+     *
+     * @return 文件为空或者最后一个 batch 是没有投递完整的快照时返回 -1
+     */
+    public long getResumeVersion() {
+        return resumeVersion;
+    }
+
+    @Override
+    public synchronized void publish(RegistryChangeBatch batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(RegistryChangeJson.encode(batch));
+        try {
+            if (channel == null) {
+                reopen();
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileChangeSink [path=" + path + "]";
+    }
+
+    /**
+     * 重新打开文件，文件以半行结尾(上一次写到一半失败)时补一个换行
+     */
+    private void reopen() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            readFully(last, size - 1);
+            if (last.get(0) != '\n') {
+                channel.write(ByteBuffer.wrap(new byte[]{'\n'}), size);
+            }
+        }
+        channel.position(channel.size());
+    }
+
+    /**
+     * 读取最后一个完整行的恢复位置，文件以半行结尾时补一个换行
+     */
+    private long readResumeVersion() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return -1L;
+        }
+
+        long lineEnd = lastNewline(size);
+        if (lineEnd != size - 1) {
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}), size);
+        }
+        if (lineEnd < 0) {
+            return -1L;
+        }
+
+        long lineStart = lastNewline(lineEnd) + 1;
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEAD_BYTES, lineEnd - lineStart));
+        readFully(head, lineStart);
+        return RegistryChangeJson.parseResumeVersion(
+                new String(head.array(), 0, head.position(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 查找 end 之前最后一个换行的位置
+     *
+     * @param end 查找范围的结束位置(不含)
+     * @return 没有换行时返回 -1
+     */
+    private long lastNewline(long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BYTES);
+        while (end > 0) {
+            long start = Math.max(0L, end - SCAN_BYTES);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            readFully(buffer, start);
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i;
+                }
+            }
+            end = start;
+        }
+        return -1L;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.laravelshao.register.server.cdc;
+
+import com.laravelshao.register.server.core.ServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.util.List;
+
+/**
+ * 一批注册表变更事件
+ * <p>
+ * 增量 batch 覆盖 (fromVersion - 1, toVersion] 内的全部变更，相邻 batch 的版本号首尾相接；
+ * 全量快照 batch 的 reset 为 true，输出端应先清空已有状态，再把其中的服务实例都当作注册，
+ * fromVersion、toVersion 都是快照对应的注册表版本号。快照较大时拆成多个 batch 发送，
+ * 除最后一个外 partial 都为 true，只有第一个的 reset 为 true
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RegistryChangeBatch {
+
+    private final long fromVersion;
+    private final long toVersion;
+    private final boolean reset;
+    private final boolean partial;
+    private final List<RecentlyChangedServiceInstance> events;
+
+    public RegistryChangeBatch(long fromVersion, long toVersion, boolean reset, boolean partial,
+                               List<RecentlyChangedServiceInstance> events) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.reset = reset;
+        this.partial = partial;
+        this.events = events;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * 投递完这个 batch 之后输出端所处的注册表版本号(partial 为 true 时快照还没有投递完整)
+     *
+     * @return
+     */
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public List<RecentlyChangedServiceInstance> getEvents() {
+        return events;
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryChangeBatch [fromVersion=" + fromVersion + ", toVersion=" + toVersion
+                + ", reset=" + reset + ", partial=" + partial + ", events=" + events.size() + "]";
+    }
+}
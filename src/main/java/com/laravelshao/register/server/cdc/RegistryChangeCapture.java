@@ -0,0 +1,389 @@
+package com.laravelshao.register.server.cdc;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistry.RecentlyChangedServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry.ServiceInstanceOperation;
+
+import java.io.Closeable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 注册表变更数据捕获(CDC)组件
+ * <p>
+ * 注册表每记录一次最近变更(注册、覆盖、下线、摘除)，都在写锁内按版本号放入定长环形缓冲区，只做一次数组写入；
+ * 后台任务按各个输出端自己的投递位置从缓冲区读取，按批投递给输出端：
+ * <ul>
+ *     <li>投递在 CDC 自己的线程上执行(每个输出端同时只有一个投递)，不占用公共的后台任务调度线程</li>
+ *     <li>投递超过超时时间的输出端被中断(阻塞在文件、socket 写入上的 channel 随之关闭)，标记为失败并从全量快照重新开始</li>
+ *     <li>缓冲区有界：某个输出端落后超过缓冲区大小，或者注册表被批量加载快照(版本号不连续)时，
+ *     这个输出端改为投递一份全量快照(reset)，之后继续投递增量</li>
+ *     <li>输出端注册时指定已经投递到的版本号，缓冲区中还保留后续变更时从这里继续，否则从全量快照开始</li>
+ *     <li>投递失败的输出端下一轮从全量快照重新开始，不影响其它输出端</li>
+ * </ul>
+ * 注册表自身的写入只受缓冲区写入影响，输出端慢或者不可用不会阻塞注册、下线
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RegistryChangeCapture {
+
+    /**
+     * 环形缓冲区大小(变更事件个数)
+     */
+    private static final int BUFFER_SIZE = RegisterServerConfig.getInt("register.server.cdc.buffer-size", 65536);
+
+    /**
+     * 每个 batch 最多包含的变更事件个数
+     */
+    private static final int BATCH_SIZE = RegisterServerConfig.getInt("register.server.cdc.batch-size", 1000);
+
+    /**
+     * 投递间隔
+     */
+    private static final long PUBLISH_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.cdc.publish-interval", 100L);
+
+    /**
+     * 一次投递(包括全量快照)的超时时间，同时也是 Unix domain socket 输出端的写超时
+     */
+    private static final long PUBLISH_TIMEOUT = RegisterServerConfig.getLong(
+            "register.server.cdc.publish-timeout", 5000L);
+
+    /**
+     * 追加写文件输出端的路径，不配置时不开启
+     */
+    private static final String FILE_SINK = RegisterServerConfig.getString("register.server.cdc.file", null);
+
+    /**
+     * 追加写文件输出端每个 batch 写完后是否刷盘
+     */
+    private static final boolean FILE_SINK_SYNC = Boolean.parseBoolean(
+            RegisterServerConfig.getString("register.server.cdc.file-sync", "false"));
+
+    /**
+     * Unix domain socket 输出端的 socket 文件路径，不配置时不开启
+     */
+    private static final String UNIX_SOCKET_SINK = RegisterServerConfig.getString(
+            "register.server.cdc.unix-socket", null);
+
+    private static final RegistryChangeCapture instance = new RegistryChangeCapture();
+
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
+
+    /**
+     * 环形缓冲区：版本号 v 的变更放在 v % BUFFER_SIZE，被覆盖或者没有对应变更时版本号对不上
+     */
+    private final AtomicReferenceArray<RecentlyChangedServiceInstance> buffer =
+            new AtomicReferenceArray<>(BUFFER_SIZE);
+
+    /**
+     * 已经放入缓冲区的最新版本号(先写缓冲区再更新，读到的版本号之前的变更都可见)
+     */
+    private volatile long latestVersion;
+
+    /**
+     * 输出端及其投递位置
+     */
+    private final List<SinkCursor> sinks = new CopyOnWriteArrayList<>();
+
+    private final Consumer<RecentlyChangedServiceInstance> listener = this::capture;
+
+    /**
+     * 执行投递的线程池：每个输出端同时只有一个投递，卡住的输出端只占用自己的线程
+     */
+    private final ExecutorService sinkExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "cdc-sink");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RegistryChangeCapture() {
+        // 起始版本号之后的变更都会进入缓冲区
+        latestVersion = registry.addChangeListener(listener);
+
+        if (FILE_SINK != null) {
+            try {
+                FileChangeSink fileSink = new FileChangeSink(Paths.get(FILE_SINK), FILE_SINK_SYNC);
+                addSink("file", fileSink, fileSink.getResumeVersion());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (UNIX_SOCKET_SINK != null) {
+            addSink("unix-socket", new UnixSocketChangeSink(UNIX_SOCKET_SINK, PUBLISH_TIMEOUT), -1L);
+        }
+
+        RegisterServerScheduler scheduler = RegisterServerScheduler.getInstance();
+        scheduler.schedule("cdc-publish", PUBLISH_INTERVAL, this::publish);
+        scheduler.onShutdown("cdc-sinks", this::close);
+    }
+
+    public static RegistryChangeCapture getInstance() {
+        return instance;
+    }
+
+    /**
+     * 添加输出端
+     *
+     * @param name        输出端名称(用于日志)
+     * @param sink        输出端
+     * @param fromVersion 输出端已经投递到的版本号，从它之后的变更开始投递；小于0时从全量快照开始
+     */
+    public void addSink(String name, RegistryChangeSink sink, long fromVersion) {
+        SinkCursor cursor = new SinkCursor(name, sink);
+        cursor.deliveredVersion = fromVersion;
+        cursor.needsReset = fromVersion < 0 || fromVersion > latestVersion;
+        sinks.add(cursor);
+        System.out.println("CDC 输出端【" + name + "】已添加：" + sink + "，起始版本号=" + fromVersion);
+    }
+
+    /**
+     * 移除输出端(实现了 Closeable 的输出端同时关闭)
+     *
+     * @param name 输出端名称
+     */
+    public void removeSink(String name) {
+        for (SinkCursor cursor : sinks) {
+            if (cursor.name.equals(name)) {
+                sinks.remove(cursor);
+                closeQuietly(cursor.sink);
+            }
+        }
+    }
+
+    /**
+     * 停止投递：中断卡住的投递线程，关闭所有输出端
+     */
+    public void close() {
+        sinkExecutor.shutdownNow();
+        for (SinkCursor cursor : sinks) {
+            sinks.remove(cursor);
+            closeQuietly(cursor.sink);
+        }
+    }
+
+    /**
+     * 已经放入缓冲区的最新版本号
+     *
+     * @return
+     */
+    public long getLatestVersion() {
+        return latestVersion;
+    }
+
+    /**
+     * 注册表变更回调(注册表写锁内)
+     *
+     * @param recentlyChangedItem 最近变更
+     */
+    private void capture(RecentlyChangedServiceInstance recentlyChangedItem) {
+        long version = recentlyChangedItem.getVersion();
+        buffer.set(slot(version), recentlyChangedItem);
+        latestVersion = version;
+    }
+
+    /**
+     * 把缓冲区中的变更投递给所有输出端(后台任务)：只分派投递和检查超时，不在调度线程上做输出端 I/O
+     */
+    synchronized void publish() {
+        long now = RegisterServerScheduler.getInstance().now();
+        for (SinkCursor cursor : sinks) {
+            if (cursor.delivering) {
+                if (!cursor.timedOut && now - cursor.deliveryStartedAt > PUBLISH_TIMEOUT) {
+                    cursor.timedOut = true;
+                    cursor.needsReset = true;
+                    if (!cursor.failed) {
+                        System.out.println("CDC 输出端【" + cursor.name + "】投递超过" + PUBLISH_TIMEOUT
+                                + "毫秒，中断投递，之后从全量快照重新开始");
+                    }
+                    cursor.failed = true;
+                    cursor.interrupt();
+                }
+                continue;
+            }
+            cursor.delivering = true;
+            cursor.timedOut = false;
+            cursor.deliveryStartedAt = now;
+            try {
+                sinkExecutor.execute(() -> deliverQuietly(cursor));
+            } catch (RuntimeException e) {
+                cursor.delivering = false;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 在投递线程上投递一个输出端，失败时下一轮从全量快照重新开始
+     */
+    private void deliverQuietly(SinkCursor cursor) {
+        cursor.attach(Thread.currentThread());
+        try {
+            deliver(cursor);
+            cursor.failed = false;
+        } catch (Exception e) {
+            // 这一批可能已经部分写出，下一轮从全量快照重新开始
+            cursor.needsReset = true;
+            if (!cursor.failed) {
+                System.out.println("CDC 输出端【" + cursor.name + "】投递失败，下次从全量快照重新开始");
+                e.printStackTrace();
+            }
+            cursor.failed = true;
+        } finally {
+            cursor.detach();
+            cursor.delivering = false;
+        }
+    }
+
+    private void deliver(SinkCursor cursor) throws Exception {
+        if (cursor.needsReset) {
+            deliverSnapshot(cursor);
+        }
+
+        long latest = latestVersion;
+        while (cursor.deliveredVersion < latest) {
+            long fromVersion = cursor.deliveredVersion + 1;
+            long toVersion = Math.min(latest, cursor.deliveredVersion + BATCH_SIZE);
+            List<RecentlyChangedServiceInstance> events = new ArrayList<>((int) (toVersion - fromVersion + 1));
+            for (long version = fromVersion; version <= toVersion; version++) {
+                RecentlyChangedServiceInstance event = buffer.get(slot(version));
+                if (event == null || event.getVersion() != version) {
+                    // 落后超过缓冲区大小，或者注册表批量加载过快照
+                    System.out.println("CDC 输出端【" + cursor.name + "】缺少版本号" + version + "的变更，改为投递全量快照");
+                    deliverSnapshot(cursor);
+                    return;
+                }
+                events.add(event);
+            }
+            cursor.sink.publish(new RegistryChangeBatch(fromVersion, toVersion, false, false, events));
+            cursor.deliveredVersion = toVersion;
+        }
+    }
+
+    /**
+     * 投递一份全量快照，快照较大时拆成多个 batch
+     */
+    private void deliverSnapshot(SinkCursor cursor) throws Exception {
+        List<ServiceInstance> serviceInstances = new ArrayList<>();
+        long version;
+        try {
+            // 读锁内取版本号和服务实例，之后的变更版本号都大于它
+            registry.readLock();
+            version = registry.getVersion();
+            registry.forEach(serviceInstances::add);
+        } finally {
+            registry.readUnlock();
+        }
+
+        long now = RegisterServerScheduler.getInstance().now();
+        int offset = 0;
+        do {
+            int end = Math.min(serviceInstances.size(), offset + BATCH_SIZE);
+            List<RecentlyChangedServiceInstance> events = new ArrayList<>(end - offset);
+            for (int i = offset; i < end; i++) {
+                events.add(new RecentlyChangedServiceInstance(
+                        serviceInstances.get(i), now, ServiceInstanceOperation.REGISTER, version));
+            }
+            cursor.sink.publish(new RegistryChangeBatch(version, version,
+                    offset == 0, end < serviceInstances.size(), events));
+            offset = end;
+        } while (offset < serviceInstances.size());
+
+        cursor.deliveredVersion = version;
+        cursor.needsReset = false;
+        System.out.println("CDC 输出端【" + cursor.name + "】已投递全量快照：版本号=" + version
+                + "，服务实例" + serviceInstances.size() + "个");
+    }
+
+    private static int slot(long version) {
+        return (int) (version % BUFFER_SIZE);
+    }
+
+    private static void closeQuietly(RegistryChangeSink sink) {
+        if (sink instanceof Closeable) {
+            try {
+                ((Closeable) sink).close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 输出端及其投递位置(投递位置只在当前投递这个输出端的线程内读写)
+     */
+    private static class SinkCursor {
+
+        final String name;
+        final RegistryChangeSink sink;
+
+        /**
+         * 已经投递到的版本号
+         */
+        long deliveredVersion;
+
+        /**
+         * 下一次投递是否需要从全量快照开始
+         */
+        volatile boolean needsReset;
+
+        /**
+         * 上一次投递是否失败(连续失败时只打印一次日志)
+         */
+        volatile boolean failed;
+
+        /**
+         * 是否有投递正在执行，以及开始时间、是否已经超时
+         */
+        volatile boolean delivering;
+        volatile long deliveryStartedAt;
+        volatile boolean timedOut;
+
+        /**
+         * 正在投递这个输出端的线程
+         */
+        private Thread worker;
+
+        SinkCursor(String name, RegistryChangeSink sink) {
+            this.name = name;
+            this.sink = sink;
+        }
+
+        synchronized void attach(Thread thread) {
+            worker = thread;
+            if (timedOut) {
+                // 线程启动前就已经超时
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * 投递结束：清掉可能残留的中断标记，避免影响线程池中的下一个投递
+         */
+        synchronized void detach() {
+            worker = null;
+            Thread.interrupted();
+        }
+
+        /**
+         * 中断正在执行的投递，只会中断到投递这个输出端的线程
+         */
+        synchronized void interrupt() {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.laravelshao.register.server.cdc;
+
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry.RecentlyChangedServiceInstance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 变更事件 batch 的 JSON Lines 编码：一个 batch 一行，便于外部工具按行消费
+ * <p>
+ * batch 头部字段固定写在行首，恢复投递位置时只需要读取最后一行的开头：
+ * <pre>
+ * {"fromVersion":1,"toVersion":2,"reset":false,"partial":false,"events":[{"version":1,"operation":"register",...}]}
+ * </pre>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RegistryChangeJson {
+
+    private static final String TO_VERSION_FIELD = "\"toVersion\":";
+    private static final String PARTIAL_FIELD = "\"partial\":true";
+
+    private RegistryChangeJson() {
+    }
+
+    /**
+     * 编码一个 batch
+     *
+     * @param batch 变更事件 batch
+     * @return 以换行结尾的 UTF-8 字节
+     */
+    public static byte[] encode(RegistryChangeBatch batch) {
+        StringBuilder json = new StringBuilder(128 + batch.getEvents().size() * 256);
+        json.append("{\"fromVersion\":").append(batch.getFromVersion())
+                .append(",\"toVersion\":").append(batch.getToVersion())
+                .append(",\"reset\":").append(batch.isReset())
+                .append(",\"partial\":").append(batch.isPartial())
+                .append(",\"events\":[");
+        List<RecentlyChangedServiceInstance> events = batch.getEvents();
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendEvent(json, events.get(i));
+        }
+        json.append("]}\n");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从一行 batch 的开头解析投递完这一行后所处的版本号
+     *
+     * @param head 一行 batch 的开头(至少包含头部字段)
+     * @return 快照没有投递完整或者无法解析时返回 -1
+     */
+    public static long parseResumeVersion(String head) {
+        int start = head.indexOf(TO_VERSION_FIELD);
+        int eventsStart = head.indexOf("\"events\":");
+        if (start < 0 || eventsStart < 0) {
+            return -1L;
+        }
+        if (head.lastIndexOf(PARTIAL_FIELD, eventsStart) >= 0) {
+            return -1L;
+        }
+        start += TO_VERSION_FIELD.length();
+        int end = start;
+        while (end < head.length() && Character.isDigit(head.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(head.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static void appendEvent(StringBuilder json, RecentlyChangedServiceInstance event) {
+        ServiceInstance serviceInstance = event.getServiceInstance();
+        json.append("{\"version\":").append(event.getVersion())
+                .append(",\"operation\":");
+        appendString(json, event.getServiceInstanceOperation());
+        json.append(",\"timestamp\":").append(event.getChangedTimestamp());
+        json.append(",\"serviceName\":");
+        appendString(json, serviceInstance.getServiceName());
+        json.append(",\"serviceInstanceId\":");
+        appendString(json, serviceInstance.getServiceInstanceId());
+        json.append(",\"ip\":");
+        appendString(json, serviceInstance.getIp());
+        json.append(",\"hostname\":");
+        appendString(json, serviceInstance.getHostname());
+        json.append(",\"port\":").append(serviceInstance.getPort());
+        json.append(",\"zone\":");
+        appendString(json, serviceInstance.getZone());
+        json.append(",\"serviceVersion\":");
+        appendString(json, serviceInstance.getVersion());
+        json.append(",\"tags\":[");
+        List<String> tags = serviceInstance.getTags();
+        for (int i = 0; i < tags.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendString(json, tags.get(i));
+        }
+        json.append("],\"leaseDuration\":").append(serviceInstance.getLeaseDuration())
+                .append(",\"registrationTimestamp\":").append(serviceInstance.getRegistrationTimestamp())
+                .append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,22 @@
+package com.laravelshao.register.server.cdc;
+
+/**
+ * 注册表变更事件的输出端：追加写文件、Unix domain socket，或者直接用 lambda 作为进程内监听器
+ * <p>
+ * 同一个输出端的 batch 按版本号顺序、单线程投递；抛出异常时这批事件视为没有投递，
+ * 下一轮从全量快照(reset)重新开始，输出端不需要处理半写入的 batch
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public interface RegistryChangeSink {
+
+    /**
+     * 投递一批变更事件
+     *
+     * @param batch 变更事件 batch
+     * @throws Exception 投递失败
+     */
+    void publish(RegistryChangeBatch batch) throws Exception;
+}
@@ -0,0 +1,124 @@
+package com.laravelshao.register.server.cdc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket 输出端：连接本机消费方监听的 socket 文件，每个 batch 写出一行 JSON
+ * <p>
+ * 连接断开时关闭连接并抛出异常，下一次投递重新连接，并且从全量快照重新开始(消费方可能已经重启)。
+ * 连接建立后以非阻塞方式写出，消费方不读取导致一个 batch 超过写超时还没写完时同样关闭连接并抛出异常。
+ * 工程按 Java 8 编译，Unix domain socket 需要 JDK 16 及以上，这里通过反射创建连接
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class UnixSocketChangeSink implements RegistryChangeSink, Closeable {
+
+    private final String path;
+    private final long writeTimeout;
+    private SocketChannel channel;
+    private Selector selector;
+
+    /**
+     * 构造函数
+     *
+     * @param path         socket 文件路径
+     * @param writeTimeout 一个 batch 的写超时(毫秒)
+     */
+    public UnixSocketChangeSink(String path, long writeTimeout) {
+        this.path = path;
+        this.writeTimeout = writeTimeout;
+    }
+
+    @Override
+    public synchronized void publish(RegistryChangeBatch batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(RegistryChangeJson.encode(batch));
+        try {
+            if (channel == null) {
+                channel = connect(path);
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_WRITE);
+            }
+            long deadline = System.currentTimeMillis() + writeTimeout;
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) > 0) {
+                    continue;
+                }
+                // 发送缓冲区已满，等待可写或者超时
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("写入 Unix domain socket 超过" + writeTimeout + "毫秒：" + path);
+                }
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("写入 Unix domain socket 被中断：" + path);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } finally {
+            selector = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } finally {
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnixSocketChangeSink [path=" + path + "]";
+    }
+
+    private static SocketChannel connect(String path) throws IOException {
+        SocketAddress address;
+        SocketChannel channel;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("创建 Unix domain socket 失败：" + path, e.getCause());
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException("当前 JDK 不支持 Unix domain socket(需要 JDK 16 及以上)", e);
+        }
+
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
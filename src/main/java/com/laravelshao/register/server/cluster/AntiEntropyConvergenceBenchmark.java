@@ -0,0 +1,108 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.HeapInstanceStore;
+import com.laravelshao.register.server.core.RegistryMerkleTree;
+import com.laravelshao.register.server.core.ServiceInstance;
+
+import java.util.Random;
+
+/**
+ * 反熵修复收敛基准
+ * <p>
+ * 在进程内构造两个 {@link LocalAntiEntropyPeer} 节点，先写入相同的服务实例，再制造不同数量的差异：
+ * 一半是对端缺少的服务实例，一半是本地版本号更旧的服务实例。修复一轮后检查两边的根哈希是否一致、
+ * 再修复一轮是否没有差异，并统计往返次数、比较的节点数、差异叶子数、传输的服务实例数，
+ * 修复代价应当随差异数增长，而不是随注册表规模增长。参数：[服务实例数] [服务数] [叶子层数]
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class AntiEntropyConvergenceBenchmark {
+
+    private static final int[] DIFFERENCES = {0, 1, 10, 100, 1000, 10000};
+
+    public static void main(String[] args) {
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int services = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int leafBits = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+
+        System.out.println("服务实例数=" + instances + ", 服务数=" + services + ", 叶子数=" + (1 << leafBits));
+        System.out.println(String.format("%8s %10s %12s %12s %8s %8s %10s %10s",
+                "diff", "roundTrips", "compared", "diffLeaves", "pulled", "pushed", "elapsed(ms)", "converged"));
+
+        for (int difference : DIFFERENCES) {
+            run(instances, services, leafBits, Math.min(difference, instances), new Random(20220830L));
+        }
+    }
+
+    private static void run(int instances, int services, int leafBits, int difference, Random random) {
+        Node local = new Node("local", leafBits);
+        Node remote = new Node("remote", leafBits);
+        for (int i = 0; i < instances; i++) {
+            ServiceInstance serviceInstance = instance("service-" + (i % services), "instance-" + i, 1000L + i);
+            local.put(serviceInstance);
+            remote.put(serviceInstance);
+        }
+
+        // 制造差异：一半是对端缺少的服务实例，一半是本地版本号更旧的服务实例
+        for (int i = 0; i < difference; i++) {
+            int index = random.nextInt(instances);
+            if (i % 2 == 0) {
+                ServiceInstance added = instance("service-" + (index % services), "added-" + i, 1000L + index);
+                local.put(added);
+            } else {
+                ServiceInstance renewed = instance("service-" + (index % services), "instance-" + index,
+                        1000L + instances + i);
+                remote.put(renewed);
+            }
+        }
+
+        long start = System.nanoTime();
+        AntiEntropyReconciler.ReconcileResult result = AntiEntropyReconciler.reconcile(local.peer, remote.peer);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        boolean converged = local.merkleTree.getNodeHash(RegistryMerkleTree.ROOT)
+                == remote.merkleTree.getNodeHash(RegistryMerkleTree.ROOT)
+                && AntiEntropyReconciler.reconcile(local.peer, remote.peer).getDifferentLeaves() == 0
+                && local.store.size() == remote.store.size();
+
+        System.out.println(String.format("%8d %10d %12d %12d %8d %8d %10d %10s",
+                difference, result.getRoundTrips(), result.getComparedNodes(), result.getDifferentLeaves(),
+                result.getPulled(), result.getPushed(), elapsedMillis, converged));
+    }
+
+    private static ServiceInstance instance(String serviceName, String serviceInstanceId, long registrationTimestamp) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setServiceInstanceId(serviceInstanceId);
+        serviceInstance.setIp("10.0.0.1");
+        serviceInstance.setHostname("localhost");
+        serviceInstance.setPort(8080);
+        serviceInstance.setRegistrationTimestamp(registrationTimestamp);
+        return serviceInstance;
+    }
+
+    /**
+     * 一个模拟节点：独立的存储引擎和 Merkle 摘要
+     */
+    private static class Node {
+
+        final HeapInstanceStore store = new HeapInstanceStore();
+        final RegistryMerkleTree merkleTree;
+        final LocalAntiEntropyPeer peer;
+
+        Node(String name, int leafBits) {
+            this.merkleTree = new RegistryMerkleTree(leafBits);
+            this.peer = new LocalAntiEntropyPeer(name, merkleTree, store::get, serviceInstances -> {
+                for (ServiceInstance serviceInstance : serviceInstances) {
+                    put(serviceInstance);
+                }
+            });
+        }
+
+        void put(ServiceInstance serviceInstance) {
+            merkleTree.update(store.put(serviceInstance), serviceInstance);
+        }
+    }
+}
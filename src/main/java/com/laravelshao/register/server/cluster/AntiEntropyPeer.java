@@ -0,0 +1,91 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.ServiceInstance;
+
+import java.util.List;
+
+/**
+ * 反熵修复的对端
+ * <p>
+ * 对端只需要提供 Merkle 摘要节点哈希查询、叶子桶内服务实例查询、批量写入服务实例三个能力，
+ * 具体走网络还是进程内调用由实现决定
+ *
+ * @author qinghua.shao
+ * @date 2022/8/20
+ * @since 1.0.0
+ */
+public interface AntiEntropyPeer {
+
+    /**
+     * 对端名称
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * 批量获取 Merkle 摘要节点哈希
+     *
+     * @param nodes 节点编号
+     * @return 与节点编号一一对应的哈希
+     */
+    long[] getNodeHashes(int[] nodes);
+
+    /**
+     * 获取若干叶子桶内的所有服务实例
+     *
+     * @param leafNodes 叶子节点编号
+     * @return
+     */
+    List<ServiceInstance> getLeafInstances(int[] leafNodes);
+
+    /**
+     * 批量写入服务实例(不再向其它节点同步)
+     *
+     * @param serviceInstances 服务实例
+     */
+    void applyInstances(List<ServiceInstance> serviceInstances);
+
+    /**
+     * 按节点地址创建反熵修复对端，集群成员变更时为新节点创建
+     */
+    interface Factory {
+
+        /**
+         * 还没有接入 http 客户端，调用时直接失败
+         */
+        Factory UNAVAILABLE = peer -> new AntiEntropyPeer() {
+            @Override
+            public String getName() {
+                return peer;
+            }
+
+            @Override
+            public long[] getNodeHashes(int[] nodes) {
+                throw unavailable();
+            }
+
+            @Override
+            public List<ServiceInstance> getLeafInstances(int[] leafNodes) {
+                throw unavailable();
+            }
+
+            @Override
+            public void applyInstances(List<ServiceInstance> serviceInstances) {
+                throw unavailable();
+            }
+
+            private IllegalStateException unavailable() {
+                return new IllegalStateException("没有配置反熵修复客户端，无法访问节点：" + peer);
+            }
+        };
+
+        /**
+         * 创建对端
+         *
+         * @param peer 节点地址
+         * @return {@link AntiEntropyPeer#getName()} 返回节点地址的对端
+         */
+        AntiEntropyPeer create(String peer);
+    }
+}
@@ -0,0 +1,276 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.RegistryMerkleTree;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 集群反熵修复组件
+ * <p>
+ * 集群同步是尽力而为的：batch 队列满、节点重启、网络抖动都会丢失变更。这里定期挑一个对端比较双方的 Merkle 摘要：
+ * <ul>
+ *     <li>从根节点开始逐层下降，每层只把哈希不同的节点的子节点批量发给对端比较，相同的子树整棵跳过</li>
+ *     <li>到达叶子层后只拉取哈希不同的叶子桶内的服务实例，按 (服务名称, 服务实例ID) 对齐</li>
+ *     <li>对端缺少或者版本号(注册时间)更旧的，推给对端；本地缺少或者更旧的，写入本地</li>
+ * </ul>
+ * 两边一致时只交换一次根哈希，差异越少交换的数据越少。
+ * 服务下线不通过反熵修复传播(只有一侧存在的实例无法区分是新注册还是已下线)，依靠契约过期清理。
+ * <p>
+ * 参与修复的对端与 {@link RegisterServerCluster#getPeers()} 保持一致，由 {@link AntiEntropyPeer.Factory} 按地址创建；
+ * 分片模式下各节点只保存部分服务，整表比较没有意义，不能同时开启
+ *
+ * @author qinghua.shao
+ * @date 2022/8/20
+ * @since 1.0.0
+ */
+public class AntiEntropyReconciler {
+
+    /**
+     * 反熵修复时间间隔
+     */
+    private static final long ANTI_ENTROPY_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.anti-entropy.interval", 60 * 1000L);
+
+    private static final AntiEntropyReconciler instance = new AntiEntropyReconciler();
+
+    /**
+     * 创建对端的工厂
+     */
+    private volatile AntiEntropyPeer.Factory peerFactory = AntiEntropyPeer.Factory.UNAVAILABLE;
+
+    /**
+     * 参与反熵修复的对端，集群成员变更时整体替换
+     */
+    private volatile List<AntiEntropyPeer> peers = Collections.emptyList();
+
+    /**
+     * 下一次修复的对端下标，轮流挑选
+     */
+    private int nextPeer = 0;
+
+    private AntiEntropyReconciler() {
+        updateMembers(RegisterServerCluster.getPeers());
+        if (ServiceRegistry.ANTI_ENTROPY_ENABLED) {
+            if (RegistrySharding.ENABLED) {
+                throw new IllegalStateException("注册表分片模式下各节点只保存部分服务，不能开启反熵修复："
+                        + "register.server.anti-entropy.enabled=true");
+            }
+            RegisterServerScheduler.getInstance().schedule("anti-entropy", ANTI_ENTROPY_INTERVAL, this::reconcileNextPeer);
+        }
+    }
+
+    public static AntiEntropyReconciler getInstance() {
+        return instance;
+    }
+
+    /**
+     * 是否能够与集群中的其它节点做反熵修复：开启了反熵修复并且配置了对端工厂
+     *
+     * @return
+     */
+    public boolean isOperational() {
+        return ServiceRegistry.ANTI_ENTROPY_ENABLED && peerFactory != AntiEntropyPeer.Factory.UNAVAILABLE;
+    }
+
+    /**
+     * 替换创建对端的工厂，按当前集群成员重新创建所有对端；
+     * gossip 拓扑在集群同步组件创建时检查反熵修复是否可用，需要在那之前设置
+     *
+     * @param peerFactory 对端工厂
+     */
+    public synchronized void setPeerFactory(AntiEntropyPeer.Factory peerFactory) {
+        this.peerFactory = peerFactory;
+        this.peers = Collections.emptyList();
+        updateMembers(RegisterServerCluster.getPeers());
+    }
+
+    /**
+     * 集群成员变更：仍在集群内的节点保留原来的对端，新节点由工厂创建
+     *
+     * @param members 其它节点地址
+     */
+    public synchronized void updateMembers(List<String> members) {
+        Map<String, AntiEntropyPeer> existing = new HashMap<>();
+        for (AntiEntropyPeer peer : peers) {
+            existing.put(peer.getName(), peer);
+        }
+        List<AntiEntropyPeer> updated = new ArrayList<>(members.size());
+        for (String member : members) {
+            AntiEntropyPeer peer = existing.get(member);
+            updated.add(peer != null ? peer : peerFactory.create(member));
+        }
+        peers = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * 参与反熵修复的对端
+     *
+     * @return
+     */
+    public List<AntiEntropyPeer> getPeers() {
+        return peers;
+    }
+
+    /**
+     * 与下一个对端做一次反熵修复
+     */
+    void reconcileNextPeer() {
+        List<AntiEntropyPeer> currentPeers = peers;
+        if (currentPeers.isEmpty()) {
+            return;
+        }
+        AntiEntropyPeer peer = currentPeers.get(nextPeer++ % currentPeers.size());
+        try {
+            ReconcileResult result = reconcile(LocalAntiEntropyPeer.ofRegistry(), peer);
+            if (result.getDifferentLeaves() != 0) {
+                System.out.println("与节点【" + peer.getName() + "】完成反熵修复：" + result);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("与节点【" + peer.getName() + "】反熵修复失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 修复两个节点的差异
+     *
+     * @param local  本地
+     * @param remote 对端
+     * @return
+     */
+    public static ReconcileResult reconcile(LocalAntiEntropyPeer local, AntiEntropyPeer remote) {
+        RegistryMerkleTree merkleTree = local.getMerkleTree();
+        ReconcileResult result = new ReconcileResult();
+
+        // 先比较根哈希，再逐层下降，每层只比较哈希不同节点的子节点
+        int[] nodes = different(local, remote, new int[]{RegistryMerkleTree.ROOT}, result);
+        while (nodes.length != 0 && !merkleTree.isLeaf(nodes[0])) {
+            int[] children = new int[nodes.length * 2];
+            for (int i = 0; i < nodes.length; i++) {
+                children[2 * i] = nodes[i] << 1;
+                children[2 * i + 1] = (nodes[i] << 1) + 1;
+            }
+            nodes = different(local, remote, children, result);
+        }
+        result.differentLeaves = nodes.length;
+        if (nodes.length == 0) {
+            return result;
+        }
+
+        // 拉取差异叶子桶内的服务实例，按版本号对齐
+        Map<String, ServiceInstance> localInstances = index(local.getLeafInstances(nodes));
+        Map<String, ServiceInstance> remoteInstances = index(remote.getLeafInstances(nodes));
+
+        List<ServiceInstance> pulling = new ArrayList<>();
+        for (Map.Entry<String, ServiceInstance> entry : remoteInstances.entrySet()) {
+            ServiceInstance mine = localInstances.get(entry.getKey());
+            if (mine == null || mine.getRegistrationTimestamp() < entry.getValue().getRegistrationTimestamp()) {
+                pulling.add(entry.getValue());
+            }
+        }
+        List<ServiceInstance> pushing = new ArrayList<>();
+        for (Map.Entry<String, ServiceInstance> entry : localInstances.entrySet()) {
+            ServiceInstance theirs = remoteInstances.get(entry.getKey());
+            if (theirs == null || theirs.getRegistrationTimestamp() < entry.getValue().getRegistrationTimestamp()) {
+                pushing.add(entry.getValue());
+            }
+        }
+
+        local.applyInstances(pulling);
+        remote.applyInstances(pushing);
+        result.pulled = pulling.size();
+        result.pushed = pushing.size();
+        return result;
+    }
+
+    /**
+     * 批量比较节点哈希，返回哈希不同的节点
+     */
+    private static int[] different(AntiEntropyPeer local, AntiEntropyPeer remote, int[] nodes, ReconcileResult result) {
+        long[] localHashes = local.getNodeHashes(nodes);
+        long[] remoteHashes = remote.getNodeHashes(nodes);
+        result.comparedNodes += nodes.length;
+        result.roundTrips++;
+
+        int count = 0;
+        int[] different = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (localHashes[i] != remoteHashes[i]) {
+                different[count++] = nodes[i];
+            }
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(different, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private static Map<String, ServiceInstance> index(List<ServiceInstance> serviceInstances) {
+        Map<String, ServiceInstance> index = new HashMap<>(serviceInstances.size() * 2);
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            index.put(serviceInstance.getServiceName() + '\n' + serviceInstance.getServiceInstanceId(), serviceInstance);
+        }
+        return index;
+    }
+
+    /**
+     * 一次反熵修复的结果
+     */
+    public static class ReconcileResult {
+
+        private int roundTrips;
+        private int comparedNodes;
+        private int differentLeaves;
+        private int pulled;
+        private int pushed;
+
+        /**
+         * 比较节点哈希的往返次数
+         */
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        /**
+         * 比较的节点数
+         */
+        public int getComparedNodes() {
+            return comparedNodes;
+        }
+
+        public int getDifferentLeaves() {
+            return differentLeaves;
+        }
+
+        /**
+         * 写入本地的服务实例数
+         */
+        public int getPulled() {
+            return pulled;
+        }
+
+        /**
+         * 推给对端的服务实例数
+         */
+        public int getPushed() {
+            return pushed;
+        }
+
+        @Override
+        public String toString() {
+            return "ReconcileResult{" +
+                    "roundTrips=" + roundTrips +
+                    ", comparedNodes=" + comparedNodes +
+                    ", differentLeaves=" + differentLeaves +
+                    ", pulled=" + pulled +
+                    ", pushed=" + pushed +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegistryHash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一致性哈希环
+ * <p>
+ * 每个节点在环上放置若干虚拟节点，服务名称哈希后顺时针找到的前 R 个不同节点就是它的归属节点。
+ * 不可变，集群成员变更时重新创建；节点加入、离开时只有相邻区间的服务改变归属
+ *
+ * @author qinghua.shao
+ * @date 2022/8/28
+ * @since 1.0.0
+ */
+public class ConsistentHashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> members;
+
+    /**
+     * @param members      集群节点
+     * @param virtualNodes 每个节点的虚拟节点数
+     */
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        this.members = Collections.unmodifiableList(sorted);
+        for (String member : sorted) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * 获取服务的归属节点，第一个为主节点
+     *
+     * @param serviceName 服务名称
+     * @param replicas    副本数
+     * @return 最多 replicas 个不同节点
+     */
+    public List<String> getOwners(String serviceName, int replicas) {
+        int count = Math.min(replicas, members.size());
+        List<String> owners = new ArrayList<>(count);
+        if (count == 0) {
+            return owners;
+        }
+        long hash = hash(serviceName);
+        for (String member : ring.tailMap(hash).values()) {
+            if (!owners.contains(member) && owners.add(member) && owners.size() == count) {
+                return owners;
+            }
+        }
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            if (entry.getKey() >= hash) {
+                break;
+            }
+            if (!owners.contains(entry.getValue()) && owners.add(entry.getValue()) && owners.size() == count) {
+                return owners;
+            }
+        }
+        return owners;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    private static long hash(String key) {
+        return RegistryHash.mix(RegistryHash.hash(key));
+    }
+}
@@ -0,0 +1,90 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+/**
+ * 只读节点的注册表快照预热组件
+ * <p>
+ * 只读节点只提供注册表拉取，注册表版本号变化(有成员变更)后在后台立即重新计算全量、增量注册表缓存，
+ * 并预先编码好注册表快照，拉取请求和新节点引导都直接返回预热好的结果
+ *
+ * @author qinghua.shao
+ * @date 2022/8/29
+ * @since 1.0.0
+ */
+public class FollowerSnapshotWarmer {
+
+    /**
+     * 检查注册表版本号的间隔(需要在单例之前初始化)
+     */
+    private static final long WARM_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.follower.snapshot-warm-interval", 100L);
+
+    private static final FollowerSnapshotWarmer instance = new FollowerSnapshotWarmer();
+
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
+
+    /**
+     * 已预热的注册表版本号
+     */
+    private volatile long warmedVersion = -1L;
+
+    /**
+     * 预先编码好的注册表快照，格式见 {@link RegistryBootstrapper#writeSnapshot(java.nio.channels.WritableByteChannel)}
+     */
+    private volatile byte[] encodedSnapshot;
+
+    private FollowerSnapshotWarmer() {
+        if (RegisterServerCluster.isFollower()) {
+            RegisterServerScheduler.getInstance().schedule("follower-snapshot-warm", WARM_INTERVAL, this::warm);
+        }
+    }
+
+    public static FollowerSnapshotWarmer getInstance() {
+        return instance;
+    }
+
+    /**
+     * 注册表版本号有变化时重新预热
+     */
+    synchronized void warm() {
+        long version = registry.getVersion();
+        if (version == warmedVersion) {
+            return;
+        }
+
+        ServiceRegistryCache.getInstance().refresh();
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            RegistryBootstrapper.getInstance().writeSnapshot(Channels.newChannel(output));
+            encodedSnapshot = output.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        warmedVersion = version;
+    }
+
+    /**
+     * 获取预先编码好的注册表快照(还没有预热过时当场编码一次)
+     *
+     * @return
+     */
+    public byte[] getEncodedSnapshot() {
+        if (encodedSnapshot == null) {
+            warm();
+        }
+        return encodedSnapshot;
+    }
+
+    public long getWarmedVersion() {
+        return warmedVersion;
+    }
+}
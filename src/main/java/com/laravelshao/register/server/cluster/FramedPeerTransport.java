@@ -0,0 +1,91 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按帧发送的传输层：把发往同一个节点的 batch 编码成帧再交给帧发送器
+ *
+ * @author qinghua.shao
+ * @date 2022/8/24
+ * @since 1.0.0
+ */
+public class FramedPeerTransport implements PeerTransport {
+
+    /**
+     * 只打印帧大小的帧发送器(还没有接入 http 客户端)
+     */
+    public static final FrameSender LOGGING = (peer, frame) ->
+            System.out.println("给" + peer + "发送请求，同步帧过去，字节数：" + frame.length);
+
+    private final ReplicationFrameCodec codec;
+    private final FrameSender sender;
+    private final ReplicationMetrics metrics;
+
+    /**
+     * 已发送的帧数、字节数
+     */
+    private final AtomicLong sentFrames = new AtomicLong(0L);
+    private final AtomicLong sentBytes = new AtomicLong(0L);
+
+    public FramedPeerTransport(ReplicationFrameCodec codec, FrameSender sender, ReplicationMetrics metrics) {
+        this.codec = codec;
+        this.sender = sender;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void send(String peer, PeersReplicateBatch batch) {
+        send(peer, Collections.singletonList(batch));
+    }
+
+    @Override
+    public void send(String peer, List<PeersReplicateBatch> batches) {
+        long maxSequence = 0L;
+        for (PeersReplicateBatch batch : batches) {
+            maxSequence = Math.max(maxSequence, batch.getSequence());
+        }
+
+        // 帧发送器正常返回视为对端已确认
+        metrics.sending(peer, batches.size());
+        boolean acked = false;
+        try {
+            for (byte[] frame : codec.encode(batches)) {
+                sender.send(peer, frame);
+                sentFrames.incrementAndGet();
+                sentBytes.addAndGet(frame.length);
+                metrics.frameSent(peer, frame.length);
+            }
+            acked = true;
+        } finally {
+            metrics.sent(peer, batches.size(), maxSequence, acked);
+        }
+    }
+
+    public ReplicationFrameCodec getCodec() {
+        return codec;
+    }
+
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * 帧发送器
+     */
+    public interface FrameSender {
+
+        /**
+         * 发送一帧
+         *
+         * @param peer  节点地址
+         * @param frame 帧
+         */
+        void send(String peer, byte[] frame);
+    }
+}
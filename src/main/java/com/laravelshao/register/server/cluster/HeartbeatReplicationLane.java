@@ -0,0 +1,193 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.web.AbstractRequest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 集群同步心跳通道：有界、按内存估算占用的心跳队列
+ * <p>
+ * 集群同步跟不上时心跳会无限堆积，直到把注册中心撑爆。这里按估算的字节数限制队列大小，超过上限时按过载策略处理：
+ * <ul>
+ *     <li>COALESCE(默认)：同一个服务实例只保留最新的一次心跳(位置不变)，仍然超限时丢弃最早的心跳</li>
+ *     <li>SHED_OLDEST：先进先出，超限时丢弃最早的心跳</li>
+ *     <li>BACKPRESSURE：先进先出，超限时阻塞调用方直到有空间，超时后放弃本次同步</li>
+ * </ul>
+ * 丢掉的只是同步给其他节点的心跳，本地续约已经完成；其他节点最多错过一次续约，下一次心跳会补上
+ *
+ * @author qinghua.shao
+ * @date 2022/8/26
+ * @since 1.0.0
+ */
+public class HeartbeatReplicationLane {
+
+    /**
+     * 过载策略
+     */
+    public enum OverloadPolicy {
+        COALESCE, SHED_OLDEST, BACKPRESSURE
+    }
+
+    private final OverloadPolicy policy;
+    private final long maxBytes;
+    private final long backpressureTimeout;
+
+    /**
+     * 待同步的心跳，COALESCE 策略下 key 为服务实例，其他策略下 key 为入队序号
+     */
+    private final LinkedHashMap<Object, AbstractRequest> queue = new LinkedHashMap<>();
+    private long bytes = 0L;
+    private long nextKey = 0L;
+
+    private long accepted = 0L;
+    private long coalesced = 0L;
+    private long shed = 0L;
+    private long rejected = 0L;
+
+    /**
+     * @param policy              过载策略
+     * @param maxBytes            队列最多占用的字节数(估算)
+     * @param backpressureTimeout BACKPRESSURE 策略下最长阻塞时间(毫秒)
+     */
+    public HeartbeatReplicationLane(OverloadPolicy policy, long maxBytes, long backpressureTimeout) {
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+        this.backpressureTimeout = backpressureTimeout;
+    }
+
+    /**
+     * 心跳入队
+     *
+     * @param request 心跳请求
+     * @return BACKPRESSURE 策略下等待超时返回 false
+     */
+    public synchronized boolean offer(AbstractRequest request) {
+        long size = estimate(request);
+
+        if (policy == OverloadPolicy.COALESCE) {
+            String key = request.getServiceName() + '\n' + request.getServiceInstanceId();
+            AbstractRequest previous = queue.put(key, request);
+            if (previous != null) {
+                bytes -= estimate(previous);
+                coalesced++;
+            }
+        } else {
+            if (policy == OverloadPolicy.BACKPRESSURE && !awaitSpace(size)) {
+                rejected++;
+                return false;
+            }
+            queue.put(nextKey++, request);
+        }
+        bytes += size;
+        accepted++;
+
+        // 超过上限时丢弃最早的心跳
+        Iterator<Map.Entry<Object, AbstractRequest>> iterator = queue.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= estimate(iterator.next().getValue());
+            iterator.remove();
+            shed++;
+        }
+        return true;
+    }
+
+    /**
+     * 批量入队
+     *
+     * @param requests 心跳请求
+     */
+    public void offerAll(List<? extends AbstractRequest> requests) {
+        for (AbstractRequest request : requests) {
+            offer(request);
+        }
+    }
+
+    /**
+     * 取出所有待同步的心跳
+     *
+     * @return
+     */
+    public synchronized List<AbstractRequest> drain() {
+        List<AbstractRequest> requests = new ArrayList<>(queue.values());
+        queue.clear();
+        bytes = 0L;
+        notifyAll();
+        return requests;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 已入队的心跳数
+     */
+    public synchronized long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * 被同一个服务实例更新的心跳替换掉的心跳数
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * 超限丢弃的心跳数
+     */
+    public synchronized long getShed() {
+        return shed;
+    }
+
+    /**
+     * 阻塞超时放弃同步的心跳数
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * 估算一个请求在队列中占用的字节数：请求对象、两个字符串、队列节点
+     */
+    static long estimate(AbstractRequest request) {
+        return 160L + 2L * (length(request.getServiceName()) + length(request.getServiceInstanceId()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private boolean awaitSpace(long size) {
+        long deadline = System.currentTimeMillis() + backpressureTimeout;
+        while (bytes + size > maxBytes && !queue.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * 内存中模拟的集群网络(虚拟时间)
+ * <p>
+ * 每个节点串行发送，每发一条消息占用 sendCost 微秒的出口带宽，消息经过 linkLatency 微秒到达对端。
+ * 所有节点在同一个线程上按到达时间依次处理消息，结果可复现
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public class InMemoryPeerNetwork {
+
+    private final long linkLatencyMicros;
+    private final long sendCostMicros;
+
+    private final Map<String, ReplicationRouter> routers = new HashMap<>();
+    private final Map<String, Consumer<PeersReplicateBatch>> appliers = new HashMap<>();
+    private final Map<String, Long> busyUntil = new HashMap<>();
+    private final Map<String, Long> sendCounts = new HashMap<>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+
+    private long now = 0L;
+    private long deliverySequence = 0L;
+    private long messageCount = 0L;
+
+    public InMemoryPeerNetwork(long linkLatencyMicros, long sendCostMicros) {
+        this.linkLatencyMicros = linkLatencyMicros;
+        this.sendCostMicros = sendCostMicros;
+    }
+
+    /**
+     * 创建某个节点使用的传输层
+     *
+     * @param self 节点
+     * @return
+     */
+    public PeerTransport transportFor(String self) {
+        return (peer, batch) -> {
+            long start = Math.max(now, busyUntil.getOrDefault(self, 0L));
+            long sent = start + sendCostMicros;
+            busyUntil.put(self, sent);
+            sendCounts.merge(self, 1L, Long::sum);
+            deliveries.add(new Delivery(sent + linkLatencyMicros, deliverySequence++, peer, batch));
+            messageCount++;
+        };
+    }
+
+    /**
+     * 节点加入网络
+     *
+     * @param router  节点的同步路由
+     * @param applier 节点写入 batch
+     */
+    public void join(ReplicationRouter router, Consumer<PeersReplicateBatch> applier) {
+        routers.put(router.getSelf(), router);
+        appliers.put(router.getSelf(), applier);
+    }
+
+    /**
+     * 投递所有消息直到网络空闲
+     *
+     * @return 最后一条消息到达的虚拟时间(微秒)
+     */
+    public long runUntilIdle() {
+        Delivery delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            now = delivery.time;
+            ReplicationRouter router = routers.get(delivery.peer);
+            if (router != null) {
+                router.receive(delivery.batch, appliers.get(delivery.peer));
+            }
+        }
+        return now;
+    }
+
+    /**
+     * 当前虚拟时间(微秒)
+     */
+    public long now() {
+        return now;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * 发送消息最多的节点的发送数
+     */
+    public long getMaxSendCount() {
+        long max = 0L;
+        for (long count : sendCounts.values()) {
+            max = Math.max(max, count);
+        }
+        return max;
+    }
+
+    private static class Delivery implements Comparable<Delivery> {
+
+        final long time;
+        final long sequence;
+        final String peer;
+        final PeersReplicateBatch batch;
+
+        Delivery(long time, long sequence, String peer, PeersReplicateBatch batch) {
+            this.time = time;
+            this.sequence = sequence;
+            this.peer = peer;
+            this.batch = batch;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int result = Long.compare(time, other.time);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegistryMerkleTree;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的反熵修复对端
+ * <p>
+ * 由 Merkle 摘要、服务实例查询函数、批量写入函数组装而成，
+ * 既可以包装本节点的注册表，也可以包装独立的存储引擎模拟集群中的其它节点
+ *
+ * @author qinghua.shao
+ * @date 2022/8/20
+ * @since 1.0.0
+ */
+public class LocalAntiEntropyPeer implements AntiEntropyPeer {
+
+    private final String name;
+    private final RegistryMerkleTree merkleTree;
+    private final BiFunction<String, String, ServiceInstance> lookup;
+    private final Consumer<List<ServiceInstance>> applier;
+
+    public LocalAntiEntropyPeer(String name, RegistryMerkleTree merkleTree,
+                                BiFunction<String, String, ServiceInstance> lookup,
+                                Consumer<List<ServiceInstance>> applier) {
+        this.name = name;
+        this.merkleTree = merkleTree;
+        this.lookup = lookup;
+        this.applier = applier;
+    }
+
+    /**
+     * 包装本节点的注册表：批量写入注册表后只过期一次缓存，不触发集群同步
+     *
+     * @return
+     */
+    public static LocalAntiEntropyPeer ofRegistry() {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        if (registry.getMerkleTree() == null) {
+            throw new IllegalStateException("未开启反熵修复：register.server.anti-entropy.enabled=false");
+        }
+        return new LocalAntiEntropyPeer("local", registry.getMerkleTree(), registry::getServiceInstance,
+                serviceInstances -> {
+                    registry.register(serviceInstances);
+                    ServiceRegistryCache.getInstance().invalidate();
+                });
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long[] getNodeHashes(int[] nodes) {
+        return merkleTree.getNodeHashes(nodes);
+    }
+
+    @Override
+    public List<ServiceInstance> getLeafInstances(int[] leafNodes) {
+        List<ServiceInstance> serviceInstances = new ArrayList<>();
+        for (int leafNode : leafNodes) {
+            for (String[] key : merkleTree.getLeafKeys(leafNode)) {
+                ServiceInstance serviceInstance = lookup.apply(key[0], key[1]);
+                // 摘要与存储之间存在极短的不一致窗口，查不到的忽略，下一轮再修复
+                if (serviceInstance != null) {
+                    serviceInstances.add(serviceInstance);
+                }
+            }
+        }
+        return serviceInstances;
+    }
+
+    @Override
+    public void applyInstances(List<ServiceInstance> serviceInstances) {
+        if (!serviceInstances.isEmpty()) {
+            applier.accept(serviceInstances);
+        }
+    }
+
+    public RegistryMerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+}
@@ -0,0 +1,39 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.List;
+
+/**
+ * 集群同步传输层：把一个 batch 发送给指定节点
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public interface PeerTransport {
+
+    /**
+     * 只打印日志的传输层(还没有接入 http 客户端)
+     */
+    PeerTransport LOGGING = (peer, batch) ->
+            System.out.println("给" + peer + "发送请求，同步batch过去......");
+
+    /**
+     * 发送 batch
+     *
+     * @param peer  节点地址
+     * @param batch 集群同步 batch
+     */
+    void send(String peer, PeersReplicateBatch batch);
+
+    /**
+     * 一次发送多个 batch，按帧发送的传输层可以把它们合并
+     *
+     * @param peer    节点地址
+     * @param batches 集群同步 batch
+     */
+    default void send(String peer, List<PeersReplicateBatch> batches) {
+        for (PeersReplicateBatch batch : batches) {
+            send(peer, batch);
+        }
+    }
+}
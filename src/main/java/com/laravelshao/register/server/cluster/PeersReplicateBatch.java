@@ -14,6 +14,38 @@ import java.util.List;
  */
 public class PeersReplicateBatch {
 
+    /**
+     * 成员变更通道：注册、下线
+     */
+    public static final byte MEMBERSHIP_LANE = 0;
+    /**
+     * 心跳通道
+     */
+    public static final byte HEARTBEAT_LANE = 1;
+    /**
+     * 分片迁移：由旧归属节点点对点发给新归属节点，接收方不按归属过滤、不再转发
+     */
+    public static final byte HANDOFF_LANE = 2;
+    /**
+     * 通道数量
+     */
+    public static final int LANES = 3;
+
+    /**
+     * 生成 batch 的节点
+     */
+    private String origin;
+
+    /**
+     * 产生 batch 的通道，每个通道有独立的序号空间
+     */
+    private byte lane = MEMBERSHIP_LANE;
+
+    /**
+     * batch 在来源节点该通道上的序号，单调递增
+     */
+    private long sequence;
+
     private List<AbstractRequest> requests = new ArrayList<>();
 
     public void add(AbstractRequest request) {
@@ -28,4 +60,35 @@ public class PeersReplicateBatch {
         this.requests = requests;
     }
 
+    public String getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public byte getLane() {
+        return lane;
+    }
+
+    public void setLane(byte lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * 是否为分片迁移 batch
+     */
+    public boolean isHandoff() {
+        return lane == HANDOFF_LANE;
+    }
+
 }
\ No newline at end of file
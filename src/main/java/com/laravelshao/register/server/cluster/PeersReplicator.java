@@ -1,18 +1,31 @@
 package com.laravelshao.register.server.cluster;
 
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
 import com.laravelshao.register.server.web.AbstractRequest;
 import com.laravelshao.register.server.web.CancelRequest;
 import com.laravelshao.register.server.web.HeartbeatRequest;
 import com.laravelshao.register.server.web.RegisterRequest;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 集群同步组件
+ * <p>
+ * 注册、下线和心跳分成两条通道，避免成员变更排在海量心跳后面：
+ * <ul>
+ *     <li>成员变更通道：每 10ms 打包一次，按小 batch 立即发送，传播延迟与心跳量无关</li>
+ *     <li>心跳通道：按内存估算限制大小，过载时按策略合并、丢弃或阻塞，每 500ms 打包一次，经过第二层队列批量发送；
+ *     第二层队列同样按内存估算限制，发送跟不上时不再从心跳通道取出心跳，积压留在心跳通道里由过载策略处理</li>
+ * </ul>
+ * 每条通道有独立的 batch 序号空间，接收方按 (来源节点, 通道, 序号) 去重：心跳 batch 打包后要等发送任务取走，
+ * 如果和成员变更共用序号，先打包的心跳 batch 会晚于后打包的成员变更 batch 到达，被新节点当成重复丢掉。
+ * 打包时按最大帧大小拆分 batch，发送时把发往同一个节点的 batch 合并编码成帧
  *
  * @author qinghua.shao
  * @date 2022/7/23
@@ -23,22 +36,79 @@ public class PeersReplicator {
     /**
      * 集群同步生成 batch 时间间隔：500ms
      */
-    private static final long PEERS_REPLICATE_BATCH_INTERVAL = 500;
+    private static final long PEERS_REPLICATE_BATCH_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.peers-replicate-batch-interval", 500L);
+    /**
+     * 集群同步发送 batch 时间间隔：100ms
+     */
+    private static final long PEERS_REPLICATE_SEND_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.peers-replicate-send-interval", 100L);
+    /**
+     * 成员变更(注册、下线)打包发送时间间隔：10ms
+     */
+    private static final long PEERS_REPLICATE_MEMBERSHIP_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.peers-replicate-membership-interval", 10L);
+    /**
+     * 成员变更单个 batch 最多包含的请求数
+     */
+    private static final int MEMBERSHIP_BATCH_SIZE = RegisterServerConfig.getInt(
+            "register.server.peers-replicate-membership-batch-size", 100);
+    /**
+     * 集群同步最大帧大小：1MB
+     */
+    private static final int MAX_FRAME_BYTES = RegisterServerConfig.getInt(
+            "register.server.replication.max-frame-bytes", 1024 * 1024);
+    /**
+     * 集群同步帧是否压缩
+     */
+    private static final boolean FRAME_COMPRESS = Boolean.parseBoolean(RegisterServerConfig.getString(
+            "register.server.replication.compress", "true"));
+    /**
+     * 心跳通道最多占用的内存(估算)：64MB
+     */
+    private static final long HEARTBEAT_QUEUE_BYTES = RegisterServerConfig.getLong(
+            "register.server.replication.heartbeat-queue-bytes", 64 * 1024 * 1024L);
+    /**
+     * 第二层队列(已打包待发送的心跳 batch)最多占用的内存(估算)：64MB
+     */
+    private static final long SEND_QUEUE_BYTES = RegisterServerConfig.getLong(
+            "register.server.replication.send-queue-bytes", 64 * 1024 * 1024L);
+    /**
+     * 心跳通道过载策略：coalesce(默认)、shed_oldest、backpressure
+     */
+    private static final String HEARTBEAT_OVERLOAD_POLICY = RegisterServerConfig.getString(
+            "register.server.replication.heartbeat-overload-policy", "coalesce");
+    /**
+     * backpressure 策略下心跳入队最长阻塞时间
+     */
+    private static final long BACKPRESSURE_TIMEOUT = RegisterServerConfig.getLong(
+            "register.server.replication.backpressure-timeout", 1000L);
+    /**
+     * 集群同步拓扑：all(默认)、tree、gossip(要求反熵修复可用，否则改用 tree)
+     */
+    private static final String REPLICATION_TOPOLOGY = RegisterServerConfig.getString(
+            "register.server.replication.topology", "all");
+    /**
+     * 树形、gossip 拓扑下每个节点最多转发的节点数
+     */
+    private static final int REPLICATION_FANOUT = RegisterServerConfig.getInt(
+            "register.server.replication.fanout", 3);
 
     // 单例
     private static final PeersReplicator instance = new PeersReplicator();
 
     private PeersReplicator() {
 
-        // 启动接收请求和打包batch的线程
-        AcceptorBatchThread acceptorBatchThread = new AcceptorBatchThread();
-        acceptorBatchThread.setDaemon(true);
-        acceptorBatchThread.start();
+        RegisterServerScheduler scheduler = RegisterServerScheduler.getInstance();
+
+        // 注册成员变更打包并立即发送的后台任务
+        scheduler.schedule("peers-replicate-membership", PEERS_REPLICATE_MEMBERSHIP_INTERVAL, this::sendMembershipBatches);
+
+        // 注册心跳打包 batch 的后台任务
+        scheduler.schedule("peers-replicate-batch", PEERS_REPLICATE_BATCH_INTERVAL, this::generateBatch);
 
-        // 启动同步发送batch的线程
-        PeersReplicateThread peersReplicateThread = new PeersReplicateThread();
-        peersReplicateThread.setDaemon(true);
-        peersReplicateThread.start();
+        // 注册同步发送 batch 的后台任务
+        scheduler.schedule("peers-replicate-send", PEERS_REPLICATE_SEND_INTERVAL, this::sendBatches);
     }
 
     public static PeersReplicator getInstance() {
@@ -46,26 +116,64 @@ public class PeersReplicator {
     }
 
     /**
-     * 第一层队列：接收请求的高并发写入，无界队列
+     * 成员变更通道：接收注册、下线请求，注册、下线不能丢，不限制大小，只统计占用的内存
      */
-    private ConcurrentLinkedQueue<AbstractRequest> acceptorQueue = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<AbstractRequest> membershipQueue = new ConcurrentLinkedQueue<>();
+    private AtomicLong membershipBytes = new AtomicLong(0L);
 
     /**
-     * 第二层队列：用于 batch 生成，有界队列
+     * 第一层队列：接收心跳请求的高并发写入，按内存估算限制大小
      */
-    private LinkedBlockingQueue<AbstractRequest> batchQueue = new LinkedBlockingQueue<>(1000000);
+    private HeartbeatReplicationLane heartbeatLane = new HeartbeatReplicationLane(
+            overloadPolicy(), HEARTBEAT_QUEUE_BYTES, BACKPRESSURE_TIMEOUT);
 
     /**
-     * 第三层队列：用于 batch 同步发送，有界队列
+     * 上一次打包时已经报告过的丢弃心跳数
+     */
+    private long reportedShed = 0L;
+
+    /**
+     * 第二层队列：用于 batch 同步发送，有界队列
      */
     private LinkedBlockingQueue<PeersReplicateBatch> replicateQueue = new LinkedBlockingQueue<>(10000);
 
+    /**
+     * 第二层队列占用的内存(估算字节数)
+     */
+    private AtomicLong replicateQueueBytes = new AtomicLong(0L);
+
+    /**
+     * 第二层队列已满时丢弃的心跳数
+     */
+    private AtomicLong droppedHeartbeats = new AtomicLong(0L);
+
+    /**
+     * 每个通道最近一个 batch 的序号，以启动时间为起点，节点重启后序号仍然递增
+     */
+    private AtomicLong[] lastSequences = newLaneSequences(System.currentTimeMillis() * 1000L);
+
+    /**
+     * 最近一个请求的序号
+     */
+    private AtomicLong lastRequestSequence = new AtomicLong(0L);
+
+    /**
+     * 集群同步帧编解码
+     */
+    private ReplicationFrameCodec codec = new ReplicationFrameCodec(MAX_FRAME_BYTES, FRAME_COMPRESS);
+
+    /**
+     * 集群同步路由
+     */
+    private ReplicationRouter router = createRouter();
+
     /**
      * 同步服务注册请求
      */
     public void replicateRegister(RegisterRequest request) {
         request.setType(AbstractRequest.REGISTER_REQUEST);
-        acceptorQueue.offer(request);
+        stamp(request);
+        offerMembership(request);
     }
 
     /**
@@ -73,7 +181,8 @@ public class PeersReplicator {
      */
     public void replicateCancel(CancelRequest request) {
         request.setType(AbstractRequest.CANCEL_REQUEST);
-        acceptorQueue.offer(request);
+        stamp(request);
+        offerMembership(request);
     }
 
     /**
@@ -81,87 +190,310 @@ public class PeersReplicator {
      */
     public void replicateHeartbeat(HeartbeatRequest request) {
         request.setType(AbstractRequest.HEARTBEAT_REQUEST);
-        acceptorQueue.offer(request);
-    }
-
-    /**
-     * 负责接收数据并打包 batch 的后台线程
-     */
-    class AcceptorBatchThread extends Thread {
-
-        long latestBatchGeneration = System.currentTimeMillis();
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 获取数据
-                    AbstractRequest request = acceptorQueue.poll();
-                    if (request != null) {
-                        batchQueue.put(request);
-                    }
-
-                    // 采用一定的策略来进行打包，每隔500ms生成一个batch
-                    long now = System.currentTimeMillis();
-                    if (now - latestBatchGeneration >= PEERS_REPLICATE_BATCH_INTERVAL) {
-                        // 此时如果第二层队列里面有数据的，生成一个batch
-                        if (batchQueue.size() > 0) {
-                            PeersReplicateBatch batch = createBatch();
-                            replicateQueue.offer(batch);
-                        }
-                        this.latestBatchGeneration = System.currentTimeMillis();
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        stamp(request);
+        heartbeatLane.offer(request);
+    }
+
+    /**
+     * 批量同步服务注册请求(一次入队)
+     */
+    public void replicateRegister(List<RegisterRequest> requests) {
+        for (RegisterRequest request : requests) {
+            request.setType(AbstractRequest.REGISTER_REQUEST);
+            stamp(request);
+        }
+        for (AbstractRequest request : requests) {
+            offerMembership(request);
+        }
+    }
+
+    /**
+     * 批量同步服务下线请求(一次入队)
+     */
+    public void replicateCancel(List<CancelRequest> requests) {
+        for (CancelRequest request : requests) {
+            request.setType(AbstractRequest.CANCEL_REQUEST);
+            stamp(request);
+        }
+        for (AbstractRequest request : requests) {
+            offerMembership(request);
+        }
+    }
+
+    /**
+     * 批量同步心跳请求(一次入队)
+     */
+    public void replicateHeartbeat(List<HeartbeatRequest> requests) {
+        for (HeartbeatRequest request : requests) {
+            request.setType(AbstractRequest.HEARTBEAT_REQUEST);
+            stamp(request);
+        }
+        heartbeatLane.offerAll(requests);
+    }
+
+    /**
+     * 批量同步请求(请求类型需已设置，按类型分到两条通道)
+     */
+    public void replicate(List<AbstractRequest> requests) {
+        for (AbstractRequest request : requests) {
+            stamp(request);
+            if (AbstractRequest.HEARTBEAT_REQUEST.equals(request.getType())) {
+                heartbeatLane.offer(request);
+            } else {
+                offerMembership(request);
+            }
+        }
+    }
+
+    /**
+     * 每隔10ms把成员变更通道中积压的请求按小 batch 打包，直接发送
+     */
+    void sendMembershipBatches() {
+        AbstractRequest request;
+        List<AbstractRequest> requests = new ArrayList<>();
+        while ((request = membershipQueue.poll()) != null) {
+            membershipBytes.addAndGet(-HeartbeatReplicationLane.estimate(request));
+            requests.add(request);
+            if (requests.size() >= MEMBERSHIP_BATCH_SIZE) {
+                router.publish(seal(requests, PeersReplicateBatch.MEMBERSHIP_LANE));
+                requests = new ArrayList<>();
+            }
+        }
+        if (!requests.isEmpty()) {
+            router.publish(seal(requests, PeersReplicateBatch.MEMBERSHIP_LANE));
+        }
+    }
+
+    /**
+     * 每隔500ms把第一层队列中积压的心跳请求打包成一个 batch，放入第二层队列
+     */
+    void generateBatch() {
+        try {
+            // 第二层队列积压说明发送跟不上，心跳留在心跳通道里，由过载策略合并、丢弃或阻塞调用方
+            if (replicateQueueBytes.get() >= SEND_QUEUE_BYTES || replicateQueue.remainingCapacity() == 0) {
+                return;
+            }
+
+            List<AbstractRequest> requests = heartbeatLane.drain();
+            if (requests.isEmpty()) {
+                return;
+            }
+
+            for (PeersReplicateBatch batch : seal(requests, PeersReplicateBatch.HEARTBEAT_LANE)) {
+                long bytes = estimate(batch);
+                replicateQueueBytes.addAndGet(bytes);
+                if (!replicateQueue.offer(batch)) {
+                    replicateQueueBytes.addAndGet(-bytes);
+                    droppedHeartbeats.addAndGet(batch.getRequests().size());
                 }
             }
+        } finally {
+            reportShed();
+        }
+    }
+
+    /**
+     * 报告过载放弃同步的心跳(心跳通道丢弃、拒绝，以及第二层队列已满时丢弃的)
+     */
+    private void reportShed() {
+        long shed = getShedHeartbeats();
+        if (shed != reportedShed) {
+            System.out.println("集群同步心跳通道过载(" + heartbeatLane.getPolicy() + ")，放弃同步心跳："
+                    + (shed - reportedShed) + "个，累计：" + shed + "个");
+            reportedShed = shed;
+        }
+    }
+
+    /**
+     * 过载放弃同步的心跳数
+     *
+     * @return
+     */
+    public long getShedHeartbeats() {
+        return heartbeatLane.getShed() + heartbeatLane.getRejected() + droppedHeartbeats.get();
+    }
+
+    /**
+     * 第二层队列占用的内存(估算字节数)
+     *
+     * @return
+     */
+    public long getReplicateQueueBytes() {
+        return replicateQueueBytes.get();
+    }
+
+    private static long estimate(PeersReplicateBatch batch) {
+        long bytes = 0L;
+        for (AbstractRequest request : batch.getRequests()) {
+            bytes += HeartbeatReplicationLane.estimate(request);
         }
+        return bytes;
+    }
 
-        /**
-         * 创建一个 batch
-         */
-        private PeersReplicateBatch createBatch() {
+    /**
+     * 把已经写入本地注册表的请求直接发给指定节点(分片迁移)，不经过两层队列和同步拓扑
+     *
+     * @param peer     节点地址
+     * @param requests 请求
+     * @return 对端确认收到时返回 true
+     */
+    public boolean handoff(String peer, List<AbstractRequest> requests) {
+        if (requests.isEmpty()) {
+            return true;
+        }
+        for (AbstractRequest request : requests) {
+            stamp(request);
+        }
+        return router.sendTo(peer, seal(requests, PeersReplicateBatch.HANDOFF_LANE));
+    }
+
+    private ReplicationRouter createRouter() {
+        ReplicationRouter replicationRouter = new ReplicationRouter(
+                RegisterServerCluster.getSelf(),
+                RegisterServerCluster.getPeers(),
+                new ReplicationTopology(topologyMode(), REPLICATION_FANOUT, new Random()),
+                new FramedPeerTransport(codec, FramedPeerTransport.LOGGING, ReplicationMetrics.getInstance()));
+        replicationRouter.setFollowers(RegisterServerCluster.getFollowers());
+        replicationRouter.setForwarding(!RegisterServerCluster.isFollower());
+        return replicationRouter;
+    }
 
+    /**
+     * 集群成员变更
+     */
+    public void onMembershipChanged() {
+        router.updateMembers(RegisterServerCluster.getPeers());
+    }
+
+    /**
+     * 通道最近一个 batch 的序号
+     *
+     * @param lane 通道
+     * @return
+     */
+    public long getLastSequence(byte lane) {
+        return lastSequences[lane].get();
+    }
+
+    /**
+     * 请求进入集群同步组件时记录来源时间戳和请求序号
+     */
+    private void stamp(AbstractRequest request) {
+        request.setOriginTimestamp(RegisterServerScheduler.getInstance().now());
+        request.setSequence(lastRequestSequence.incrementAndGet());
+    }
+
+    /**
+     * 按最大帧大小把请求拆成若干 batch，设置来源节点、通道和通道内的序号
+     * <p>
+     * batch 中的请求都已经写入本地注册表，序号小于等于该通道快照版本号的 batch 已经包含在快照中
+     */
+    private List<PeersReplicateBatch> seal(List<AbstractRequest> requests, byte lane) {
+        List<PeersReplicateBatch> batches = new ArrayList<>();
+        for (List<AbstractRequest> part : codec.split(requests)) {
             PeersReplicateBatch batch = new PeersReplicateBatch();
-            Iterator<AbstractRequest> iterator = batchQueue.iterator();
-            while (iterator.hasNext()) {
-                AbstractRequest request = iterator.next();
-                batch.add(request);
-            }
+            batch.setRequests(part);
+            batch.setOrigin(RegisterServerCluster.getSelf());
+            batch.setLane(lane);
+            batch.setSequence(lastSequences[lane].incrementAndGet());
+            batches.add(batch);
+        }
+        return batches;
+    }
 
-            batchQueue.clear();
+    private static AtomicLong[] newLaneSequences(long initial) {
+        AtomicLong[] sequences = new AtomicLong[PeersReplicateBatch.LANES];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = new AtomicLong(initial);
+        }
+        return sequences;
+    }
+
+    private void offerMembership(AbstractRequest request) {
+        membershipBytes.addAndGet(HeartbeatReplicationLane.estimate(request));
+        membershipQueue.offer(request);
+    }
 
-            return batch;
+    private static HeartbeatReplicationLane.OverloadPolicy overloadPolicy() {
+        try {
+            return HeartbeatReplicationLane.OverloadPolicy.valueOf(HEARTBEAT_OVERLOAD_POLICY.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("配置项【register.server.replication.heartbeat-overload-policy】格式错误："
+                    + HEARTBEAT_OVERLOAD_POLICY + "，使用默认值：coalesce");
+            return HeartbeatReplicationLane.OverloadPolicy.COALESCE;
         }
     }
 
+    /**
+     * 成员变更通道占用的内存(估算字节数)
+     */
+    public long getMembershipBytes() {
+        return membershipBytes.get();
+    }
 
     /**
-     * 集群同步后台线程
+     * 心跳通道
      */
-    class PeersReplicateThread extends Thread {
+    public HeartbeatReplicationLane getHeartbeatLane() {
+        return heartbeatLane;
+    }
 
-        ExecutorService threadPool = Executors.newFixedThreadPool(RegisterServerCluster.getPeers().size());
+    /**
+     * 成员变更通道积压的请求数
+     */
+    public int getMembershipBacklog() {
+        return membershipQueue.size();
+    }
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    PeersReplicateBatch batch = replicateQueue.take();
-                    if (batch != null) {
+    /**
+     * 心跳通道积压的请求数
+     */
+    public int getHeartbeatBacklog() {
+        return heartbeatLane.size();
+    }
 
-                        for (String peer : RegisterServerCluster.getPeers()) {
-                            threadPool.execute(() -> {
-                                // 遍历所有的其他的 register-server 地址
-                                // 给每个地址的register-server都发送一个http 请求同步 batch
-                                System.out.println("给" + peer + "发送请求，同步batch过去......");
-                            });
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    /**
+     * 发送第二层队列中所有待同步的 batch
+     */
+    void sendBatches() {
+        List<PeersReplicateBatch> batches = new ArrayList<>();
+        replicateQueue.drainTo(batches);
+        if (batches.isEmpty()) {
+            return;
+        }
+        try {
+            // 按同步拓扑发给下一跳节点，发往同一个节点的 batch 合并成帧
+            router.publish(batches);
+        } finally {
+            // 发送完成之后才释放占用，发送期间心跳继续积压在心跳通道里
+            for (PeersReplicateBatch batch : batches) {
+                replicateQueueBytes.addAndGet(-estimate(batch));
             }
         }
     }
+
+    private static ReplicationTopology.Mode topologyMode() {
+        ReplicationTopology.Mode mode;
+        try {
+            mode = ReplicationTopology.Mode.valueOf(REPLICATION_TOPOLOGY.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("配置项【register.server.replication.topology】格式错误：" + REPLICATION_TOPOLOGY + "，使用默认值：all");
+            return ReplicationTopology.Mode.ALL;
+        }
+        // gossip 不保证所有节点都收到 batch，漏掉的注册、下线只能由反熵修复补齐
+        if (mode == ReplicationTopology.Mode.GOSSIP && !AntiEntropyReconciler.getInstance().isOperational()) {
+            System.out.println("gossip 拓扑需要开启反熵修复(register.server.anti-entropy.enabled)并配置反熵修复客户端，"
+                    + "否则遗漏的注册、下线无法补齐，改用 tree 拓扑");
+            return ReplicationTopology.Mode.TREE;
+        }
+        return mode;
+    }
+
+    public ReplicationFrameCodec getCodec() {
+        return codec;
+    }
+
+    public ReplicationRouter getRouter() {
+        return router;
+    }
 }
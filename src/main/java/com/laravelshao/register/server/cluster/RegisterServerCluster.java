@@ -1,7 +1,12 @@
 package com.laravelshao.register.server.cluster;
 
+import com.laravelshao.register.server.core.RegisterServerConfig;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 注册服务端集群
@@ -12,13 +17,125 @@ import java.util.List;
  */
 public class RegisterServerCluster {
 
-    private static List<String> peers = new ArrayList<>();
+    private static List<String> peers = new CopyOnWriteArrayList<>();
+
+    /**
+     * 本节点标识：必须是其它节点在 register.server.peers 中访问本节点用的地址，
+     * 同时作为集群同步 batch 的来源、去重的 key、同步拓扑和分片哈希环中的成员。
+     * 配置了其它节点时必须显式配置，单机部署时生成一个随机标识
+     */
+    private static String self = RegisterServerConfig.getString("register.server.node-name", null);
+
+    /**
+     * 本节点标识是否为显式配置的地址(随机生成的标识不能被其它节点访问)
+     */
+    private static boolean selfConfigured = self != null && !self.trim().isEmpty();
+
+    /**
+     * 节点角色：peer 为普通节点；follower 为只读节点，只接收集群同步、只提供注册表拉取，不接受客户端写请求、不转发同步
+     */
+    private static String role = RegisterServerConfig.getString("register.server.role", "peer");
+
+    /**
+     * 只读节点：由产生 batch 的节点直接发送，不参与节点之间的集群同步拓扑
+     */
+    private static List<String> followers = new CopyOnWriteArrayList<>();
 
     static {
         // 读取配置文件，看看你配合了哪些机器部署的 register-server
+        parse(RegisterServerConfig.getString("register.server.peers", null), peers);
+        parse(RegisterServerConfig.getString("register.server.followers", null), followers);
+
+        if (!selfConfigured) {
+            if (!peers.isEmpty() || !followers.isEmpty()) {
+                // 所有节点共用一个默认名称时，每个节点都会把收到的 batch 当成自己产生的重新广播，去重窗口也会互相覆盖
+                throw new IllegalStateException(
+                        "配置了集群节点时必须配置 register.server.node-name(其它节点访问本节点的地址)");
+            }
+            self = "register-server-" + UUID.randomUUID().toString().replace("-", "");
+        }
+        self = self.trim();
+        // 所有节点可以使用同一份节点列表，列表中本节点自己的地址不算作其它节点
+        peers.remove(self);
+    }
+
+    private static void parse(String configured, List<String> nodes) {
+        if (configured != null) {
+            for (String node : configured.split(",")) {
+                if (!node.trim().isEmpty()) {
+                    nodes.add(node.trim());
+                }
+            }
+        }
+    }
+
+    public static String getSelf() {
+        return self;
+    }
+
+    public static boolean isSelfConfigured() {
+        return selfConfigured;
     }
 
     public static List<String> getPeers() {
         return peers;
     }
+
+    /**
+     * 集群所有节点(包含本节点)，按地址排序，各节点在成员相同时得到相同的列表
+     *
+     * @return
+     */
+    public static List<String> getMembers() {
+        List<String> members = new ArrayList<>(peers);
+        members.add(self);
+        Collections.sort(members);
+        return members;
+    }
+
+    public static List<String> getFollowers() {
+        return followers;
+    }
+
+    /**
+     * 本节点是否为只读节点
+     *
+     * @return
+     */
+    public static boolean isFollower() {
+        return "follower".equalsIgnoreCase(role);
+    }
+
+    /**
+     * 节点加入集群：更新集群同步路由，分片模式下迁移归属发生变化的服务
+     *
+     * @param peer 节点地址
+     */
+    public static synchronized void join(String peer) {
+        if (peer.equals(self) || peers.contains(peer)) {
+            return;
+        }
+        List<String> previousPeers = new ArrayList<>(peers);
+        peers.add(peer);
+        onMembershipChanged(previousPeers);
+    }
+
+    /**
+     * 节点离开集群
+     *
+     * @param peer 节点地址
+     */
+    public static synchronized void leave(String peer) {
+        List<String> previousPeers = new ArrayList<>(peers);
+        if (peers.remove(peer)) {
+            onMembershipChanged(previousPeers);
+        }
+    }
+
+    private static void onMembershipChanged(List<String> previousPeers) {
+        System.out.println("集群成员变更：" + previousPeers + " -> " + peers);
+        PeersReplicator.getInstance().onMembershipChanged();
+        AntiEntropyReconciler.getInstance().updateMembers(peers);
+        RegistrySharding.getInstance().rebalance(previousPeers);
+    }
 }
@@ -0,0 +1,219 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.SelfProtectionPolicy;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 新节点启动引导组件
+ * <p>
+ * 新节点启动时注册表是空的，要等所有客户端重新注册才能正确响应拉取注册表。这里改为启动时从集群中某个节点拉取注册表快照：
+ * <ul>
+ *     <li>对端在注册表读锁内记下每个集群同步通道最近一个 batch 的序号作为快照版本号，并把注册表按定长记录格式编码到内存，
+ *     释放读锁之后再写给新节点，新节点读得再慢也不会阻塞对端的注册表写入</li>
+ *     <li>本节点按块读取快照，每块加一次写锁批量写入，不记录最近变更，全部写完后只过期一次缓存</li>
+ *     <li>拉取快照期间收到的集群同步 batch 先缓存，快照写入完成后按顺序重放，
+ *     来自快照节点且序号不大于所在通道快照版本号的 batch 已经包含在快照中，直接跳过，之后切换为正常同步</li>
+ * </ul>
+ * 节点启动时通过 {@link #setSource(SnapshotSource)} 配置的快照来源引导，没有配置时跳过。
+ * 快照流格式：[int 节点名称字节数][节点名称 UTF-8][long 快照版本号(每个通道一个)]*[全量注册表编码]
+ *
+ * @author qinghua.shao
+ * @date 2022/8/21
+ * @since 1.0.0
+ */
+public class RegistryBootstrapper {
+
+    /**
+     * 读取快照时每块的服务实例数量
+     */
+    private static final int SNAPSHOT_CHUNK_RECORDS = RegisterServerConfig.getInt(
+            "register.server.bootstrap.chunk-records", 4096);
+
+    private static final RegistryBootstrapper instance = new RegistryBootstrapper();
+
+    private final ServiceRegistry registry = ServiceRegistry.getInstance();
+
+    /**
+     * 是否正在引导，引导期间收到的集群同步 batch 先缓存
+     */
+    private boolean bootstrapping = false;
+
+    /**
+     * 引导期间缓存的集群同步 batch
+     */
+    private List<PeersReplicateBatch> bufferedBatches = new ArrayList<>();
+
+    /**
+     * 启动引导使用的快照来源
+     */
+    private volatile SnapshotSource source = SnapshotSource.UNAVAILABLE;
+
+    private RegistryBootstrapper() {
+    }
+
+    public static RegistryBootstrapper getInstance() {
+        return instance;
+    }
+
+    /**
+     * 将本节点的注册表快照写入 channel(供新节点拉取)
+     *
+     * @param channel 输出 channel
+     * @throws IOException
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        long[] snapshotSequences = new long[PeersReplicateBatch.LANES];
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try {
+            // 在读锁内读取各通道的序号并编码注册表：序号不大于它的 batch 中的请求都已经写入注册表
+            registry.readLock();
+            for (byte lane = 0; lane < PeersReplicateBatch.LANES; lane++) {
+                snapshotSequences[lane] = PeersReplicator.getInstance().getLastSequence(lane);
+            }
+            registry.writeFullRegistry(Channels.newChannel(encoded));
+        } finally {
+            registry.readUnlock();
+        }
+
+        // 释放读锁之后再写给调用方，对端读取的快慢不影响注册表写入
+        byte[] origin = RegisterServerCluster.getSelf().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + origin.length + 8 * PeersReplicateBatch.LANES);
+        header.putInt(origin.length);
+        header.put(origin);
+        for (long snapshotSequence : snapshotSequences) {
+            header.putLong(snapshotSequence);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        encoded.writeTo(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * 节点启动时用配置的快照来源引导，没有配置快照来源时跳过
+     *
+     * @param applier 写入一个集群同步 batch(不再向其它节点同步)
+     * @return 是否从某个节点加载了快照
+     */
+    public boolean bootstrapOnStartup(Consumer<PeersReplicateBatch> applier) {
+        if (source == SnapshotSource.UNAVAILABLE) {
+            if (!RegisterServerCluster.getPeers().isEmpty()) {
+                System.out.println("没有配置注册表快照客户端，跳过启动引导，注册表等待客户端重新注册和集群同步补齐");
+            }
+            return false;
+        }
+        return bootstrap(source, applier);
+    }
+
+    /**
+     * 依次尝试从集群中的节点拉取注册表快照，成功一个即可
+     *
+     * @param source  快照来源
+     * @param applier 写入一个集群同步 batch(不再向其它节点同步)
+     * @return 是否从某个节点加载了快照
+     */
+    public boolean bootstrap(SnapshotSource source, Consumer<PeersReplicateBatch> applier) {
+        List<String> peers = RegisterServerCluster.getPeers();
+        if (peers.isEmpty()) {
+            return false;
+        }
+
+        synchronized (this) {
+            bootstrapping = true;
+        }
+
+        String snapshotOrigin = null;
+        long[] snapshotSequences = new long[PeersReplicateBatch.LANES];
+        for (String peer : peers) {
+            long start = System.currentTimeMillis();
+            try (ReadableByteChannel channel = source.open(peer)) {
+                ByteBuffer intBuffer = ByteBuffer.allocate(4);
+                readFully(channel, intBuffer);
+                ByteBuffer originBuffer = ByteBuffer.allocate(intBuffer.getInt(0));
+                readFully(channel, originBuffer);
+                ByteBuffer sequenceBuffer = ByteBuffer.allocate(8 * PeersReplicateBatch.LANES);
+                readFully(channel, sequenceBuffer);
+
+                int count = registry.loadFullRegistry(channel, SNAPSHOT_CHUNK_RECORDS);
+                snapshotOrigin = new String(originBuffer.array(), StandardCharsets.UTF_8);
+                for (int lane = 0; lane < PeersReplicateBatch.LANES; lane++) {
+                    snapshotSequences[lane] = sequenceBuffer.getLong(lane * 8);
+                }
+                System.out.println("从节点【" + peer + "】加载注册表快照完成，服务实例数：" + count
+                        + "，快照版本号：" + Arrays.toString(snapshotSequences)
+                        + "，耗时：" + (System.currentTimeMillis() - start) + "ms");
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("从节点【" + peer + "】加载注册表快照失败，尝试下一个节点");
+            }
+        }
+
+        // 整个快照只过期一次缓存，并按新的实例数量重新计算自我保护阈值
+        ServiceRegistryCache.getInstance().invalidate();
+        SelfProtectionPolicy.getInstance().recompute();
+
+        // 重放引导期间缓存的 batch，持有锁期间新到的 batch 会等待，保证顺序
+        synchronized (this) {
+            int skipped = 0;
+            for (PeersReplicateBatch batch : bufferedBatches) {
+                if (batch.getOrigin() != null && batch.getOrigin().equals(snapshotOrigin)
+                        && batch.getSequence() <= snapshotSequences[batch.getLane()]) {
+                    skipped++;
+                    continue;
+                }
+                applier.accept(batch);
+            }
+            System.out.println("重放引导期间的集群同步batch：" + (bufferedBatches.size() - skipped)
+                    + "个，已包含在快照中跳过：" + skipped + "个");
+            bufferedBatches = new ArrayList<>();
+            bootstrapping = false;
+        }
+        return snapshotOrigin != null;
+    }
+
+    /**
+     * 引导期间缓存收到的集群同步 batch
+     *
+     * @param batch 集群同步 batch
+     * @return 已缓存返回 true，未在引导返回 false，由调用方直接写入
+     */
+    public synchronized boolean offer(PeersReplicateBatch batch) {
+        if (!bootstrapping) {
+            return false;
+        }
+        bufferedBatches.add(batch);
+        return true;
+    }
+
+    public synchronized boolean isBootstrapping() {
+        return bootstrapping;
+    }
+
+    public void setSource(SnapshotSource source) {
+        this.source = source;
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("注册表快照流提前结束");
+            }
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+import com.laravelshao.register.server.web.AbstractRequest;
+import com.laravelshao.register.server.web.CancelRequest;
+import com.laravelshao.register.server.web.HeartbeatRequest;
+import com.laravelshao.register.server.web.HeartbeatResponse;
+import com.laravelshao.register.server.web.RegisterRequest;
+import com.laravelshao.register.server.web.RegisterResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 注册表分片组件
+ * <p>
+ * 开启分片模式后，每个服务只由一致性哈希环上的 R 个节点(归属节点)保存，集群总容量随节点数增长：
+ * <ul>
+ *     <li>非归属节点收到的注册、下线、心跳请求转发给归属节点(主节点优先，失败时依次尝试其它副本)</li>
+ *     <li>非归属节点查询服务实例时回源到归属节点，结果在本地缓存一段时间(read-through)</li>
+ *     <li>集群同步过来的请求只写入本节点归属的服务，其它服务只用来过期 read-through 缓存</li>
+ *     <li>哈希环由所有节点一致的成员地址(包含本节点地址)构造，因此必须配置 register.server.node-name</li>
+ *     <li>节点加入、离开时重建哈希环，归属发生变化的服务由旧归属节点中第一个仍在集群内的节点迁移给新归属节点；
+ *     不再归属本节点的服务由本节点自己迁移给新归属节点，所有新归属节点确认之后才从本地注册表移除，
+ *     迁移失败的定期重试</li>
+ *     <li>分片迁移 batch 可能早于接收方自己重建哈希环到达，接收方不按归属过滤</li>
+ *     <li>只读节点不在哈希环上(写节点也不把它算进成员)，它直接从产生 batch 的节点收到所有服务的同步，
+ *     保存完整注册表，不按归属过滤，也不参与迁移</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/28
+ * @since 1.0.0
+ */
+public class RegistrySharding {
+
+    /**
+     * 是否开启分片模式
+     */
+    public static final boolean ENABLED = Boolean.parseBoolean(
+            RegisterServerConfig.getString("register.server.shard.enabled", "false"));
+
+    /**
+     * 每个服务的副本数
+     */
+    private static final int REPLICAS = RegisterServerConfig.getInt("register.server.shard.replicas", 2);
+
+    /**
+     * 每个节点的虚拟节点数
+     */
+    private static final int VIRTUAL_NODES = RegisterServerConfig.getInt("register.server.shard.virtual-nodes", 128);
+
+    /**
+     * read-through 缓存有效期
+     */
+    private static final long READ_THROUGH_TTL = RegisterServerConfig.getLong(
+            "register.server.shard.read-through-ttl", 30 * 1000L);
+
+    /**
+     * 迁移失败后的重试间隔
+     */
+    private static final long HANDOFF_RETRY_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.shard.handoff-retry-interval", 5 * 1000L);
+
+    /**
+     * 异步转发注册、下线请求的线程数
+     */
+    private static final int FORWARD_THREADS = RegisterServerConfig.getInt("register.server.shard.forward-threads", 8);
+
+    /**
+     * 异步转发排队的请求数上限
+     */
+    private static final int FORWARD_QUEUE_SIZE = RegisterServerConfig.getInt(
+            "register.server.shard.forward-queue-size", 1024);
+
+    private static final RegistrySharding instance = new RegistrySharding();
+
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
+
+    /**
+     * 一致性哈希环，集群成员变更时整体替换
+     */
+    private volatile ConsistentHashRing ring = buildRing(RegisterServerCluster.getPeers());
+
+    /**
+     * 调用其它节点的客户端
+     */
+    private volatile ShardPeerClient client = ShardPeerClient.UNAVAILABLE;
+
+    /**
+     * 非归属服务的 read-through 缓存
+     */
+    private final Map<String, CachedServiceInstances> readThroughCache = new ConcurrentHashMap<>();
+
+    /**
+     * 不再归属本节点、还在等待新归属节点确认的服务：key 为服务名称，value 为还没有确认的新归属节点
+     */
+    private final Map<String, Set<String>> pendingHandoffs = new HashMap<>();
+
+    /**
+     * 异步转发的线程池：转发是阻塞的远程调用，不能占用公共 ForkJoinPool；
+     * 队列满时由调用线程自己转发，把压力反馈给调用方
+     */
+    private final ThreadPoolExecutor forwardExecutor = newForwardExecutor();
+
+    private RegistrySharding() {
+        RegisterServerScheduler.getInstance().onShutdown("shard-forward-pool", forwardExecutor::shutdown);
+        if (ENABLED) {
+            if (!RegisterServerCluster.isSelfConfigured()) {
+                throw new IllegalStateException(
+                        "开启注册表分片模式时必须配置 register.server.node-name(其它节点访问本节点的地址)");
+            }
+            System.out.println("注册表分片模式已开启，副本数=" + REPLICAS + "，集群节点=" + ring.getMembers());
+            RegisterServerScheduler.getInstance().schedule(
+                    "shard-handoff-retry", HANDOFF_RETRY_INTERVAL, this::flushHandoffs);
+        }
+    }
+
+    public static RegistrySharding getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * 本节点是否保存这个服务(未开启分片模式、只读节点总是 true)
+     *
+     * @param serviceName 服务名称
+     * @return
+     */
+    public boolean isOwner(String serviceName) {
+        return !ENABLED || RegisterServerCluster.isFollower()
+                || getOwners(serviceName).contains(RegisterServerCluster.getSelf());
+    }
+
+    /**
+     * 获取服务的归属节点，第一个为主节点
+     *
+     * @param serviceName 服务名称
+     * @return
+     */
+    public List<String> getOwners(String serviceName) {
+        return ring.getOwners(serviceName, REPLICAS);
+    }
+
+    public void setClient(ShardPeerClient client) {
+        this.client = client;
+    }
+
+    /**
+     * 把注册请求转发给归属节点
+     *
+     * @param request 注册请求
+     * @return 所有归属节点都失败时返回 FAILURE
+     */
+    public RegisterResponse forwardRegister(RegisterRequest request) {
+        for (String owner : getOwners(request.getServiceName())) {
+            try {
+                RegisterResponse response = client.register(owner, request);
+                readThroughCache.remove(request.getServiceName());
+                return response;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        RegisterResponse response = new RegisterResponse();
+        response.setStatus(RegisterResponse.FAILURE);
+        return response;
+    }
+
+    /**
+     * 在转发线程池中把注册请求转发给归属节点
+     *
+     * @param request 注册请求
+     * @return 注册响应
+     */
+    public CompletableFuture<RegisterResponse> forwardRegisterAsync(RegisterRequest request) {
+        return CompletableFuture.supplyAsync(() -> forwardRegister(request), forwardExecutor);
+    }
+
+    /**
+     * 在转发线程池中把下线请求转发给归属节点
+     *
+     * @param request 下线请求
+     * @return
+     */
+    public CompletableFuture<Void> forwardCancelAsync(CancelRequest request) {
+        return CompletableFuture.runAsync(() -> forwardCancel(request), forwardExecutor);
+    }
+
+    /**
+     * 把下线请求转发给归属节点
+     *
+     * @param request 下线请求
+     * @return 所有归属节点都失败时返回 false
+     */
+    public boolean forwardCancel(CancelRequest request) {
+        for (String owner : getOwners(request.getServiceName())) {
+            try {
+                client.cancel(owner, request);
+                readThroughCache.remove(request.getServiceName());
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把心跳请求转发给归属节点
+     *
+     * @param request 心跳请求
+     * @return 所有归属节点都失败时返回 FAILURE
+     */
+    public HeartbeatResponse forwardHeartbeat(HeartbeatRequest request) {
+        for (String owner : getOwners(request.getServiceName())) {
+            try {
+                return client.heartbeat(owner, request);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        HeartbeatResponse response = new HeartbeatResponse();
+        response.setStatus(HeartbeatResponse.FAILURE);
+        return response;
+    }
+
+    /**
+     * 查询服务的所有服务实例：归属节点读本地注册表，非归属节点读 read-through 缓存，过期后回源到归属节点
+     *
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID
+     */
+    public Map<String, ServiceInstance> fetchServiceInstances(String serviceName) {
+        if (isOwner(serviceName)) {
+            Map<String, ServiceInstance> serviceInstanceMap = registry.getRegistry().get(serviceName);
+            return serviceInstanceMap == null
+                    ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(serviceInstanceMap));
+        }
+
+        long now = RegisterServerScheduler.getInstance().now();
+        CachedServiceInstances cached = readThroughCache.get(serviceName);
+        if (cached != null && cached.expireTime > now) {
+            return cached.serviceInstances;
+        }
+
+        for (String owner : getOwners(serviceName)) {
+            try {
+                Map<String, ServiceInstance> serviceInstances = Collections.unmodifiableMap(
+                        new HashMap<>(client.fetchServiceInstances(owner, serviceName)));
+                readThroughCache.put(serviceName, new CachedServiceInstances(serviceInstances, now + READ_THROUGH_TTL));
+                return serviceInstances;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 归属节点都不可用时返回过期的缓存
+        return cached == null ? Collections.emptyMap() : cached.serviceInstances;
+    }
+
+    /**
+     * 只保留集群同步 batch 中本节点归属的服务的请求，其它服务的注册、下线只用来过期 read-through 缓存；
+     * 分片迁移 batch 由发送方按新的哈希环选中本节点，本节点可能还没有重建哈希环，全部保留
+     *
+     * @param batch 集群同步 batch
+     * @return 全部归属本节点时返回原 batch
+     */
+    public PeersReplicateBatch filter(PeersReplicateBatch batch) {
+        if (!ENABLED || batch.isHandoff() || RegisterServerCluster.isFollower()) {
+            return batch;
+        }
+
+        List<AbstractRequest> owned = new ArrayList<>(batch.getRequests().size());
+        for (AbstractRequest request : batch.getRequests()) {
+            if (isOwner(request.getServiceName())) {
+                owned.add(request);
+            } else if (!AbstractRequest.HEARTBEAT_REQUEST.equals(request.getType())) {
+                readThroughCache.remove(request.getServiceName());
+            }
+        }
+        if (owned.size() == batch.getRequests().size()) {
+            return batch;
+        }
+
+        PeersReplicateBatch filtered = new PeersReplicateBatch();
+        filtered.setOrigin(batch.getOrigin());
+        filtered.setLane(batch.getLane());
+        filtered.setSequence(batch.getSequence());
+        filtered.setRequests(owned);
+        return filtered;
+    }
+
+    /**
+     * 集群成员变更后重建哈希环并迁移归属发生变化的服务
+     *
+     * @param previousPeers 变更前的其它节点
+     */
+    public synchronized void rebalance(List<String> previousPeers) {
+        ConsistentHashRing previous = buildRing(previousPeers);
+        ConsistentHashRing current = buildRing(RegisterServerCluster.getPeers());
+        ring = current;
+        readThroughCache.clear();
+        if (!ENABLED || RegisterServerCluster.isFollower()) {
+            return;
+        }
+
+        String self = RegisterServerCluster.getSelf();
+        Map<String, List<AbstractRequest>> handoffs = new LinkedHashMap<>();
+        int movedServices = 0;
+
+        for (Map.Entry<String, Map<String, ServiceInstance>> entry : registry.getRegistry().entrySet()) {
+            String serviceName = entry.getKey();
+            List<String> previousOwners = previous.getOwners(serviceName, REPLICAS);
+            List<String> currentOwners = current.getOwners(serviceName, REPLICAS);
+            if (previousOwners.equals(currentOwners)) {
+                continue;
+            }
+            List<ServiceInstance> serviceInstances = new ArrayList<>(entry.getValue().values());
+            if (serviceInstances.isEmpty()) {
+                continue;
+            }
+            movedServices++;
+
+            // 旧归属节点中第一个仍在集群内的节点负责迁移，避免重复发送
+            String mover = null;
+            for (String owner : previousOwners) {
+                if (current.getMembers().contains(owner)) {
+                    mover = owner;
+                    break;
+                }
+            }
+            Set<String> newOwners = new HashSet<>();
+            for (String owner : currentOwners) {
+                if (!owner.equals(self) && !previousOwners.contains(owner)) {
+                    newOwners.add(owner);
+                }
+            }
+            if (!currentOwners.contains(self)) {
+                // 不再归属本节点：自己迁移给新归属节点(可能与迁移节点重复，重复注册只是续约)，确认之后才移除本地数据；
+                // 上一次迁移还没有确认的节点如果仍然归属这个服务，继续等待它确认
+                Set<String> targets = pendingHandoffs.remove(serviceName);
+                if (targets != null) {
+                    targets.retainAll(currentOwners);
+                    newOwners.addAll(targets);
+                }
+                pendingHandoffs.put(serviceName, newOwners);
+            } else {
+                pendingHandoffs.remove(serviceName);
+                if (self.equals(mover)) {
+                    for (String owner : newOwners) {
+                        List<AbstractRequest> requests = handoffs.computeIfAbsent(owner, key -> new ArrayList<>());
+                        for (ServiceInstance serviceInstance : serviceInstances) {
+                            requests.add(toRegisterRequest(serviceInstance));
+                        }
+                    }
+                }
+            }
+        }
+
+        PeersReplicator peersReplicator = PeersReplicator.getInstance();
+        for (Map.Entry<String, List<AbstractRequest>> entry : handoffs.entrySet()) {
+            peersReplicator.handoff(entry.getKey(), entry.getValue());
+        }
+        System.out.println("注册表分片重新平衡：归属变化的服务" + movedServices + "个，迁移到"
+                + handoffs.keySet() + "，等待迁移确认后移除的服务" + pendingHandoffs.size() + "个");
+        flushHandoffs();
+    }
+
+    /**
+     * 把不再归属本节点的服务迁移给还没有确认的新归属节点，全部确认的服务从本地注册表移除
+     */
+    synchronized void flushHandoffs() {
+        if (pendingHandoffs.isEmpty()) {
+            return;
+        }
+
+        PeersReplicator peersReplicator = PeersReplicator.getInstance();
+        List<ServiceInstance> dropping = new ArrayList<>();
+        Iterator<Map.Entry<String, Set<String>>> iterator = pendingHandoffs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Set<String>> entry = iterator.next();
+            String serviceName = entry.getKey();
+            Map<String, ServiceInstance> serviceInstanceMap = registry.getRegistry().get(serviceName);
+            if (isOwner(serviceName) || serviceInstanceMap == null || serviceInstanceMap.isEmpty()) {
+                // 归属又回到本节点，或者迁移期间服务实例已经全部下线
+                iterator.remove();
+                continue;
+            }
+
+            List<ServiceInstance> serviceInstances = new ArrayList<>(serviceInstanceMap.values());
+            List<AbstractRequest> requests = new ArrayList<>(serviceInstances.size());
+            for (ServiceInstance serviceInstance : serviceInstances) {
+                requests.add(toRegisterRequest(serviceInstance));
+            }
+            entry.getValue().removeIf(owner -> peersReplicator.handoff(owner, requests));
+            if (entry.getValue().isEmpty()) {
+                dropping.addAll(serviceInstances);
+                iterator.remove();
+            }
+        }
+
+        if (!dropping.isEmpty()) {
+            registry.remove(dropping);
+            ServiceRegistryCache.getInstance().invalidate();
+            System.out.println("注册表分片迁移已确认，本地移除服务实例" + dropping.size() + "个");
+        }
+    }
+
+    /**
+     * 由其它节点的地址加上本节点地址构造哈希环，所有节点在成员相同时得到相同的哈希环；
+     * 只读节点不加入哈希环，与写节点看到的哈希环一致
+     */
+    private static ConsistentHashRing buildRing(List<String> peers) {
+        List<String> members = new ArrayList<>(peers);
+        if (!RegisterServerCluster.isFollower() && !members.contains(RegisterServerCluster.getSelf())) {
+            members.add(RegisterServerCluster.getSelf());
+        }
+        return new ConsistentHashRing(members, VIRTUAL_NODES);
+    }
+
+    private static RegisterRequest toRegisterRequest(ServiceInstance serviceInstance) {
+        RegisterRequest request = new RegisterRequest();
+        request.setType(AbstractRequest.REGISTER_REQUEST);
+        request.setServiceName(serviceInstance.getServiceName());
+        request.setServiceInstanceId(serviceInstance.getServiceInstanceId());
+        request.setIp(serviceInstance.getIp());
+        request.setHostname(serviceInstance.getHostname());
+        request.setPort(serviceInstance.getPort());
+        request.setRegistrationTimestamp(serviceInstance.getRegistrationTimestamp());
+        request.setZone(serviceInstance.getZone());
+        request.setVersion(serviceInstance.getVersion());
+        request.setTags(serviceInstance.getTags());
+        request.setLeaseDuration(serviceInstance.getLeaseDuration());
+        return request;
+    }
+
+    private static ThreadPoolExecutor newForwardExecutor() {
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FORWARD_THREADS, FORWARD_THREADS,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(FORWARD_QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "shard-forward-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, rejectedBy) -> {
+            // 关闭后不能悄悄丢掉任务，否则返回的 CompletableFuture 永远不会完成
+            if (rejectedBy.isShutdown()) {
+                throw new RejectedExecutionException("注册表分片转发线程池已关闭");
+            }
+            task.run();
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * read-through 缓存条目
+     */
+    private static class CachedServiceInstances {
+
+        final Map<String, ServiceInstance> serviceInstances;
+        final long expireTime;
+
+        CachedServiceInstances(Map<String, ServiceInstance> serviceInstances, long expireTime) {
+            this.serviceInstances = serviceInstances;
+            this.expireTime = expireTime;
+        }
+    }
+}
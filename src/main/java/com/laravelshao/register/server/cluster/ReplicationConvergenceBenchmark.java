@@ -0,0 +1,92 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 集群同步拓扑收敛时间基准
+ * <p>
+ * 在 {@link InMemoryPeerNetwork} 上对 3 ~ 50 个节点的集群，分别用 ALL、TREE、GOSSIP 拓扑从随机节点发出一个 batch，
+ * 统计所有节点收到的时间、覆盖率、消息数。参数：[fanout] [链路延迟微秒] [单条消息发送耗时微秒] [每组试验次数]
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public class ReplicationConvergenceBenchmark {
+
+    private static final int[] CLUSTER_SIZES = {3, 5, 10, 20, 30, 50};
+
+    public static void main(String[] args) {
+        int fanout = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long linkLatencyMicros = args.length > 1 ? Long.parseLong(args[1]) : 1000L;
+        long sendCostMicros = args.length > 2 ? Long.parseLong(args[2]) : 200L;
+        int trials = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        System.out.println("fanout=" + fanout + ", 链路延迟=" + linkLatencyMicros + "us, 单条发送耗时="
+                + sendCostMicros + "us, 每组试验=" + trials + "次");
+        System.out.println(String.format("%-7s %5s %12s %12s %9s %10s %12s",
+                "mode", "nodes", "avg(us)", "p99(us)", "coverage", "msgs/batch", "maxSend/node"));
+
+        Random random = new Random(20220822L);
+        for (ReplicationTopology.Mode mode : ReplicationTopology.Mode.values()) {
+            for (int nodes : CLUSTER_SIZES) {
+                run(mode, nodes, fanout, linkLatencyMicros, sendCostMicros, trials, random);
+            }
+        }
+    }
+
+    private static void run(ReplicationTopology.Mode mode, int nodes, int fanout,
+                            long linkLatencyMicros, long sendCostMicros, int trials, Random random) {
+        long[] convergence = new long[trials];
+        long covered = 0L;
+        long messages = 0L;
+        long maxSend = 0L;
+
+        for (int trial = 0; trial < trials; trial++) {
+            InMemoryPeerNetwork network = new InMemoryPeerNetwork(linkLatencyMicros, sendCostMicros);
+            List<String> members = new ArrayList<>(nodes);
+            for (int i = 0; i < nodes; i++) {
+                members.add("register-server-" + i);
+            }
+
+            Map<String, Long> receivedAt = new HashMap<>();
+            Map<String, ReplicationRouter> routers = new HashMap<>();
+            for (String member : members) {
+                ReplicationRouter router = new ReplicationRouter(member, members,
+                        new ReplicationTopology(mode, fanout, random), network.transportFor(member));
+                network.join(router, batch -> receivedAt.put(member, network.now()));
+                routers.put(member, router);
+            }
+
+            String origin = members.get(random.nextInt(nodes));
+            PeersReplicateBatch batch = new PeersReplicateBatch();
+            batch.setOrigin(origin);
+            batch.setSequence(1L);
+            routers.get(origin).publish(batch);
+            network.runUntilIdle();
+
+            long last = 0L;
+            for (long time : receivedAt.values()) {
+                last = Math.max(last, time);
+            }
+            convergence[trial] = last;
+            covered += receivedAt.size();
+            messages += network.getMessageCount();
+            maxSend = Math.max(maxSend, network.getMaxSendCount());
+        }
+
+        Arrays.sort(convergence);
+        long total = 0L;
+        for (long time : convergence) {
+            total += time;
+        }
+        System.out.println(String.format("%-7s %5d %12d %12d %8.1f%% %10.1f %12d",
+                mode, nodes, total / trials, convergence[(int) Math.min(trials - 1, Math.ceil(trials * 0.99) - 1)],
+                covered * 100.0 / ((long) trials * (nodes - 1)), messages / (double) trials, maxSend));
+    }
+}
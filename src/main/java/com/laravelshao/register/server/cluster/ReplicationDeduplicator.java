@@ -0,0 +1,80 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 集群同步 batch 去重
+ * <p>
+ * 树形、gossip 转发时同一个 batch 可能从多条路径到达，按 (来源节点, 通道, 序号) 去重。
+ * 每个来源节点的每个通道只记一个水位线(不大于它的序号都已收到)和水位线之上乱序到达的序号。
+ * 各通道的 batch 打包和发送的节奏不同(心跳 batch 打包后最多等一个发送周期)，分开记录才不会把
+ * 先打包、后到达的 batch 当成重复丢掉
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public class ReplicationDeduplicator {
+
+    /**
+     * 每个来源节点最多记录的乱序序号数量，超过后水位线直接推进(更早的缺口视为丢失：
+     * 开启反熵修复时由它补齐，否则依靠服务实例心跳失败后重新注册、契约过期摘除收敛；gossip 拓扑只在反熵修复可用时启用)
+     */
+    private static final int MAX_OUT_OF_ORDER = 4096;
+
+    private final Map<String, OriginWindow[]> windows = new HashMap<>();
+
+    /**
+     * 标记 batch 已收到
+     *
+     * @param batch 集群同步 batch
+     * @return 第一次收到返回 true，重复返回 false
+     */
+    public boolean markSeen(PeersReplicateBatch batch) {
+        return markSeen(batch.getOrigin(), batch.getLane(), batch.getSequence());
+    }
+
+    /**
+     * 标记 batch 已收到
+     *
+     * @param origin   来源节点
+     * @param lane     通道
+     * @param sequence 序号
+     * @return 第一次收到返回 true，重复返回 false
+     */
+    public synchronized boolean markSeen(String origin, byte lane, long sequence) {
+        OriginWindow[] originWindows = windows.computeIfAbsent(origin, key -> new OriginWindow[PeersReplicateBatch.LANES]);
+        OriginWindow window = originWindows[lane];
+        if (window == null) {
+            // 第一次见到这个来源节点的这个通道，从当前序号开始记录(新节点的历史由快照或反熵修复补齐)
+            window = new OriginWindow(sequence - 1);
+            originWindows[lane] = window;
+        }
+        if (sequence <= window.watermark || !window.outOfOrder.add(sequence)) {
+            return false;
+        }
+
+        while (window.outOfOrder.remove(window.watermark + 1)) {
+            window.watermark++;
+        }
+        while (window.outOfOrder.size() > MAX_OUT_OF_ORDER) {
+            window.watermark = window.outOfOrder.pollFirst();
+            while (window.outOfOrder.remove(window.watermark + 1)) {
+                window.watermark++;
+            }
+        }
+        return true;
+    }
+
+    private static class OriginWindow {
+
+        long watermark;
+        final TreeSet<Long> outOfOrder = new TreeSet<>();
+
+        OriginWindow(long watermark) {
+            this.watermark = watermark;
+        }
+    }
+}
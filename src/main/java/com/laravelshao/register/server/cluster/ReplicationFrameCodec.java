@@ -0,0 +1,474 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.web.AbstractRequest;
+import com.laravelshao.register.server.web.CancelRequest;
+import com.laravelshao.register.server.web.HeartbeatRequest;
+import com.laravelshao.register.server.web.RegisterRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 集群同步帧编解码
+ * <p>
+ * 一帧包含若干个 batch，帧内做字典编码和时间戳差值编码，可选再整体 Deflate 压缩：
+ * <pre>
+ * 帧：[int 魔数][byte 标记位(1 表示压缩)][int 帧体原始字节数][int 帧体字节数][帧体]
+ *
+ * 帧体：
+ *   varint 符号数，{varint 字节数, UTF-8 字节}*   服务名称、服务实例ID、节点名称、主机名、IP 都放进字典
+ *   varint batch 数
+ *   batch：varint 来源节点符号*4+通道(0 成员变更、1 心跳、2 分片迁移), zigzag 序号(与帧内上一个 batch 的差值), varint 请求数, 请求*
+ *   请求：byte 类型, varint 服务名称符号, varint 服务实例ID符号,
+ *        zigzag 来源时间戳(与帧内上一个时间戳的差值), zigzag 请求序号(与帧内上一个请求序号的差值)，0 表示为空
+ *        注册请求另有：varint 主机名符号+1(0 表示为空), varint IP符号+1, varint 端口号,
+ *                     zigzag 契约版本号(与帧内上一个时间戳的差值),
+ *                     varint 可用区符号+1, varint 服务版本号符号+1, varint 标签符号+1(标签以逗号拼接)
+ *        注册请求、心跳请求另有：varint 契约时长(毫秒，0 表示为空)
+ * </pre>
+ * 超过最大帧大小的 batch 在打包阶段就按估算大小拆开({@link #split(List)})，发送阶段把多个小 batch 合并进一帧({@link #encode(List)})
+ *
+ * @author qinghua.shao
+ * @date 2022/8/24
+ * @since 1.0.0
+ */
+public class ReplicationFrameCodec {
+
+    static final int MAGIC = 0x4C53524A;
+    static final int HEADER_SIZE = 13;
+    static final byte FLAG_DEFLATED = 1;
+
+    /**
+     * 最大帧大小(字节)
+     */
+    private final int maxFrameBytes;
+
+    /**
+     * 是否压缩帧体
+     */
+    private final boolean compress;
+
+    public ReplicationFrameCodec(int maxFrameBytes, boolean compress) {
+        if (maxFrameBytes <= HEADER_SIZE) {
+            throw new IllegalArgumentException("最大帧大小必须大于帧头大小：" + maxFrameBytes);
+        }
+        this.maxFrameBytes = maxFrameBytes;
+        this.compress = compress;
+    }
+
+    /**
+     * 把请求按估算的编码大小拆成若干段，每段编码后不超过最大帧大小
+     *
+     * @param requests 请求
+     * @return
+     */
+    public List<List<AbstractRequest>> split(List<AbstractRequest> requests) {
+        List<List<AbstractRequest>> parts = new ArrayList<>();
+        List<AbstractRequest> part = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int size = HEADER_SIZE + batchOverhead();
+        for (AbstractRequest request : requests) {
+            int requestSize = estimate(request, seen);
+            if (!part.isEmpty() && size + requestSize > maxFrameBytes) {
+                parts.add(part);
+                part = new ArrayList<>();
+                seen.clear();
+                size = HEADER_SIZE + batchOverhead();
+                requestSize = estimate(request, seen);
+            }
+            part.add(request);
+            size += requestSize;
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * 把若干 batch 编码成帧，能放进同一帧的相邻 batch 合并
+     *
+     * @param batches batch
+     * @return 帧
+     */
+    public List<byte[]> encode(List<PeersReplicateBatch> batches) {
+        List<byte[]> frames = new ArrayList<>();
+        List<PeersReplicateBatch> frameBatches = new ArrayList<>();
+        int size = HEADER_SIZE;
+        for (PeersReplicateBatch batch : batches) {
+            int batchSize = batchOverhead();
+            Set<String> seen = new HashSet<>();
+            for (AbstractRequest request : batch.getRequests()) {
+                batchSize += estimate(request, seen);
+            }
+            if (!frameBatches.isEmpty() && size + batchSize > maxFrameBytes) {
+                frames.add(encodeFrame(frameBatches));
+                frameBatches = new ArrayList<>();
+                size = HEADER_SIZE;
+            }
+            frameBatches.add(batch);
+            size += batchSize;
+        }
+        if (!frameBatches.isEmpty()) {
+            frames.add(encodeFrame(frameBatches));
+        }
+        return frames;
+    }
+
+    /**
+     * 解码一帧：帧头中的长度、帧体中的数量和字节数先按最大帧大小和剩余字节数校验，再分配内存
+     *
+     * @param frame 帧
+     * @return 帧内的 batch
+     * @throws IOException 帧格式错误
+     */
+    public List<PeersReplicateBatch> decode(byte[] frame) throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.wrap(frame);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("集群同步帧魔数错误");
+            }
+            byte flags = header.get();
+            int rawLength = header.getInt();
+            int bodyLength = header.getInt();
+            if (rawLength < 0 || rawLength > maxFrameBytes || bodyLength < 0 || bodyLength > maxFrameBytes
+                    || bodyLength > frame.length - HEADER_SIZE) {
+                throw new IOException("集群同步帧长度错误：原始字节数=" + rawLength + ", 帧体字节数=" + bodyLength
+                        + ", 帧大小=" + frame.length);
+            }
+
+            byte[] body;
+            if ((flags & FLAG_DEFLATED) != 0) {
+                body = new byte[rawLength];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(frame, HEADER_SIZE, bodyLength);
+                    if (inflater.inflate(body) != rawLength) {
+                        throw new IOException("集群同步帧解压后长度错误");
+                    }
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                body = new byte[bodyLength];
+                System.arraycopy(frame, HEADER_SIZE, body, 0, bodyLength);
+            }
+            return decodeBody(ByteBuffer.wrap(body));
+        } catch (DataFormatException | RuntimeException e) {
+            throw new IOException("集群同步帧格式错误", e);
+        }
+    }
+
+    private byte[] encodeFrame(List<PeersReplicateBatch> batches) {
+        // 先收集字典
+        List<String> symbols = new ArrayList<>();
+        Map<String, Integer> symbolIds = new HashMap<>();
+        for (PeersReplicateBatch batch : batches) {
+            symbol(symbols, symbolIds, batch.getOrigin());
+            for (AbstractRequest request : batch.getRequests()) {
+                symbol(symbols, symbolIds, request.getServiceName());
+                symbol(symbols, symbolIds, request.getServiceInstanceId());
+                if (request instanceof RegisterRequest) {
+                    RegisterRequest registerRequest = (RegisterRequest) request;
+                    symbol(symbols, symbolIds, registerRequest.getHostname());
+                    symbol(symbols, symbolIds, registerRequest.getIp());
+                    symbol(symbols, symbolIds, registerRequest.getZone());
+                    symbol(symbols, symbolIds, registerRequest.getVersion());
+                    symbol(symbols, symbolIds, tagsText(registerRequest));
+                }
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(maxFrameBytes / 4);
+        writeVarLong(body, symbols.size());
+        for (String symbol : symbols) {
+            byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(body, bytes.length);
+            body.write(bytes, 0, bytes.length);
+        }
+
+        writeVarLong(body, batches.size());
+        long previousSequence = 0L;
+        long previousTimestamp = 0L;
+        long previousRequestSequence = 0L;
+        for (PeersReplicateBatch batch : batches) {
+            writeVarLong(body, ((long) symbolIds.get(batch.getOrigin()) << 2) | batch.getLane());
+            writeVarLong(body, zigzag(batch.getSequence() - previousSequence));
+            previousSequence = batch.getSequence();
+            writeVarLong(body, batch.getRequests().size());
+
+            for (AbstractRequest request : batch.getRequests()) {
+                body.write(request.getType());
+                writeVarLong(body, symbolIds.get(request.getServiceName()));
+                writeVarLong(body, symbolIds.get(request.getServiceInstanceId()));
+                long originTimestamp = request.getOriginTimestamp() == null ? 0L : request.getOriginTimestamp();
+                writeVarLong(body, zigzag(originTimestamp - previousTimestamp));
+                previousTimestamp = originTimestamp;
+                long requestSequence = request.getSequence() == null ? 0L : request.getSequence();
+                writeVarLong(body, zigzag(requestSequence - previousRequestSequence));
+                previousRequestSequence = requestSequence;
+                if (request instanceof RegisterRequest) {
+                    RegisterRequest registerRequest = (RegisterRequest) request;
+                    writeVarLong(body, optionalSymbol(symbolIds, registerRequest.getHostname()));
+                    writeVarLong(body, optionalSymbol(symbolIds, registerRequest.getIp()));
+                    writeVarLong(body, registerRequest.getPort());
+                    long timestamp = registerRequest.getRegistrationTimestamp() == null
+                            ? 0L : registerRequest.getRegistrationTimestamp();
+                    writeVarLong(body, zigzag(timestamp - previousTimestamp));
+                    previousTimestamp = timestamp;
+                    writeVarLong(body, optionalSymbol(symbolIds, registerRequest.getZone()));
+                    writeVarLong(body, optionalSymbol(symbolIds, registerRequest.getVersion()));
+                    writeVarLong(body, optionalSymbol(symbolIds, tagsText(registerRequest)));
+                }
+                if (request instanceof RegisterRequest || request instanceof HeartbeatRequest) {
+                    Long leaseDuration = leaseDuration(request);
+                    writeVarLong(body, leaseDuration == null ? 0L : leaseDuration);
+                }
+            }
+        }
+
+        byte[] raw = body.toByteArray();
+        byte[] payload = raw;
+        byte flags = 0;
+        if (compress) {
+            byte[] deflated = deflate(raw);
+            // 压缩后反而变大的帧不压缩
+            if (deflated.length < raw.length) {
+                payload = deflated;
+                flags = FLAG_DEFLATED;
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(MAGIC);
+        frame.put(flags);
+        frame.putInt(raw.length);
+        frame.putInt(payload.length);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private List<PeersReplicateBatch> decodeBody(ByteBuffer body) {
+        int symbolCount = readCount(body);
+        List<String> symbols = new ArrayList<>(symbolCount);
+        for (int i = 0; i < symbolCount; i++) {
+            byte[] bytes = new byte[readCount(body)];
+            body.get(bytes);
+            symbols.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        int batchCount = readCount(body);
+        List<PeersReplicateBatch> batches = new ArrayList<>(batchCount);
+        long previousSequence = 0L;
+        long previousTimestamp = 0L;
+        long previousRequestSequence = 0L;
+        for (int i = 0; i < batchCount; i++) {
+            PeersReplicateBatch batch = new PeersReplicateBatch();
+            long origin = readVarLong(body);
+            int lane = (int) (origin & 3);
+            if (lane >= PeersReplicateBatch.LANES) {
+                throw new IllegalArgumentException("未知的集群同步通道：" + lane);
+            }
+            batch.setOrigin(symbols.get((int) (origin >>> 2)));
+            batch.setLane((byte) lane);
+            previousSequence += unzigzag(readVarLong(body));
+            batch.setSequence(previousSequence);
+
+            int requestCount = readCount(body);
+            List<AbstractRequest> requests = new ArrayList<>(requestCount);
+            for (int j = 0; j < requestCount; j++) {
+                int type = body.get();
+                AbstractRequest request;
+                if (type == AbstractRequest.REGISTER_REQUEST) {
+                    request = new RegisterRequest();
+                } else if (type == AbstractRequest.CANCEL_REQUEST) {
+                    request = new CancelRequest();
+                } else {
+                    request = new HeartbeatRequest();
+                }
+                request.setServiceName(symbols.get((int) readVarLong(body)));
+                request.setServiceInstanceId(symbols.get((int) readVarLong(body)));
+                previousTimestamp += unzigzag(readVarLong(body));
+                request.setOriginTimestamp(previousTimestamp == 0L ? null : previousTimestamp);
+                previousRequestSequence += unzigzag(readVarLong(body));
+                request.setSequence(previousRequestSequence == 0L ? null : previousRequestSequence);
+
+                if (request instanceof RegisterRequest) {
+                    RegisterRequest registerRequest = (RegisterRequest) request;
+                    registerRequest.setHostname(optionalSymbol(symbols, readVarLong(body)));
+                    registerRequest.setIp(optionalSymbol(symbols, readVarLong(body)));
+                    registerRequest.setPort((int) readVarLong(body));
+                    previousTimestamp += unzigzag(readVarLong(body));
+                    registerRequest.setRegistrationTimestamp(previousTimestamp);
+                    registerRequest.setZone(optionalSymbol(symbols, readVarLong(body)));
+                    registerRequest.setVersion(optionalSymbol(symbols, readVarLong(body)));
+                    String tags = optionalSymbol(symbols, readVarLong(body));
+                    if (tags != null) {
+                        registerRequest.setTags(Arrays.asList(tags.split(",")));
+                    }
+                }
+                if (request instanceof RegisterRequest || request instanceof HeartbeatRequest) {
+                    long leaseDuration = readVarLong(body);
+                    setLeaseDuration(request, leaseDuration == 0L ? null : leaseDuration);
+                }
+                request.setType(type);
+                requests.add(request);
+            }
+            batch.setRequests(requests);
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * 估算一个请求编码后的最大字节数(压缩前)
+     *
+     * @param seen 同一帧内已经计入字典的字符串
+     */
+    private static int estimate(AbstractRequest request, Set<String> seen) {
+        int size = 1 + estimate(request.getServiceName(), seen) + estimate(request.getServiceInstanceId(), seen) + 10 + 10;
+        if (request instanceof RegisterRequest) {
+            RegisterRequest registerRequest = (RegisterRequest) request;
+            size += estimate(registerRequest.getHostname(), seen) + estimate(registerRequest.getIp(), seen) + 5 + 10;
+            size += estimate(registerRequest.getZone(), seen) + estimate(registerRequest.getVersion(), seen)
+                    + estimate(tagsText(registerRequest), seen);
+        }
+        if (request instanceof RegisterRequest || request instanceof HeartbeatRequest) {
+            size += 10;
+        }
+        return size;
+    }
+
+    private static Long leaseDuration(AbstractRequest request) {
+        return request instanceof RegisterRequest
+                ? ((RegisterRequest) request).getLeaseDuration() : ((HeartbeatRequest) request).getLeaseDuration();
+    }
+
+    private static void setLeaseDuration(AbstractRequest request, Long leaseDuration) {
+        if (request instanceof RegisterRequest) {
+            ((RegisterRequest) request).setLeaseDuration(leaseDuration);
+        } else {
+            ((HeartbeatRequest) request).setLeaseDuration(leaseDuration);
+        }
+    }
+
+    /**
+     * 标签以逗号拼接成一个字典字符串
+     */
+    private static String tagsText(RegisterRequest registerRequest) {
+        List<String> tags = registerRequest.getTags();
+        return tags == null || tags.isEmpty() ? null : String.join(",", tags);
+    }
+
+    /**
+     * 一个字符串：符号引用，第一次出现时再加上字典中的长度和 UTF-8 字节数
+     */
+    private static int estimate(String value, Set<String> seen) {
+        if (value == null) {
+            return 1;
+        }
+        if (!seen.add(value)) {
+            return 5;
+        }
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return 5 + 5 + bytes;
+    }
+
+    /**
+     * batch 自身的最大字节数：来源节点、序号、请求数
+     */
+    private static int batchOverhead() {
+        return 5 + 10 + 5;
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void symbol(List<String> symbols, Map<String, Integer> symbolIds, String value) {
+        if (value != null && !symbolIds.containsKey(value)) {
+            symbolIds.put(value, symbols.size());
+            symbols.add(value);
+        }
+    }
+
+    private static long optionalSymbol(Map<String, Integer> symbolIds, String value) {
+        return value == null ? 0L : symbolIds.get(value) + 1L;
+    }
+
+    private static String optionalSymbol(List<String> symbols, long symbol) {
+        return symbol == 0L ? null : symbols.get((int) symbol - 1);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * 读取数量或字节数：每个元素至少占一个字节，不能超过帧体剩余字节数
+     */
+    private static int readCount(ByteBuffer in) {
+        long count = readVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("数量超出帧体剩余字节数：" + count);
+        }
+        return (int) count;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint 过长");
+    }
+
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+}
@@ -0,0 +1,400 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.web.AbstractRequest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 集群同步指标
+ * <p>
+ * 两个方向分开记录，key 的含义不同：
+ * <ul>
+ *     <li>发出：按对端节点地址记录已发送的 batch 数、帧数、字节数、每秒字节数、在途 batch 数、最近确认的 batch 序号、发送失败次数</li>
+ *     <li>收到：按 batch 的来源节点记录已写入的 batch 数、请求数、最近写入的 batch 序号，
+ *     以及请求从进入来源节点集群同步组件到写入本地注册表的端到端延迟分布(依赖节点间时钟同步)。
+ *     经过其它节点转发的 batch 记在产生它的来源节点上，而不是转发它的节点上</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/25
+ * @since 1.0.0
+ */
+public class ReplicationMetrics {
+
+    /**
+     * 计算每秒字节数的时间间隔
+     */
+    private static final long RATE_INTERVAL = 1000L;
+
+    private static final ReplicationMetrics instance = new ReplicationMetrics();
+
+    /**
+     * 发出：key 为对端节点地址
+     */
+    private final Map<String, OutboundStats> outbound = new ConcurrentHashMap<>();
+
+    /**
+     * 收到：key 为 batch 的来源节点
+     */
+    private final Map<String, InboundStats> inbound = new ConcurrentHashMap<>();
+
+    private ReplicationMetrics() {
+        RegisterServerScheduler.getInstance().schedule("replication-metrics-rate", RATE_INTERVAL, this::updateRates);
+    }
+
+    public static ReplicationMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * 开始向节点发送若干 batch
+     */
+    void sending(String peer, int batches) {
+        outbound(peer).inFlightBatches.addAndGet(batches);
+    }
+
+    /**
+     * 向节点发送了一帧
+     */
+    void frameSent(String peer, int bytes) {
+        OutboundStats stats = outbound(peer);
+        stats.sentFrames.incrementAndGet();
+        stats.sentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 向节点发送若干 batch 结束
+     *
+     * @param maxSequence 这些 batch 中最大的序号
+     * @param acked       对端是否确认收到
+     */
+    void sent(String peer, int batches, long maxSequence, boolean acked) {
+        OutboundStats stats = outbound(peer);
+        stats.inFlightBatches.addAndGet(-batches);
+        if (acked) {
+            stats.sentBatches.addAndGet(batches);
+            stats.lastAckedSequence.accumulateAndGet(maxSequence, Math::max);
+        } else {
+            stats.sendFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 写入了来自某个来源节点的 batch
+     *
+     * @param batch 集群同步 batch
+     */
+    public void applied(PeersReplicateBatch batch) {
+        if (batch.getOrigin() == null) {
+            return;
+        }
+        InboundStats stats = inbound.computeIfAbsent(batch.getOrigin(), key -> new InboundStats());
+        long now = RegisterServerScheduler.getInstance().now();
+        List<AbstractRequest> requests = batch.getRequests();
+        for (AbstractRequest request : requests) {
+            if (request.getOriginTimestamp() != null) {
+                stats.latency.record(now - request.getOriginTimestamp());
+            }
+        }
+        stats.appliedBatches.incrementAndGet();
+        stats.appliedRequests.addAndGet(requests.size());
+        stats.lastAppliedSequence.accumulateAndGet(batch.getSequence(), Math::max);
+        stats.lastAppliedTime = now;
+    }
+
+    /**
+     * 获取向各节点发送的同步指标
+     *
+     * @return key 为对端节点地址
+     */
+    public Map<String, OutboundMetrics> getOutboundMetrics() {
+        Map<String, OutboundMetrics> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, OutboundStats> entry : outbound.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().metrics(entry.getKey()));
+        }
+        return metrics;
+    }
+
+    /**
+     * 获取收到的各来源节点的同步指标
+     *
+     * @return key 为 batch 的来源节点
+     */
+    public Map<String, InboundMetrics> getInboundMetrics() {
+        Map<String, InboundMetrics> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, InboundStats> entry : inbound.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().metrics(entry.getKey()));
+        }
+        return metrics;
+    }
+
+    /**
+     * 每秒计算一次各节点发送的每秒字节数
+     */
+    void updateRates() {
+        long now = RegisterServerScheduler.getInstance().now();
+        for (OutboundStats stats : outbound.values()) {
+            long sentBytes = stats.sentBytes.get();
+            long elapsed = now - stats.rateTime;
+            if (elapsed > 0) {
+                stats.bytesPerSecond = (sentBytes - stats.rateBytes) * 1000L / elapsed;
+            }
+            stats.rateBytes = sentBytes;
+            stats.rateTime = now;
+        }
+    }
+
+    private OutboundStats outbound(String peer) {
+        return outbound.computeIfAbsent(peer, key -> new OutboundStats(RegisterServerScheduler.getInstance().now()));
+    }
+
+    /**
+     * 向单个节点发送的累计数据
+     */
+    private static class OutboundStats {
+
+        final AtomicLong sentBatches = new AtomicLong(0L);
+        final AtomicLong sentFrames = new AtomicLong(0L);
+        final AtomicLong sentBytes = new AtomicLong(0L);
+        final AtomicLong inFlightBatches = new AtomicLong(0L);
+        final AtomicLong lastAckedSequence = new AtomicLong(0L);
+        final AtomicLong sendFailures = new AtomicLong(0L);
+        volatile long bytesPerSecond;
+        long rateBytes;
+        long rateTime;
+
+        OutboundStats(long now) {
+            this.rateTime = now;
+        }
+
+        OutboundMetrics metrics(String peer) {
+            return new OutboundMetrics(peer, sentBatches.get(), sentFrames.get(), sentBytes.get(), bytesPerSecond,
+                    inFlightBatches.get(), lastAckedSequence.get(), sendFailures.get());
+        }
+    }
+
+    /**
+     * 收到的单个来源节点的累计数据
+     */
+    private static class InboundStats {
+
+        final AtomicLong appliedBatches = new AtomicLong(0L);
+        final AtomicLong appliedRequests = new AtomicLong(0L);
+        final AtomicLong lastAppliedSequence = new AtomicLong(0L);
+        volatile long lastAppliedTime;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        InboundMetrics metrics(String origin) {
+            return new InboundMetrics(origin, appliedBatches.get(), appliedRequests.get(), lastAppliedSequence.get(),
+                    lastAppliedTime, latency.count(), latency.percentile(0.5), latency.percentile(0.99), latency.max());
+        }
+    }
+
+    /**
+     * 延迟分布：按 2 的幂分桶(毫秒)，桶 i 覆盖 [2^(i-1), 2^i)，百分位返回所在桶的上界
+     */
+    static class LatencyHistogram {
+
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0L);
+        private final AtomicLong max = new AtomicLong(0L);
+
+        void record(long millis) {
+            long value = Math.max(0L, millis);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0L;
+            }
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(i == 0 ? 0L : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * 向单个节点发送的同步指标
+     */
+    public static class OutboundMetrics {
+
+        private final String peer;
+        private final long sentBatches;
+        private final long sentFrames;
+        private final long sentBytes;
+        private final long bytesPerSecond;
+        private final long inFlightBatches;
+        private final long lastAckedSequence;
+        private final long sendFailures;
+
+        OutboundMetrics(String peer, long sentBatches, long sentFrames, long sentBytes, long bytesPerSecond,
+                        long inFlightBatches, long lastAckedSequence, long sendFailures) {
+            this.peer = peer;
+            this.sentBatches = sentBatches;
+            this.sentFrames = sentFrames;
+            this.sentBytes = sentBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.inFlightBatches = inFlightBatches;
+            this.lastAckedSequence = lastAckedSequence;
+            this.sendFailures = sendFailures;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public long getSentBatches() {
+            return sentBatches;
+        }
+
+        public long getSentFrames() {
+            return sentFrames;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public long getInFlightBatches() {
+            return inFlightBatches;
+        }
+
+        public long getLastAckedSequence() {
+            return lastAckedSequence;
+        }
+
+        public long getSendFailures() {
+            return sendFailures;
+        }
+
+        @Override
+        public String toString() {
+            return "OutboundMetrics{" +
+                    "peer='" + peer + '\'' +
+                    ", sentBatches=" + sentBatches +
+                    ", sentFrames=" + sentFrames +
+                    ", sentBytes=" + sentBytes +
+                    ", bytesPerSecond=" + bytesPerSecond +
+                    ", inFlightBatches=" + inFlightBatches +
+                    ", lastAckedSequence=" + lastAckedSequence +
+                    ", sendFailures=" + sendFailures +
+                    '}';
+        }
+    }
+
+    /**
+     * 收到的单个来源节点的同步指标
+     */
+    public static class InboundMetrics {
+
+        private final String origin;
+        private final long appliedBatches;
+        private final long appliedRequests;
+        private final long lastAppliedSequence;
+        private final long lastAppliedTime;
+        private final long latencyCount;
+        private final long latencyP50;
+        private final long latencyP99;
+        private final long latencyMax;
+
+        InboundMetrics(String origin, long appliedBatches, long appliedRequests, long lastAppliedSequence,
+                       long lastAppliedTime, long latencyCount, long latencyP50, long latencyP99, long latencyMax) {
+            this.origin = origin;
+            this.appliedBatches = appliedBatches;
+            this.appliedRequests = appliedRequests;
+            this.lastAppliedSequence = lastAppliedSequence;
+            this.lastAppliedTime = lastAppliedTime;
+            this.latencyCount = latencyCount;
+            this.latencyP50 = latencyP50;
+            this.latencyP99 = latencyP99;
+            this.latencyMax = latencyMax;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getAppliedBatches() {
+            return appliedBatches;
+        }
+
+        public long getAppliedRequests() {
+            return appliedRequests;
+        }
+
+        public long getLastAppliedSequence() {
+            return lastAppliedSequence;
+        }
+
+        public long getLastAppliedTime() {
+            return lastAppliedTime;
+        }
+
+        public long getLatencyCount() {
+            return latencyCount;
+        }
+
+        /**
+         * 端到端同步延迟中位数(毫秒，桶上界)
+         */
+        public long getLatencyP50() {
+            return latencyP50;
+        }
+
+        /**
+         * 端到端同步延迟 99 分位(毫秒，桶上界)
+         */
+        public long getLatencyP99() {
+            return latencyP99;
+        }
+
+        public long getLatencyMax() {
+            return latencyMax;
+        }
+
+        @Override
+        public String toString() {
+            return "InboundMetrics{" +
+                    "origin='" + origin + '\'' +
+                    ", appliedBatches=" + appliedBatches +
+                    ", appliedRequests=" + appliedRequests +
+                    ", lastAppliedSequence=" + lastAppliedSequence +
+                    ", lastAppliedTime=" + lastAppliedTime +
+                    ", latencyP50=" + latencyP50 +
+                    ", latencyP99=" + latencyP99 +
+                    ", latencyMax=" + latencyMax +
+                    '}';
+        }
+    }
+}
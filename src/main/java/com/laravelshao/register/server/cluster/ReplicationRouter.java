@@ -0,0 +1,180 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 集群同步路由
+ * <p>
+ * 本节点产生的 batch 按拓扑发给下一跳；收到其它节点的 batch 时先去重，再按拓扑转发，最后写入本地。
+ * 不依赖单例，一个进程内可以创建多个，用来在内存中模拟整个集群
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public class ReplicationRouter {
+
+    private final String self;
+    private volatile List<String> members;
+
+    /**
+     * 只读节点：本节点产生的 batch 直接发给它们
+     */
+    private volatile List<String> followers = new ArrayList<>();
+
+    /**
+     * 收到 batch 后是否按拓扑转发(只读节点不转发)
+     */
+    private volatile boolean forwarding = true;
+    private final ReplicationTopology topology;
+    private final PeerTransport transport;
+    private final ReplicationDeduplicator deduplicator = new ReplicationDeduplicator();
+
+    /**
+     * @param self      本节点
+     * @param peers     其它节点
+     * @param topology  同步拓扑
+     * @param transport 传输层
+     */
+    public ReplicationRouter(String self, List<String> peers, ReplicationTopology topology, PeerTransport transport) {
+        this.self = self;
+        this.topology = topology;
+        this.transport = transport;
+        updateMembers(peers);
+    }
+
+    /**
+     * 集群成员变更后替换成员列表
+     *
+     * @param peers 其它节点
+     */
+    public void updateMembers(List<String> peers) {
+        List<String> updated = new ArrayList<>(peers);
+        if (!updated.contains(self)) {
+            updated.add(self);
+        }
+        this.members = updated;
+    }
+
+    /**
+     * 设置只读节点
+     *
+     * @param followers 只读节点
+     */
+    public void setFollowers(List<String> followers) {
+        this.followers = new ArrayList<>(followers);
+    }
+
+    /**
+     * 设置收到 batch 后是否转发
+     *
+     * @param forwarding 只读节点设置为 false
+     */
+    public void setForwarding(boolean forwarding) {
+        this.forwarding = forwarding;
+    }
+
+    /**
+     * 不经过同步拓扑，直接把本节点产生的 batch 发给指定节点(分片迁移等点对点场景)
+     *
+     * @param peer    节点地址
+     * @param batches 集群同步 batch
+     * @return 传输层正常返回(对端已确认)时返回 true
+     */
+    public boolean sendTo(String peer, List<PeersReplicateBatch> batches) {
+        for (PeersReplicateBatch batch : batches) {
+            deduplicator.markSeen(batch);
+        }
+        try {
+            transport.send(peer, batches);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 发送本节点产生的 batch
+     *
+     * @param batch 集群同步 batch
+     */
+    public void publish(PeersReplicateBatch batch) {
+        deduplicator.markSeen(batch);
+        forward(batch);
+        for (String follower : followers) {
+            send(follower, batch);
+        }
+    }
+
+    /**
+     * 发送本节点产生的多个 batch，发往同一个节点的 batch 一次交给传输层(可以合并成一帧)
+     *
+     * @param batches 集群同步 batch
+     */
+    public void publish(List<PeersReplicateBatch> batches) {
+        Map<String, List<PeersReplicateBatch>> batchesByPeer = new LinkedHashMap<>();
+        List<String> currentMembers = members;
+        for (PeersReplicateBatch batch : batches) {
+            deduplicator.markSeen(batch);
+            for (String peer : topology.targets(self, batch.getOrigin(), currentMembers)) {
+                batchesByPeer.computeIfAbsent(peer, key -> new ArrayList<>()).add(batch);
+            }
+            for (String follower : followers) {
+                batchesByPeer.computeIfAbsent(follower, key -> new ArrayList<>()).add(batch);
+            }
+        }
+        for (Map.Entry<String, List<PeersReplicateBatch>> entry : batchesByPeer.entrySet()) {
+            try {
+                transport.send(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 接收其它节点发来的 batch
+     *
+     * @param batch   集群同步 batch
+     * @param applier 写入本地
+     * @return 重复的 batch 返回 false
+     */
+    public boolean receive(PeersReplicateBatch batch, Consumer<PeersReplicateBatch> applier) {
+        if (!deduplicator.markSeen(batch)) {
+            return false;
+        }
+        // 先转发再写入本地，减少下游等待；分片迁移 batch 只发给新归属节点，不转发
+        if (forwarding && !batch.isHandoff()) {
+            forward(batch);
+        }
+        applier.accept(batch);
+        return true;
+    }
+
+    private void forward(PeersReplicateBatch batch) {
+        for (String peer : topology.targets(self, batch.getOrigin(), members)) {
+            send(peer, batch);
+        }
+    }
+
+    private void send(String peer, PeersReplicateBatch batch) {
+        try {
+            transport.send(peer, batch);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public ReplicationTopology getTopology() {
+        return topology;
+    }
+}
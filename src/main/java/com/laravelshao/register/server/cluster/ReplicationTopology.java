@@ -0,0 +1,118 @@
+package com.laravelshao.register.server.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 集群同步拓扑：决定一个节点把 batch 转发给哪些节点
+ * <ul>
+ *     <li>ALL：来源节点直接发给所有其它节点，其它节点不转发，单个 batch 来源节点要发 N-1 次</li>
+ *     <li>TREE：以来源节点为根、按节点地址排序后构造 fanout 叉生成树，每个节点只转发给自己的子节点，
+ *     每个 batch 恰好 N-1 条消息，层数 log(fanout, N)</li>
+ *     <li>GOSSIP：每个节点第一次收到 batch 时随机转发给 fanout 个节点，节点增删不需要协调，
+ *     不保证覆盖所有节点，遗漏的由反熵修复补齐，因此只有反熵修复可用时才能使用，否则集群同步组件改用 TREE</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/22
+ * @since 1.0.0
+ */
+public class ReplicationTopology {
+
+    public enum Mode {
+        ALL, TREE, GOSSIP
+    }
+
+    private final Mode mode;
+    private final int fanout;
+    private final Random random;
+
+    public ReplicationTopology(Mode mode, int fanout, Random random) {
+        if (fanout <= 0) {
+            throw new IllegalArgumentException("集群同步 fanout 必须大于0：" + fanout);
+        }
+        this.mode = mode;
+        this.fanout = fanout;
+        this.random = random;
+    }
+
+    /**
+     * 计算转发目标
+     *
+     * @param self    本节点
+     * @param origin  batch 来源节点
+     * @param members 集群所有节点(包含本节点)，所有节点看到的顺序无关
+     * @return
+     */
+    public List<String> targets(String self, String origin, List<String> members) {
+        if (mode == Mode.TREE) {
+            return treeChildren(self, origin, members);
+        }
+        if (mode == Mode.GOSSIP) {
+            return gossipTargets(self, origin, members);
+        }
+        if (!self.equals(origin)) {
+            return Collections.emptyList();
+        }
+        List<String> targets = new ArrayList<>(members.size());
+        for (String member : members) {
+            if (!member.equals(self)) {
+                targets.add(member);
+            }
+        }
+        return targets;
+    }
+
+    private List<String> treeChildren(String self, String origin, List<String> members) {
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        int originIndex = sorted.indexOf(origin);
+        int selfIndex = sorted.indexOf(self);
+        if (originIndex < 0 || selfIndex < 0) {
+            // 成员视图不一致时退化为只由来源节点直接发送
+            return self.equals(origin) ? targets(self, origin, members, Mode.ALL) : Collections.emptyList();
+        }
+
+        // 以来源节点为位置0重新编号，位置 p 的子节点为 p*fanout+1 ... p*fanout+fanout
+        int position = (selfIndex - originIndex + n) % n;
+        List<String> children = new ArrayList<>(fanout);
+        for (int i = 1; i <= fanout; i++) {
+            long child = (long) position * fanout + i;
+            if (child >= n) {
+                break;
+            }
+            children.add(sorted.get((int) ((child + originIndex) % n)));
+        }
+        return children;
+    }
+
+    private List<String> gossipTargets(String self, String origin, List<String> members) {
+        List<String> candidates = new ArrayList<>(members.size());
+        for (String member : members) {
+            if (!member.equals(self) && !member.equals(origin)) {
+                candidates.add(member);
+            }
+        }
+        // 部分洗牌，取前 fanout 个
+        int count = Math.min(fanout, candidates.size());
+        for (int i = 0; i < count; i++) {
+            Collections.swap(candidates, i, i + random.nextInt(candidates.size() - i));
+        }
+        return new ArrayList<>(candidates.subList(0, count));
+    }
+
+    private List<String> targets(String self, String origin, List<String> members, Mode fallback) {
+        return new ReplicationTopology(fallback, fanout, random).targets(self, origin, members);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+}
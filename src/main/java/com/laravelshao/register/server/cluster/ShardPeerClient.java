@@ -0,0 +1,64 @@
+package com.laravelshao.register.server.cluster;
+
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.web.CancelRequest;
+import com.laravelshao.register.server.web.HeartbeatRequest;
+import com.laravelshao.register.server.web.HeartbeatResponse;
+import com.laravelshao.register.server.web.RegisterRequest;
+import com.laravelshao.register.server.web.RegisterResponse;
+
+import java.util.Map;
+
+/**
+ * 分片模式下调用其它节点的客户端：非归属节点把写请求转发给归属节点，读请求回源到归属节点
+ *
+ * @author qinghua.shao
+ * @date 2022/8/28
+ * @since 1.0.0
+ */
+public interface ShardPeerClient {
+
+    /**
+     * 还没有接入 http 客户端，调用时直接失败
+     */
+    ShardPeerClient UNAVAILABLE = new ShardPeerClient() {
+        @Override
+        public RegisterResponse register(String peer, RegisterRequest request) {
+            throw unavailable(peer);
+        }
+
+        @Override
+        public void cancel(String peer, CancelRequest request) {
+            throw unavailable(peer);
+        }
+
+        @Override
+        public HeartbeatResponse heartbeat(String peer, HeartbeatRequest request) {
+            throw unavailable(peer);
+        }
+
+        @Override
+        public Map<String, ServiceInstance> fetchServiceInstances(String peer, String serviceName) {
+            throw unavailable(peer);
+        }
+
+        private IllegalStateException unavailable(String peer) {
+            return new IllegalStateException("没有配置分片转发客户端，无法访问节点：" + peer);
+        }
+    };
+
+    RegisterResponse register(String peer, RegisterRequest request);
+
+    void cancel(String peer, CancelRequest request);
+
+    HeartbeatResponse heartbeat(String peer, HeartbeatRequest request);
+
+    /**
+     * 拉取一个服务的所有服务实例
+     *
+     * @param peer        节点地址
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID
+     */
+    Map<String, ServiceInstance> fetchServiceInstances(String peer, String serviceName);
+}
@@ -0,0 +1,32 @@
+package com.laravelshao.register.server.cluster;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 注册表快照来源：向集群中的某个节点请求注册表快照，以流的形式读取
+ * <p>
+ * 对端按 {@link RegistryBootstrapper#writeSnapshot(java.nio.channels.WritableByteChannel)} 的格式写出
+ *
+ * @author qinghua.shao
+ * @date 2022/8/21
+ * @since 1.0.0
+ */
+public interface SnapshotSource {
+
+    /**
+     * 还没有接入 http 客户端，无法拉取快照
+     */
+    SnapshotSource UNAVAILABLE = peer -> {
+        throw new IOException("没有配置注册表快照客户端，无法访问节点：" + peer);
+    };
+
+    /**
+     * 打开指定节点的注册表快照
+     *
+     * @param peer 节点地址
+     * @return 快照流，由调用方关闭
+     * @throws IOException
+     */
+    ReadableByteChannel open(String peer) throws IOException;
+}
@@ -0,0 +1,68 @@
+package com.laravelshao.register.server.core;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 定长堆外缓冲区池
+ * <p>
+ * 池空时临时分配新的缓冲区，归还时超过池容量的缓冲区直接丢弃，池本身占用的内存有上限
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class ByteBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * @param bufferSize 缓冲区大小(字节)
+     * @param maxPooled  池中最多保留的缓冲区数量
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 借出一个已清空的缓冲区
+     *
+     * @return
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区
+     *
+     * @param buffer 借出的缓冲区
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
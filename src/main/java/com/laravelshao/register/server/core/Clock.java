@@ -0,0 +1,53 @@
+package com.laravelshao.register.server.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时钟
+ * <p>
+ * 后台任务的调度和时间判断都通过它取当前时间，测试时可以替换成手动推进的虚拟时钟
+ *
+ * @author qinghua.shao
+ * @date 2022/8/13
+ * @since 1.0.0
+ */
+public interface Clock {
+
+    /**
+     * 系统时钟
+     */
+    Clock SYSTEM = System::currentTimeMillis;
+
+    /**
+     * 当前时间戳(毫秒)
+     *
+     * @return
+     */
+    long currentTimeMillis();
+
+    /**
+     * 手动推进的虚拟时钟
+     */
+    class ManualClock implements Clock {
+
+        private AtomicLong now;
+
+        public ManualClock(long now) {
+            this.now = new AtomicLong(now);
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+
+        /**
+         * 时间向前推进
+         *
+         * @param millis 推进的毫秒数
+         */
+        public void advance(long millis) {
+            now.addAndGet(millis);
+        }
+    }
+}
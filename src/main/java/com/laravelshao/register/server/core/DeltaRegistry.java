@@ -16,6 +16,17 @@ public class DeltaRegistry {
     private Queue<RecentlyChangedServiceInstance> recentlyChangedQueue;
     private Long serviceInstanceTotalCount;
 
+    /**
+     * 增量覆盖的版本区间 (fromVersion, toVersion]，本地版本号不低于 fromVersion 的客户端才能直接应用
+     */
+    private long fromVersion;
+    private long toVersion;
+
+    /**
+     * toVersion 时的注册表哈希，客户端应用增量后据此校验
+     */
+    private long registryHash;
+
     public DeltaRegistry(Queue<RecentlyChangedServiceInstance> recentlyChangedQueue,
                          Long serviceInstanceTotalCount) {
         this.recentlyChangedQueue = recentlyChangedQueue;
@@ -37,4 +48,28 @@ public class DeltaRegistry {
     public void setServiceInstanceTotalCount(Long serviceInstanceTotalCount) {
         this.serviceInstanceTotalCount = serviceInstanceTotalCount;
     }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public void setFromVersion(long fromVersion) {
+        this.fromVersion = fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public void setToVersion(long toVersion) {
+        this.toVersion = toVersion;
+    }
+
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    public void setRegistryHash(long registryHash) {
+        this.registryHash = registryHash;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 堆内存储引擎(默认)
+ * <p>
+ * 外层MAP：key 为服务名称，value 为这个服务的所有服务实例
+ * 内层MAP：key 为服务实例ID，value 为服务实例信息
+ *
+ * @author qinghua.shao
+ * @date 2022/8/7
+ * @since 1.0.0
+ */
+public class HeapInstanceStore implements InstanceStore {
+
+    private Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>();
+
+    @Override
+    public ServiceInstance get(String serviceName, String serviceInstanceId) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        return serviceInstanceMap != null ? serviceInstanceMap.get(serviceInstanceId) : null;
+    }
+
+    @Override
+    public ServiceInstance put(ServiceInstance serviceInstance) {
+        return registry.computeIfAbsent(serviceInstance.getServiceName(), k -> new ConcurrentHashMap<>())
+                .put(serviceInstance.getServiceInstanceId(), serviceInstance);
+    }
+
+    @Override
+    public ServiceInstance remove(String serviceName, String serviceInstanceId) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        return serviceInstanceMap != null ? serviceInstanceMap.remove(serviceInstanceId) : null;
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId, long leaseDuration) {
+        ServiceInstance serviceInstance = get(serviceName, serviceInstanceId);
+        if (serviceInstance == null) {
+            return false;
+        }
+        // 不逐个打印日志：集群同步、批量心跳时每秒几十万次续约，System.out 的锁会让并行续约退化成串行
+        if (leaseDuration > 0) {
+            serviceInstance.setLeaseDuration(leaseDuration);
+        }
+        serviceInstance.setLatestHeartbeatTime(RegisterServerScheduler.getInstance().now());
+        return true;
+    }
+
+    @Override
+    public long getLeaseDuration(String serviceName, String serviceInstanceId) {
+        ServiceInstance serviceInstance = get(serviceName, serviceInstanceId);
+        return serviceInstance != null ? serviceInstance.getLeaseDuration() : -1L;
+    }
+
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+        return serviceInstanceMap == null ? new HashMap<>() : new HashMap<>(serviceInstanceMap);
+    }
+
+    @Override
+    public void forEach(Consumer<ServiceInstance> action) {
+        for (Map<String, ServiceInstance> serviceInstanceMap : registry.values()) {
+            serviceInstanceMap.values().forEach(action);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0L;
+        for (Map<String, ServiceInstance> serviceInstanceMap : registry.values()) {
+            size += serviceInstanceMap.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Map<String, Map<String, ServiceInstance>> asMap() {
+        return registry;
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        InstanceRecordLayout.writeTo(channel, this::forEach);
+    }
+}
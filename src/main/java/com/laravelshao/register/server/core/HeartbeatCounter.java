@@ -11,6 +11,12 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class HeartbeatCounter {
 
+    /**
+     * 心跳次数重置间隔
+     */
+    private static final long RESET_RATE_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.heartbeat-rate-reset-interval", 60 * 1000L);
+
     /**
      * 单例实例
      */
@@ -21,10 +27,8 @@ public class HeartbeatCounter {
      */
     private HeartbeatCounter() {
 
-        // 启动后台重置阈值线程任务
-        ResetRateDaemon resetRateDaemon = new ResetRateDaemon();
-        resetRateDaemon.setDaemon(true); // 设置为后台线程
-        resetRateDaemon.start();
+        // 注册每分钟重置心跳次数的后台任务
+        RegisterServerScheduler.getInstance().schedule("heartbeat-rate-reset", RESET_RATE_INTERVAL, this::resetRate);
     }
 
     /**
@@ -32,10 +36,6 @@ public class HeartbeatCounter {
      */
     private AtomicLong latestMinuteHeartbeatRate = new AtomicLong(0L);
     //private LongAdder latestMinuteHeartbeatRate = new LongAdder();
-    /**
-     * 最近一分钟的时间戳
-     */
-    private long latestMinuteTimestamp = System.currentTimeMillis();
 
     /**
      * 获取单例对象
@@ -54,6 +54,15 @@ public class HeartbeatCounter {
         //latestMinuteHeartbeatRate.increment();
     }
 
+    /**
+     * 增加多次最新一分钟的心跳次数(批量心跳)
+     *
+     * @param count 心跳次数
+     */
+    public void increment(long count) {
+        latestMinuteHeartbeatRate.addAndGet(count);
+    }
+
     /**
      * 获取最近一分钟的心跳次数
      *
@@ -65,30 +74,9 @@ public class HeartbeatCounter {
     }
 
     /**
-     * 重置阈值后台线程任务
+     * 重置最近一分钟的心跳次数
      */
-    public class ResetRateDaemon extends Thread {
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    long currentTime = System.currentTimeMillis();
-                    if (currentTime - latestMinuteTimestamp > 60 * 1000) {
-                        while (true) {
-                            long expectValue = latestMinuteHeartbeatRate.get();
-                            if (latestMinuteHeartbeatRate.compareAndSet(expectValue, 0L)) {
-                                break;
-                            }
-                        }
-
-                        latestMinuteTimestamp = System.currentTimeMillis();
-                    }
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    void resetRate() {
+        latestMinuteHeartbeatRate.set(0L);
     }
 }
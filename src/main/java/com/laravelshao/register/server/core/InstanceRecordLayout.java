@@ -0,0 +1,339 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * 服务实例定长记录格式
+ * <p>
+ * 堆外存储引擎的 slab 中直接以这个格式存放服务实例，全量注册表编码也使用同样的格式：
+ * <pre>
+ * 编码流：[int 魔数][int 符号数]{[int 长度][UTF-8 字节]}*[int 记录数][记录]*
+ *
+ * 符号长度用 int 存放：版本号、标签由客户端上报，长度不受控，short 会在 32KB 处溢出、超过 64KB 截断
+ *
+ * 记录(136 字节)：
+ *   0  int  服务名称符号
+ *   4  int  主机名符号(-1 表示为空)
+ *   8  int  无法解析的IP原始文本符号(-1 表示为空)
+ *  12  int  端口号
+ *  16  long IP高64位
+ *  24  long IP低64位
+ *  32  long 最近一次心跳时间
+ *  40  byte 标记位(1 表示记录在用)
+ *  41  byte IP地址类型
+ *  42  byte 服务实例ID字节数
+ *  48  long 注册时间(契约版本号)
+ *  56  byte[64] 服务实例ID(UTF-8)
+ * 120  int  可用区符号(-1 表示为空)
+ * 124  int  服务版本号符号(-1 表示为空)
+ * 128  int  标签符号(规范化后的标签文本，-1 表示为空)
+ * 132  int  契约时长(毫秒，0 表示默认值)
+ * </pre>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/7
+ * @since 1.0.0
+ */
+final class InstanceRecordLayout {
+
+    static final int MAGIC = 0x4C535232;
+
+    /**
+     * 编码全量注册表时每次写出的缓冲区大小
+     */
+    private static final int ENCODE_CHUNK_RECORDS = 512;
+
+    static final int RECORD_SIZE = 136;
+    static final int MAX_INSTANCE_ID_BYTES = 64;
+
+    static final int SERVICE_NAME_OFFSET = 0;
+    static final int HOSTNAME_OFFSET = 4;
+    static final int IP_TEXT_OFFSET = 8;
+    static final int PORT_OFFSET = 12;
+    static final int IP_HIGH_OFFSET = 16;
+    static final int IP_LOW_OFFSET = 24;
+    static final int HEARTBEAT_TIME_OFFSET = 32;
+    static final int FLAGS_OFFSET = 40;
+    static final int IP_VERSION_OFFSET = 41;
+    static final int INSTANCE_ID_LENGTH_OFFSET = 42;
+    static final int REGISTRATION_TIME_OFFSET = 48;
+    static final int INSTANCE_ID_OFFSET = 56;
+    static final int ZONE_OFFSET = 120;
+    static final int VERSION_OFFSET = 124;
+    static final int TAGS_OFFSET = 128;
+    static final int LEASE_DURATION_OFFSET = 132;
+
+    static final byte FLAG_IN_USE = 1;
+    static final int NO_SYMBOL = -1;
+
+    private InstanceRecordLayout() {
+    }
+
+    /**
+     * 契约时长以 int 毫秒存放
+     *
+     * @param leaseDuration 契约时长
+     * @return
+     */
+    static int encodeLeaseDuration(long leaseDuration) {
+        return (int) Math.min(leaseDuration, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 将服务实例ID编码为 UTF-8 字节
+     *
+     * @param serviceInstanceId 服务实例ID
+     * @return
+     */
+    static byte[] encodeInstanceId(String serviceInstanceId) {
+        byte[] bytes = serviceInstanceId.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_INSTANCE_ID_BYTES) {
+            throw new IllegalArgumentException("服务实例ID超过" + MAX_INSTANCE_ID_BYTES + "字节：" + serviceInstanceId);
+        }
+        return bytes;
+    }
+
+    /**
+     * 服务实例中需要放进符号字典的字符串
+     *
+     * @param serviceInstance 服务实例
+     * @param consumer        处理一个字符串(可能为 null)
+     */
+    static void collectSymbols(ServiceInstance serviceInstance, Consumer<String> consumer) {
+        consumer.accept(serviceInstance.getServiceName());
+        consumer.accept(serviceInstance.getHostname());
+        if (serviceInstance.getIpVersion() == ServiceInstance.IP_NONE) {
+            consumer.accept(serviceInstance.getIp());
+        }
+        consumer.accept(serviceInstance.getZone());
+        consumer.accept(serviceInstance.getVersion());
+        consumer.accept(serviceInstance.getTagsText());
+    }
+
+    /**
+     * 在指定位置写入一条记录
+     *
+     * @param symbols 字符串到符号的映射，null 映射为 {@link #NO_SYMBOL}
+     */
+    static void write(ByteBuffer buffer, int offset, ServiceInstance serviceInstance, byte[] instanceId,
+                      ToIntFunction<String> symbols) {
+        buffer.putInt(offset + SERVICE_NAME_OFFSET, symbols.applyAsInt(serviceInstance.getServiceName()));
+        buffer.putInt(offset + HOSTNAME_OFFSET, symbols.applyAsInt(serviceInstance.getHostname()));
+        buffer.putInt(offset + IP_TEXT_OFFSET, serviceInstance.getIpVersion() == ServiceInstance.IP_NONE
+                ? symbols.applyAsInt(serviceInstance.getIp()) : NO_SYMBOL);
+        buffer.putInt(offset + ZONE_OFFSET, symbols.applyAsInt(serviceInstance.getZone()));
+        buffer.putInt(offset + VERSION_OFFSET, symbols.applyAsInt(serviceInstance.getVersion()));
+        buffer.putInt(offset + TAGS_OFFSET, symbols.applyAsInt(serviceInstance.getTagsText()));
+        buffer.putInt(offset + PORT_OFFSET, serviceInstance.getPort());
+        buffer.putLong(offset + IP_HIGH_OFFSET, serviceInstance.getIpHigh());
+        buffer.putLong(offset + IP_LOW_OFFSET, serviceInstance.getIpLow());
+        buffer.putLong(offset + HEARTBEAT_TIME_OFFSET, serviceInstance.getLatestHeartbeatTime());
+        buffer.put(offset + FLAGS_OFFSET, FLAG_IN_USE);
+        buffer.put(offset + IP_VERSION_OFFSET, serviceInstance.getIpVersion());
+        buffer.put(offset + INSTANCE_ID_LENGTH_OFFSET, (byte) instanceId.length);
+        buffer.putLong(offset + REGISTRATION_TIME_OFFSET, serviceInstance.getRegistrationTimestamp());
+        buffer.putInt(offset + LEASE_DURATION_OFFSET, encodeLeaseDuration(serviceInstance.getLeaseDuration()));
+        for (int i = 0; i < instanceId.length; i++) {
+            buffer.put(offset + INSTANCE_ID_OFFSET + i, instanceId[i]);
+        }
+    }
+
+    /**
+     * 从指定位置还原一个服务实例
+     */
+    static ServiceInstance read(ByteBuffer buffer, int offset, List<String> symbols) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(symbol(symbols, buffer.getInt(offset + SERVICE_NAME_OFFSET)));
+        serviceInstance.setHostname(symbol(symbols, buffer.getInt(offset + HOSTNAME_OFFSET)));
+        serviceInstance.setPort(buffer.getInt(offset + PORT_OFFSET));
+
+        byte ipVersion = buffer.get(offset + IP_VERSION_OFFSET);
+        if (ipVersion == ServiceInstance.IP_NONE) {
+            serviceInstance.setIp(symbol(symbols, buffer.getInt(offset + IP_TEXT_OFFSET)));
+        } else {
+            serviceInstance.setIpAddress(ipVersion,
+                    buffer.getLong(offset + IP_HIGH_OFFSET), buffer.getLong(offset + IP_LOW_OFFSET));
+        }
+
+        byte[] instanceId = new byte[buffer.get(offset + INSTANCE_ID_LENGTH_OFFSET)];
+        for (int i = 0; i < instanceId.length; i++) {
+            instanceId[i] = buffer.get(offset + INSTANCE_ID_OFFSET + i);
+        }
+        serviceInstance.setServiceInstanceId(new String(instanceId, StandardCharsets.UTF_8));
+        serviceInstance.setLatestHeartbeatTime(buffer.getLong(offset + HEARTBEAT_TIME_OFFSET));
+        serviceInstance.setRegistrationTimestamp(buffer.getLong(offset + REGISTRATION_TIME_OFFSET));
+        serviceInstance.setLeaseDuration(buffer.getInt(offset + LEASE_DURATION_OFFSET));
+        serviceInstance.setZone(symbol(symbols, buffer.getInt(offset + ZONE_OFFSET)));
+        serviceInstance.setVersion(symbol(symbols, buffer.getInt(offset + VERSION_OFFSET)));
+        serviceInstance.setTagsText(symbol(symbols, buffer.getInt(offset + TAGS_OFFSET)));
+        return serviceInstance;
+    }
+
+    /**
+     * 判断指定位置记录的服务实例ID是否与给定字节相同
+     */
+    static boolean instanceIdEquals(ByteBuffer buffer, int offset, byte[] instanceId) {
+        if (buffer.get(offset + INSTANCE_ID_LENGTH_OFFSET) != instanceId.length) {
+            return false;
+        }
+        for (int i = 0; i < instanceId.length; i++) {
+            if (buffer.get(offset + INSTANCE_ID_OFFSET + i) != instanceId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将服务实例编码写入 channel(堆内存储引擎、分区注册表共用)
+     *
+     * @param channel 输出 channel
+     * @param source  遍历要写出的服务实例
+     * @throws IOException
+     */
+    static void writeTo(WritableByteChannel channel, Consumer<Consumer<ServiceInstance>> source) throws IOException {
+
+        // 第一遍：收集符号字典，并固定本次要写出的服务实例
+        List<String> symbols = new ArrayList<>();
+        Map<String, Integer> symbolIds = new HashMap<>();
+        List<ServiceInstance> serviceInstances = new ArrayList<>();
+        source.accept(serviceInstance -> {
+            collectSymbols(serviceInstance, value -> symbol(symbols, symbolIds, value));
+            serviceInstances.add(serviceInstance);
+        });
+
+        writeHeader(channel, symbols, serviceInstances.size());
+
+        // 第二遍：按块编码写出记录
+        ByteBuffer chunk = ByteBuffer.allocate(ENCODE_CHUNK_RECORDS * RECORD_SIZE);
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            if (chunk.remaining() < RECORD_SIZE) {
+                chunk.flip();
+                writeFully(channel, chunk);
+                chunk.clear();
+            }
+            write(chunk, chunk.position(), serviceInstance, encodeInstanceId(serviceInstance.getServiceInstanceId()),
+                    value -> symbol(symbols, symbolIds, value));
+            chunk.position(chunk.position() + RECORD_SIZE);
+        }
+        chunk.flip();
+        writeFully(channel, chunk);
+    }
+
+    private static int symbol(List<String> symbols, Map<String, Integer> symbolIds, String value) {
+        if (value == null) {
+            return NO_SYMBOL;
+        }
+        Integer symbol = symbolIds.get(value);
+        if (symbol == null) {
+            symbol = symbols.size();
+            symbols.add(value);
+            symbolIds.put(value, symbol);
+        }
+        return symbol;
+    }
+
+    /**
+     * 写入编码流头部：魔数、符号字典、记录数
+     */
+    static void writeHeader(WritableByteChannel channel, List<String> symbols, int recordCount) throws IOException {
+        int length = 12;
+        byte[][] encoded = new byte[symbols.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = symbols.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(length);
+        header.putInt(MAGIC);
+        header.putInt(encoded.length);
+        for (byte[] symbol : encoded) {
+            header.putInt(symbol.length);
+            header.put(symbol);
+        }
+        header.putInt(recordCount);
+        header.flip();
+        writeFully(channel, header);
+    }
+
+    /**
+     * 按块读取编码流，每读满一块记录就还原成服务实例交给 consumer
+     *
+     * @param channel      输入 channel
+     * @param chunkRecords 每块记录数
+     * @param consumer     处理一块服务实例
+     * @return 读取的记录数
+     * @throws IOException
+     */
+    static int readFrom(ReadableByteChannel channel, int chunkRecords,
+                        Consumer<List<ServiceInstance>> consumer) throws IOException {
+        ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        if (readInt(channel, intBuffer) != MAGIC) {
+            throw new IOException("注册表编码流魔数错误");
+        }
+
+        int symbolCount = readInt(channel, intBuffer);
+        List<String> symbols = new ArrayList<>(symbolCount);
+        for (int i = 0; i < symbolCount; i++) {
+            int length = readInt(channel, intBuffer);
+            if (length < 0) {
+                throw new IOException("注册表编码流符号长度错误：" + length);
+            }
+            ByteBuffer symbol = ByteBuffer.allocate(length);
+            readFully(channel, symbol);
+            symbols.add(new String(symbol.array(), StandardCharsets.UTF_8));
+        }
+
+        int recordCount = readInt(channel, intBuffer);
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(chunkRecords, Math.max(recordCount, 1)) * RECORD_SIZE);
+        int remaining = recordCount;
+        while (remaining > 0) {
+            int records = Math.min(remaining, chunk.capacity() / RECORD_SIZE);
+            chunk.clear();
+            chunk.limit(records * RECORD_SIZE);
+            readFully(channel, chunk);
+
+            List<ServiceInstance> serviceInstances = new ArrayList<>(records);
+            for (int i = 0; i < records; i++) {
+                serviceInstances.add(read(chunk, i * RECORD_SIZE, symbols));
+            }
+            consumer.accept(serviceInstances);
+            remaining -= records;
+        }
+        return recordCount;
+    }
+
+    private static int readInt(ReadableByteChannel channel, ByteBuffer intBuffer) throws IOException {
+        intBuffer.clear();
+        readFully(channel, intBuffer);
+        return intBuffer.getInt(0);
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("注册表编码流提前结束");
+            }
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String symbol(List<String> symbols, int symbol) {
+        return symbol == NO_SYMBOL ? null : symbols.get(symbol);
+    }
+}
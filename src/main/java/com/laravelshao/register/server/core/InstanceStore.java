@@ -0,0 +1,101 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 服务实例存储引擎
+ * <p>
+ * 注册表通过它来存取服务实例，注册表的读写锁负责写操作之间的互斥，
+ * 存储引擎自身保证单个操作的线程安全
+ *
+ * @author qinghua.shao
+ * @date 2022/8/7
+ * @since 1.0.0
+ */
+public interface InstanceStore {
+
+    /**
+     * 获取服务实例
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 不存在时返回 null
+     */
+    ServiceInstance get(String serviceName, String serviceInstanceId);
+
+    /**
+     * 保存服务实例
+     *
+     * @param serviceInstance 服务实例
+     * @return 被覆盖的旧服务实例，不存在时返回 null
+     */
+    ServiceInstance put(ServiceInstance serviceInstance);
+
+    /**
+     * 移除服务实例
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 被移除的服务实例，不存在时返回 null
+     */
+    ServiceInstance remove(String serviceName, String serviceInstanceId);
+
+    /**
+     * 服务实例续约
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @param leaseDuration     新的契约时长，不大于0时保持不变
+     * @return 服务实例不存在时返回 false
+     */
+    boolean renew(String serviceName, String serviceInstanceId, long leaseDuration);
+
+    /**
+     * 读取服务实例当前的契约时长(不还原整个服务实例)
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 服务实例不存在时返回 -1
+     */
+    long getLeaseDuration(String serviceName, String serviceInstanceId);
+
+    /**
+     * 获取一个服务的所有服务实例(只还原这个服务的服务实例)
+     *
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID，服务不存在时返回空 Map
+     */
+    Map<String, ServiceInstance> getServiceInstances(String serviceName);
+
+    /**
+     * 遍历所有服务实例
+     *
+     * @param action 对每个服务实例执行的操作
+     */
+    void forEach(Consumer<ServiceInstance> action);
+
+    /**
+     * 服务实例数量
+     *
+     * @return
+     */
+    long size();
+
+    /**
+     * 以 服务名称 -> (服务实例ID -> 服务实例) 的形式返回注册表
+     *
+     * @return
+     */
+    Map<String, Map<String, ServiceInstance>> asMap();
+
+    /**
+     * 将全量注册表按 {@link InstanceRecordLayout} 的格式编码写入 channel
+     *
+     * @param channel 输出 channel
+     * @throws IOException
+     */
+    void writeTo(WritableByteChannel channel) throws IOException;
+}
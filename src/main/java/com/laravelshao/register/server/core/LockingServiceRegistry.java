@@ -0,0 +1,816 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 基于全局读写锁的注册表(默认实现)
+ *
+ * @author qinghua.shao
+ * @date 2022/6/19
+ * @since 1.0.0
+ */
+public class LockingServiceRegistry implements ServiceRegistry {
+
+    /**
+     * 服务实例存储引擎：heap(默认)、offheap
+     */
+    public static final String INSTANCE_STORE = RegisterServerConfig.getString("register.server.instance-store", "heap");
+
+    /**
+     * 是否维护服务实例二级索引
+     */
+    public static final boolean INSTANCE_INDEX_ENABLED = Boolean.parseBoolean(
+            RegisterServerConfig.getString("register.server.instance-index.enabled", "true"));
+
+    /**
+     * 设置为单例(必须在上面的静态配置之后初始化，否则构造时读到的配置均为默认值)
+     */
+    private static LockingServiceRegistry instance = new LockingServiceRegistry();
+
+    /**
+     * 注册表：核心内存数据结构，由存储引擎负责实际存放服务实例
+     */
+    private InstanceStore store = "offheap".equals(INSTANCE_STORE) ? new OffHeapInstanceStore() : new HeapInstanceStore();
+
+    /**
+     * 最近变更的服务实例的队列
+     */
+    private Queue<RecentlyChangedServiceInstance> recentlyChangedQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 变更监听器：每记录一次最近变更，在写锁内按版本号顺序回调(不能阻塞)
+     */
+    private List<Consumer<RecentlyChangedServiceInstance>> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 注册表 Merkle 摘要，未开启反熵修复时为 null
+     */
+    private RegistryMerkleTree merkleTree = ANTI_ENTROPY_ENABLED
+            ? new RegistryMerkleTree(RegisterServerConfig.getInt("register.server.anti-entropy.leaf-bits", 12)) : null;
+
+    /**
+     * 服务实例二级索引，未开启时为 null(查询退化为遍历注册表)
+     */
+    private ServiceInstanceIndex instanceIndex = INSTANCE_INDEX_ENABLED ? new ServiceInstanceIndex() : null;
+
+    /**
+     * 每个服务的修订号：服务下有服务实例注册、覆盖、移除时更新(写锁内维护)，注册表缓存据此只重建发生变化的服务
+     */
+    private Map<String, ServiceRevision> serviceRevisions = new ConcurrentHashMap<>();
+    private long revisionSequence = 0L;
+
+    /**
+     * 注册表中存活的服务实例数量(注册、移除时无锁维护，供自我保护机制推导期望心跳次数)
+     */
+    private AtomicLong serviceInstanceCount = new AtomicLong(0L);
+
+    /**
+     * 所有服务实例每分钟期望心跳次数之和(以千分之一次为单位，供自我保护机制读取)：
+     * 注册、移除时在写锁内维护，续约改变契约时长时在读锁内按服务实例分段加锁维护
+     */
+    private AtomicLong expectedHeartbeatMillis = new AtomicLong(0L);
+
+    /**
+     * 续约改变契约时长时按服务实例分段加的锁
+     */
+    private final Object[] leaseLocks = new Object[64];
+
+    /**
+     * 注册表版本号：每记录一次最近变更加1(写锁内维护)。
+     * 以启动时间(微秒)为起点，重启后的版本号不会低于重启前客户端持有的版本号
+     */
+    private volatile long version = System.currentTimeMillis() * 1000;
+
+    /**
+     * 增量注册表可用的最低版本号：启动、批量加载快照等不记录最近变更的写入会把它推到当前版本，
+     * 版本号低于它的客户端只能拉取全量注册表
+     */
+    private volatile long deltaBaseVersion = version;
+
+    /**
+     * 注册表哈希(写锁内维护)，见 {@link RegistryHash}
+     */
+    private volatile long registryHash = 0L;
+
+    /**
+     * 读写锁
+     */
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ReadLock readLock = lock.readLock();
+    private WriteLock writeLock = lock.writeLock();
+
+    private LockingServiceRegistry() {
+        for (int i = 0; i < leaseLocks.length; i++) {
+            leaseLocks[i] = new Object();
+        }
+        // 注册最近变更队列过期清理的后台任务
+        RegisterServerScheduler.getInstance().schedule(
+                "recently-changed-queue-expire", RECENTLY_CHANGED_ITEM_CHECK_INTERVAL, this::expireRecentlyChangedItems);
+    }
+
+    /**
+     * 获取实例对象
+     *
+     * @return
+     */
+    public static LockingServiceRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * 加读锁
+     */
+    @Override
+    public void readLock() {
+        this.readLock.lock();
+    }
+
+    /**
+     * 释放读锁
+     */
+    @Override
+    public void readUnlock() {
+        this.readLock.unlock();
+    }
+
+    /**
+     * 加写锁
+     */
+    @Override
+    public void writeLock() {
+        this.writeLock.lock();
+    }
+
+    /**
+     * 释放写锁
+     */
+    @Override
+    public void writeUnlock() {
+        this.writeLock.unlock();
+    }
+
+    /**
+     * 获取服务实例信息
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return
+     */
+    @Override
+    public synchronized ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
+
+        try {
+            // 加读锁
+            this.readLock();
+
+            return store.get(serviceName, serviceInstanceId);
+        } finally {
+            // 释放读锁
+            this.readUnlock();
+        }
+    }
+
+    /**
+     * 按主机名、IP、可用区、版本号、标签查询服务实例
+     *
+     * @param query 查询条件
+     * @return
+     */
+    @Override
+    public List<ServiceInstance> findServiceInstances(ServiceInstanceQuery query) {
+        List<ServiceInstance> serviceInstances = new ArrayList<>();
+        try {
+            // 加读锁
+            this.readLock();
+
+            List<String[]> keys = instanceIndex == null ? null : instanceIndex.lookup(query);
+            if (keys == null) {
+                store.forEach(serviceInstance -> {
+                    if (query.matches(serviceInstance)) {
+                        serviceInstances.add(serviceInstance);
+                    }
+                });
+                return serviceInstances;
+            }
+            for (String[] key : keys) {
+                ServiceInstance serviceInstance = store.get(key[0], key[1]);
+                if (serviceInstance != null) {
+                    serviceInstances.add(serviceInstance);
+                }
+            }
+            return serviceInstances;
+        } finally {
+            // 释放读锁
+            this.readUnlock();
+        }
+    }
+
+    /**
+     * 服务实例续约
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 服务实例不存在时返回 false
+     */
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        return store.renew(serviceName, serviceInstanceId, 0L);
+    }
+
+    /**
+     * 服务实例续约，同时更新协商后的契约时长
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @param leaseDuration     契约时长，不大于0时保持不变
+     * @return 服务实例不存在时返回 false
+     */
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId, long leaseDuration) {
+        if (leaseDuration <= 0) {
+            return store.renew(serviceName, serviceInstanceId, 0L);
+        }
+        long current = store.getLeaseDuration(serviceName, serviceInstanceId);
+        if (current < 0) {
+            return false;
+        }
+        if (current == leaseDuration) {
+            // 绝大多数心跳契约时长不变，不加锁、不写契约时长，避免覆盖并发的契约时长变更
+            return store.renew(serviceName, serviceInstanceId, 0L);
+        }
+        return renewWithLeaseChange(serviceName, serviceInstanceId, leaseDuration);
+    }
+
+    /**
+     * 续约并改变契约时长，同时维护期望心跳次数：读锁排除并发的注册、移除，分段锁排除同一个服务实例并发的契约时长变更
+     */
+    private boolean renewWithLeaseChange(String serviceName, String serviceInstanceId, long leaseDuration) {
+        try {
+            this.readLock();
+            synchronized (leaseLocks[((serviceName.hashCode() * 31 + serviceInstanceId.hashCode()) & 0x7FFFFFFF)
+                    % leaseLocks.length]) {
+                long previous = store.getLeaseDuration(serviceName, serviceInstanceId);
+                if (previous < 0 || !store.renew(serviceName, serviceInstanceId, leaseDuration)) {
+                    return false;
+                }
+                long updated = store.getLeaseDuration(serviceName, serviceInstanceId);
+                expectedHeartbeatMillis.addAndGet(ServiceInstance.expectedHeartbeatMillis(updated)
+                        - ServiceInstance.expectedHeartbeatMillis(previous));
+                return true;
+            }
+        } finally {
+            this.readUnlock();
+        }
+    }
+
+    /**
+     * 获取完整注册表信息(堆外存储引擎返回的是还原出来的快照)
+     *
+     * @return
+     */
+    @Override
+    public synchronized Map<String, Map<String, ServiceInstance>> getRegistry() {
+        return store.asMap();
+    }
+
+    /**
+     * 遍历注册表中的所有服务实例
+     *
+     * @param action 对每个服务实例执行的操作
+     */
+    @Override
+    public void forEach(Consumer<ServiceInstance> action) {
+        store.forEach(action);
+    }
+
+    /**
+     * 将全量注册表编码写入 channel(堆外存储引擎直接从 slab 写出)
+     *
+     * @param channel 输出 channel
+     * @throws IOException
+     */
+    @Override
+    public void writeFullRegistry(WritableByteChannel channel) throws IOException {
+        try {
+            this.readLock();
+            store.writeTo(channel);
+        } finally {
+            this.readUnlock();
+        }
+    }
+
+    /**
+     * 从 channel 读取全量注册表编码并批量写入注册表(新节点启动时从其它节点拉取快照)
+     * <p>
+     * 每读满一块只加一次写锁，不记录最近变更(新节点的客户端会先拉全量注册表)，由调用方统一过期一次缓存。
+     * 本地已有的契约版本号不旧于快照的服务实例保持不变
+     *
+     * @param channel      输入 channel
+     * @param chunkRecords 每块记录数
+     * @return 快照中的服务实例数量
+     * @throws IOException
+     */
+    @Override
+    public int loadFullRegistry(ReadableByteChannel channel, int chunkRecords) throws IOException {
+        return InstanceRecordLayout.readFrom(channel, chunkRecords, serviceInstances -> {
+            try {
+                this.writeLock();
+                for (ServiceInstance serviceInstance : serviceInstances) {
+                    ServiceInstance existing = store.get(
+                            serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+                    if (existing == null
+                            || existing.getRegistrationTimestamp() < serviceInstance.getRegistrationTimestamp()) {
+                        putInstance(serviceInstance);
+                    }
+                }
+                // 快照不记录最近变更，客户端需要重新拉取全量注册表
+                deltaBaseVersion = ++version;
+            } finally {
+                this.writeUnlock();
+            }
+        });
+    }
+
+    /**
+     * 获取注册表中存活的服务实例数量
+     *
+     * @return
+     */
+    @Override
+    public long getServiceInstanceCount() {
+        return serviceInstanceCount.get();
+    }
+
+    /**
+     * 获取所有服务实例每分钟期望心跳次数之和
+     *
+     * @return
+     */
+    @Override
+    public long getExpectedHeartbeatsPerMinute() {
+        return Math.round(expectedHeartbeatMillis.get() / 1000.0);
+    }
+
+    /**
+     * 获取所有服务的修订号(调用方持有读锁，保证和注册表内容一致)
+     *
+     * @return key 为服务名称，只包含有服务实例的服务
+     */
+    @Override
+    public Map<String, Long> getServiceRevisions() {
+        Map<String, Long> revisions = new HashMap<>(serviceRevisions.size() * 2);
+        for (Map.Entry<String, ServiceRevision> entry : serviceRevisions.entrySet()) {
+            revisions.put(entry.getKey(), entry.getValue().revision);
+        }
+        return revisions;
+    }
+
+    /**
+     * 获取一个服务的所有服务实例(调用方持有读锁)
+     *
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID
+     */
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        if (instanceIndex == null) {
+            return store.getServiceInstances(serviceName);
+        }
+        Map<String, ServiceInstance> serviceInstances = new HashMap<>();
+        ServiceInstanceQuery query = new ServiceInstanceQuery();
+        query.setServiceName(serviceName);
+        for (ServiceInstance serviceInstance : findServiceInstances(query)) {
+            serviceInstances.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+        }
+        return serviceInstances;
+    }
+
+    /**
+     * 获取注册表 Merkle 摘要
+     *
+     * @return 未开启反熵修复时返回 null
+     */
+    @Override
+    public RegistryMerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    /**
+     * 获取最近有变化的注册表
+     *
+     * @return
+     */
+    @Override
+    public synchronized DeltaRegistry getDeltaRegistry() {
+
+        Long totalCount = store.size();
+
+        // 复制一份最近变更：缓存的增量注册表与其中的版本号、哈希保持一致(调用方持有读锁)
+        Queue<RecentlyChangedServiceInstance> recentlyChangedItems = new LinkedList<>(recentlyChangedQueue);
+        long toVersion = version;
+        RecentlyChangedServiceInstance first = recentlyChangedItems.peek();
+        long fromVersion = Math.max(first == null ? toVersion : first.version - 1, deltaBaseVersion);
+
+        DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedItems, totalCount);
+        deltaRegistry.setFromVersion(fromVersion);
+        deltaRegistry.setToVersion(toVersion);
+        deltaRegistry.setRegistryHash(registryHash);
+
+        return deltaRegistry;
+    }
+
+    /**
+     * 注册表版本号
+     *
+     * @return
+     */
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 添加变更监听器(在写锁内按版本号顺序回调)
+     */
+    @Override
+    public long addChangeListener(Consumer<RecentlyChangedServiceInstance> listener) {
+        try {
+            // 与注册表写入互斥，保证返回的版本号之后的变更都会回调给监听器
+            this.writeLock();
+            changeListeners.add(listener);
+            return version;
+        } finally {
+            this.writeUnlock();
+        }
+    }
+
+    @Override
+    public void removeChangeListener(Consumer<RecentlyChangedServiceInstance> listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * 记录一次最近变更并通知变更监听器(调用方持有写锁)
+     *
+     * @param recentlyChangedItem 最近变更
+     */
+    private void recordChange(RecentlyChangedServiceInstance recentlyChangedItem) {
+        recentlyChangedQueue.offer(recentlyChangedItem);
+        for (Consumer<RecentlyChangedServiceInstance> listener : changeListeners) {
+            listener.accept(recentlyChangedItem);
+        }
+    }
+
+    /**
+     * 注册表哈希
+     *
+     * @return
+     */
+    @Override
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    /**
+     * 服务注册
+     *
+     * @param serviceInstance 服务实例
+     */
+    @Override
+    public void register(ServiceInstance serviceInstance) {
+
+        try {
+            // 加写锁
+            this.writeLock();
+
+            // 将服务实例放入最近变更的队列中
+            RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
+                    serviceInstance,
+                    RegisterServerScheduler.getInstance().now(),
+                    ServiceInstanceOperation.REGISTER,
+                    ++version);
+            recordChange(recentlyChangedItem);
+
+            // 添加服务实例至注册表
+            putInstance(serviceInstance);
+
+            System.out.println("服务实例【" + serviceInstance + "】注册成功");
+        } finally {
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 客户端发起的服务注册：注册内容和已有服务实例相同时只续约，不产生变更(网络抖动后的重复注册不再引起缓存重建和集群同步)
+     *
+     * @param serviceInstance 服务实例
+     * @return 注册表发生变化时返回 true，只续约时返回 false
+     */
+    @Override
+    public boolean registerOrRenew(ServiceInstance serviceInstance) {
+
+        try {
+            // 加写锁(可重入)，比较和写入之间不会插入其它变更
+            this.writeLock();
+
+            if (renewIfUnchanged(serviceInstance)) {
+                return false;
+            }
+            register(serviceInstance);
+            return true;
+        } finally {
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 批量的客户端服务注册：整批只加一次写锁，注册内容没有变化的服务实例只续约
+     *
+     * @param serviceInstances 服务实例列表
+     * @return 与服务实例一一对应，注册表发生变化时为 true
+     */
+    @Override
+    public boolean[] registerOrRenew(List<ServiceInstance> serviceInstances) {
+
+        boolean[] changed = new boolean[serviceInstances.size()];
+        if (serviceInstances.isEmpty()) {
+            return changed;
+        }
+
+        try {
+            // 加写锁
+            this.writeLock();
+
+            List<ServiceInstance> changedInstances = new ArrayList<>(serviceInstances.size());
+            for (int i = 0; i < serviceInstances.size(); i++) {
+                ServiceInstance serviceInstance = serviceInstances.get(i);
+                if (!renewIfUnchanged(serviceInstance)) {
+                    changed[i] = true;
+                    changedInstances.add(serviceInstance);
+                }
+            }
+            register(changedInstances);
+            return changed;
+        } finally {
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 已有注册内容相同的服务实例时续约(调用方持有写锁)
+     *
+     * @return 已续约时返回 true
+     */
+    private boolean renewIfUnchanged(ServiceInstance serviceInstance) {
+        ServiceInstance existing = store.get(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+        return existing != null && existing.contentEquals(serviceInstance)
+                && renew(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId(),
+                serviceInstance.getLeaseDuration());
+    }
+
+    /**
+     * 批量服务注册：整批只加一次写锁
+     *
+     * @param serviceInstances 服务实例列表
+     */
+    @Override
+    public void register(List<ServiceInstance> serviceInstances) {
+
+        if (serviceInstances.isEmpty()) {
+            return;
+        }
+
+        try {
+            // 加写锁
+            this.writeLock();
+
+            long changedTimestamp = RegisterServerScheduler.getInstance().now();
+            for (ServiceInstance serviceInstance : serviceInstances) {
+                // 将服务实例放入最近变更的队列中
+                recordChange(new RecentlyChangedServiceInstance(
+                        serviceInstance, changedTimestamp, ServiceInstanceOperation.REGISTER, ++version));
+
+                // 添加服务实例至注册表
+                putInstance(serviceInstance);
+            }
+
+            System.out.println("批量注册服务实例【" + serviceInstances.size() + "】个成功");
+        } finally {
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 服务移除(从注册表移除)
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     */
+    @Override
+    public synchronized void remove(String serviceName, String serviceInstanceId) {
+
+        try {
+            // 加写锁
+            this.writeLock();
+
+            System.out.println("服务实例【" + serviceInstanceId + "】，从注册表中移除");
+
+            // 从服务注册表删除服务实例
+            ServiceInstance serviceInstance = removeInstance(serviceName, serviceInstanceId);
+            if (serviceInstance == null) {
+                return;
+            }
+
+            // 将服务实例添加到最近变更服务实例队列中
+            RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
+                    serviceInstance,
+                    RegisterServerScheduler.getInstance().now(),
+                    ServiceInstanceOperation.REMOVE,
+                    ++version);
+            recordChange(recentlyChangedItem);
+        } finally {
+            // 释放写锁
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 批量服务移除：整批只加一次写锁
+     *
+     * @param serviceInstances 要移除的服务实例列表(只用到服务名称和服务实例ID)
+     */
+    @Override
+    public void remove(List<ServiceInstance> serviceInstances) {
+
+        if (serviceInstances.isEmpty()) {
+            return;
+        }
+
+        try {
+            // 加写锁
+            this.writeLock();
+
+            long changedTimestamp = RegisterServerScheduler.getInstance().now();
+            for (ServiceInstance serviceInstance : serviceInstances) {
+                // 已经被其他线程移除的实例不再重复记录变更
+                ServiceInstance removed = removeInstance(
+                        serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+                if (removed == null) {
+                    continue;
+                }
+
+                // 将服务实例添加到最近变更服务实例队列中
+                recordChange(new RecentlyChangedServiceInstance(
+                        removed, changedTimestamp, ServiceInstanceOperation.REMOVE, ++version));
+            }
+
+            System.out.println("批量移除服务实例【" + serviceInstances.size() + "】个");
+        } finally {
+            // 释放写锁
+            this.writeUnlock();
+        }
+    }
+
+    /**
+     * 摘除过期的服务实例：候选实例由无锁扫描找出，扫描之后可能又收到了心跳或者重新注册，
+     * 写锁内按存储引擎中的最新状态再判断一次，只摘除仍然过期的
+     *
+     * @param candidates  扫描找出的过期服务实例
+     * @param currentTime 扫描时间
+     * @return 实际摘除的服务实例数量
+     */
+    @Override
+    public int removeExpired(List<ServiceInstance> candidates, long currentTime) {
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        int removedCount = 0;
+        try {
+            this.writeLock();
+
+            long changedTimestamp = RegisterServerScheduler.getInstance().now();
+            for (ServiceInstance candidate : candidates) {
+                ServiceInstance stored = store.get(candidate.getServiceName(), candidate.getServiceInstanceId());
+                if (stored == null || stored.isAlive(currentTime)) {
+                    continue;
+                }
+                ServiceInstance removed = removeInstance(stored.getServiceName(), stored.getServiceInstanceId());
+                recordChange(new RecentlyChangedServiceInstance(
+                        removed, changedTimestamp, ServiceInstanceOperation.REMOVE, ++version));
+                removedCount++;
+            }
+
+            System.out.println("摘除过期服务实例【" + removedCount + "】个，扫描候选【" + candidates.size() + "】个");
+        } finally {
+            this.writeUnlock();
+        }
+        return removedCount;
+    }
+
+    /**
+     * 写入存储引擎，并维护实例数量、Merkle 摘要和二级索引(调用方持有写锁)
+     */
+    private void putInstance(ServiceInstance serviceInstance) {
+        ServiceInstance previous = store.put(serviceInstance);
+        ServiceRevision serviceRevision = serviceRevisions.computeIfAbsent(
+                serviceInstance.getServiceName(), k -> new ServiceRevision());
+        serviceRevision.revision = ++revisionSequence;
+        if (previous == null) {
+            serviceRevision.instanceCount++;
+            serviceInstanceCount.incrementAndGet();
+        } else {
+            registryHash -= RegistryHash.entryHash(previous);
+            expectedHeartbeatMillis.addAndGet(-ServiceInstance.expectedHeartbeatMillis(previous.getLeaseDuration()));
+        }
+        expectedHeartbeatMillis.addAndGet(ServiceInstance.expectedHeartbeatMillis(serviceInstance.getLeaseDuration()));
+        registryHash += RegistryHash.entryHash(serviceInstance);
+        if (merkleTree != null) {
+            merkleTree.update(previous, serviceInstance);
+        }
+        if (instanceIndex != null) {
+            if (previous != null) {
+                instanceIndex.remove(previous);
+            }
+            instanceIndex.add(serviceInstance);
+        }
+    }
+
+    /**
+     * 从存储引擎移除，并维护实例数量、Merkle 摘要和二级索引(调用方持有写锁)
+     */
+    private ServiceInstance removeInstance(String serviceName, String serviceInstanceId) {
+        ServiceInstance removed = store.remove(serviceName, serviceInstanceId);
+        if (removed != null) {
+            ServiceRevision serviceRevision = serviceRevisions.get(serviceName);
+            serviceRevision.revision = ++revisionSequence;
+            if (--serviceRevision.instanceCount == 0) {
+                serviceRevisions.remove(serviceName);
+            }
+            serviceInstanceCount.decrementAndGet();
+            expectedHeartbeatMillis.addAndGet(-ServiceInstance.expectedHeartbeatMillis(removed.getLeaseDuration()));
+            registryHash -= RegistryHash.entryHash(removed);
+            if (merkleTree != null) {
+                merkleTree.remove(removed);
+            }
+            if (instanceIndex != null) {
+                instanceIndex.remove(removed);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 服务修订号
+     */
+    private static class ServiceRevision {
+
+        /**
+         * 最近一次变更的修订号
+         */
+        long revision;
+
+        /**
+         * 服务下的服务实例数量
+         */
+        int instanceCount;
+    }
+
+    /**
+     * 清理最近变更队列中超过3分钟的服务实例变更信息
+     */
+    void expireRecentlyChangedItems() {
+        try {
+            writeLock();
+
+            RecentlyChangedServiceInstance recentlyChangedItem;
+            long currentTimestamp = RegisterServerScheduler.getInstance().now();
+
+            while ((recentlyChangedItem = recentlyChangedQueue.peek()) != null) {
+                // 队列按变更时间有序，队头未过期则后面的都未过期
+                if (currentTimestamp - recentlyChangedItem.changedTimestamp <= RECENTLY_CHANGED_ITEM_EXPIRED) {
+                    break;
+                }
+                recentlyChangedQueue.poll();
+            }
+        } finally {
+            writeUnlock();
+        }
+    }
+}
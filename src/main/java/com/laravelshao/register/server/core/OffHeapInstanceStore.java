@@ -0,0 +1,520 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 堆外存储引擎
+ * <p>
+ * 服务实例以 {@link InstanceRecordLayout} 定长记录的形式存放在堆外 ByteBuffer slab 中，
+ * 通过原始类型数组实现的开放寻址哈希表定位记录，移除的记录槽位放入空闲链表复用。
+ * 百万级服务实例时堆上只剩索引数组、按服务分组的槽位数组和符号字典，GC 停顿不再随注册表规模增长。
+ * 符号字典按引用计数回收，下线实例的主机名等字符串不会一直留在字典里
+ *
+ * @author qinghua.shao
+ * @date 2022/8/7
+ * @since 1.0.0
+ */
+public class OffHeapInstanceStore implements InstanceStore {
+
+    /**
+     * 每个 slab 存放的记录数：2^14
+     */
+    private static final int SLAB_SHIFT = 14;
+    private static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+    private static final int SLAB_MASK = SLAB_RECORDS - 1;
+
+    /**
+     * 索引槽位状态：空、已删除
+     */
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+
+    /**
+     * 堆外 slab 列表
+     */
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    /**
+     * 下一个从未使用过的记录槽位
+     */
+    private int nextSlot = 0;
+    /**
+     * 空闲记录槽位栈
+     */
+    private int[] freeSlots = new int[64];
+    private int freeCount = 0;
+
+    /**
+     * 开放寻址索引：indexKeys 存放 (服务名称, 服务实例ID) 的64位哈希，indexSlots 存放记录槽位
+     */
+    private long[] indexKeys = new long[1024];
+    private int[] indexSlots = newIndexSlots(1024);
+    private int indexUsed = 0;
+    private int indexDeleted = 0;
+
+    /**
+     * 记录中引用字符串的字段
+     */
+    private static final int[] SYMBOL_OFFSETS = {
+            InstanceRecordLayout.SERVICE_NAME_OFFSET, InstanceRecordLayout.HOSTNAME_OFFSET,
+            InstanceRecordLayout.IP_TEXT_OFFSET, InstanceRecordLayout.ZONE_OFFSET,
+            InstanceRecordLayout.VERSION_OFFSET, InstanceRecordLayout.TAGS_OFFSET};
+
+    /**
+     * 符号字典：服务名称、主机名等重复字符串在记录中只存一个 int
+     */
+    private List<String> symbols = new ArrayList<>();
+    private Map<String, Integer> symbolIds = new ConcurrentHashMap<>();
+    /**
+     * 每个符号被记录引用的次数，降到0时回收符号，空闲的符号放入空闲栈复用
+     */
+    private int[] symbolRefs = new int[64];
+    private int[] freeSymbols = new int[16];
+    private int freeSymbolCount = 0;
+
+    /**
+     * 按服务分组的记录槽位：key 为服务名称符号；slotPositions 记录每个槽位在所属服务槽位列表中的下标，移除时和末尾交换
+     */
+    private Map<Integer, ServiceSlots> serviceSlots = new HashMap<>();
+    private int[] slotPositions = new int[1024];
+
+    private int size = 0;
+
+    /**
+     * 读写锁：续约只改写记录中的心跳时间，和查询一样只需要读锁
+     */
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public ServiceInstance get(String serviceName, String serviceInstanceId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(serviceName, serviceInstanceId);
+            return slot < 0 ? null : InstanceRecordLayout.read(slab(slot), offset(slot), symbols);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ServiceInstance put(ServiceInstance serviceInstance) {
+        byte[] instanceId = InstanceRecordLayout.encodeInstanceId(serviceInstance.getServiceInstanceId());
+
+        lock.writeLock().lock();
+        try {
+            Integer serviceNameSymbol = symbolIds.get(serviceInstance.getServiceName());
+
+            long key = hash(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+            int position = serviceNameSymbol == null ? -1 : findPosition(key, serviceNameSymbol, instanceId);
+
+            ServiceInstance previous = null;
+            int[] previousSymbols = null;
+            int slot;
+            if (position >= 0) {
+                slot = indexSlots[position];
+                previous = InstanceRecordLayout.read(slab(slot), offset(slot), symbols);
+                previousSymbols = recordSymbols(slot);
+            } else {
+                slot = allocateSlot();
+                insertIndex(key, slot);
+                size++;
+            }
+
+            // 先引用新记录的符号再释放旧记录的符号，两者共用的符号不会被回收
+            InstanceRecordLayout.write(slab(slot), offset(slot), serviceInstance, instanceId, this::acquireSymbol);
+            if (previousSymbols != null) {
+                releaseSymbols(previousSymbols);
+            } else {
+                addServiceSlot(slab(slot).getInt(offset(slot) + InstanceRecordLayout.SERVICE_NAME_OFFSET), slot);
+            }
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ServiceInstance remove(String serviceName, String serviceInstanceId) {
+        lock.writeLock().lock();
+        try {
+            Integer serviceNameSymbol = symbolIds.get(serviceName);
+            if (serviceNameSymbol == null) {
+                return null;
+            }
+            int position = findPosition(hash(serviceName, serviceInstanceId), serviceNameSymbol,
+                    serviceInstanceId.getBytes(StandardCharsets.UTF_8));
+            if (position < 0) {
+                return null;
+            }
+
+            int slot = indexSlots[position];
+            ServiceInstance removed = InstanceRecordLayout.read(slab(slot), offset(slot), symbols);
+            removeServiceSlot(serviceNameSymbol, slot);
+            releaseSymbols(recordSymbols(slot));
+
+            // 标记记录空闲、放入空闲链表，索引槽位标记为已删除
+            slab(slot).put(offset(slot) + InstanceRecordLayout.FLAGS_OFFSET, (byte) 0);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            indexSlots[position] = DELETED;
+            indexUsed--;
+            indexDeleted++;
+            size--;
+
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId, long leaseDuration) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(serviceName, serviceInstanceId);
+            if (slot < 0) {
+                return false;
+            }
+            if (leaseDuration > 0) {
+                slab(slot).putInt(offset(slot) + InstanceRecordLayout.LEASE_DURATION_OFFSET,
+                        InstanceRecordLayout.encodeLeaseDuration(leaseDuration));
+            }
+            slab(slot).putLong(offset(slot) + InstanceRecordLayout.HEARTBEAT_TIME_OFFSET,
+                    RegisterServerScheduler.getInstance().now());
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLeaseDuration(String serviceName, String serviceInstanceId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(serviceName, serviceInstanceId);
+            return slot < 0 ? -1L : slab(slot).getInt(offset(slot) + InstanceRecordLayout.LEASE_DURATION_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        Map<String, ServiceInstance> serviceInstances = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            Integer serviceNameSymbol = symbolIds.get(serviceName);
+            ServiceSlots slots = serviceNameSymbol == null ? null : serviceSlots.get(serviceNameSymbol);
+            if (slots != null) {
+                for (int i = 0; i < slots.count; i++) {
+                    ServiceInstance serviceInstance = InstanceRecordLayout.read(
+                            slab(slots.slots[i]), offset(slots.slots[i]), symbols);
+                    serviceInstances.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+                }
+            }
+            return serviceInstances;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<ServiceInstance> action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < nextSlot; slot++) {
+                if (inUse(slot)) {
+                    action.accept(InstanceRecordLayout.read(slab(slot), offset(slot), symbols));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, ServiceInstance>> asMap() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        forEach(serviceInstance -> registry
+                .computeIfAbsent(serviceInstance.getServiceName(), k -> new HashMap<>())
+                .put(serviceInstance.getServiceInstanceId(), serviceInstance));
+        return registry;
+    }
+
+    /**
+     * 直接从 slab 写出记录：连续的在用记录合并成一次写出，不在堆上还原服务实例
+     */
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        lock.readLock().lock();
+        try {
+            InstanceRecordLayout.writeHeader(channel, symbols, size);
+
+            int runStart = -1;
+            for (int slot = 0; slot < nextSlot; slot++) {
+                boolean used = inUse(slot);
+                // 遇到空闲记录或跨越 slab 边界时，写出当前这段连续记录
+                if (runStart >= 0 && (!used || (slot & SLAB_MASK) == 0)) {
+                    writeRun(channel, runStart, slot);
+                    runStart = -1;
+                }
+                if (used && runStart < 0) {
+                    runStart = slot;
+                }
+            }
+            if (runStart >= 0) {
+                writeRun(channel, runStart, nextSlot);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写出同一个 slab 内 [fromSlot, toSlot) 的连续记录
+     */
+    private void writeRun(WritableByteChannel channel, int fromSlot, int toSlot) throws IOException {
+        ByteBuffer run = slab(fromSlot).duplicate();
+        run.limit(offset(toSlot - 1) + InstanceRecordLayout.RECORD_SIZE);
+        run.position(offset(fromSlot));
+        InstanceRecordLayout.writeFully(channel, run);
+    }
+
+    /**
+     * 查询记录槽位(调用方持有读锁或写锁)
+     */
+    private int findSlot(String serviceName, String serviceInstanceId) {
+        Integer serviceNameSymbol = symbolIds.get(serviceName);
+        if (serviceNameSymbol == null) {
+            return -1;
+        }
+        int position = findPosition(hash(serviceName, serviceInstanceId), serviceNameSymbol,
+                serviceInstanceId.getBytes(StandardCharsets.UTF_8));
+        return position < 0 ? -1 : indexSlots[position];
+    }
+
+    /**
+     * 线性探测查找索引位置，哈希相同时再比对记录中的服务名称和服务实例ID
+     */
+    private int findPosition(long key, int serviceNameSymbol, byte[] instanceId) {
+        int mask = indexSlots.length - 1;
+        int position = (int) mix(key) & mask;
+        while (indexSlots[position] != EMPTY) {
+            int slot = indexSlots[position];
+            if (slot >= 0 && indexKeys[position] == key
+                    && slab(slot).getInt(offset(slot) + InstanceRecordLayout.SERVICE_NAME_OFFSET) == serviceNameSymbol
+                    && InstanceRecordLayout.instanceIdEquals(slab(slot), offset(slot), instanceId)) {
+                return position;
+            }
+            position = (position + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 插入索引，使用中加已删除的槽位超过一半时重建索引
+     */
+    private void insertIndex(long key, int slot) {
+        if ((indexUsed + indexDeleted + 1) * 2 > indexSlots.length) {
+            rehash(indexUsed * 4 > indexSlots.length ? indexSlots.length * 2 : indexSlots.length);
+        }
+
+        int mask = indexSlots.length - 1;
+        int position = (int) mix(key) & mask;
+        while (indexSlots[position] >= 0) {
+            position = (position + 1) & mask;
+        }
+        if (indexSlots[position] == DELETED) {
+            indexDeleted--;
+        }
+        indexKeys[position] = key;
+        indexSlots[position] = slot;
+        indexUsed++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = indexKeys;
+        int[] oldSlots = indexSlots;
+
+        indexKeys = new long[capacity];
+        indexSlots = newIndexSlots(capacity);
+        indexDeleted = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] >= 0) {
+                int position = (int) mix(oldKeys[i]) & mask;
+                while (indexSlots[position] != EMPTY) {
+                    position = (position + 1) & mask;
+                }
+                indexKeys[position] = oldKeys[i];
+                indexSlots[position] = oldSlots[i];
+            }
+        }
+    }
+
+    /**
+     * 分配记录槽位：优先复用空闲链表，否则使用新槽位，必要时分配新的 slab
+     */
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        int slot = nextSlot++;
+        if ((slot >>> SLAB_SHIFT) == slabs.size()) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_RECORDS * InstanceRecordLayout.RECORD_SIZE));
+        }
+        return slot;
+    }
+
+    /**
+     * 把新记录槽位加入所属服务的槽位列表(调用方持有写锁)
+     */
+    private void addServiceSlot(int serviceNameSymbol, int slot) {
+        ServiceSlots slots = serviceSlots.computeIfAbsent(serviceNameSymbol, key -> new ServiceSlots());
+        if (slots.count == slots.slots.length) {
+            slots.slots = Arrays.copyOf(slots.slots, slots.count * 2);
+        }
+        if (slot >= slotPositions.length) {
+            slotPositions = Arrays.copyOf(slotPositions, Math.max(slot + 1, slotPositions.length * 2));
+        }
+        slotPositions[slot] = slots.count;
+        slots.slots[slots.count++] = slot;
+    }
+
+    /**
+     * 从所属服务的槽位列表中移除记录槽位，末尾的槽位移到空出的位置(调用方持有写锁)
+     */
+    private void removeServiceSlot(int serviceNameSymbol, int slot) {
+        ServiceSlots slots = serviceSlots.get(serviceNameSymbol);
+        int position = slotPositions[slot];
+        int last = slots.slots[--slots.count];
+        slots.slots[position] = last;
+        slotPositions[last] = position;
+        if (slots.count == 0) {
+            serviceSlots.remove(serviceNameSymbol);
+        }
+    }
+
+    /**
+     * 获取字符串的符号并增加引用计数(调用方持有写锁)
+     */
+    private int acquireSymbol(String value) {
+        if (value == null) {
+            return InstanceRecordLayout.NO_SYMBOL;
+        }
+        Integer symbol = symbolIds.get(value);
+        if (symbol == null) {
+            if (freeSymbolCount > 0) {
+                symbol = freeSymbols[--freeSymbolCount];
+                symbols.set(symbol, value);
+            } else {
+                symbol = symbols.size();
+                symbols.add(value);
+                if (symbol == symbolRefs.length) {
+                    symbolRefs = Arrays.copyOf(symbolRefs, symbol * 2);
+                }
+            }
+            symbolIds.put(value, symbol);
+        }
+        symbolRefs[symbol]++;
+        return symbol;
+    }
+
+    /**
+     * 减少符号的引用计数，没有记录引用的符号从字典中回收(调用方持有写锁)
+     */
+    private void releaseSymbols(int[] recordSymbols) {
+        for (int symbol : recordSymbols) {
+            if (symbol == InstanceRecordLayout.NO_SYMBOL || --symbolRefs[symbol] > 0) {
+                continue;
+            }
+            symbolIds.remove(symbols.get(symbol));
+            // 回收的符号没有记录引用，全量编码时写出空串占位
+            symbols.set(symbol, "");
+            if (freeSymbolCount == freeSymbols.length) {
+                freeSymbols = Arrays.copyOf(freeSymbols, freeSymbolCount * 2);
+            }
+            freeSymbols[freeSymbolCount++] = symbol;
+        }
+    }
+
+    private int[] recordSymbols(int slot) {
+        int[] recordSymbols = new int[SYMBOL_OFFSETS.length];
+        for (int i = 0; i < SYMBOL_OFFSETS.length; i++) {
+            recordSymbols[i] = slab(slot).getInt(offset(slot) + SYMBOL_OFFSETS[i]);
+        }
+        return recordSymbols;
+    }
+
+    private boolean inUse(int slot) {
+        return slab(slot).get(offset(slot) + InstanceRecordLayout.FLAGS_OFFSET) == InstanceRecordLayout.FLAG_IN_USE;
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs.get(slot >>> SLAB_SHIFT);
+    }
+
+    private static int offset(int slot) {
+        return (slot & SLAB_MASK) * InstanceRecordLayout.RECORD_SIZE;
+    }
+
+    private static int[] newIndexSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    /**
+     * (服务名称, 服务实例ID) 的64位 FNV-1a 哈希
+     */
+    private static long hash(String serviceName, String serviceInstanceId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < serviceName.length(); i++) {
+            hash = (hash ^ serviceName.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xFF) * 0x100000001b3L;
+        for (int i = 0; i < serviceInstanceId.length(); i++) {
+            hash = (hash ^ serviceInstanceId.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 一个服务的记录槽位列表
+     */
+    private static class ServiceSlots {
+
+        int[] slots = new int[8];
+        int count = 0;
+    }
+}
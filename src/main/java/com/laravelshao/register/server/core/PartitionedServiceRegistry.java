@@ -0,0 +1,997 @@
+package com.laravelshao.register.server.core;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 按服务分区的注册表(shared-nothing 模式，register.server.registry-mode=partitioned)
+ * <p>
+ * 与 {@link LockingServiceRegistry} 实现同一个 {@link ServiceRegistry} 接口，但写入路径不加锁：
+ * <ul>
+ *     <li>服务名称哈希到 N 个分区，每个分区由一个线程独占，使用普通 HashMap 保存服务实例</li>
+ *     <li>写请求投递到分区的无锁队列，由分区线程批量处理；注册、移除等分区线程处理完后返回，续约直接返回</li>
+ *     <li>分区线程每处理一批请求发布一次不可变快照：快照按服务名称分成固定数量的桶，只复制被修改的服务所在的桶，
+ *     读请求只读快照，不经过分区线程</li>
+ *     <li>最近变更在发布时统一分配版本号：分区先领取一段版本号，发布快照后按领取顺序回调变更监听器、推进已发布版本号，
+ *     拼装增量注册表时只取已发布版本号以内的变更，与 {@link LockingServiceRegistry} 的增量注册表版本语义一致</li>
+ *     <li>读锁供需要多次读取同一时刻注册表的调用方使用(注册表缓存、快照)：持有期间各分区暂停发布快照；
+ *     写锁为空操作，写入由分区线程串行化</li>
+ *     <li>不维护 Merkle 摘要和二级索引：不支持反熵修复，按条件查询服务实例时遍历快照</li>
+ * </ul>
+ * 分区数量通过 register.server.registry-partitions 配置
+ *
+ * @author qinghua.shao
+ * @date 2022/8/27
+ * @since 1.0.0
+ */
+public class PartitionedServiceRegistry implements ServiceRegistry {
+
+    /**
+     * 分区数量
+     */
+    public static final int PARTITIONS = RegisterServerConfig.getInt(
+            "register.server.registry-partitions", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 分区线程每发布一次快照最多处理的请求数
+     */
+    private static final int DRAIN_BATCH = RegisterServerConfig.getInt(
+            "register.server.registry-partition-drain-batch", 1024);
+
+    /**
+     * 拼装增量注册表时，等待各分区快照与已发布版本号对齐的最大重试次数
+     */
+    private static final int ASSEMBLE_RETRIES = 16;
+
+    /**
+     * 分区快照按服务名称分桶(2^8 个)：发布时只复制被修改的桶，复制开销与分区内的服务数量无关
+     */
+    private static final int SNAPSHOT_BUCKET_BITS = 8;
+
+    /**
+     * 单例(首次使用时才创建分区线程，并注册清理最近变更的后台任务)
+     */
+    private static class Holder {
+        static final PartitionedServiceRegistry instance = create();
+
+        private static PartitionedServiceRegistry create() {
+            if (ANTI_ENTROPY_ENABLED) {
+                throw new IllegalStateException("分区模式的注册表不维护 Merkle 摘要，不能开启 register.server.anti-entropy.enabled");
+            }
+            PartitionedServiceRegistry registry = new PartitionedServiceRegistry(PARTITIONS);
+            RegisterServerScheduler scheduler = RegisterServerScheduler.getInstance();
+            scheduler.schedule("registry-partition-trim", RECENTLY_CHANGED_ITEM_CHECK_INTERVAL, registry::trimRecentlyChanged);
+            scheduler.onShutdown("registry-partitions", registry::shutdown);
+            return registry;
+        }
+    }
+
+    private final Partition[] partitions;
+
+    /**
+     * 已领取的最大版本号
+     */
+    private final AtomicLong claimedVersion;
+
+    /**
+     * 已发布的最大版本号：小于等于它的变更都已经出现在分区快照中
+     */
+    private final AtomicLong publishedVersion;
+
+    /**
+     * 起始版本号(启动时间微秒)，低于它的客户端只能拉取全量注册表
+     */
+    private final long baseVersion;
+
+    /**
+     * 变更监听器：分区发布快照时按版本号顺序回调(不能阻塞)
+     */
+    private final List<Consumer<RecentlyChangedServiceInstance>> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 发布锁：分区发布快照时加共享锁，注册表读锁加独占锁，持有读锁期间所有分区的快照和已发布版本号不变
+     */
+    private final ReentrantReadWriteLock publishLock = new ReentrantReadWriteLock();
+
+    public PartitionedServiceRegistry(int partitionCount) {
+        this.baseVersion = System.currentTimeMillis() * 1000;
+        this.claimedVersion = new AtomicLong(baseVersion);
+        this.publishedVersion = new AtomicLong(baseVersion);
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+            partitions[i].start();
+        }
+    }
+
+    public static PartitionedServiceRegistry getInstance() {
+        return Holder.instance;
+    }
+
+    @Override
+    public void readLock() {
+        publishLock.writeLock().lock();
+    }
+
+    @Override
+    public void readUnlock() {
+        publishLock.writeLock().unlock();
+    }
+
+    /**
+     * 写入由分区线程串行化，不需要加锁
+     */
+    @Override
+    public void writeLock() {
+    }
+
+    @Override
+    public void writeUnlock() {
+    }
+
+    @Override
+    public ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
+        ServiceSlot slot = partitionOf(serviceName).snapshot.get(serviceName);
+        return slot == null ? null : slot.serviceInstances.get(serviceInstanceId);
+    }
+
+    @Override
+    public List<ServiceInstance> findServiceInstances(ServiceInstanceQuery query) {
+        List<ServiceInstance> serviceInstances = new ArrayList<>();
+        if (query.getServiceName() != null) {
+            ServiceSlot slot = partitionOf(query.getServiceName()).snapshot.get(query.getServiceName());
+            if (slot != null) {
+                for (ServiceInstance serviceInstance : slot.serviceInstances.values()) {
+                    if (query.matches(serviceInstance)) {
+                        serviceInstances.add(serviceInstance);
+                    }
+                }
+            }
+            return serviceInstances;
+        }
+        forEach(serviceInstance -> {
+            if (query.matches(serviceInstance)) {
+                serviceInstances.add(serviceInstance);
+            }
+        });
+        return serviceInstances;
+    }
+
+    /**
+     * 服务注册，分区线程处理完后返回
+     *
+     * @param serviceInstance 服务实例
+     */
+    @Override
+    public void register(ServiceInstance serviceInstance) {
+        partitionOf(serviceInstance.getServiceName())
+                .submit(new Operation(Operation.REGISTER, Collections.singletonList(serviceInstance))).join();
+    }
+
+    /**
+     * 批量服务注册：按分区拆分后并行处理
+     *
+     * @param serviceInstances 服务实例列表
+     */
+    @Override
+    public void register(List<ServiceInstance> serviceInstances) {
+        submitByPartition(Operation.REGISTER, serviceInstances);
+    }
+
+    @Override
+    public boolean registerOrRenew(ServiceInstance serviceInstance) {
+        return registerOrRenew(Collections.singletonList(serviceInstance))[0];
+    }
+
+    /**
+     * 批量的客户端服务注册：分区线程内比较注册内容，比较和写入之间不会插入其它变更
+     */
+    @Override
+    public boolean[] registerOrRenew(List<ServiceInstance> serviceInstances) {
+        boolean[] changed = new boolean[serviceInstances.size()];
+        for (Operation operation : submitByPartition(Operation.REGISTER_OR_RENEW, serviceInstances)) {
+            for (int i = 0; i < operation.positions.size(); i++) {
+                changed[operation.positions.get(i)] = operation.changed[i];
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 服务移除
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     */
+    @Override
+    public void remove(String serviceName, String serviceInstanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setServiceInstanceId(serviceInstanceId);
+        partitionOf(serviceName)
+                .submit(new Operation(Operation.REMOVE, Collections.singletonList(serviceInstance))).join();
+    }
+
+    /**
+     * 批量服务移除
+     *
+     * @param serviceInstances 要移除的服务实例列表(只用到服务名称和服务实例ID)
+     */
+    @Override
+    public void remove(List<ServiceInstance> serviceInstances) {
+        submitByPartition(Operation.REMOVE, serviceInstances);
+    }
+
+    /**
+     * 摘除过期的服务实例：分区线程按最新状态再判断一次，只摘除仍然过期的
+     */
+    @Override
+    public int removeExpired(List<ServiceInstance> candidates, long currentTime) {
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        int removedCount = 0;
+        for (Operation operation : submitByPartition(Operation.REMOVE_EXPIRED, candidates, currentTime)) {
+            removedCount += operation.removedCount;
+        }
+        System.out.println("摘除过期服务实例【" + removedCount + "】个，扫描候选【" + candidates.size() + "】个");
+        return removedCount;
+    }
+
+    /**
+     * 服务实例续约：按已发布快照判断服务实例是否存在，续约投递给分区线程后直接返回
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 服务实例不存在时返回 false
+     */
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId) {
+        return renew(serviceName, serviceInstanceId, 0L);
+    }
+
+    @Override
+    public boolean renew(String serviceName, String serviceInstanceId, long leaseDuration) {
+        Partition partition = partitionOf(serviceName);
+        ServiceSlot slot = partition.snapshot.get(serviceName);
+        if (slot == null || !slot.serviceInstances.containsKey(serviceInstanceId)) {
+            return false;
+        }
+        partition.offer(new Operation(Operation.RENEW, serviceName, serviceInstanceId, leaseDuration));
+        return true;
+    }
+
+    /**
+     * 获取完整注册表(各分区快照拼装的只读视图)
+     *
+     * @return
+     */
+    @Override
+    public Map<String, Map<String, ServiceInstance>> getRegistry() {
+        Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        for (Partition partition : partitions) {
+            for (Map<String, ServiceSlot> bucket : partition.snapshot.buckets) {
+                for (Map.Entry<String, ServiceSlot> entry : bucket.entrySet()) {
+                    registry.put(entry.getKey(), entry.getValue().serviceInstances);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(registry);
+    }
+
+    @Override
+    public void forEach(Consumer<ServiceInstance> action) {
+        for (Partition partition : partitions) {
+            for (Map<String, ServiceSlot> bucket : partition.snapshot.buckets) {
+                for (ServiceSlot slot : bucket.values()) {
+                    slot.serviceInstances.values().forEach(action);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void writeFullRegistry(WritableByteChannel channel) throws IOException {
+        InstanceRecordLayout.writeTo(channel, this::forEach);
+    }
+
+    /**
+     * 从 channel 读取全量注册表编码，每读满一块按分区拆分后并行写入；
+     * 写入快照的分区会把已清理版本号推到当前版本，增量注册表的客户端需要重新拉取全量注册表
+     */
+    @Override
+    public int loadFullRegistry(ReadableByteChannel channel, int chunkRecords) throws IOException {
+        return InstanceRecordLayout.readFrom(channel, chunkRecords,
+                serviceInstances -> submitByPartition(Operation.LOAD, serviceInstances));
+    }
+
+    @Override
+    public long getServiceInstanceCount() {
+        long count = 0L;
+        for (Partition partition : partitions) {
+            count += partition.snapshot.count;
+        }
+        return count;
+    }
+
+    @Override
+    public long getExpectedHeartbeatsPerMinute() {
+        long expectedHeartbeatMillis = 0L;
+        for (Partition partition : partitions) {
+            expectedHeartbeatMillis += partition.snapshot.expectedHeartbeatMillis;
+        }
+        return Math.round(expectedHeartbeatMillis / 1000.0);
+    }
+
+    /**
+     * 获取所有服务的修订号：服务最近一次变更时所在快照的版本号
+     */
+    @Override
+    public Map<String, Long> getServiceRevisions() {
+        Map<String, Long> revisions = new HashMap<>();
+        for (Partition partition : partitions) {
+            for (Map<String, ServiceSlot> bucket : partition.snapshot.buckets) {
+                for (Map.Entry<String, ServiceSlot> entry : bucket.entrySet()) {
+                    revisions.put(entry.getKey(), entry.getValue().revision);
+                }
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * 获取一个服务的所有服务实例
+     *
+     * @return 快照中的只读 map
+     */
+    @Override
+    public Map<String, ServiceInstance> getServiceInstances(String serviceName) {
+        ServiceSlot slot = partitionOf(serviceName).snapshot.get(serviceName);
+        return slot == null ? Collections.emptyMap() : slot.serviceInstances;
+    }
+
+    /**
+     * 分区模式不维护 Merkle 摘要
+     *
+     * @return null
+     */
+    @Override
+    public RegistryMerkleTree getMerkleTree() {
+        return null;
+    }
+
+    @Override
+    public long getVersion() {
+        return publishedVersion.get();
+    }
+
+    /**
+     * 注册表哈希(各分区快照哈希之和)
+     *
+     * @return
+     */
+    @Override
+    public long getRegistryHash() {
+        long hash = 0L;
+        for (Partition partition : partitions) {
+            hash += partition.snapshot.hash;
+        }
+        return hash;
+    }
+
+    /**
+     * 拼装增量注册表：取一个已发布版本号，只收集不超过它的变更；
+     * 如果某个分区的快照已经超过这个版本号(拼装期间又发布了)，重新拼装，保证哈希与 toVersion 对应。
+     * 调用方持有读锁时快照不会变化，一次就能对齐
+     *
+     * @return
+     */
+    @Override
+    public DeltaRegistry getDeltaRegistry() {
+        Snapshot[] snapshots = new Snapshot[partitions.length];
+        long toVersion = 0L;
+        for (int attempt = 0; attempt < ASSEMBLE_RETRIES; attempt++) {
+            toVersion = publishedVersion.get();
+            boolean aligned = true;
+            for (int i = 0; i < partitions.length; i++) {
+                snapshots[i] = partitions[i].snapshot;
+                aligned &= snapshots[i].maxVersion <= toVersion;
+            }
+            if (aligned) {
+                break;
+            }
+        }
+
+        List<RecentlyChangedServiceInstance> changes = new ArrayList<>();
+        long fromVersion = baseVersion;
+        long hash = 0L;
+        long count = 0L;
+        for (Snapshot snapshot : snapshots) {
+            for (int i = snapshot.changesFrom; i < snapshot.changesTo; i++) {
+                if (snapshot.changes[i].getVersion() <= toVersion) {
+                    changes.add(snapshot.changes[i]);
+                }
+            }
+            fromVersion = Math.max(fromVersion, snapshot.trimmedVersion);
+            hash += snapshot.hash;
+            count += snapshot.count;
+        }
+        changes.sort((a, b) -> Long.compare(a.getVersion(), b.getVersion()));
+
+        Queue<RecentlyChangedServiceInstance> recentlyChangedQueue = new LinkedList<>(changes);
+        DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedQueue, count);
+        deltaRegistry.setFromVersion(Math.min(fromVersion, toVersion));
+        deltaRegistry.setToVersion(toVersion);
+        deltaRegistry.setRegistryHash(hash);
+        return deltaRegistry;
+    }
+
+    /**
+     * 添加变更监听器(分区发布快照时按版本号顺序回调)
+     */
+    @Override
+    public long addChangeListener(Consumer<RecentlyChangedServiceInstance> listener) {
+        try {
+            // 没有分区在发布快照，返回的版本号之后的变更都会回调给监听器
+            publishLock.writeLock().lock();
+            changeListeners.add(listener);
+            return publishedVersion.get();
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeChangeListener(Consumer<RecentlyChangedServiceInstance> listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * 让所有分区清理过期的最近变更
+     */
+    public void trimRecentlyChanged() {
+        for (Partition partition : partitions) {
+            partition.offer(new Operation(Operation.TRIM, null, null, 0L));
+        }
+    }
+
+    /**
+     * 停止所有分区线程
+     */
+    public void shutdown() {
+        for (Partition partition : partitions) {
+            partition.running = false;
+            LockSupport.unpark(partition.thread);
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    private Partition partitionOf(String serviceName) {
+        return partitions[partitionIndex(serviceName)];
+    }
+
+    private int partitionIndex(String serviceName) {
+        return (serviceName.hashCode() & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * 服务在分区快照中的桶：取哈希乘黄金分割数后的高位，与分区下标使用的低位错开
+     */
+    private static int bucketIndex(String serviceName) {
+        return (serviceName.hashCode() * 0x9E3779B9) >>> (32 - SNAPSHOT_BUCKET_BITS);
+    }
+
+    private List<Operation> submitByPartition(int type, List<ServiceInstance> serviceInstances) {
+        return submitByPartition(type, serviceInstances, 0L);
+    }
+
+    /**
+     * 按分区拆分成多个请求并行处理，全部处理完后返回这些请求(带着处理结果)
+     */
+    private List<Operation> submitByPartition(int type, List<ServiceInstance> serviceInstances, long currentTime) {
+        Operation[] operations = new Operation[partitions.length];
+        for (int i = 0; i < serviceInstances.size(); i++) {
+            ServiceInstance serviceInstance = serviceInstances.get(i);
+            int index = partitionIndex(serviceInstance.getServiceName());
+            if (operations[index] == null) {
+                operations[index] = new Operation(type, new ArrayList<>());
+                operations[index].currentTime = currentTime;
+            }
+            operations[index].serviceInstances.add(serviceInstance);
+            operations[index].positions.add(i);
+        }
+
+        List<Operation> submitted = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < operations.length; i++) {
+            if (operations[i] != null) {
+                submitted.add(operations[i]);
+                futures.add(partitions[i].submit(operations[i]));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        return submitted;
+    }
+
+    /**
+     * 投递给分区线程的请求
+     */
+    private static class Operation {
+
+        static final int REGISTER = 1;
+        static final int REMOVE = 2;
+        static final int RENEW = 3;
+        static final int TRIM = 4;
+        static final int REGISTER_OR_RENEW = 5;
+        static final int REMOVE_EXPIRED = 6;
+        static final int LOAD = 7;
+
+        final int type;
+        final List<ServiceInstance> serviceInstances;
+
+        /**
+         * 批量请求中每个服务实例在调用方列表中的下标
+         */
+        final List<Integer> positions;
+        final String serviceName;
+        final String serviceInstanceId;
+        final long leaseDuration;
+
+        /**
+         * 摘除过期服务实例时的扫描时间
+         */
+        long currentTime;
+
+        /**
+         * 处理结果：由分区线程写入，调用方在 future 完成后读取
+         */
+        boolean[] changed;
+        int removedCount;
+        CompletableFuture<Void> future;
+
+        Operation(int type, List<ServiceInstance> serviceInstances) {
+            this.type = type;
+            this.serviceInstances = serviceInstances;
+            this.positions = new ArrayList<>();
+            this.serviceName = null;
+            this.serviceInstanceId = null;
+            this.leaseDuration = 0L;
+        }
+
+        Operation(int type, String serviceName, String serviceInstanceId, long leaseDuration) {
+            this.type = type;
+            this.serviceInstances = null;
+            this.positions = null;
+            this.serviceName = serviceName;
+            this.serviceInstanceId = serviceInstanceId;
+            this.leaseDuration = leaseDuration;
+        }
+    }
+
+    /**
+     * 快照中的一个服务
+     */
+    private static class ServiceSlot {
+
+        /**
+         * 修订号：服务最近一次变更时所在快照的版本号
+         */
+        final long revision;
+        final Map<String, ServiceInstance> serviceInstances;
+
+        ServiceSlot(long revision, Map<String, ServiceInstance> serviceInstances) {
+            this.revision = revision;
+            this.serviceInstances = serviceInstances;
+        }
+    }
+
+    /**
+     * 分区发布的不可变快照
+     */
+    private static class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(
+                Collections.nCopies(1 << SNAPSHOT_BUCKET_BITS, Collections.emptyMap()), 0L, 0L, 0L,
+                new RecentlyChangedServiceInstance[0], 0, 0, 0L, 0L);
+
+        /**
+         * 按服务名称分桶的注册表，桶内 key 为服务名称；发布后桶不会再被修改
+         */
+        final List<Map<String, ServiceSlot>> buckets;
+        final long count;
+        final long hash;
+        final long expectedHeartbeatMillis;
+
+        /**
+         * 最近变更：changes[changesFrom, changesTo) 在发布后不会再被修改
+         */
+        final RecentlyChangedServiceInstance[] changes;
+        final int changesFrom;
+        final int changesTo;
+
+        /**
+         * 快照包含的最大版本号
+         */
+        final long maxVersion;
+
+        /**
+         * 已经清理掉的最大版本号
+         */
+        final long trimmedVersion;
+
+        Snapshot(List<Map<String, ServiceSlot>> buckets, long count, long hash, long expectedHeartbeatMillis,
+                 RecentlyChangedServiceInstance[] changes, int changesFrom, int changesTo,
+                 long maxVersion, long trimmedVersion) {
+            this.buckets = buckets;
+            this.count = count;
+            this.hash = hash;
+            this.expectedHeartbeatMillis = expectedHeartbeatMillis;
+            this.changes = changes;
+            this.changesFrom = changesFrom;
+            this.changesTo = changesTo;
+            this.maxVersion = maxVersion;
+            this.trimmedVersion = trimmedVersion;
+        }
+
+        ServiceSlot get(String serviceName) {
+            return buckets.get(bucketIndex(serviceName)).get(serviceName);
+        }
+    }
+
+    /**
+     * 一个分区：只有分区线程读写下面的普通集合
+     */
+    private class Partition implements Runnable {
+
+        final int index;
+        final Queue<Operation> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean sleeping = new AtomicBoolean(false);
+        final Thread thread;
+        volatile boolean running = true;
+
+        /**
+         * 已发布的快照
+         */
+        volatile Snapshot snapshot = Snapshot.EMPTY;
+
+        final Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
+        final Set<String> touchedServices = new HashSet<>();
+        final List<ServiceInstance> pendingInstances = new ArrayList<>();
+        final List<String> pendingOperations = new ArrayList<>();
+        final List<CompletableFuture<Void>> pendingFutures = new ArrayList<>();
+        long count;
+        long hash;
+        long expectedHeartbeatMillis;
+
+        /**
+         * 本批请求加载了快照(不记录最近变更)
+         */
+        boolean loaded;
+
+        /**
+         * 最近变更：追加写在 changesTo 之后，清理只移动 changesFrom，空间不够时复制到新数组
+         */
+        RecentlyChangedServiceInstance[] changes = new RecentlyChangedServiceInstance[1024];
+        int changesFrom;
+        int changesTo;
+        long maxVersion;
+        long trimmedVersion;
+
+        Partition(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "registry-partition-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        CompletableFuture<Void> submit(Operation operation) {
+            operation.future = new CompletableFuture<>();
+            offer(operation);
+            return operation.future;
+        }
+
+        void offer(Operation operation) {
+            queue.offer(operation);
+            if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int drained = 0;
+                Operation operation;
+                while (drained < DRAIN_BATCH && (operation = queue.poll()) != null) {
+                    try {
+                        apply(operation);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        if (operation.future != null) {
+                            operation.future.completeExceptionally(e);
+                        }
+                    }
+                    drained++;
+                }
+                if (drained > 0) {
+                    publish();
+                    continue;
+                }
+
+                // 队列为空：先声明要睡眠再检查一次队列，避免错过生产者的唤醒
+                sleeping.set(true);
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                sleeping.set(false);
+            }
+        }
+
+        private void apply(Operation operation) {
+            long now = RegisterServerScheduler.getInstance().now();
+            switch (operation.type) {
+                case Operation.REGISTER:
+                    for (ServiceInstance serviceInstance : operation.serviceInstances) {
+                        put(serviceInstance);
+                        recordChange(serviceInstance, ServiceInstanceOperation.REGISTER);
+                    }
+                    break;
+                case Operation.REGISTER_OR_RENEW:
+                    operation.changed = new boolean[operation.serviceInstances.size()];
+                    for (int i = 0; i < operation.serviceInstances.size(); i++) {
+                        ServiceInstance serviceInstance = operation.serviceInstances.get(i);
+                        ServiceInstance existing = get(
+                                serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+                        if (existing != null && existing.contentEquals(serviceInstance)) {
+                            renew(existing, serviceInstance.getLeaseDuration(), now);
+                            continue;
+                        }
+                        put(serviceInstance);
+                        recordChange(serviceInstance, ServiceInstanceOperation.REGISTER);
+                        operation.changed[i] = true;
+                    }
+                    break;
+                case Operation.REMOVE:
+                    for (ServiceInstance serviceInstance : operation.serviceInstances) {
+                        ServiceInstance removed = remove(
+                                serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+                        if (removed != null) {
+                            recordChange(removed, ServiceInstanceOperation.REMOVE);
+                        }
+                    }
+                    break;
+                case Operation.REMOVE_EXPIRED:
+                    for (ServiceInstance candidate : operation.serviceInstances) {
+                        ServiceInstance stored = get(candidate.getServiceName(), candidate.getServiceInstanceId());
+                        if (stored == null || stored.isAlive(operation.currentTime)) {
+                            continue;
+                        }
+                        remove(stored.getServiceName(), stored.getServiceInstanceId());
+                        recordChange(stored, ServiceInstanceOperation.REMOVE);
+                        operation.removedCount++;
+                    }
+                    break;
+                case Operation.LOAD:
+                    for (ServiceInstance serviceInstance : operation.serviceInstances) {
+                        ServiceInstance existing = get(
+                                serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+                        if (existing == null
+                                || existing.getRegistrationTimestamp() < serviceInstance.getRegistrationTimestamp()) {
+                            put(serviceInstance);
+                        }
+                    }
+                    loaded = true;
+                    break;
+                case Operation.RENEW:
+                    ServiceInstance serviceInstance = get(operation.serviceName, operation.serviceInstanceId);
+                    if (serviceInstance != null) {
+                        renew(serviceInstance, operation.leaseDuration, now);
+                    }
+                    break;
+                case Operation.TRIM:
+                    trim(now);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的分区请求类型：" + operation.type);
+            }
+            if (operation.future != null) {
+                pendingFutures.add(operation.future);
+            }
+        }
+
+        private ServiceInstance get(String serviceName, String serviceInstanceId) {
+            Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+            return serviceInstanceMap == null ? null : serviceInstanceMap.get(serviceInstanceId);
+        }
+
+        private void put(ServiceInstance serviceInstance) {
+            Map<String, ServiceInstance> serviceInstanceMap = registry.computeIfAbsent(
+                    serviceInstance.getServiceName(), name -> new HashMap<>());
+            ServiceInstance previous = serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+            if (previous == null) {
+                count++;
+            } else {
+                hash -= RegistryHash.entryHash(previous);
+                expectedHeartbeatMillis -= ServiceInstance.expectedHeartbeatMillis(previous.getLeaseDuration());
+            }
+            hash += RegistryHash.entryHash(serviceInstance);
+            expectedHeartbeatMillis += ServiceInstance.expectedHeartbeatMillis(serviceInstance.getLeaseDuration());
+            touchedServices.add(serviceInstance.getServiceName());
+        }
+
+        private ServiceInstance remove(String serviceName, String serviceInstanceId) {
+            Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+            ServiceInstance removed = serviceInstanceMap == null ? null : serviceInstanceMap.remove(serviceInstanceId);
+            if (removed == null) {
+                return null;
+            }
+            if (serviceInstanceMap.isEmpty()) {
+                registry.remove(serviceName);
+            }
+            count--;
+            hash -= RegistryHash.entryHash(removed);
+            expectedHeartbeatMillis -= ServiceInstance.expectedHeartbeatMillis(removed.getLeaseDuration());
+            touchedServices.add(serviceName);
+            return removed;
+        }
+
+        /**
+         * 续约，契约时长变化时同时维护期望心跳次数
+         */
+        private void renew(ServiceInstance serviceInstance, long leaseDuration, long now) {
+            if (leaseDuration > 0 && leaseDuration != serviceInstance.getLeaseDuration()) {
+                expectedHeartbeatMillis -= ServiceInstance.expectedHeartbeatMillis(serviceInstance.getLeaseDuration());
+                serviceInstance.setLeaseDuration(leaseDuration);
+                expectedHeartbeatMillis += ServiceInstance.expectedHeartbeatMillis(serviceInstance.getLeaseDuration());
+            }
+            serviceInstance.setLatestHeartbeatTime(now);
+        }
+
+        private void recordChange(ServiceInstance serviceInstance, String serviceInstanceOperation) {
+            pendingInstances.add(serviceInstance);
+            pendingOperations.add(serviceInstanceOperation);
+        }
+
+        /**
+         * 清理超过保留时间的最近变更
+         */
+        private void trim(long now) {
+            while (changesFrom < changesTo
+                    && now - changes[changesFrom].getChangedTimestamp() > RECENTLY_CHANGED_ITEM_EXPIRED) {
+                trimmedVersion = Math.max(trimmedVersion, changes[changesFrom].getVersion());
+                changesFrom++;
+            }
+        }
+
+        /**
+         * 发布快照，最后唤醒等待的写请求
+         */
+        private void publish() {
+            boolean changed = !pendingInstances.isEmpty() || loaded;
+            if (changed || snapshot.changesFrom != changesFrom
+                    || snapshot.expectedHeartbeatMillis != expectedHeartbeatMillis) {
+                publishLock.readLock().lock();
+                try {
+                    if (changed) {
+                        publishChanges();
+                    } else {
+                        snapshot = new Snapshot(snapshot.buckets, count, hash, expectedHeartbeatMillis,
+                                changes, changesFrom, changesTo, maxVersion, trimmedVersion);
+                    }
+                } finally {
+                    publishLock.readLock().unlock();
+                }
+            }
+
+            for (CompletableFuture<Void> future : pendingFutures) {
+                future.complete(null);
+            }
+            pendingFutures.clear();
+        }
+
+        /**
+         * 领取版本号、发布快照，按领取顺序回调变更监听器并推进已发布版本号(调用方持有发布锁的共享锁)。
+         * 只加载了快照时也领取一个版本号，并把已清理版本号推到这里，增量注册表的客户端需要重新拉取全量注册表
+         */
+        private void publishChanges() {
+            int changeCount = pendingInstances.size();
+            long base = claimedVersion.getAndAdd(Math.max(changeCount, 1));
+            long changedTimestamp = RegisterServerScheduler.getInstance().now();
+            ensureCapacity(changeCount);
+            int firstChange = changesTo;
+            for (int i = 0; i < changeCount; i++) {
+                changes[changesTo++] = new RecentlyChangedServiceInstance(pendingInstances.get(i),
+                        changedTimestamp, pendingOperations.get(i), base + i + 1);
+            }
+            maxVersion = base + Math.max(changeCount, 1);
+            if (loaded) {
+                trimmedVersion = maxVersion;
+                loaded = false;
+            }
+            pendingInstances.clear();
+            pendingOperations.clear();
+
+            snapshot = new Snapshot(copyOnWrite(maxVersion), count, hash, expectedHeartbeatMillis,
+                    changes, changesFrom, changesTo, maxVersion, trimmedVersion);
+
+            // 比自己先领取版本号的分区发布完之后，才能回调监听器、推进已发布版本号
+            while (publishedVersion.get() != base) {
+                Thread.yield();
+            }
+            for (int i = firstChange; i < changesTo; i++) {
+                for (Consumer<RecentlyChangedServiceInstance> listener : changeListeners) {
+                    listener.accept(changes[i]);
+                }
+            }
+            publishedVersion.set(maxVersion);
+        }
+
+        /**
+         * 只复制被修改的服务所在的桶
+         *
+         * @param revision 被修改的服务的新修订号
+         */
+        private List<Map<String, ServiceSlot>> copyOnWrite(long revision) {
+            List<Map<String, ServiceSlot>> published = snapshot.buckets;
+            List<Map<String, ServiceSlot>> buckets = new ArrayList<>(published);
+            for (String serviceName : touchedServices) {
+                int bucketIndex = bucketIndex(serviceName);
+                Map<String, ServiceSlot> bucket = buckets.get(bucketIndex);
+                if (bucket == published.get(bucketIndex)) {
+                    bucket = new HashMap<>(bucket);
+                    buckets.set(bucketIndex, bucket);
+                }
+                Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
+                if (serviceInstanceMap == null) {
+                    bucket.remove(serviceName);
+                } else {
+                    bucket.put(serviceName, new ServiceSlot(revision,
+                            Collections.unmodifiableMap(new HashMap<>(serviceInstanceMap))));
+                }
+            }
+            touchedServices.clear();
+            return buckets;
+        }
+
+        /**
+         * 已发布快照引用的数组区间不能再写：空间不够时复制有效区间到新数组
+         */
+        private void ensureCapacity(int additional) {
+            if (changesTo + additional <= changes.length) {
+                return;
+            }
+            int live = changesTo - changesFrom;
+            RecentlyChangedServiceInstance[] grown = new RecentlyChangedServiceInstance[
+                    Math.max(changes.length, (live + additional) * 2)];
+            System.arraycopy(changes, changesFrom, grown, 0, live);
+            changes = grown;
+            changesFrom = 0;
+            changesTo = live;
+        }
+    }
+}
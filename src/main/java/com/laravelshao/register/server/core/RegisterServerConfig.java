@@ -0,0 +1,59 @@
+package com.laravelshao.register.server.core;
+
+/**
+ * 注册中心服务端配置
+ * <p>
+ * 通过 JVM 启动参数(-Dkey=value)覆盖默认值
+ *
+ * @author qinghua.shao
+ * @date 2022/8/13
+ * @since 1.0.0
+ */
+public class RegisterServerConfig {
+
+    private RegisterServerConfig() {
+    }
+
+    /**
+     * 读取字符串配置
+     *
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * 读取 long 配置，格式错误时使用默认值
+     *
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("配置项【" + key + "】格式错误：" + value + "，使用默认值：" + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 读取 int 配置，格式错误时使用默认值
+     *
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return
+     */
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+}
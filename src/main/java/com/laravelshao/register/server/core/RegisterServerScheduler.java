@@ -0,0 +1,347 @@
+package com.laravelshao.register.server.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台任务调度组件
+ * <p>
+ * 各组件不再各自启动忙等 sleep 的后台线程，而是把周期任务注册到这里，由一个小线程池统一调度：
+ * <ul>
+ *     <li>任务可以在 start 之前注册，start 时才真正创建线程(延迟启动)，启动顺序由 start 的调用方决定</li>
+ *     <li>shutdown 停止所有任务并等待正在执行的任务结束，再按注册的逆序关闭各组件自己的线程池({@link #onShutdown(String, Runnable)})</li>
+ *     <li>记录每个任务的执行次数、失败次数、耗时</li>
+ *     <li>不调用 start 时可以配合虚拟时钟手动调用 {@link #runDueTasks()} 驱动任务</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/13
+ * @since 1.0.0
+ */
+public class RegisterServerScheduler {
+
+    /**
+     * 调度线程数
+     */
+    private static final int POOL_SIZE = RegisterServerConfig.getInt("register.server.scheduler.pool-size", 2);
+
+    /**
+     * 单例
+     */
+    private static final RegisterServerScheduler instance = new RegisterServerScheduler();
+
+    /**
+     * 已注册的任务
+     */
+    private final Map<String, ScheduledTask> tasks = new LinkedHashMap<>();
+
+    /**
+     * 停止调度后执行的关闭动作(关闭各组件自己的线程池)
+     */
+    private final Map<String, Runnable> shutdownActions = new LinkedHashMap<>();
+
+    /**
+     * 调度线程池，start 时创建
+     */
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * 时钟
+     */
+    private volatile Clock clock = Clock.SYSTEM;
+
+    private RegisterServerScheduler() {
+    }
+
+    public static RegisterServerScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * 注册周期任务(固定间隔，上一次执行结束后间隔 interval 再执行下一次)
+     *
+     * @param name     任务名称
+     * @param interval 执行间隔(毫秒)
+     * @param task     任务
+     */
+    public synchronized void schedule(String name, long interval, Runnable task) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("后台任务【" + name + "】执行间隔必须大于0：" + interval);
+        }
+        if (tasks.containsKey(name)) {
+            throw new IllegalStateException("后台任务【" + name + "】已经注册");
+        }
+        ScheduledTask scheduledTask = new ScheduledTask(name, interval, task, clock.currentTimeMillis() + interval);
+        tasks.put(name, scheduledTask);
+
+        if (executor != null) {
+            submit(scheduledTask);
+        }
+    }
+
+    /**
+     * 注册关闭动作：组件自己持有的线程池(并行扫描、并行写入、投递等)在 shutdown 时随调度一起关闭
+     *
+     * @param name   动作名称
+     * @param action 关闭动作
+     */
+    public synchronized void onShutdown(String name, Runnable action) {
+        if (shutdownActions.containsKey(name)) {
+            throw new IllegalStateException("关闭动作【" + name + "】已经注册");
+        }
+        shutdownActions.put(name, action);
+    }
+
+    /**
+     * 启动调度线程，开始执行已注册的任务
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = new ScheduledThreadPoolExecutor(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "register-server-scheduler-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+
+        for (ScheduledTask scheduledTask : tasks.values()) {
+            submit(scheduledTask);
+        }
+        System.out.println("后台任务调度已启动，任务：" + tasks.keySet());
+    }
+
+    /**
+     * 停止调度，等待正在执行的任务结束，再按注册的逆序执行关闭动作
+     */
+    public void shutdown() {
+        ScheduledThreadPoolExecutor shutdownExecutor;
+        List<Map.Entry<String, Runnable>> actions;
+        synchronized (this) {
+            shutdownExecutor = executor;
+            executor = null;
+            actions = new ArrayList<>(shutdownActions.entrySet());
+            shutdownActions.clear();
+        }
+
+        if (shutdownExecutor != null) {
+            shutdownExecutor.shutdownNow();
+            try {
+                shutdownExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("后台任务调度已停止");
+        }
+
+        // 调度已经停止，不会再有任务往这些线程池里提交
+        Collections.reverse(actions);
+        for (Map.Entry<String, Runnable> action : actions) {
+            try {
+                action.getValue().run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        if (!actions.isEmpty()) {
+            System.out.println("已关闭：" + names(actions));
+        }
+    }
+
+    private static List<String> names(List<Map.Entry<String, Runnable>> actions) {
+        List<String> names = new ArrayList<>(actions.size());
+        for (Map.Entry<String, Runnable> action : actions) {
+            names.add(action.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * 未启动调度线程时，在调用线程上执行所有已到期的任务(配合虚拟时钟使用)
+     *
+     * @return 执行的任务数
+     */
+    public int runDueTasks() {
+        ScheduledTask[] dueTasks;
+        synchronized (this) {
+            if (executor != null) {
+                throw new IllegalStateException("调度线程已启动，不能手动执行任务");
+            }
+            dueTasks = tasks.values().toArray(new ScheduledTask[0]);
+        }
+
+        int count = 0;
+        long now = clock.currentTimeMillis();
+        for (ScheduledTask scheduledTask : dueTasks) {
+            if (scheduledTask.nextRunTime <= now) {
+                scheduledTask.run();
+                scheduledTask.nextRunTime = now + scheduledTask.interval;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获取各任务的执行指标
+     *
+     * @return key 为任务名称
+     */
+    public synchronized Map<String, TaskMetrics> getTaskMetrics() {
+        Map<String, TaskMetrics> metrics = new LinkedHashMap<>();
+        for (ScheduledTask scheduledTask : tasks.values()) {
+            metrics.put(scheduledTask.name, scheduledTask.metrics());
+        }
+        return metrics;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * 替换时钟(在注册任务之前调用)
+     *
+     * @param clock 时钟
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * 当前时间戳
+     *
+     * @return
+     */
+    public long now() {
+        return clock.currentTimeMillis();
+    }
+
+    private void submit(ScheduledTask scheduledTask) {
+        executor.scheduleWithFixedDelay(scheduledTask, scheduledTask.interval, scheduledTask.interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 一个周期任务及其执行指标
+     */
+    private class ScheduledTask implements Runnable {
+
+        final String name;
+        final long interval;
+        final Runnable task;
+        volatile long nextRunTime;
+
+        final AtomicLong runCount = new AtomicLong(0L);
+        final AtomicLong failureCount = new AtomicLong(0L);
+        final AtomicLong totalNanos = new AtomicLong(0L);
+        final AtomicLong maxNanos = new AtomicLong(0L);
+        volatile long lastRunTime;
+
+        ScheduledTask(String name, long interval, Runnable task, long nextRunTime) {
+            this.name = name;
+            this.interval = interval;
+            this.task = task;
+            this.nextRunTime = nextRunTime;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // 吞掉异常，否则 ScheduledThreadPoolExecutor 会停止后续调度
+                failureCount.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                runCount.incrementAndGet();
+                totalNanos.addAndGet(elapsed);
+                maxNanos.accumulateAndGet(elapsed, Math::max);
+                lastRunTime = clock.currentTimeMillis();
+            }
+        }
+
+        TaskMetrics metrics() {
+            return new TaskMetrics(interval, runCount.get(), failureCount.get(),
+                    totalNanos.get(), maxNanos.get(), lastRunTime);
+        }
+    }
+
+    /**
+     * 任务执行指标
+     */
+    public static class TaskMetrics {
+
+        private final long interval;
+        private final long runCount;
+        private final long failureCount;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long lastRunTime;
+
+        TaskMetrics(long interval, long runCount, long failureCount, long totalNanos, long maxNanos, long lastRunTime) {
+            this.interval = interval;
+            this.runCount = runCount;
+            this.failureCount = failureCount;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.lastRunTime = lastRunTime;
+        }
+
+        public long getInterval() {
+            return interval;
+        }
+
+        public long getRunCount() {
+            return runCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getAverageNanos() {
+            return runCount == 0 ? 0L : totalNanos / runCount;
+        }
+
+        public long getLastRunTime() {
+            return lastRunTime;
+        }
+
+        @Override
+        public String toString() {
+            return "TaskMetrics{" +
+                    "interval=" + interval +
+                    ", runCount=" + runCount +
+                    ", failureCount=" + failureCount +
+                    ", averageNanos=" + getAverageNanos() +
+                    ", maxNanos=" + maxNanos +
+                    ", lastRunTime=" + lastRunTime +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.laravelshao.register.server.core;
+
+/**
+ * 注册表哈希
+ * <p>
+ * 每个服务实例按 (服务名称, 服务实例ID, 契约版本号) 计算条目哈希，整个注册表的哈希为所有条目哈希之和：
+ * 与顺序无关，注册、移除时加减一次即可增量维护。服务端和客户端使用同一个算法，客户端据此校验本地注册表
+ *
+ * @author qinghua.shao
+ * @date 2022/8/27
+ * @since 1.0.0
+ */
+public final class RegistryHash {
+
+    private RegistryHash() {
+    }
+
+    /**
+     * 计算服务实例的条目哈希
+     *
+     * @param serviceInstance 服务实例
+     * @return
+     */
+    public static long entryHash(ServiceInstance serviceInstance) {
+        return entryHash(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId(),
+                serviceInstance.getRegistrationTimestamp());
+    }
+
+    /**
+     * 计算条目哈希
+     *
+     * @param serviceName           服务名称
+     * @param serviceInstanceId     服务实例ID
+     * @param registrationTimestamp 契约版本号
+     * @return
+     */
+    public static long entryHash(String serviceName, String serviceInstanceId, long registrationTimestamp) {
+        return entryHash(key(serviceName, serviceInstanceId), registrationTimestamp);
+    }
+
+    static long entryHash(String key, long registrationTimestamp) {
+        return mix(hash(key) ^ mix(registrationTimestamp));
+    }
+
+    static String key(String serviceName, String serviceInstanceId) {
+        return serviceName + '\n' + serviceInstanceId;
+    }
+
+    /**
+     * 64位 FNV-1a 哈希
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 64位混淆(murmur3 fmix64)
+     */
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+package com.laravelshao.register.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 注册表 Merkle 摘要
+ * <p>
+ * 按 (服务名称, 服务实例ID) 的哈希把服务实例分到固定数量的叶子桶中，
+ * 叶子哈希为桶内所有 (服务名称, 服务实例ID, 契约版本号) 条目哈希之和，注册、移除时增量加减即可维护，
+ * 非叶子节点哈希在读取时由子节点计算。节点编号采用完全二叉树的数组表示：根为1，节点 i 的子节点为 2i、2i+1
+ *
+ * @author qinghua.shao
+ * @date 2022/8/20
+ * @since 1.0.0
+ */
+public class RegistryMerkleTree {
+
+    /**
+     * 根节点编号
+     */
+    public static final int ROOT = 1;
+
+    /**
+     * 叶子桶数量 = 2^leafBits
+     */
+    private final int leafBits;
+    private final int leafCount;
+
+    /**
+     * 叶子哈希
+     */
+    private final AtomicLongArray leafHashes;
+
+    /**
+     * 每个叶子桶中的条目：key 为服务名称 + '\n' + 服务实例ID，value 为契约版本号
+     */
+    private final List<Map<String, Long>> leafEntries;
+
+    public RegistryMerkleTree(int leafBits) {
+        this.leafBits = leafBits;
+        this.leafCount = 1 << leafBits;
+        this.leafHashes = new AtomicLongArray(leafCount);
+        this.leafEntries = new ArrayList<>(leafCount);
+        for (int i = 0; i < leafCount; i++) {
+            leafEntries.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * 注册或覆盖服务实例
+     *
+     * @param previous        被覆盖的旧服务实例，可以为 null
+     * @param serviceInstance 新服务实例
+     */
+    public void update(ServiceInstance previous, ServiceInstance serviceInstance) {
+        if (previous != null) {
+            remove(previous);
+        }
+        String key = key(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+        int leaf = leafOf(key);
+        Long replaced = leafEntries.get(leaf).put(key, serviceInstance.getRegistrationTimestamp());
+        if (replaced != null) {
+            leafHashes.addAndGet(leaf, -entryHash(key, replaced));
+        }
+        leafHashes.addAndGet(leaf, entryHash(key, serviceInstance.getRegistrationTimestamp()));
+    }
+
+    /**
+     * 移除服务实例
+     *
+     * @param serviceInstance 服务实例
+     */
+    public void remove(ServiceInstance serviceInstance) {
+        String key = key(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+        int leaf = leafOf(key);
+        Long version = leafEntries.get(leaf).remove(key);
+        if (version != null) {
+            leafHashes.addAndGet(leaf, -entryHash(key, version));
+        }
+    }
+
+    /**
+     * 获取节点哈希
+     *
+     * @param node 节点编号
+     * @return
+     */
+    public long getNodeHash(int node) {
+        if (node >= leafCount) {
+            return leafHashes.get(node - leafCount);
+        }
+        long left = getNodeHash(node << 1);
+        long right = getNodeHash((node << 1) + 1);
+        if (left == 0L && right == 0L) {
+            return 0L;
+        }
+        return RegistryHash.mix(left * 31 + RegistryHash.mix(right));
+    }
+
+    /**
+     * 批量获取节点哈希
+     *
+     * @param nodes 节点编号
+     * @return 与节点编号一一对应的哈希
+     */
+    public long[] getNodeHashes(int[] nodes) {
+        long[] hashes = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            hashes[i] = getNodeHash(nodes[i]);
+        }
+        return hashes;
+    }
+
+    /**
+     * 是否为叶子节点
+     *
+     * @param node 节点编号
+     * @return
+     */
+    public boolean isLeaf(int node) {
+        return node >= leafCount;
+    }
+
+    /**
+     * 获取叶子节点中的所有条目
+     *
+     * @param node 叶子节点编号
+     * @return 每个条目为 {服务名称, 服务实例ID}
+     */
+    public List<String[]> getLeafKeys(int node) {
+        List<String[]> keys = new ArrayList<>();
+        for (String key : leafEntries.get(node - leafCount).keySet()) {
+            int separator = key.indexOf('\n');
+            keys.add(new String[]{key.substring(0, separator), key.substring(separator + 1)});
+        }
+        return keys;
+    }
+
+    public int getLeafBits() {
+        return leafBits;
+    }
+
+    private int leafOf(String key) {
+        return (int) (RegistryHash.mix(RegistryHash.hash(key)) >>> (64 - leafBits));
+    }
+
+    private static String key(String serviceName, String serviceInstanceId) {
+        return RegistryHash.key(serviceName, serviceInstanceId);
+    }
+
+    private static long entryHash(String key, long version) {
+        return RegistryHash.entryHash(key, version);
+    }
+}
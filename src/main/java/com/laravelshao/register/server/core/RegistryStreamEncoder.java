@@ -0,0 +1,313 @@
+package com.laravelshao.register.server.core;
+
+import com.laravelshao.register.server.web.Applications;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全量注册表流式编码
+ * <p>
+ * 直接遍历已发布的全量注册表快照(注册表缓存中按服务拼装的不可变快照)，按服务分组逐条编码到池化的定长缓冲区，
+ * 写满一块就写出到 channel，不在内存中组装完整的响应体。编码流不依赖预先收集的符号字典和记录数，
+ * 编码过程中除了一块缓冲区不保存任何与注册表大小相关的状态，每次拉取占用的内存是常量：
+ * <pre>
+ * 编码流：[int 魔数][long 注册表版本号][long 注册表哈希]{服务}*[byte 0 结束][long 服务实例数]
+ * 服务：[byte 1][字符串 服务名称]{服务实例}*
+ * 服务实例：[byte 2][int 端口号][byte IP地址类型][long IP高64位][long IP低64位]
+ *          [long 最近一次心跳时间][long 注册时间(契约版本号)][long 契约时长]
+ *          [字符串 服务实例ID][字符串 主机名][字符串 无法解析的IP原始文本][字符串 可用区][字符串 服务版本号][字符串 标签]
+ * 字符串：[int UTF-8 字节数(-1 表示为空)][UTF-8 字节]
+ * </pre>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RegistryStreamEncoder {
+
+    static final int MAGIC = 0x4C535253;
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_SERVICE = 1;
+    private static final byte TAG_INSTANCE = 2;
+
+    /**
+     * 服务实例定长部分的字节数
+     */
+    private static final int INSTANCE_FIXED_BYTES = 1 + 4 + 1 + 8 * 6;
+
+    /**
+     * 编码缓冲区大小
+     */
+    private static final int CHUNK_BYTES = RegisterServerConfig.getInt(
+            "register.server.full-registry.stream-chunk-bytes", 64 * 1024);
+
+    /**
+     * 池中保留的编码缓冲区数量
+     */
+    private static final int POOLED_BUFFERS = RegisterServerConfig.getInt(
+            "register.server.full-registry.stream-pooled-buffers", 16);
+
+    private static final RegistryStreamEncoder instance = new RegistryStreamEncoder();
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool(Math.max(CHUNK_BYTES, 256), POOLED_BUFFERS);
+
+    private RegistryStreamEncoder() {
+    }
+
+    public static RegistryStreamEncoder getInstance() {
+        return instance;
+    }
+
+    /**
+     * 把全量注册表快照编码写入 channel
+     *
+     * @param applications 全量注册表快照(编码期间内容不能被修改)
+     * @param channel      输出 channel
+     * @return 写出的服务实例数
+     * @throws IOException
+     */
+    public long encode(Applications applications, WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            ChunkWriter writer = new ChunkWriter(buffer, channel);
+            writer.ensure(20);
+            buffer.putInt(MAGIC);
+            buffer.putLong(applications.getVersion());
+            buffer.putLong(applications.getRegistryHash());
+
+            long count = 0L;
+            for (Map.Entry<String, Map<String, ServiceInstance>> entry : applications.getRegistry().entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                writer.ensure(1);
+                buffer.put(TAG_SERVICE);
+                writer.putString(entry.getKey());
+
+                for (ServiceInstance serviceInstance : entry.getValue().values()) {
+                    writer.ensure(INSTANCE_FIXED_BYTES);
+                    buffer.put(TAG_INSTANCE);
+                    buffer.putInt(serviceInstance.getPort());
+                    buffer.put(serviceInstance.getIpVersion());
+                    buffer.putLong(serviceInstance.getIpHigh());
+                    buffer.putLong(serviceInstance.getIpLow());
+                    buffer.putLong(serviceInstance.getLatestHeartbeatTime());
+                    buffer.putLong(serviceInstance.getRegistrationTimestamp());
+                    buffer.putLong(serviceInstance.getLeaseDuration());
+                    writer.putString(serviceInstance.getServiceInstanceId());
+                    writer.putString(serviceInstance.getHostname());
+                    writer.putString(serviceInstance.getIpVersion() == ServiceInstance.IP_NONE
+                            ? serviceInstance.getIp() : null);
+                    writer.putString(serviceInstance.getZone());
+                    writer.putString(serviceInstance.getVersion());
+                    writer.putString(serviceInstance.getTagsText());
+                    count++;
+                }
+            }
+
+            writer.ensure(9);
+            buffer.put(TAG_END);
+            buffer.putLong(count);
+            writer.flush();
+            return count;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 解码编码流，还原全量注册表
+     *
+     * @param channel 输入 channel
+     * @return
+     * @throws IOException
+     */
+    public Applications decode(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            ChunkReader reader = new ChunkReader(buffer, channel);
+            reader.require(20);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("全量注册表编码流魔数错误");
+            }
+            Applications applications = new Applications(new HashMap<>());
+            applications.setVersion(buffer.getLong());
+            applications.setRegistryHash(buffer.getLong());
+
+            Map<String, ServiceInstance> serviceInstanceMap = null;
+            String serviceName = null;
+            long count = 0L;
+            while (true) {
+                reader.require(1);
+                byte tag = buffer.get();
+                if (tag == TAG_END) {
+                    reader.require(8);
+                    if (buffer.getLong() != count) {
+                        throw new IOException("全量注册表编码流服务实例数不一致");
+                    }
+                    return applications;
+                }
+                if (tag == TAG_SERVICE) {
+                    serviceName = reader.getString();
+                    serviceInstanceMap = applications.getRegistry().computeIfAbsent(serviceName, k -> new HashMap<>());
+                    continue;
+                }
+                if (tag != TAG_INSTANCE || serviceInstanceMap == null) {
+                    throw new IOException("全量注册表编码流格式错误");
+                }
+
+                reader.require(INSTANCE_FIXED_BYTES - 1);
+                ServiceInstance serviceInstance = new ServiceInstance();
+                serviceInstance.setServiceName(serviceName);
+                serviceInstance.setPort(buffer.getInt());
+                byte ipVersion = buffer.get();
+                long ipHigh = buffer.getLong();
+                long ipLow = buffer.getLong();
+                serviceInstance.setLatestHeartbeatTime(buffer.getLong());
+                serviceInstance.setRegistrationTimestamp(buffer.getLong());
+                serviceInstance.setLeaseDuration(buffer.getLong());
+                serviceInstance.setServiceInstanceId(reader.getString());
+                serviceInstance.setHostname(reader.getString());
+                String ipText = reader.getString();
+                if (ipVersion == ServiceInstance.IP_NONE) {
+                    serviceInstance.setIp(ipText);
+                } else {
+                    serviceInstance.setIpAddress(ipVersion, ipHigh, ipLow);
+                }
+                serviceInstance.setZone(reader.getString());
+                serviceInstance.setVersion(reader.getString());
+                serviceInstance.setTagsText(reader.getString());
+                serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+                count++;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 写满一块就写出到 channel
+     */
+    private static class ChunkWriter {
+
+        private final ByteBuffer buffer;
+        private final WritableByteChannel channel;
+
+        ChunkWriter(ByteBuffer buffer, WritableByteChannel channel) {
+            this.buffer = buffer;
+            this.channel = channel;
+        }
+
+        /**
+         * 保证缓冲区至少还有 bytes 个字节可写(bytes 不超过缓冲区大小)
+         */
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            InstanceRecordLayout.writeFully(channel, buffer);
+            buffer.clear();
+        }
+
+        /**
+         * 写入一个字符串，超过缓冲区剩余空间的部分分块写出
+         */
+        void putString(String value) throws IOException {
+            ensure(4);
+            if (value == null) {
+                buffer.putInt(-1);
+                return;
+            }
+            // ASCII 字符串(服务实例ID、主机名等绝大多数字段)逐字符直接写入缓冲区，不产生临时字节数组
+            if (isAscii(value)) {
+                buffer.putInt(value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    buffer.put((byte) value.charAt(i));
+                }
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按块从 channel 读入
+     */
+    private static class ChunkReader {
+
+        private final ByteBuffer buffer;
+        private final ReadableByteChannel channel;
+
+        ChunkReader(ByteBuffer buffer, ReadableByteChannel channel) {
+            this.buffer = buffer;
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /**
+         * 保证缓冲区至少有 bytes 个字节可读(bytes 不超过缓冲区大小)
+         */
+        void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("全量注册表编码流提前结束");
+                }
+            }
+            buffer.flip();
+        }
+
+        String getString() throws IOException {
+            require(4);
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                require(1);
+                int read = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, read);
+                offset += read;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.laravelshao.register.server.core;
 
 /**
  * 自我保护机制
+ * <p>
+ * 期望心跳次数由注册表随注册、下线、契约时长变更维护(各实例按协商后的心跳间隔推算的每分钟心跳次数之和)，
+ * 这里定期读取并推导阈值，读取方只做 volatile 读
  *
  * @author qinghua.shao
  * @date 2022/6/26
@@ -9,16 +12,31 @@ package com.laravelshao.register.server.core;
  */
 public class SelfProtectionPolicy {
 
+    /**
+     * 期望心跳次数阈值系数
+     */
+    private static final double EXPECTED_HEARTBEAT_THRESHOLD_FACTOR = 0.85;
+    /**
+     * 重新计算期望心跳次数的时间间隔
+     */
+    private static final long RECOMPUTE_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.self-protection-recompute-interval", 15 * 1000L);
+
     private static SelfProtectionPolicy instance = new SelfProtectionPolicy();
 
     /**
      * 期望的一个心跳的次数，如果你有10个服务实例，这个数值就是10 * 2 = 20
      */
-    private long expectedHeartbeatRate = 0L;
+    private volatile long expectedHeartbeatRate = 0L;
     /**
      * 期望的心跳次数的阈值，10 * 2 * 0.85 = 17，每分钟至少得有17次心跳，才不用进入自我保护机制
      */
-    private long expectedHeartbeatThreshold = 0L;
+    private volatile long expectedHeartbeatThreshold = 0L;
+
+    private SelfProtectionPolicy() {
+        // 注册定期重新计算阈值的后台任务
+        RegisterServerScheduler.getInstance().schedule("self-protection-recompute", RECOMPUTE_INTERVAL, this::recompute);
+    }
 
     /**
      * 返回实例
@@ -34,32 +52,26 @@ public class SelfProtectionPolicy {
      *
      * @return
      */
-    public Boolean isEnable() {
-        HeartbeatCounter heartbeatMessuredRate = HeartbeatCounter.getInstance();
-        long latestMinuteHeartbeatRate = heartbeatMessuredRate.get();
+    public boolean isEnable() {
+        return HeartbeatCounter.getInstance().get() < this.expectedHeartbeatThreshold;
+    }
 
-        if (latestMinuteHeartbeatRate < this.expectedHeartbeatThreshold) {
-            System.out.println("【自我保护机制开启】最近一分钟心跳次数=" + latestMinuteHeartbeatRate + ", 期望心跳次数=" + this.expectedHeartbeatThreshold);
-            return true;
-        }
-        System.out.println("【自我保护机制未开启】最近一分钟心跳次数=" + latestMinuteHeartbeatRate + ", 期望心跳次数=" + this.expectedHeartbeatThreshold);
-        return false;
+    /**
+     * 读取注册表维护的期望心跳次数，重新计算阈值(O(1)，集群同步每个 batch 之后都可以调用)
+     */
+    public void recompute() {
+        long rate = ServiceRegistry.getInstance().getExpectedHeartbeatsPerMinute();
+
+        this.expectedHeartbeatRate = rate;
+        this.expectedHeartbeatThreshold = (long) (rate * EXPECTED_HEARTBEAT_THRESHOLD_FACTOR);
     }
 
     public long getExpectedHeartbeatRate() {
         return expectedHeartbeatRate;
     }
 
-    public void setExpectedHeartbeatRate(long expectedHeartbeatRate) {
-        this.expectedHeartbeatRate = expectedHeartbeatRate;
-    }
-
     public long getExpectedHeartbeatThreshold() {
         return expectedHeartbeatThreshold;
     }
 
-    public void setExpectedHeartbeatThreshold(long expectedHeartbeatThreshold) {
-        this.expectedHeartbeatThreshold = expectedHeartbeatThreshold;
-    }
-
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@ package com.laravelshao.register.server.core;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * 微服务存活监控组件
@@ -16,100 +18,108 @@ public class ServiceAliveMonitor {
     /**
      * 检查服务实例是否存活时间间隔
      */
-    private static final Long CHECK_ALIVE_INTERVAL = 60 * 1000L;
+    private static final long CHECK_ALIVE_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.check-alive-interval", 60 * 1000L);
 
     /**
-     * 负责监控微服务存活状态的后台线程
+     * 并行扫描时单个任务最多负责的服务数量
      */
-    private MonitorThread monitorThread;
+    private static final int SWEEP_SERVICES_PER_TASK = RegisterServerConfig.getInt(
+            "register.server.sweep-services-per-task", 64);
+    /**
+     * 并行扫描的线程数
+     */
+    private static final int SWEEP_PARALLELISM = RegisterServerConfig.getInt(
+            "register.server.sweep-parallelism", Runtime.getRuntime().availableProcessors());
 
-    public ServiceAliveMonitor() {
-        monitorThread = new MonitorThread();
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
 
-        // 标记为后台线程，后台线程只有在存在前台线程时才有效，如果没有前台线程，则 JVM 会结束进程
-        // 作为 服务实例存活监控线程，如果 JVM 已经退出，没有存活的必要，如果设置为工作线程，则会导致 JVM 无法退出
-        monitorThread.setDaemon(true);
-    }
+    /**
+     * 并行扫描过期服务实例的线程池
+     */
+    private ForkJoinPool sweepPool = new ForkJoinPool(SWEEP_PARALLELISM);
 
     /**
-     * 启动后台线程
+     * 启动存活监控：注册到后台任务调度组件
      */
     public void start() {
+        RegisterServerScheduler scheduler = RegisterServerScheduler.getInstance();
+        scheduler.schedule("service-alive-monitor", CHECK_ALIVE_INTERVAL, this::check);
+        scheduler.onShutdown("service-alive-monitor-sweep-pool", sweepPool::shutdown);
+    }
+
+    /**
+     * 检查一遍所有服务实例的存活状态，移除已经死亡的服务实例
+     */
+    void check() {
+
+        // 判断是否开启自我保护机制
+        SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
+        if (selfProtectionPolicy.isEnable()) {
+            System.out.println("【自我保护机制开启】最近一分钟心跳次数=" + HeartbeatCounter.getInstance().get()
+                    + ", 期望心跳次数=" + selfProtectionPolicy.getExpectedHeartbeatThreshold());
+            return;
+        }
+
+        // 按服务拆分注册表，在 ForkJoin 线程池中并行找出已经死亡的服务实例
+        // 不再持有注册表读锁遍历整个注册表：服务实例MAP是并发MAP，遍历期间允许并发写入
+        long currentTime = RegisterServerScheduler.getInstance().now();
+        List<Map<String, ServiceInstance>> serviceInstanceMaps = new ArrayList<>(registry.getRegistry().values());
+        List<ServiceInstance> removingServiceInstances = sweepPool.invoke(
+                new ExpiredInstanceSweepTask(serviceInstanceMaps, 0, serviceInstanceMaps.size(), currentTime));
 
-        // 启动线程
-        monitorThread.start();
+        // 将所有的要删除的服务实例作为一次批量变更从服务注册表删除(写锁内再确认一次仍然过期)
+        int removedCount = registry.removeExpired(removingServiceInstances, currentTime);
+
+        // 过期注册表缓存
+        if (removedCount != 0) {
+            // 过期掉注册表缓存
+            ServiceRegistryCache.getInstance().invalidate();
+        }
     }
 
     /**
-     * 微服务存活状态监控线程任务
+     * 扫描一段服务的过期服务实例，服务数量超过阈值时一分为二并行扫描
      */
-    private class MonitorThread extends Thread {
+    private static class ExpiredInstanceSweepTask extends RecursiveTask<List<ServiceInstance>> {
 
-        private ServiceRegistry registry = ServiceRegistry.getInstance();
+        private static final long serialVersionUID = 1L;
 
-        @Override
-        public void run() {
-            Map<String, Map<String, ServiceInstance>> registryMap;
-
-            while (true) {
-                try {
-                    // 判断是否开启自我保护机制
-                    SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-                    if (selfProtectionPolicy.isEnable()) {
-                        Thread.sleep(CHECK_ALIVE_INTERVAL);
-                        continue;
-                    }
+        private final List<Map<String, ServiceInstance>> serviceInstanceMaps;
+        private final int from;
+        private final int to;
+        private final long currentTime;
 
-                    // 定义要删除的服务实例的集合
-                    List<ServiceInstance> removingServiceInstances = new ArrayList<ServiceInstance>();
-
-                    try {
-                        // 加读锁，读取注册表时可以同时读，但是不允许写
-                        registry.readLock();
-
-                        // 获取注册表MAP
-                        registryMap = registry.getRegistry();
-                        for (String serviceName : registryMap.keySet()) {
-
-                            // 获取服务下服务实例列表
-                            Map<String, ServiceInstance> serviceInstanceMap = registryMap.get(serviceName);
-
-                            for (ServiceInstance serviceInstance : serviceInstanceMap.values()) {
-                                // 判断是否存活，超过90秒无心跳认为已死亡，则从注册表移除
-                                if (!serviceInstance.isAlive()) {
-                                    removingServiceInstances.add(serviceInstance);
-                                }
-                            }
-                        }
-                    } finally {
-                        // 释放读锁
-                        registry.readUnlock();
-                    }
+        ExpiredInstanceSweepTask(List<Map<String, ServiceInstance>> serviceInstanceMaps,
+                                 int from, int to, long currentTime) {
+            this.serviceInstanceMaps = serviceInstanceMaps;
+            this.from = from;
+            this.to = to;
+            this.currentTime = currentTime;
+        }
 
-                    // 将所有的要删除的服务实例，从服务注册表删除
-                    for (ServiceInstance serviceInstance : removingServiceInstances) {
-                        registry.remove(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
-
-                        // 更新自我保护机制的阈值
-                        synchronized (SelfProtectionPolicy.class) {
-                            selfProtectionPolicy.setExpectedHeartbeatRate(
-                                    selfProtectionPolicy.getExpectedHeartbeatRate() - 2);
-                            selfProtectionPolicy.setExpectedHeartbeatThreshold(
-                                    (long) (selfProtectionPolicy.getExpectedHeartbeatRate() * 0.85));
-                        }
-                    }
+        @Override
+        protected List<ServiceInstance> compute() {
+            if (to - from > SWEEP_SERVICES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                ExpiredInstanceSweepTask left = new ExpiredInstanceSweepTask(serviceInstanceMaps, from, middle, currentTime);
+                left.fork();
+                List<ServiceInstance> expired = new ExpiredInstanceSweepTask(
+                        serviceInstanceMaps, middle, to, currentTime).compute();
+                expired.addAll(left.join());
+                return expired;
+            }
 
-                    // 过期注册表缓存
-                    if (removingServiceInstances.size() != 0) {
-                        // 过期掉注册表缓存
-                        ServiceRegistryCache.getInstance().invalidate();
+            List<ServiceInstance> expired = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                for (ServiceInstance serviceInstance : serviceInstanceMaps.get(i).values()) {
+                    // 判断是否存活，超过协商的契约时长无心跳认为已死亡，则从注册表移除
+                    if (!serviceInstance.isAlive(currentTime)) {
+                        expired.add(serviceInstance);
                     }
-
-                    Thread.sleep(CHECK_ALIVE_INTERVAL);
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
+            return expired;
         }
     }
 }
@@ -1,8 +1,20 @@
 package com.laravelshao.register.server.core;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
 /**
  * 服务实例对象
- * 定义了服务实例的所有信息：服务名称、IP地址、hostname、端口号、服务实例ID、契约信息(Lease)
+ * 定义了服务实例的所有信息：服务名称、IP地址、hostname、端口号、服务实例ID、契约信息
+ * <p>
+ * 注册表中会同时存在几十万个服务实例，这里尽量压缩单个实例的堆占用：
+ * 服务名称、可用区等低基数字符串通过共享符号表去重，IP地址以原始类型存储，契约信息直接平铺在实例上
  *
  * @author qinghua.shao
  * @date 2022/6/19
@@ -11,51 +23,199 @@ package com.laravelshao.register.server.core;
 public class ServiceInstance {
 
     /**
-     * 判断服务实例不再存活的时间
+     * 默认的契约时长：超过这个时间没有心跳认为服务实例不再存活
+     */
+    public static final Long NOT_ALIVE_PERIOD = 90 * 1000L;
+    /**
+     * 默认的服务实例发送心跳的时间间隔(契约时长 = 心跳间隔 * NOT_ALIVE_PERIOD / HEARTBEAT_INTERVAL)
      */
-    private static final Long NOT_ALIVE_PERIOD = 90 * 1000L;
+    public static final Long HEARTBEAT_INTERVAL = 30 * 1000L;
 
     /**
-     * 服务名称
+     * IP地址类型：未设置或无法解析(保留原始文本)、IPv4、IPv6
      */
-    private String serviceName;
+    static final byte IP_NONE = 0;
+    static final byte IP_V4 = 4;
+    static final byte IP_V6 = 6;
+
     /**
-     * ip地址
+     * 服务名称(符号表中的规范实例)
      */
-    private String ip;
+    private String serviceName;
     /**
-     * 主机名
+     * 主机名(随实例上下线变化，不进符号表)
      */
     private String hostname;
+    /**
+     * 服务实例id
+     */
+    private String serviceInstanceId;
+    /**
+     * 无法解析为IP地址时保留的原始文本
+     */
+    private String ipText;
+    /**
+     * IP地址：IPv4 存在 ipLow 低32位，IPv6 高64位存在 ipHigh、低64位存在 ipLow
+     */
+    private long ipHigh;
+    private long ipLow;
+    /**
+     * IP地址类型
+     */
+    private byte ipVersion = IP_NONE;
     /**
      * 端口号
      */
     private int port;
     /**
-     * 服务实例id
+     * 元数据：可用区(符号表中的规范实例)
      */
-    private String serviceInstanceId;
+    private String zone;
     /**
-     * 契约
+     * 元数据：服务版本号(由客户端上报、取值不受控，不放进符号表)
      */
-    private Lease lease;
-
-    public ServiceInstance() {
-        this.lease = new Lease();
-    }
+    private String version;
+    /**
+     * 元数据：标签，去重排序后以逗号拼接的规范文本(标签组合不受控，不放进符号表)
+     */
+    private String tags;
+    /**
+     * 契约：最近一次心跳时间(存在多线程读写，一定要用 volatile 保证内存可见性)
+     */
+    private volatile long latestHeartbeatTime = RegisterServerScheduler.getInstance().now();
+    /**
+     * 契约：注册时间，由接收注册请求的节点确定并随集群同步传播，作为契约版本号
+     */
+    private long registrationTimestamp = latestHeartbeatTime;
+    /**
+     * 契约：契约时长，由服务端按负载在注册、心跳时协商，超过这个时间没有心跳认为服务实例不再存活
+     */
+    private volatile long leaseDuration = NOT_ALIVE_PERIOD;
 
     /**
-     * 服务实例续约
+     * 服务实例续约：发送一次心跳，就等于将客户端与服务端之间的契约进行续约
      */
     public void renew() {
-        this.lease.renew();
+        this.latestHeartbeatTime = RegisterServerScheduler.getInstance().now();
+        System.out.println("服务实例【" + serviceInstanceId + "】，进行续约：" + latestHeartbeatTime);
     }
 
     /**
-     * 判断服务实例是否存活
+     * 判断服务实例的契约是否存活
      */
     public Boolean isAlive() {
-        return this.lease.isAlive();
+
+        long currentTime = RegisterServerScheduler.getInstance().now();
+
+        if (!isAlive(currentTime)) {
+            System.out.println("服务实例【" + serviceInstanceId + "】，已经死亡");
+            return false;
+        }
+
+        System.out.println("服务实例【" + serviceInstanceId + "】，保持存活");
+        return true;
+    }
+
+    /**
+     * 判断服务实例的契约在指定时间是否存活(不打印日志，供大规模扫描使用)
+     *
+     * @param currentTime 当前时间戳
+     * @return
+     */
+    public boolean isAlive(long currentTime) {
+        return currentTime - latestHeartbeatTime <= leaseDuration;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * 设置契约时长
+     *
+     * @param leaseDuration 契约时长，不大于0时使用默认值
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration > 0 ? leaseDuration : NOT_ALIVE_PERIOD;
+    }
+
+    /**
+     * 按契约时长推算服务实例的心跳间隔
+     *
+     * @return
+     */
+    public long getHeartbeatInterval() {
+        return leaseDuration * HEARTBEAT_INTERVAL / NOT_ALIVE_PERIOD;
+    }
+
+    /**
+     * 按契约时长推算的每分钟期望心跳次数(千分之一次)，与 {@link #getHeartbeatInterval()} 一致
+     *
+     * @param leaseDuration 契约时长
+     * @return
+     */
+    static long expectedHeartbeatMillis(long leaseDuration) {
+        long heartbeatInterval = Math.max(1L, leaseDuration * HEARTBEAT_INTERVAL / NOT_ALIVE_PERIOD);
+        return 60 * 1000 * 1000L / heartbeatInterval;
+    }
+
+    public long getLatestHeartbeatTime() {
+        return latestHeartbeatTime;
+    }
+
+    void setLatestHeartbeatTime(long latestHeartbeatTime) {
+        this.latestHeartbeatTime = latestHeartbeatTime;
+    }
+
+    public long getRegistrationTimestamp() {
+        return registrationTimestamp;
+    }
+
+    public void setRegistrationTimestamp(long registrationTimestamp) {
+        this.registrationTimestamp = registrationTimestamp;
+    }
+
+    /**
+     * 判断两个服务实例的注册内容是否相同(不比较契约版本号和心跳时间)，用于识别没有变化的重复注册
+     *
+     * @param other 另一个服务实例
+     * @return
+     */
+    public boolean contentEquals(ServiceInstance other) {
+        return other != null
+                && port == other.port
+                && ipVersion == other.ipVersion
+                && ipHigh == other.ipHigh
+                && ipLow == other.ipLow
+                && Objects.equals(ipText, other.ipText)
+                && Objects.equals(serviceName, other.serviceName)
+                && Objects.equals(serviceInstanceId, other.serviceInstanceId)
+                && Objects.equals(hostname, other.hostname)
+                && Objects.equals(zone, other.zone)
+                && Objects.equals(version, other.version)
+                && Objects.equals(tags, other.tags);
+    }
+
+    byte getIpVersion() {
+        return ipVersion;
+    }
+
+    long getIpHigh() {
+        return ipHigh;
+    }
+
+    long getIpLow() {
+        return ipLow;
+    }
+
+    /**
+     * 直接以原始类型设置已解析的IP地址(存储引擎还原实例时使用)
+     */
+    void setIpAddress(byte ipVersion, long ipHigh, long ipLow) {
+        this.ipText = null;
+        this.ipVersion = ipVersion;
+        this.ipHigh = ipHigh;
+        this.ipLow = ipLow;
     }
 
     public String getServiceName() {
@@ -63,15 +223,60 @@ public class ServiceInstance {
     }
 
     public void setServiceName(String serviceName) {
-        this.serviceName = serviceName;
+        this.serviceName = SymbolTable.getInstance().intern(serviceName);
     }
 
     public String getIp() {
-        return ip;
+        if (ipVersion == IP_V4) {
+            return ((ipLow >>> 24) & 0xFF) + "." + ((ipLow >>> 16) & 0xFF) + "."
+                    + ((ipLow >>> 8) & 0xFF) + "." + (ipLow & 0xFF);
+        }
+        if (ipVersion == IP_V6) {
+            byte[] address = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                address[i] = (byte) (ipHigh >>> (56 - 8 * i));
+                address[8 + i] = (byte) (ipLow >>> (56 - 8 * i));
+            }
+            try {
+                return InetAddress.getByAddress(address).getHostAddress();
+            } catch (UnknownHostException e) {
+                // 16字节地址不会出现
+                throw new IllegalStateException(e);
+            }
+        }
+        return ipText;
     }
 
     public void setIp(String ip) {
-        this.ip = ip;
+        this.ipText = null;
+        this.ipHigh = 0L;
+        this.ipLow = 0L;
+        this.ipVersion = IP_NONE;
+
+        if (ip == null) {
+            return;
+        }
+
+        long ipv4 = parseIpv4(ip);
+        if (ipv4 >= 0) {
+            this.ipLow = ipv4;
+            this.ipVersion = IP_V4;
+            return;
+        }
+
+        // 手工解析 IPv6 字面量：IP 由客户端上报，交给 InetAddress.getByName 可能在注册路径上触发 DNS 查询
+        int[] groups = new int[8];
+        if (ip.indexOf(':') >= 0 && parseIpv6(ip, groups)) {
+            for (int i = 0; i < 4; i++) {
+                this.ipHigh = (this.ipHigh << 16) | groups[i];
+                this.ipLow = (this.ipLow << 16) | groups[4 + i];
+            }
+            this.ipVersion = IP_V6;
+            return;
+        }
+
+        // 非法地址、IPv4 映射地址(还原时会变成 IPv4 文本)保留原始文本
+        this.ipText = ip;
     }
 
     public String getHostname() {
@@ -98,48 +303,178 @@ public class ServiceInstance {
         this.serviceInstanceId = serviceInstanceId;
     }
 
-    public Lease getLease() {
-        return lease;
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = SymbolTable.getInstance().intern(zone);
+    }
+
+    public String getVersion() {
+        return version;
     }
 
-    public void setLease(Lease lease) {
-        this.lease = lease;
+    public void setVersion(String version) {
+        this.version = version;
     }
 
     /**
-     * 契约对象：维护一个服务实例跟当前注册中心的联系，包含心跳时间、创建时间等
+     * 获取标签
+     *
+     * @return 去重排序后的标签
      */
-    private class Lease {
-
-        /**
-         * 最近一次心跳时间(存在多线程读写，一定要用 volatile 保证内存可见性)
-         */
-        private volatile Long latestHeartbeatTime = System.currentTimeMillis();
+    public List<String> getTags() {
+        return tags == null ? Collections.emptyList() : Arrays.asList(tags.split(","));
+    }
 
-        /**
-         * 续约操作：发送一次心跳，就等于将客户端与服务端之间的契约进行续约
-         */
-        public void renew() {
-            this.latestHeartbeatTime = System.currentTimeMillis();
-            System.out.println("服务实例【" + serviceInstanceId + "】，进行续约：" + latestHeartbeatTime);
+    /**
+     * 设置标签(标签中不能包含逗号)
+     *
+     * @param tags 标签
+     */
+    public void setTags(Collection<String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            this.tags = null;
+            return;
+        }
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String tag : tags) {
+            if (tag.indexOf(',') >= 0) {
+                throw new IllegalArgumentException("标签中不能包含逗号：" + tag);
+            }
+            if (!tag.isEmpty()) {
+                sorted.add(tag);
+            }
         }
+        setTagsText(sorted.isEmpty() ? null : String.join(",", sorted));
+    }
 
-        /**
-         * 判断当前服务实例的契约是否存活
-         *
-         * @return
-         */
-        public Boolean isAlive() {
+    String getTagsText() {
+        return tags;
+    }
 
-            long currentTime = System.currentTimeMillis();
+    /**
+     * 直接设置规范化后的标签文本(存储引擎还原实例时使用)
+     */
+    void setTagsText(String tags) {
+        this.tags = tags;
+    }
 
-            if (currentTime - latestHeartbeatTime > NOT_ALIVE_PERIOD) {
-                System.out.println("服务实例【" + serviceInstanceId + "】，已经死亡");
+    /**
+     * 解析点分十进制 IPv4 地址
+     *
+     * @param ip IP地址文本
+     * @return 32位无符号地址，不是合法 IPv4 地址时返回 -1
+     */
+    /**
+     * 解析 IPv6 字面量(不含方括号和 %scope)，支持 :: 缩写和点分十进制 IPv4 结尾
+     *
+     * @param ip     文本
+     * @param groups 解析出的 8 个 16 位分组
+     * @return 不是 IPv6 字面量或者是 IPv4 映射地址时返回 false
+     */
+    private static boolean parseIpv6(String ip, int[] groups) {
+        int doubleColon = ip.indexOf("::");
+        if (doubleColon < 0) {
+            if (parseIpv6Groups(ip, groups, 0, true) != 8) {
+                return false;
+            }
+        } else {
+            if (ip.indexOf("::", doubleColon + 1) >= 0) {
+                return false;
+            }
+            int[] tail = new int[8];
+            int headCount = parseIpv6Groups(ip.substring(0, doubleColon), groups, 0, false);
+            int tailCount = parseIpv6Groups(ip.substring(doubleColon + 2), tail, 0, true);
+            if (headCount < 0 || tailCount < 0 || headCount + tailCount > 7) {
                 return false;
             }
+            System.arraycopy(tail, 0, groups, 8 - tailCount, tailCount);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            if (groups[i] != 0) {
+                return true;
+            }
+        }
+        return groups[5] != 0xFFFF;
+    }
+
+    /**
+     * 解析以冒号分隔的若干分组
+     *
+     * @return 分组数量，格式错误返回 -1
+     */
+    private static int parseIpv6Groups(String text, int[] groups, int count, boolean ipv4Tail) {
+        if (text.isEmpty()) {
+            return count;
+        }
+        String[] fields = text.split(":", -1);
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i];
+            if (ipv4Tail && i == fields.length - 1 && field.indexOf('.') >= 0) {
+                long ipv4 = parseIpv4(field);
+                if (ipv4 < 0 || count + 2 > 8) {
+                    return -1;
+                }
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xFFFF);
+                continue;
+            }
+            if (field.isEmpty() || field.length() > 4 || count == 8) {
+                return -1;
+            }
+            int value = 0;
+            for (int j = 0; j < field.length(); j++) {
+                int digit = hexDigit(field.charAt(j));
+                if (digit < 0) {
+                    return -1;
+                }
+                value = (value << 4) | digit;
+            }
+            groups[count++] = value;
+        }
+        return count;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long parseIpv4(String ip) {
+        long address = 0L;
+        int octets = 0;
+        int value = -1;
+
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && value >= 0 && octets < 3) {
+                address = (address << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
 
-            System.out.println("服务实例【" + serviceInstanceId + "】，保持存活");
-            return true;
+        if (value < 0 || octets != 3) {
+            return -1;
         }
+        return (address << 8) | value;
     }
 }
@@ -0,0 +1,147 @@
+package com.laravelshao.register.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务实例二级索引
+ * <p>
+ * 按服务名称、主机名、IP、可用区、服务版本号建立二级索引，按标签建立倒排索引，索引值为服务实例 key(服务名称 + '\n' + 服务实例ID)。
+ * 注册、移除时在注册表写锁内增量维护；查询时取候选集合最小的一个索引，再用其它索引过滤，代价与结果数量成正比
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+class ServiceInstanceIndex {
+
+    private final Map<String, Set<String>> byServiceName = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byHostname = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byIp = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byZone = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byVersion = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byTag = new ConcurrentHashMap<>();
+
+    /**
+     * 加入索引
+     *
+     * @param serviceInstance 服务实例
+     */
+    void add(ServiceInstance serviceInstance) {
+        String key = RegistryHash.key(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+        add(byServiceName, serviceInstance.getServiceName(), key);
+        add(byHostname, serviceInstance.getHostname(), key);
+        add(byIp, serviceInstance.getIp(), key);
+        add(byZone, serviceInstance.getZone(), key);
+        add(byVersion, serviceInstance.getVersion(), key);
+        for (String tag : serviceInstance.getTags()) {
+            add(byTag, tag, key);
+        }
+    }
+
+    /**
+     * 移出索引
+     *
+     * @param serviceInstance 服务实例(索引字段与加入时一致)
+     */
+    void remove(ServiceInstance serviceInstance) {
+        String key = RegistryHash.key(serviceInstance.getServiceName(), serviceInstance.getServiceInstanceId());
+        remove(byServiceName, serviceInstance.getServiceName(), key);
+        remove(byHostname, serviceInstance.getHostname(), key);
+        remove(byIp, serviceInstance.getIp(), key);
+        remove(byZone, serviceInstance.getZone(), key);
+        remove(byVersion, serviceInstance.getVersion(), key);
+        for (String tag : serviceInstance.getTags()) {
+            remove(byTag, tag, key);
+        }
+    }
+
+    /**
+     * 按查询条件查找候选服务实例 key
+     *
+     * @param query 查询条件
+     * @return 查询条件中没有可以走索引的字段时返回 null
+     */
+    List<String[]> lookup(ServiceInstanceQuery query) {
+        List<Set<String>> candidates = new ArrayList<>();
+        if (!collect(candidates, byServiceName, query.getServiceName())
+                || !collect(candidates, byHostname, query.getHostname())
+                || !collect(candidates, byIp, query.getIp())
+                || !collect(candidates, byZone, query.getZone())
+                || !collect(candidates, byVersion, query.getVersion())) {
+            return new ArrayList<>();
+        }
+        if (query.getTags() != null) {
+            for (String tag : query.getTags()) {
+                if (!collect(candidates, byTag, tag)) {
+                    return new ArrayList<>();
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        Set<String> smallest = candidates.get(0);
+        for (Set<String> candidate : candidates) {
+            if (candidate.size() < smallest.size()) {
+                smallest = candidate;
+            }
+        }
+
+        List<String[]> keys = new ArrayList<>();
+        for (String key : smallest) {
+            boolean matched = true;
+            for (Set<String> candidate : candidates) {
+                if (candidate != smallest && !candidate.contains(key)) {
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                int separator = key.indexOf('\n');
+                keys.add(new String[]{key.substring(0, separator), key.substring(separator + 1)});
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 收集一个条件对应的索引集合
+     *
+     * @return 条件有值但索引中没有时返回 false(结果一定为空)
+     */
+    private static boolean collect(List<Set<String>> candidates, Map<String, Set<String>> index, String value) {
+        if (value == null) {
+            return true;
+        }
+        Set<String> keys = index.get(value);
+        if (keys == null || keys.isEmpty()) {
+            return false;
+        }
+        candidates.add(keys);
+        return true;
+    }
+
+    private static void add(Map<String, Set<String>> index, String value, String key) {
+        if (value != null) {
+            index.computeIfAbsent(value, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    private static void remove(Map<String, Set<String>> index, String value, String key) {
+        if (value == null) {
+            return;
+        }
+        Set<String> keys = index.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(value, keys);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.laravelshao.register.server.core;
+
+import java.util.List;
+
+/**
+ * 服务实例查询条件：所有设置了的条件同时满足，标签要求包含全部指定标签
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class ServiceInstanceQuery {
+
+    private String serviceName;
+    private String hostname;
+    private String ip;
+    private String zone;
+    private String version;
+    private List<String> tags;
+
+    /**
+     * 判断服务实例是否满足查询条件
+     *
+     * @param serviceInstance 服务实例
+     * @return
+     */
+    public boolean matches(ServiceInstance serviceInstance) {
+        return (serviceName == null || serviceName.equals(serviceInstance.getServiceName()))
+                && (hostname == null || hostname.equals(serviceInstance.getHostname()))
+                && (ip == null || ip.equals(serviceInstance.getIp()))
+                && (zone == null || zone.equals(serviceInstance.getZone()))
+                && (version == null || version.equals(serviceInstance.getVersion()))
+                && (tags == null || serviceInstance.getTags().containsAll(tags));
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public void setHostname(String hostname) {
+        this.hostname = hostname;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    /**
+     * 设置IP地址，按服务实例的规则规范化(例如 IPv6 地址的不同写法)
+     *
+     * @param ip IP地址
+     */
+    public void setIp(String ip) {
+        if (ip == null) {
+            this.ip = null;
+            return;
+        }
+        ServiceInstance normalized = new ServiceInstance();
+        normalized.setIp(ip);
+        this.ip = normalized.getIp();
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceInstanceQuery{" +
+                "serviceName='" + serviceName + '\'' +
+                ", hostname='" + hostname + '\'' +
+                ", ip='" + ip + '\'' +
+                ", zone='" + zone + '\'' +
+                ", version='" + version + '\'' +
+                ", tags=" + tags +
+                '}';
+    }
+}
@@ -1,98 +1,78 @@
 package com.laravelshao.register.server.core;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.function.Consumer;
 
 /**
  * 注册表
+ * <p>
+ * 通过 register.server.registry-mode 选择实现：
+ * <ul>
+ *     <li>locking(默认)：{@link LockingServiceRegistry}，全局读写锁 + 可插拔存储引擎</li>
+ *     <li>partitioned：{@link PartitionedServiceRegistry}，按服务分区、分区线程独占写入，写入路径不加锁</li>
+ * </ul>
  *
  * @author qinghua.shao
  * @date 2022/6/19
  * @since 1.0.0
  */
-public class ServiceRegistry {
+public interface ServiceRegistry {
 
     /**
-     * 最近变更服务实例检查间隔
-     */
-    public static final Long RECENTLY_CHANGED_ITEM_CHECK_INTERVAL = 3000L;
-    /**
-     * 最近变更服务实例队列维护过期时间
+     * 注册表实现：locking(默认)、partitioned
      */
-    public static final Long RECENTLY_CHANGED_ITEM_EXPIRED = 3 * 60 * 1000L;
+    String REGISTRY_MODE = RegisterServerConfig.getString("register.server.registry-mode", "locking");
 
     /**
-     * 设置为单例
-     */
-    private static ServiceRegistry instance = new ServiceRegistry();
-
-    /**
-     * 注册表：核心内存数据结构
-     * <p>
-     * 外层MAP：key 为服务名称，value 为这个服务的所有服务实例
-     * 内层MAP：key 为服务实例ID，value 为服务实例信息
+     * 最近变更服务实例检查间隔
      */
-    private Map<String, Map<String, ServiceInstance>> registry = new ConcurrentHashMap<>();
-
+    long RECENTLY_CHANGED_ITEM_CHECK_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.recently-changed-check-interval", 3000L);
     /**
-     * 最近变更的服务实例的队列
+     * 最近变更服务实例队列维护过期时间
      */
-    private Queue<RecentlyChangedServiceInstance> recentlyChangedQueue = new ConcurrentLinkedQueue<>();
+    long RECENTLY_CHANGED_ITEM_EXPIRED = RegisterServerConfig.getLong(
+            "register.server.recently-changed-expired", 3 * 60 * 1000L);
 
     /**
-     * 读写锁
+     * 是否开启集群间反熵修复(开启后注册表维护 Merkle 摘要，分区模式不支持)
      */
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private ReadLock readLock = lock.readLock();
-    private WriteLock writeLock = lock.writeLock();
-
-    private ServiceRegistry() {
-        RecentlyChangedQueueMonitor recentlyChangedQueueMonitor = new RecentlyChangedQueueMonitor();
-        recentlyChangedQueueMonitor.setDaemon(true);
-        recentlyChangedQueueMonitor.start();
-    }
+    boolean ANTI_ENTROPY_ENABLED = Boolean.parseBoolean(
+            RegisterServerConfig.getString("register.server.anti-entropy.enabled", "false"));
 
     /**
      * 获取实例对象
      *
      * @return
      */
-    public static ServiceRegistry getInstance() {
-        return instance;
+    static ServiceRegistry getInstance() {
+        return "partitioned".equals(REGISTRY_MODE)
+                ? PartitionedServiceRegistry.getInstance() : LockingServiceRegistry.getInstance();
     }
 
     /**
-     * 加读锁
+     * 加读锁：持有期间注册表内容和版本号不变，多次读取得到的是同一时刻的注册表
      */
-    public void readLock() {
-        this.readLock.lock();
-    }
+    void readLock();
 
     /**
      * 释放读锁
      */
-    public void readUnlock() {
-        this.readLock.unlock();
-    }
+    void readUnlock();
 
     /**
-     * 加写锁
+     * 加写锁(可重入)：把一组写操作合并在一次加锁内
      */
-    public void writeLock() {
-        this.writeLock.lock();
-    }
+    void writeLock();
 
     /**
      * 释放写锁
      */
-    public void writeUnlock() {
-        this.writeLock.unlock();
-    }
+    void writeUnlock();
 
     /**
      * 获取服务实例信息
@@ -101,121 +81,190 @@ public class ServiceRegistry {
      * @param serviceInstanceId 服务实例ID
      * @return
      */
-    public synchronized ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId) {
+    ServiceInstance getServiceInstance(String serviceName, String serviceInstanceId);
 
-        try {
-            // 加读锁
-            this.readLock();
+    /**
+     * 按主机名、IP、可用区、版本号、标签查询服务实例
+     *
+     * @param query 查询条件
+     * @return
+     */
+    List<ServiceInstance> findServiceInstances(ServiceInstanceQuery query);
 
-            Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
-            if (serviceInstanceMap != null) {
-                return serviceInstanceMap.get(serviceInstanceId);
-            }
-        } finally {
-            // 释放读锁
-            this.readUnlock();
-        }
+    /**
+     * 服务实例续约
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 服务实例不存在时返回 false
+     */
+    boolean renew(String serviceName, String serviceInstanceId);
 
-        return null;
-    }
+    /**
+     * 服务实例续约，同时更新协商后的契约时长
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @param leaseDuration     契约时长，不大于0时保持不变
+     * @return 服务实例不存在时返回 false
+     */
+    boolean renew(String serviceName, String serviceInstanceId, long leaseDuration);
 
     /**
      * 获取完整注册表信息
      *
      * @return
      */
-    public synchronized Map<String, Map<String, ServiceInstance>> getRegistry() {
-        return registry;
-    }
+    Map<String, Map<String, ServiceInstance>> getRegistry();
 
     /**
-     * 获取最近有变化的注册表
+     * 遍历注册表中的所有服务实例
      *
-     * @return
+     * @param action 对每个服务实例执行的操作
      */
-    public synchronized DeltaRegistry getDeltaRegistry() {
+    void forEach(Consumer<ServiceInstance> action);
 
-        Long totalCount = 0L;
-        for (Map<String, ServiceInstance> serviceInstanceMap : registry.values()) {
-            totalCount += serviceInstanceMap.size();
-        }
+    /**
+     * 将全量注册表按 {@link InstanceRecordLayout} 的格式编码写入 channel
+     *
+     * @param channel 输出 channel
+     * @throws IOException
+     */
+    void writeFullRegistry(WritableByteChannel channel) throws IOException;
 
-        DeltaRegistry deltaRegistry = new DeltaRegistry(recentlyChangedQueue, totalCount);
+    /**
+     * 从 channel 读取全量注册表编码并批量写入注册表(新节点启动时从其它节点拉取快照)，
+     * 不记录最近变更，本地已有的契约版本号不旧于快照的服务实例保持不变
+     *
+     * @param channel      输入 channel
+     * @param chunkRecords 每块记录数
+     * @return 快照中的服务实例数量
+     * @throws IOException
+     */
+    int loadFullRegistry(ReadableByteChannel channel, int chunkRecords) throws IOException;
 
-        return deltaRegistry;
-    }
+    /**
+     * 获取注册表中存活的服务实例数量
+     *
+     * @return
+     */
+    long getServiceInstanceCount();
 
     /**
-     * 服务注册
+     * 获取所有服务实例每分钟期望心跳次数之和
      *
-     * @param serviceInstance 服务实例
+     * @return
      */
-    public void register(ServiceInstance serviceInstance) {
+    long getExpectedHeartbeatsPerMinute();
 
-        try {
-            // 加写锁
-            this.writeLock();
+    /**
+     * 获取所有服务的修订号(调用方持有读锁，保证和注册表内容一致)
+     *
+     * @return key 为服务名称，只包含有服务实例的服务
+     */
+    Map<String, Long> getServiceRevisions();
 
-            // 将服务实例放入最近变更的队列中
-            RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
-                    serviceInstance,
-                    System.currentTimeMillis(),
-                    ServiceInstanceOperation.REGISTER);
-            recentlyChangedQueue.offer(recentlyChangedItem);
+    /**
+     * 获取一个服务的所有服务实例(调用方持有读锁)
+     *
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID
+     */
+    Map<String, ServiceInstance> getServiceInstances(String serviceName);
 
-            // 获取指定服务名称的服务实例MAP
-            Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceInstance.getServiceName());
+    /**
+     * 获取注册表 Merkle 摘要
+     *
+     * @return 未开启反熵修复时返回 null
+     */
+    RegistryMerkleTree getMerkleTree();
 
-            // 不存在则初始化
-            if (serviceInstanceMap == null) {
-                serviceInstanceMap = new ConcurrentHashMap<>();
-                registry.put(serviceInstance.getServiceName(), serviceInstanceMap);
-            }
+    /**
+     * 获取最近有变化的注册表
+     *
+     * @return
+     */
+    DeltaRegistry getDeltaRegistry();
 
-            // 添加服务实例至注册表
-            serviceInstanceMap.put(serviceInstance.getServiceInstanceId(), serviceInstance);
+    /**
+     * 注册表版本号
+     *
+     * @return
+     */
+    long getVersion();
 
-            System.out.println("服务实例【" + serviceInstance + "】注册成功");
-            System.out.println("注册表：" + registry);
-        } finally {
-            this.writeUnlock();
-        }
-    }
+    /**
+     * 注册表哈希
+     *
+     * @return
+     */
+    long getRegistryHash();
 
     /**
-     * 服务移除(从注册表移除)
+     * 添加变更监听器
      *
-     * @param serviceName       服务名称
-     * @param serviceInstanceId 服务实例ID
+     * @param listener 按版本号顺序回调，必须只做内存操作不能阻塞；
+     *                 批量加载快照等不记录最近变更的写入同样会推进版本号，监听器会看到版本号不连续
+     * @return 添加时的注册表版本号，版本号大于它的变更都会回调给监听器
      */
-    public synchronized void remove(String serviceName, String serviceInstanceId) {
+    long addChangeListener(Consumer<RecentlyChangedServiceInstance> listener);
 
-        try {
-            // 加写锁
-            this.writeLock();
+    void removeChangeListener(Consumer<RecentlyChangedServiceInstance> listener);
 
-            System.out.println("服务实例【" + serviceInstanceId + "】，从注册表中移除");
+    /**
+     * 服务注册
+     *
+     * @param serviceInstance 服务实例
+     */
+    void register(ServiceInstance serviceInstance);
 
-            // 获取服务实例
-            Map<String, ServiceInstance> serviceInstanceMap = registry.get(serviceName);
-            ServiceInstance serviceInstance = serviceInstanceMap.get(serviceInstanceId);
+    /**
+     * 批量服务注册
+     *
+     * @param serviceInstances 服务实例列表
+     */
+    void register(List<ServiceInstance> serviceInstances);
 
-            // 将服务实例添加到最近变更服务实例队列中
-            RecentlyChangedServiceInstance recentlyChangedItem = new RecentlyChangedServiceInstance(
-                    serviceInstance,
-                    System.currentTimeMillis(),
-                    ServiceInstanceOperation.REMOVE);
-            recentlyChangedQueue.offer(recentlyChangedItem);
+    /**
+     * 客户端发起的服务注册：注册内容和已有服务实例相同时只续约，不产生变更(网络抖动后的重复注册不再引起缓存重建和集群同步)
+     *
+     * @param serviceInstance 服务实例
+     * @return 注册表发生变化时返回 true，只续约时返回 false
+     */
+    boolean registerOrRenew(ServiceInstance serviceInstance);
 
-            // 从服务注册表删除服务实例
-            serviceInstanceMap.remove(serviceInstanceId);
+    /**
+     * 批量的客户端服务注册：注册内容没有变化的服务实例只续约
+     *
+     * @param serviceInstances 服务实例列表
+     * @return 与服务实例一一对应，注册表发生变化时为 true
+     */
+    boolean[] registerOrRenew(List<ServiceInstance> serviceInstances);
 
-            System.out.println("注册表：" + registry);
-        } finally {
-            // 释放写锁
-            this.writeUnlock();
-        }
-    }
+    /**
+     * 服务移除(从注册表移除)
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     */
+    void remove(String serviceName, String serviceInstanceId);
+
+    /**
+     * 批量服务移除
+     *
+     * @param serviceInstances 要移除的服务实例列表(只用到服务名称和服务实例ID)
+     */
+    void remove(List<ServiceInstance> serviceInstances);
+
+    /**
+     * 摘除过期的服务实例：候选实例由无锁扫描找出，扫描之后可能又收到了心跳或者重新注册，
+     * 按注册表中的最新状态再判断一次，只摘除仍然过期的
+     *
+     * @param candidates  扫描找出的过期服务实例
+     * @param currentTime 扫描时间
+     * @return 实际摘除的服务实例数量
+     */
+    int removeExpired(List<ServiceInstance> candidates, long currentTime);
 
     /**
      * 最近变化的服务实例
@@ -237,17 +286,40 @@ public class ServiceRegistry {
          */
         String serviceInstanceOperation;
 
-        public RecentlyChangedServiceInstance(
-                ServiceInstance serviceInstance, Long changedTimestamp, String serviceInstanceOperation) {
+        /**
+         * 变更后的注册表版本号
+         */
+        long version;
+
+        public RecentlyChangedServiceInstance(ServiceInstance serviceInstance, Long changedTimestamp,
+                                              String serviceInstanceOperation, long version) {
             this.serviceInstance = serviceInstance;
             this.changedTimestamp = changedTimestamp;
             this.serviceInstanceOperation = serviceInstanceOperation;
+            this.version = version;
+        }
+
+        public ServiceInstance getServiceInstance() {
+            return serviceInstance;
+        }
+
+        public Long getChangedTimestamp() {
+            return changedTimestamp;
+        }
+
+        public String getServiceInstanceOperation() {
+            return serviceInstanceOperation;
+        }
+
+        public long getVersion() {
+            return version;
         }
 
         @Override
         public String toString() {
             return "RecentlyChangedServiceInstance [serviceInstance=" + serviceInstance + ", changedTimestamp="
-                    + changedTimestamp + ", serviceInstanceOperation=" + serviceInstanceOperation + "]";
+                    + changedTimestamp + ", serviceInstanceOperation=" + serviceInstanceOperation
+                    + ", version=" + version + "]";
         }
     }
 
@@ -265,37 +337,4 @@ public class ServiceRegistry {
          */
         public static final String REMOVE = "remove";
     }
-
-    /**
-     * 最近变更队列的监控线程
-     */
-    class RecentlyChangedQueueMonitor extends Thread {
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    try {
-                        writeLock();
-
-                        RecentlyChangedServiceInstance recentlyChangedItem = null;
-                        long currentTimestamp = System.currentTimeMillis();
-
-                        while ((recentlyChangedItem = recentlyChangedQueue.peek()) != null) {
-                            // 判断如果一个服务实例变更信息已经在队列里存在超过3分钟就从队列中移除
-                            if (currentTimestamp - recentlyChangedItem.changedTimestamp > RECENTLY_CHANGED_ITEM_EXPIRED) {
-                                recentlyChangedQueue.poll();
-                            }
-                        }
-                    } finally {
-                        writeUnlock();
-                    }
-                    Thread.sleep(RECENTLY_CHANGED_ITEM_CHECK_INTERVAL);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
 }
-
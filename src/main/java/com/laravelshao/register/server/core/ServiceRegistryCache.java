@@ -2,8 +2,10 @@ package com.laravelshao.register.server.core;
 
 import com.laravelshao.register.server.web.Applications;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -18,13 +20,14 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 public class ServiceRegistryCache {
 
     /**
-     * 单例
+     * 缓存数据同步间隔(需要在单例之前初始化)
      */
-    private static final ServiceRegistryCache instance = new ServiceRegistryCache();
+    private static final long CACHE_MAP_SYNC_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.cache-map-sync-interval", 30 * 1000L);
     /**
-     * 缓存数据同步间隔
+     * 单例
      */
-    private static final Long CACHE_MAP_SYNC_INTERVAL = 30 * 1000L;
+    private static final ServiceRegistryCache instance = new ServiceRegistryCache();
 
     /**
      * 缓存key
@@ -55,9 +58,10 @@ public class ServiceRegistryCache {
      */
     private Map<String, Object> readWriteMap = new HashMap<String, Object>();
     /**
-     * cache map同步后台线程
+     * 每个服务的注册表快照：全量注册表由它们拼装，服务修订号没有变化的服务直接复用，
+     * 只有发生变化的服务需要重新复制
      */
-    private CacheMapSyncDaemon cacheMapSyncDaemon;
+    private Map<String, ServiceSnapshot> serviceSnapshots = new ConcurrentHashMap<>();
     /**
      * 内部锁
      */
@@ -73,10 +77,8 @@ public class ServiceRegistryCache {
      * 构造函数
      */
     public ServiceRegistryCache() {
-        // 启动缓存数据同步后台线程
-        this.cacheMapSyncDaemon = new CacheMapSyncDaemon();
-        this.cacheMapSyncDaemon.setDaemon(true);
-        this.cacheMapSyncDaemon.start();
+        // 注册缓存数据同步后台任务
+        RegisterServerScheduler.getInstance().schedule("cache-map-sync", CACHE_MAP_SYNC_INTERVAL, this::syncCacheMap);
     }
 
     /**
@@ -122,7 +124,10 @@ public class ServiceRegistryCache {
         try {
             registry.readLock();
             if (CacheKey.FULL_SERVICE_REGISTRY.equals(cacheKey)) {
-                return new Applications(registry.getRegistry());
+                Applications applications = new Applications(buildFullRegistry());
+                applications.setVersion(registry.getVersion());
+                applications.setRegistryHash(registry.getRegistryHash());
+                return applications;
             } else if (CacheKey.DELTA_SERVICE_REGISTRY.equals(cacheKey)) {
                 return registry.getDeltaRegistry();
             }
@@ -132,6 +137,30 @@ public class ServiceRegistryCache {
         return null;
     }
 
+    /**
+     * 由每个服务的快照拼装全量注册表(调用方持有注册表读锁)
+     *
+     * @return
+     */
+    private Map<String, Map<String, ServiceInstance>> buildFullRegistry() {
+        Map<String, Long> revisions = registry.getServiceRevisions();
+        Map<String, Map<String, ServiceInstance>> fullRegistry = new HashMap<>(revisions.size() * 2);
+        for (Map.Entry<String, Long> entry : revisions.entrySet()) {
+            String serviceName = entry.getKey();
+            long revision = entry.getValue();
+            ServiceSnapshot snapshot = serviceSnapshots.get(serviceName);
+            if (snapshot == null || snapshot.revision != revision) {
+                snapshot = new ServiceSnapshot(revision,
+                        Collections.unmodifiableMap(registry.getServiceInstances(serviceName)));
+                serviceSnapshots.put(serviceName, snapshot);
+            }
+            fullRegistry.put(serviceName, snapshot.serviceInstances);
+        }
+        // 已经没有服务实例的服务
+        serviceSnapshots.keySet().retainAll(revisions.keySet());
+        return fullRegistry;
+    }
+
     /**
      * 过期掉对应的缓存
      */
@@ -142,6 +171,40 @@ public class ServiceRegistryCache {
         }
     }
 
+    /**
+     * 立即重新计算全量、增量注册表，同时放入读写缓存和只读缓存(只读节点预热用，拉取请求不再触发计算)
+     */
+    public void refresh() {
+        Object fullRegistry = getCacheValue(CacheKey.FULL_SERVICE_REGISTRY);
+        Object deltaRegistry = getCacheValue(CacheKey.DELTA_SERVICE_REGISTRY);
+        try {
+            writeLock.lock();
+
+            synchronized (lock) {
+                readWriteMap.put(CacheKey.FULL_SERVICE_REGISTRY, fullRegistry);
+                readWriteMap.put(CacheKey.DELTA_SERVICE_REGISTRY, deltaRegistry);
+                readOnlyMap.put(CacheKey.FULL_SERVICE_REGISTRY, fullRegistry);
+                readOnlyMap.put(CacheKey.DELTA_SERVICE_REGISTRY, deltaRegistry);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 一个服务的注册表快照
+     */
+    private static class ServiceSnapshot {
+
+        final long revision;
+        final Map<String, ServiceInstance> serviceInstances;
+
+        ServiceSnapshot(long revision, Map<String, ServiceInstance> serviceInstances) {
+            this.revision = revision;
+            this.serviceInstances = serviceInstances;
+        }
+    }
+
     /**
      * 获取单例
      *
@@ -152,38 +215,23 @@ public class ServiceRegistryCache {
     }
 
     /**
-     * 同步两个缓存map的后台线程
-     *
-     * @author zhonghuashishan
-     */
-    class CacheMapSyncDaemon extends Thread {
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    try {
-                        writeLock.lock();
-
-                        synchronized (lock) {
-                            if (readWriteMap.get(CacheKey.FULL_SERVICE_REGISTRY) == null) {
-                                readOnlyMap.put(CacheKey.FULL_SERVICE_REGISTRY, null);
-                            }
-                            if (readWriteMap.get(CacheKey.DELTA_SERVICE_REGISTRY) == null) {
-                                readOnlyMap.put(CacheKey.DELTA_SERVICE_REGISTRY, null);
-                            }
-                        }
-                    } finally {
-                        writeLock.unlock();
-                    }
+     * 同步两个缓存map：读写缓存已过期的 key，只读缓存也随之过期
+     */
+    void syncCacheMap() {
+        try {
+            writeLock.lock();
 
-                    Thread.sleep(CACHE_MAP_SYNC_INTERVAL);
-                } catch (Exception e) {
-                    e.printStackTrace();
+            synchronized (lock) {
+                if (readWriteMap.get(CacheKey.FULL_SERVICE_REGISTRY) == null) {
+                    readOnlyMap.put(CacheKey.FULL_SERVICE_REGISTRY, null);
+                }
+                if (readWriteMap.get(CacheKey.DELTA_SERVICE_REGISTRY) == null) {
+                    readOnlyMap.put(CacheKey.DELTA_SERVICE_REGISTRY, null);
                 }
             }
+        } finally {
+            writeLock.unlock();
         }
-
     }
 
 }
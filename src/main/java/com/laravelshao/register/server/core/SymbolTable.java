@@ -0,0 +1,60 @@
+package com.laravelshao.register.server.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 共享符号表
+ * <p>
+ * 服务名称、可用区这类在大量服务实例之间重复出现的字符串，统一从这里取规范实例，
+ * 同一个字符串在堆里只保留一份
+ * <p>
+ * 符号表不会淘汰，只能放取值集合有限、不随服务实例上下线增长的字符串，
+ * 主机名、服务实例ID、IP地址这类每个实例各不相同的字符串，以及版本号、标签这类由客户端随意上报、
+ * 每次发布都会产生新取值的字符串不能放进来，否则符号表会随发布次数无限增长
+ *
+ * @author qinghua.shao
+ * @date 2022/8/6
+ * @since 1.0.0
+ */
+public class SymbolTable {
+
+    /**
+     * 单例
+     */
+    private static final SymbolTable instance = new SymbolTable();
+
+    /**
+     * 符号表：key、value 为同一个规范字符串
+     */
+    private ConcurrentHashMap<String, String> symbols = new ConcurrentHashMap<>();
+
+    private SymbolTable() {
+    }
+
+    public static SymbolTable getInstance() {
+        return instance;
+    }
+
+    /**
+     * 获取字符串的规范实例
+     *
+     * @param value 字符串
+     * @return 符号表中的同值字符串
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String symbol = symbols.putIfAbsent(value, value);
+        return symbol != null ? symbol : value;
+    }
+
+    /**
+     * 符号表中的字符串数量
+     *
+     * @return
+     */
+    public int size() {
+        return symbols.size();
+    }
+}
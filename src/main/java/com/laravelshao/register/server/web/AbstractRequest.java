@@ -28,6 +28,16 @@ public class AbstractRequest {
      */
     private Integer type;
 
+    /**
+     * 进入来源节点集群同步组件的时间戳，用来计算端到端同步延迟
+     */
+    private Long originTimestamp;
+
+    /**
+     * 在来源节点集群同步组件中的请求序号
+     */
+    private Long sequence;
+
     public String getServiceName() {
         return serviceName;
     }
@@ -52,6 +62,22 @@ public class AbstractRequest {
         this.type = type;
     }
 
+    public Long getOriginTimestamp() {
+        return originTimestamp;
+    }
+
+    public void setOriginTimestamp(Long originTimestamp) {
+        this.originTimestamp = originTimestamp;
+    }
+
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
     @Override
     public String toString() {
         return "AbstractRequest{" +
@@ -16,6 +16,16 @@ public class Applications {
 
     private Map<String, Map<String, ServiceInstance>> registry = new HashMap<>();
 
+    /**
+     * 注册表版本号
+     */
+    private long version;
+
+    /**
+     * 注册表哈希
+     */
+    private long registryHash;
+
     public Applications() {
     }
 
@@ -30,4 +40,20 @@ public class Applications {
     public void setRegistry(Map<String, Map<String, ServiceInstance>> registry) {
         this.registry = registry;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getRegistryHash() {
+        return registryHash;
+    }
+
+    public void setRegistryHash(long registryHash) {
+        this.registryHash = registryHash;
+    }
 }
@@ -0,0 +1,33 @@
+package com.laravelshao.register.server.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量服务下线请求对象
+ * <p>
+ * 同一台机器(sidecar、多实例宿主机)上的多个服务实例合并成一次请求上报
+ *
+ * @author qinghua.shao
+ * @date 2022/7/30
+ * @since 1.0.0
+ */
+public class BatchCancelRequest {
+
+    /**
+     * 服务下线请求列表
+     */
+    private List<CancelRequest> requests = new ArrayList<>();
+
+    public void add(CancelRequest request) {
+        this.requests.add(request);
+    }
+
+    public List<CancelRequest> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<CancelRequest> requests) {
+        this.requests = requests;
+    }
+}
@@ -0,0 +1,69 @@
+package com.laravelshao.register.server.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量响应对象
+ *
+ * @author qinghua.shao
+ * @date 2022/7/30
+ * @since 1.0.0
+ */
+public class BatchResponse {
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+    public static final String NOT_FOUND = "not_found";
+    public static final String REJECTED = "rejected";
+
+    /**
+     * 每个请求的响应状态：SUCCESS、FAILURE、NOT_FOUND、REJECTED(被准入控制拒绝)，与批量请求中的请求顺序一一对应
+     */
+    private List<String> statuses = new ArrayList<>();
+    /**
+     * 服务端按负载建议的心跳间隔(毫秒)，批量注册、批量心跳时与 statuses 一一对应，没有协商结果的位置为 0
+     */
+    private List<Long> heartbeatIntervals = new ArrayList<>();
+    /**
+     * 服务端为服务实例协商的契约时长(毫秒)，批量注册、批量心跳时与 statuses 一一对应，没有协商结果的位置为 0
+     */
+    private List<Long> leaseDurations = new ArrayList<>();
+
+    public BatchResponse() {
+    }
+
+    public BatchResponse(List<String> statuses) {
+        this.statuses = statuses;
+    }
+
+    public BatchResponse(List<String> statuses, List<Long> heartbeatIntervals, List<Long> leaseDurations) {
+        this.statuses = statuses;
+        this.heartbeatIntervals = heartbeatIntervals;
+        this.leaseDurations = leaseDurations;
+    }
+
+    public List<String> getStatuses() {
+        return statuses;
+    }
+
+    public void setStatuses(List<String> statuses) {
+        this.statuses = statuses;
+    }
+
+    public List<Long> getHeartbeatIntervals() {
+        return heartbeatIntervals;
+    }
+
+    public void setHeartbeatIntervals(List<Long> heartbeatIntervals) {
+        this.heartbeatIntervals = heartbeatIntervals;
+    }
+
+    public List<Long> getLeaseDurations() {
+        return leaseDurations;
+    }
+
+    public void setLeaseDurations(List<Long> leaseDurations) {
+        this.leaseDurations = leaseDurations;
+    }
+}
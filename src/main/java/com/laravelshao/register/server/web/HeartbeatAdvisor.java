@@ -0,0 +1,153 @@
+package com.laravelshao.register.server.web;
+
+import com.laravelshao.register.server.cluster.PeersReplicator;
+import com.laravelshao.register.server.core.HeartbeatCounter;
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.RegistryHash;
+import com.laravelshao.register.server.core.ServiceInstance;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 心跳间隔协商
+ * <p>
+ * 后台任务定期根据 CPU 负载、心跳速率、写入队列和集群同步队列积压计算服务端压力，压力超过目标值时按比例拉长建议的心跳间隔，
+ * 压力回落后逐步恢复。每个服务实例在建议间隔上叠加一个由 (服务名称, 服务实例ID) 哈希决定的固定抖动，
+ * 把同一时刻注册的一批服务实例的心跳错开；契约时长与心跳间隔保持默认的比例(90秒 / 30秒)
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class HeartbeatAdvisor {
+
+    /**
+     * 重新计算服务端压力的时间间隔
+     */
+    private static final long RECOMPUTE_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.heartbeat.advice-interval", 5 * 1000L);
+    /**
+     * 最长的建议心跳间隔
+     */
+    private static final long MAX_HEARTBEAT_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.heartbeat.max-interval", 4 * ServiceInstance.HEARTBEAT_INTERVAL);
+    /**
+     * 每个服务实例的抖动比例：实际间隔落在 [建议间隔 * (1 - 抖动), 建议间隔 * (1 + 抖动)] 之间
+     */
+    private static final double JITTER = Double.parseDouble(
+            RegisterServerConfig.getString("register.server.heartbeat.jitter", "0.1"));
+    /**
+     * 目标 CPU 负载(系统负载 / CPU 核数)
+     */
+    private static final double TARGET_CPU_LOAD = Double.parseDouble(
+            RegisterServerConfig.getString("register.server.heartbeat.target-cpu-load", "0.75"));
+    /**
+     * 目标心跳速率(每分钟)
+     */
+    private static final long TARGET_HEARTBEAT_RATE = RegisterServerConfig.getLong(
+            "register.server.heartbeat.target-rate", 600000L);
+    /**
+     * 目标队列积压(写入队列 + 集群同步队列)
+     */
+    private static final long TARGET_QUEUE_DEPTH = RegisterServerConfig.getLong(
+            "register.server.heartbeat.target-queue-depth", 10000L);
+    /**
+     * 压力回落后每次重新计算时拉长倍数的衰减系数
+     */
+    private static final double STRETCH_DECAY = 0.8;
+
+    private static final HeartbeatAdvisor instance = new HeartbeatAdvisor();
+
+    /**
+     * 当前建议心跳间隔相对默认间隔的倍数
+     */
+    private volatile double stretch = 1.0;
+
+    /**
+     * 上一次计算时的心跳计数和时间，用来推算心跳速率
+     */
+    private long previousHeartbeatCount = 0L;
+    private long previousTime = RegisterServerScheduler.getInstance().now();
+
+    private HeartbeatAdvisor() {
+        RegisterServerScheduler.getInstance().schedule("heartbeat-advice", RECOMPUTE_INTERVAL, this::recompute);
+    }
+
+    public static HeartbeatAdvisor getInstance() {
+        return instance;
+    }
+
+    /**
+     * 计算服务端压力，更新建议心跳间隔的拉长倍数
+     */
+    void recompute() {
+        long now = RegisterServerScheduler.getInstance().now();
+        long heartbeatCount = HeartbeatCounter.getInstance().get();
+        long elapsed = Math.max(1L, now - previousTime);
+        // 心跳计数每分钟重置一次，重置后直接按新计数推算
+        long heartbeats = heartbeatCount >= previousHeartbeatCount ? heartbeatCount - previousHeartbeatCount : heartbeatCount;
+        long heartbeatRate = heartbeats * 60 * 1000L / elapsed;
+        previousHeartbeatCount = heartbeatCount;
+        previousTime = now;
+
+        double cpuLoad = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()
+                / Runtime.getRuntime().availableProcessors();
+        PeersReplicator peersReplicator = PeersReplicator.getInstance();
+        long queueDepth = RegistryWritePipeline.getInstance().getBacklog()
+                + peersReplicator.getMembershipBacklog() + peersReplicator.getHeartbeatBacklog();
+
+        // 取压力最大的一项，系统负载不可用时返回负数，不参与计算
+        double pressure = Math.max(cpuLoad / TARGET_CPU_LOAD,
+                Math.max((double) heartbeatRate / TARGET_HEARTBEAT_RATE, (double) queueDepth / TARGET_QUEUE_DEPTH));
+        double target = Math.min(Math.max(pressure, 1.0),
+                (double) MAX_HEARTBEAT_INTERVAL / ServiceInstance.HEARTBEAT_INTERVAL);
+
+        // 压力上升时立即拉长，回落时逐步恢复，避免间隔来回抖动
+        double previous = stretch;
+        stretch = target >= previous ? target : Math.max(target, previous * STRETCH_DECAY);
+        if (Math.abs(stretch - previous) >= 0.1) {
+            System.out.println("调整建议心跳间隔倍数：" + previous + " -> " + stretch + "，CPU负载=" + cpuLoad
+                    + "，心跳速率=" + heartbeatRate + "/分钟，队列积压=" + queueDepth);
+        }
+    }
+
+    /**
+     * 获取服务实例的建议心跳间隔
+     *
+     * @param serviceName       服务名称
+     * @param serviceInstanceId 服务实例ID
+     * @return 毫秒
+     */
+    public long getHeartbeatInterval(String serviceName, String serviceInstanceId) {
+        // 哈希映射到 [-1, 1)，同一个服务实例每次得到相同的抖动
+        double unit = (RegistryHash.mix(RegistryHash.hash(serviceName + '\n' + serviceInstanceId)) >>> 11)
+                / (double) (1L << 53) * 2 - 1;
+        // 先对建议间隔封顶再叠加抖动，拉长到上限时各实例的心跳仍然是错开的
+        double interval = Math.min(ServiceInstance.HEARTBEAT_INTERVAL * stretch, MAX_HEARTBEAT_INTERVAL / (1 + JITTER));
+        return (long) (interval * (1 + JITTER * unit));
+    }
+
+    /**
+     * 根据心跳间隔计算契约时长
+     *
+     * @param heartbeatInterval 心跳间隔
+     * @return 毫秒
+     */
+    public long getLeaseDuration(long heartbeatInterval) {
+        return heartbeatInterval * ServiceInstance.NOT_ALIVE_PERIOD / ServiceInstance.HEARTBEAT_INTERVAL;
+    }
+
+    /**
+     * 服务端是否处于过载状态(建议心跳间隔已被拉长)
+     *
+     * @return
+     */
+    public boolean isOverloaded() {
+        return stretch > 1.0;
+    }
+
+    public double getStretch() {
+        return stretch;
+    }
+}
@@ -9,4 +9,16 @@ package com.laravelshao.register.server.web;
  */
 public class HeartbeatRequest extends AbstractRequest {
 
-}
\ No newline at end of file
+    /**
+     * 契约时长：客户端不需要设置，由接收心跳请求的节点按负载协商后填充，集群同步时原样传播
+     */
+    private Long leaseDuration;
+
+    public Long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(Long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+}
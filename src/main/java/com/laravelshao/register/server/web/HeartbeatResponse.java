@@ -11,11 +11,24 @@ public class HeartbeatResponse {
 
     public static final String SUCCESS = "success";
     public static final String FAILURE = "failure";
+    public static final String REJECTED = "rejected";
 
     /**
-     * 心跳响应状态：SUCCESS、FAILURE
+     * 心跳响应状态：SUCCESS、FAILURE、REJECTED(被准入控制拒绝)
      */
     private String status;
+    /**
+     * 服务端按负载建议的心跳间隔(毫秒)，客户端按这个间隔发送下一次心跳
+     */
+    private long heartbeatInterval;
+    /**
+     * 服务端为服务实例协商的契约时长(毫秒)，超过这个时间没有心跳会被摘除
+     */
+    private long leaseDuration;
+    /**
+     * 被准入控制拒绝时建议的重试等待时间(毫秒)
+     */
+    private long retryAfter;
 
     public String getStatus() {
         return status;
@@ -24,4 +37,28 @@ public class HeartbeatResponse {
     public void setStatus(String status) {
         this.status = status;
     }
-}
\ No newline at end of file
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+}
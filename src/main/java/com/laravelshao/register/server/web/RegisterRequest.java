@@ -1,5 +1,7 @@
 package com.laravelshao.register.server.web;
 
+import java.util.List;
+
 /**
  * 注册请求对象
  *
@@ -21,6 +23,26 @@ public class RegisterRequest extends AbstractRequest {
      * 服务监听端口号
      */
     private int port;
+    /**
+     * 注册时间(契约版本号)：客户端不需要设置，由接收注册请求的节点填充，集群同步时原样传播
+     */
+    private Long registrationTimestamp;
+    /**
+     * 契约时长：客户端不需要设置，由接收注册请求的节点按负载协商后填充，集群同步时原样传播
+     */
+    private Long leaseDuration;
+    /**
+     * 元数据：可用区
+     */
+    private String zone;
+    /**
+     * 元数据：服务版本号
+     */
+    private String version;
+    /**
+     * 元数据：标签
+     */
+    private List<String> tags;
 
     public String getIp() {
         return ip;
@@ -45,4 +67,44 @@ public class RegisterRequest extends AbstractRequest {
     public void setPort(int port) {
         this.port = port;
     }
+
+    public Long getRegistrationTimestamp() {
+        return registrationTimestamp;
+    }
+
+    public void setRegistrationTimestamp(Long registrationTimestamp) {
+        this.registrationTimestamp = registrationTimestamp;
+    }
+
+    public Long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(Long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
 }
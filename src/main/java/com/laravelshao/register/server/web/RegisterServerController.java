@@ -1,15 +1,34 @@
 package com.laravelshao.register.server.web;
 
+import com.laravelshao.register.server.cluster.FollowerSnapshotWarmer;
 import com.laravelshao.register.server.cluster.PeersReplicateBatch;
 import com.laravelshao.register.server.cluster.PeersReplicator;
+import com.laravelshao.register.server.cluster.RegisterServerCluster;
+import com.laravelshao.register.server.cluster.RegistryBootstrapper;
+import com.laravelshao.register.server.cluster.RegistrySharding;
+import com.laravelshao.register.server.cluster.ReplicationMetrics;
+import com.laravelshao.register.server.cluster.ReplicationMetrics.InboundMetrics;
+import com.laravelshao.register.server.cluster.ReplicationMetrics.OutboundMetrics;
+import com.laravelshao.register.server.cluster.SnapshotSource;
 import com.laravelshao.register.server.core.DeltaRegistry;
 import com.laravelshao.register.server.core.HeartbeatCounter;
-import com.laravelshao.register.server.core.SelfProtectionPolicy;
+import com.laravelshao.register.server.core.RegistryStreamEncoder;
 import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceInstanceQuery;
 import com.laravelshao.register.server.core.ServiceRegistry;
 import com.laravelshao.register.server.core.ServiceRegistryCache;
 import com.laravelshao.register.server.core.ServiceRegistryCache.CacheKey;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 负责接收客户端的服务注册及心跳上报
  * <p>
@@ -33,6 +52,36 @@ public class RegisterServerController {
      */
     private PeersReplicator peersReplicator = PeersReplicator.getInstance();
 
+    /**
+     * 注册表写入流水线(组提交)
+     */
+    private RegistryWritePipeline writePipeline = RegistryWritePipeline.getInstance();
+
+    /**
+     * 新节点启动引导组件
+     */
+    private RegistryBootstrapper bootstrapper = RegistryBootstrapper.getInstance();
+
+    /**
+     * 集群同步 batch 写入组件
+     */
+    private ReplicatedBatchApplier replicatedBatchApplier = ReplicatedBatchApplier.getInstance();
+
+    /**
+     * 注册表分片组件
+     */
+    private RegistrySharding sharding = RegistrySharding.getInstance();
+
+    /**
+     * 心跳间隔协商
+     */
+    private HeartbeatAdvisor heartbeatAdvisor = HeartbeatAdvisor.getInstance();
+
+    /**
+     * 请求准入控制
+     */
+    private RequestAdmission admission = RequestAdmission.getInstance();
+
     /**
      * 服务注册
      *
@@ -41,34 +90,50 @@ public class RegisterServerController {
      */
     public RegisterResponse register(RegisterRequest registerRequest) {
 
+        if (rejectWrite()) {
+            RegisterResponse regResponse = new RegisterResponse();
+            regResponse.setStatus(RegisterResponse.FAILURE);
+            return regResponse;
+        }
+
+        // 准入控制：同一个服务实例注册过于频繁时拒绝
+        long retryAfter = admission.admit(RequestAdmission.REGISTER, clientId(registerRequest));
+        if (retryAfter > 0L) {
+            RegisterResponse regResponse = new RegisterResponse();
+            regResponse.setStatus(RegisterResponse.REJECTED);
+            regResponse.setRetryAfter(retryAfter);
+            return regResponse;
+        }
+
+        // 分片模式下不归属本节点的服务转发给归属节点
+        if (!sharding.isOwner(registerRequest.getServiceName())) {
+            return sharding.forwardRegister(registerRequest);
+        }
+
         RegisterResponse regResponse = new RegisterResponse();
 
         try {
+            // 按服务端负载协商心跳间隔和契约时长
+            long heartbeatInterval = advise(registerRequest);
+
             // 组装服务实例信息
-            ServiceInstance serviceInstance = new ServiceInstance();
-            serviceInstance.setServiceName(registerRequest.getServiceName());
-            serviceInstance.setIp(registerRequest.getIp());
-            serviceInstance.setHostname(registerRequest.getHostname());
-            serviceInstance.setPort(registerRequest.getPort());
-            serviceInstance.setServiceInstanceId(registerRequest.getServiceInstanceId());
-
-            // 服务注册
-            registry.register(serviceInstance);
-
-            // 更新自我保护阈值
-            synchronized (SelfProtectionPolicy.class) {
-                SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-                selfProtectionPolicy.setExpectedHeartbeatRate(selfProtectionPolicy.getExpectedHeartbeatRate() + 2);
-                selfProtectionPolicy.setExpectedHeartbeatThreshold((long) (selfProtectionPolicy.getExpectedHeartbeatRate() * 0.85));
+            ServiceInstance serviceInstance = toServiceInstance(registerRequest);
+
+            // 服务注册：注册内容没有变化时只续约
+            if (registry.registerOrRenew(serviceInstance)) {
+                // 过期掉注册表缓存
+                registryCache.invalidate();
+
+                // 进行集群同步
+                peersReplicator.replicateRegister(registerRequest);
+            } else {
+                HeartbeatCounter.getInstance().increment();
+                peersReplicator.replicateHeartbeat(RegistryWritePipeline.toHeartbeatRequest(registerRequest));
             }
 
-            // 过期掉注册表缓存
-            registryCache.invalidate();
-
-            // 进行集群同步
-            peersReplicator.replicateRegister(registerRequest);
-
             regResponse.setStatus(RegisterResponse.SUCCESS);
+            regResponse.setHeartbeatInterval(heartbeatInterval);
+            regResponse.setLeaseDuration(registerRequest.getLeaseDuration());
         } catch (Exception e) {
             e.printStackTrace();
             regResponse.setStatus(RegisterResponse.FAILURE);
@@ -79,19 +144,27 @@ public class RegisterServerController {
 
     /**
      * 服务下线
+     *
+     * @throws RequestRejectedException 同一个服务实例下线过于频繁时抛出
      */
     public void cancel(CancelRequest cancelRequest) {
 
-        // 从服务注册中摘除实例
-        registry.remove(cancelRequest.getServiceName(), cancelRequest.getServiceInstanceId());
+        if (rejectWrite()) {
+            return;
+        }
 
-        // 更新自我保护阈值
-        synchronized (SelfProtectionPolicy.class) {
-            SelfProtectionPolicy selfProtectionPolicy = SelfProtectionPolicy.getInstance();
-            selfProtectionPolicy.setExpectedHeartbeatRate(selfProtectionPolicy.getExpectedHeartbeatRate() + 2);
-            selfProtectionPolicy.setExpectedHeartbeatThreshold((long) (selfProtectionPolicy.getExpectedHeartbeatRate() * 0.85));
+        // 准入控制
+        admission.check(RequestAdmission.CANCEL, clientId(cancelRequest));
+
+        // 分片模式下不归属本节点的服务转发给归属节点
+        if (!sharding.isOwner(cancelRequest.getServiceName())) {
+            sharding.forwardCancel(cancelRequest);
+            return;
         }
 
+        // 从服务注册中摘除实例
+        registry.remove(cancelRequest.getServiceName(), cancelRequest.getServiceInstanceId());
+
         // 过期掉注册表缓存
         registryCache.invalidate();
 
@@ -107,15 +180,40 @@ public class RegisterServerController {
      */
     public HeartbeatResponse heartbeat(HeartbeatRequest heartbeatRequest) {
 
+        if (rejectWrite()) {
+            HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
+            heartbeatResponse.setStatus(HeartbeatResponse.FAILURE);
+            return heartbeatResponse;
+        }
+
+        // 准入控制：心跳只按服务实例限流，服务端过载时也不受全局限制
+        long retryAfter = admission.admit(RequestAdmission.HEARTBEAT, clientId(heartbeatRequest));
+        if (retryAfter > 0L) {
+            HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
+            heartbeatResponse.setStatus(HeartbeatResponse.REJECTED);
+            heartbeatResponse.setRetryAfter(retryAfter);
+            return heartbeatResponse;
+        }
+
+        // 分片模式下不归属本节点的服务转发给归属节点
+        if (!sharding.isOwner(heartbeatRequest.getServiceName())) {
+            return sharding.forwardHeartbeat(heartbeatRequest);
+        }
+
         HeartbeatResponse heartbeatResponse = new HeartbeatResponse();
 
         try {
-            // 获取服务实例
-            ServiceInstance serviceInstance = registry.getServiceInstance(
+            // 按服务端负载协商心跳间隔和契约时长，契约时长随集群同步传播
+            long heartbeatInterval = heartbeatAdvisor.getHeartbeatInterval(
                     heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
+            heartbeatRequest.setLeaseDuration(heartbeatAdvisor.getLeaseDuration(heartbeatInterval));
 
             // 续约操作
-            serviceInstance.renew();
+            if (!registry.renew(heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId(),
+                    heartbeatRequest.getLeaseDuration())) {
+                throw new IllegalStateException("服务实例【" + heartbeatRequest.getServiceInstanceId() + "】不存在");
+            }
+            System.out.println("服务实例【" + heartbeatRequest.getServiceInstanceId() + "】，进行续约");
 
             // 记录一下每分钟心跳次数
             HeartbeatCounter heartbeatMessuredRate = HeartbeatCounter.getInstance();
@@ -125,6 +223,8 @@ public class RegisterServerController {
             peersReplicator.replicateHeartbeat(heartbeatRequest);
 
             heartbeatResponse.setStatus(HeartbeatResponse.SUCCESS);
+            heartbeatResponse.setHeartbeatInterval(heartbeatInterval);
+            heartbeatResponse.setLeaseDuration(heartbeatRequest.getLeaseDuration());
         } catch (Exception e) {
             e.printStackTrace();
             heartbeatResponse.setStatus(HeartbeatResponse.FAILURE);
@@ -133,41 +233,504 @@ public class RegisterServerController {
         return heartbeatResponse;
     }
 
+    /**
+     * 异步服务注册：交给写入流水线按组提交
+     *
+     * @param registerRequest 注册请求
+     * @return 注册响应
+     */
+    public CompletableFuture<RegisterResponse> registerAsync(RegisterRequest registerRequest) {
+        if (RegisterServerCluster.isFollower()) {
+            return CompletableFuture.completedFuture(register(registerRequest));
+        }
+        long retryAfter = admission.admit(RequestAdmission.REGISTER, clientId(registerRequest));
+        if (retryAfter > 0L) {
+            RegisterResponse regResponse = new RegisterResponse();
+            regResponse.setStatus(RegisterResponse.REJECTED);
+            regResponse.setRetryAfter(retryAfter);
+            return CompletableFuture.completedFuture(regResponse);
+        }
+        if (!sharding.isOwner(registerRequest.getServiceName())) {
+            return sharding.forwardRegisterAsync(registerRequest);
+        }
+        return writePipeline.register(registerRequest);
+    }
+
+    /**
+     * 异步服务下线：交给写入流水线按组提交
+     *
+     * @param cancelRequest 下线请求
+     */
+    public CompletableFuture<Void> cancelAsync(CancelRequest cancelRequest) {
+        if (RegisterServerCluster.isFollower()) {
+            cancel(cancelRequest);
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            admission.check(RequestAdmission.CANCEL, clientId(cancelRequest));
+        } catch (RequestRejectedException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (!sharding.isOwner(cancelRequest.getServiceName())) {
+            return sharding.forwardCancelAsync(cancelRequest);
+        }
+        return writePipeline.cancel(cancelRequest);
+    }
+
+    /**
+     * 批量服务注册：整批只加一次写锁、过期一次缓存、入队一次集群同步
+     *
+     * @param batchRequest 批量注册请求
+     * @return 每个注册请求的处理结果
+     */
+    public BatchResponse registerBatch(BatchRegisterRequest batchRequest) {
+
+        List<RegisterRequest> requests = batchRequest.getRequests();
+        String[] statuses = new String[requests.size()];
+        Long[] heartbeatIntervals = new Long[requests.size()];
+        Long[] leaseDurations = new Long[requests.size()];
+        Arrays.fill(heartbeatIntervals, 0L);
+        Arrays.fill(leaseDurations, 0L);
+        if (rejectWrite()) {
+            Arrays.fill(statuses, BatchResponse.FAILURE);
+            return new BatchResponse(Arrays.asList(statuses));
+        }
+        List<ServiceInstance> serviceInstances = new ArrayList<>(requests.size());
+        List<RegisterRequest> acceptedRequests = new ArrayList<>(requests.size());
+
+        for (int i = 0; i < requests.size(); i++) {
+            RegisterRequest registerRequest = requests.get(i);
+            if (!isValid(registerRequest)) {
+                statuses[i] = BatchResponse.FAILURE;
+                continue;
+            }
+            if (admission.admit(RequestAdmission.REGISTER, clientId(registerRequest)) > 0L) {
+                statuses[i] = BatchResponse.REJECTED;
+                continue;
+            }
+            if (!sharding.isOwner(registerRequest.getServiceName())) {
+                RegisterResponse registerResponse = sharding.forwardRegister(registerRequest);
+                statuses[i] = registerResponse.getStatus();
+                heartbeatIntervals[i] = registerResponse.getHeartbeatInterval();
+                leaseDurations[i] = registerResponse.getLeaseDuration();
+                continue;
+            }
+            // 按服务端负载协商心跳间隔和契约时长，和单个注册一致
+            heartbeatIntervals[i] = advise(registerRequest);
+            leaseDurations[i] = registerRequest.getLeaseDuration();
+            serviceInstances.add(toServiceInstance(registerRequest));
+            acceptedRequests.add(registerRequest);
+            statuses[i] = BatchResponse.SUCCESS;
+        }
+
+        try {
+            // 批量服务注册：注册内容没有变化的服务实例只续约，按心跳同步
+            boolean[] changed = registry.registerOrRenew(serviceInstances);
+            List<RegisterRequest> changedRequests = new ArrayList<>(acceptedRequests.size());
+            List<HeartbeatRequest> renewedRequests = new ArrayList<>();
+            for (int i = 0; i < changed.length; i++) {
+                if (changed[i]) {
+                    changedRequests.add(acceptedRequests.get(i));
+                } else {
+                    renewedRequests.add(RegistryWritePipeline.toHeartbeatRequest(acceptedRequests.get(i)));
+                }
+            }
+
+            if (!changedRequests.isEmpty()) {
+                // 过期掉注册表缓存
+                registryCache.invalidate();
+
+                // 进行集群同步
+                peersReplicator.replicateRegister(changedRequests);
+            }
+            if (!renewedRequests.isEmpty()) {
+                HeartbeatCounter.getInstance().increment(renewedRequests.size());
+                peersReplicator.replicateHeartbeat(renewedRequests);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Arrays.fill(statuses, BatchResponse.FAILURE);
+        }
+
+        return new BatchResponse(Arrays.asList(statuses), Arrays.asList(heartbeatIntervals), Arrays.asList(leaseDurations));
+    }
+
+    /**
+     * 批量服务下线：整批只加一次写锁、过期一次缓存、入队一次集群同步
+     *
+     * @param batchRequest 批量下线请求
+     * @return 每个下线请求的处理结果
+     */
+    public BatchResponse cancelBatch(BatchCancelRequest batchRequest) {
+
+        List<CancelRequest> requests = batchRequest.getRequests();
+        String[] statuses = new String[requests.size()];
+        if (rejectWrite()) {
+            Arrays.fill(statuses, BatchResponse.FAILURE);
+            return new BatchResponse(Arrays.asList(statuses));
+        }
+        List<ServiceInstance> serviceInstances = new ArrayList<>(requests.size());
+        List<CancelRequest> acceptedRequests = new ArrayList<>(requests.size());
+
+        for (int i = 0; i < requests.size(); i++) {
+            CancelRequest cancelRequest = requests.get(i);
+            if (isValid(cancelRequest) && admission.admit(RequestAdmission.CANCEL, clientId(cancelRequest)) > 0L) {
+                statuses[i] = BatchResponse.REJECTED;
+                continue;
+            }
+            if (isValid(cancelRequest) && !sharding.isOwner(cancelRequest.getServiceName())) {
+                statuses[i] = sharding.forwardCancel(cancelRequest) ? BatchResponse.SUCCESS : BatchResponse.FAILURE;
+                continue;
+            }
+            ServiceInstance serviceInstance = isValid(cancelRequest) ? registry.getServiceInstance(
+                    cancelRequest.getServiceName(), cancelRequest.getServiceInstanceId()) : null;
+            if (serviceInstance == null) {
+                statuses[i] = BatchResponse.NOT_FOUND;
+                continue;
+            }
+            serviceInstances.add(serviceInstance);
+            acceptedRequests.add(cancelRequest);
+            statuses[i] = BatchResponse.SUCCESS;
+        }
+
+        try {
+            // 从服务注册中批量摘除实例
+            registry.remove(serviceInstances);
+
+            // 过期掉注册表缓存
+            registryCache.invalidate();
+
+            // 进行集群同步
+            peersReplicator.replicateCancel(acceptedRequests);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Arrays.fill(statuses, BatchResponse.FAILURE);
+        }
+
+        return new BatchResponse(Arrays.asList(statuses));
+    }
+
+    /**
+     * 批量心跳：一次记录心跳次数、入队一次集群同步
+     *
+     * @param batchRequest 批量心跳请求
+     * @return 每个心跳请求的处理结果
+     */
+    public BatchResponse heartbeatBatch(BatchHeartbeatRequest batchRequest) {
+
+        List<HeartbeatRequest> requests = batchRequest.getRequests();
+        String[] statuses = new String[requests.size()];
+        Long[] heartbeatIntervals = new Long[requests.size()];
+        Long[] leaseDurations = new Long[requests.size()];
+        Arrays.fill(heartbeatIntervals, 0L);
+        Arrays.fill(leaseDurations, 0L);
+        if (rejectWrite()) {
+            Arrays.fill(statuses, BatchResponse.FAILURE);
+            return new BatchResponse(Arrays.asList(statuses));
+        }
+        List<HeartbeatRequest> acceptedRequests = new ArrayList<>(requests.size());
+
+        for (int i = 0; i < requests.size(); i++) {
+            HeartbeatRequest heartbeatRequest = requests.get(i);
+            try {
+                if (isValid(heartbeatRequest)
+                        && admission.admit(RequestAdmission.HEARTBEAT, clientId(heartbeatRequest)) > 0L) {
+                    statuses[i] = BatchResponse.REJECTED;
+                    continue;
+                }
+                if (isValid(heartbeatRequest) && !sharding.isOwner(heartbeatRequest.getServiceName())) {
+                    HeartbeatResponse heartbeatResponse = sharding.forwardHeartbeat(heartbeatRequest);
+                    statuses[i] = heartbeatResponse.getStatus();
+                    heartbeatIntervals[i] = heartbeatResponse.getHeartbeatInterval();
+                    leaseDurations[i] = heartbeatResponse.getLeaseDuration();
+                    continue;
+                }
+                if (!isValid(heartbeatRequest)) {
+                    statuses[i] = BatchResponse.NOT_FOUND;
+                    continue;
+                }
+
+                // 和单个心跳一样按服务端负载协商心跳间隔和契约时长，契约时长随集群同步传播
+                long heartbeatInterval = heartbeatAdvisor.getHeartbeatInterval(
+                        heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId());
+                heartbeatRequest.setLeaseDuration(heartbeatAdvisor.getLeaseDuration(heartbeatInterval));
+
+                // 续约操作
+                if (!registry.renew(heartbeatRequest.getServiceName(), heartbeatRequest.getServiceInstanceId(),
+                        heartbeatRequest.getLeaseDuration())) {
+                    statuses[i] = BatchResponse.NOT_FOUND;
+                    continue;
+                }
+
+                acceptedRequests.add(heartbeatRequest);
+                statuses[i] = BatchResponse.SUCCESS;
+                heartbeatIntervals[i] = heartbeatInterval;
+                leaseDurations[i] = heartbeatRequest.getLeaseDuration();
+            } catch (Exception e) {
+                e.printStackTrace();
+                statuses[i] = BatchResponse.FAILURE;
+            }
+        }
+
+        // 记录一下每分钟心跳次数
+        HeartbeatCounter.getInstance().increment(acceptedRequests.size());
+
+        // 进行集群同步
+        peersReplicator.replicateHeartbeat(acceptedRequests);
+
+        return new BatchResponse(Arrays.asList(statuses), Arrays.asList(heartbeatIntervals), Arrays.asList(leaseDurations));
+    }
+
+    /**
+     * 根据注册请求组装服务实例信息
+     *
+     * @param registerRequest 注册请求
+     * @return 服务实例
+     */
+    private ServiceInstance toServiceInstance(RegisterRequest registerRequest) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(registerRequest.getServiceName());
+        serviceInstance.setIp(registerRequest.getIp());
+        serviceInstance.setHostname(registerRequest.getHostname());
+        serviceInstance.setPort(registerRequest.getPort());
+        serviceInstance.setServiceInstanceId(registerRequest.getServiceInstanceId());
+        serviceInstance.setZone(registerRequest.getZone());
+        serviceInstance.setVersion(registerRequest.getVersion());
+        serviceInstance.setTags(registerRequest.getTags());
+
+        // 首次接收注册请求的节点确定契约版本号，同步到其他节点时保持不变
+        if (registerRequest.getRegistrationTimestamp() == null) {
+            registerRequest.setRegistrationTimestamp(serviceInstance.getRegistrationTimestamp());
+        }
+        serviceInstance.setRegistrationTimestamp(registerRequest.getRegistrationTimestamp());
+        if (registerRequest.getLeaseDuration() != null) {
+            serviceInstance.setLeaseDuration(registerRequest.getLeaseDuration());
+        }
+        return serviceInstance;
+    }
+
+    /**
+     * 首次接收注册请求的节点按负载协商契约时长，同步到其他节点时保持不变
+     *
+     * @param registerRequest 注册请求
+     * @return 建议的心跳间隔
+     */
+    private long advise(RegisterRequest registerRequest) {
+        long heartbeatInterval = heartbeatAdvisor.getHeartbeatInterval(
+                registerRequest.getServiceName(), registerRequest.getServiceInstanceId());
+        if (registerRequest.getLeaseDuration() == null) {
+            registerRequest.setLeaseDuration(heartbeatAdvisor.getLeaseDuration(heartbeatInterval));
+        }
+        return heartbeatInterval;
+    }
+
+    /**
+     * 注册、下线、心跳请求的客户端标识：服务实例
+     */
+    private static String clientId(AbstractRequest request) {
+        return request.getServiceName() + '/' + request.getServiceInstanceId();
+    }
+
+    /**
+     * 只读节点拒绝客户端写请求
+     *
+     * @return 需要拒绝时返回 true
+     */
+    private boolean rejectWrite() {
+        if (RegisterServerCluster.isFollower()) {
+            System.out.println("只读节点不接受客户端写请求，请发送到集群中的其它节点");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 校验请求是否携带服务名称和服务实例ID
+     *
+     * @param request 请求
+     * @return
+     */
+    private boolean isValid(AbstractRequest request) {
+        return request != null && request.getServiceName() != null && request.getServiceInstanceId() != null;
+    }
+
     /**
      * 同步batch数据
+     * <p>
+     * 其他节点同步过来的请求先去重、按同步拓扑转发，再只写入本地注册表，不再作为新请求向集群同步，
+     * 新节点引导期间先缓存起来；分片模式下只写入本节点归属的服务
      *
      * @param batch
      */
     public void replicateBatch(PeersReplicateBatch batch) {
+        peersReplicator.getRouter().receive(batch, received -> {
+            PeersReplicateBatch owned = sharding.filter(received);
+            if (!bootstrapper.offer(owned)) {
+                replicatedBatchApplier.apply(owned);
+            }
+        });
+    }
+
+    /**
+     * 同步帧数据：解码出帧内的 batch 依次处理
+     *
+     * @param frame 集群同步帧
+     * @throws IOException 帧格式错误
+     */
+    public void replicateFrame(byte[] frame) throws IOException {
+        for (PeersReplicateBatch batch : peersReplicator.getCodec().decode(frame)) {
+            replicateBatch(batch);
+        }
+    }
 
-        for (AbstractRequest request : batch.getRequests()) {
+    /**
+     * 新节点启动时从集群中的节点拉取注册表快照
+     *
+     * @param source 快照来源
+     * @return 是否加载了快照
+     */
+    public boolean bootstrap(SnapshotSource source) {
+        return bootstrapper.bootstrap(source, replicatedBatchApplier::apply);
+    }
 
-            if (request.getType().equals(AbstractRequest.REGISTER_REQUEST)) {
-                register((RegisterRequest) request);
-            } else if (request.getType().equals(AbstractRequest.CANCEL_REQUEST)) {
-                cancel((CancelRequest) request);
-            } else if (request.getType().equals(AbstractRequest.HEARTBEAT_REQUEST)) {
-                heartbeat((HeartbeatRequest) request);
-            }
+    /**
+     * 节点启动时用配置的快照来源引导(在开始处理集群同步请求之前调用)
+     *
+     * @return 是否加载了快照
+     */
+    public boolean bootstrap() {
+        return bootstrapper.bootstrapOnStartup(replicatedBatchApplier::apply);
+    }
+
+    /**
+     * 查看向各节点发送的集群同步指标
+     *
+     * @return key 为对端节点地址
+     */
+    public Map<String, OutboundMetrics> fetchOutboundReplicationMetrics() {
+        return ReplicationMetrics.getInstance().getOutboundMetrics();
+    }
+
+    /**
+     * 查看收到的各来源节点的集群同步指标(转发来的 batch 记在产生它的来源节点上)
+     *
+     * @return key 为 batch 的来源节点
+     */
+    public Map<String, InboundMetrics> fetchInboundReplicationMetrics() {
+        return ReplicationMetrics.getInstance().getInboundMetrics();
+    }
+
+    /**
+     * 拉取注册表快照(只读节点返回预热好的编码，新节点也可以从只读节点引导)
+     *
+     * @return 快照编码，格式见 {@link RegistryBootstrapper#writeSnapshot(java.nio.channels.WritableByteChannel)}
+     * @throws IOException
+     */
+    public byte[] fetchSnapshot() throws IOException {
+        if (RegisterServerCluster.isFollower()) {
+            return FollowerSnapshotWarmer.getInstance().getEncodedSnapshot();
         }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bootstrapper.writeSnapshot(Channels.newChannel(output));
+        return output.toByteArray();
     }
 
     /**
-     * 拉取全量注册表
+     * 查询一个服务的所有服务实例(分片模式下非归属节点回源到归属节点)
+     *
+     * @param serviceName 服务名称
+     * @return key 为服务实例ID
+     */
+    public Map<String, ServiceInstance> fetchServiceInstances(String serviceName) {
+        return sharding.fetchServiceInstances(serviceName);
+    }
+
+    /**
+     * 按主机名、IP、可用区、版本号、标签查询服务实例(只查询本节点注册表)
+     *
+     * @param query 查询条件
+     * @return
+     */
+    public List<ServiceInstance> queryServiceInstances(ServiceInstanceQuery query) {
+        return registry.findServiceInstances(query);
+    }
+
+    /**
+     * 拉取全量注册表(分片模式下只包含本节点归属的服务)：没有客户端标识，不按客户端限流，只受服务端过载时的全局限制
      *
      * @return
+     * @throws RequestRejectedException 服务端过载时抛出
      */
     public Applications fetchFullRegistry() {
-        return (Applications) registryCache.get(CacheKey.FULL_SERVICE_REGISTRY);
+        return fetchFullRegistry(null);
     }
 
     /**
-     * 拉取增量注册表
+     * 拉取增量注册表：没有客户端标识，不按客户端限流，只受服务端过载时的全局限制
      *
      * @return
+     * @throws RequestRejectedException 服务端过载时抛出
      */
     public DeltaRegistry fetchDeltaRegistry() {
+        return fetchDeltaRegistry(null);
+    }
+
+    /**
+     * 读取缓存的全量注册表，不经过准入控制，只供同进程内的组件使用(不能暴露给客户端请求)
+     *
+     * @return
+     */
+    public Applications fetchFullRegistryInternal() {
+        return (Applications) registryCache.get(CacheKey.FULL_SERVICE_REGISTRY);
+    }
+
+    /**
+     * 读取缓存的增量注册表，不经过准入控制，只供同进程内的组件使用(不能暴露给客户端请求)
+     *
+     * @return
+     */
+    public DeltaRegistry fetchDeltaRegistryInternal() {
         return (DeltaRegistry) registryCache.get(CacheKey.DELTA_SERVICE_REGISTRY);
     }
 
+    /**
+     * 客户端拉取全量注册表(经过准入控制，服务端过载时优先保证心跳)
+     *
+     * @param clientId 客户端标识
+     * @return
+     * @throws RequestRejectedException 拉取过于频繁或服务端过载时抛出
+     */
+    public Applications fetchFullRegistry(String clientId) {
+        admission.check(RequestAdmission.FETCH_FULL_REGISTRY, clientId);
+        return fetchFullRegistryInternal();
+    }
+
+    /**
+     * 客户端以流的方式拉取全量注册表：直接遍历已发布的全量注册表快照，按定长块编码写出，不在内存中组装完整响应
+     *
+     * @param clientId 客户端标识
+     * @param channel  输出 channel
+     * @return 写出的服务实例数
+     * @throws IOException
+     * @throws RequestRejectedException 拉取过于频繁或服务端过载时抛出
+     */
+    public long fetchFullRegistry(String clientId, WritableByteChannel channel) throws IOException {
+        admission.check(RequestAdmission.FETCH_FULL_REGISTRY, clientId);
+        return RegistryStreamEncoder.getInstance().encode(fetchFullRegistryInternal(), channel);
+    }
+
+    /**
+     * 客户端拉取增量注册表(经过准入控制，服务端过载时优先保证心跳)
+     *
+     * @param clientId 客户端标识
+     * @return
+     * @throws RequestRejectedException 拉取过于频繁或服务端过载时抛出
+     */
+    public DeltaRegistry fetchDeltaRegistry(String clientId) {
+        admission.check(RequestAdmission.FETCH_DELTA_REGISTRY, clientId);
+        return fetchDeltaRegistryInternal();
+    }
+
 }
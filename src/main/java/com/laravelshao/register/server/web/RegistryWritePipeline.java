@@ -0,0 +1,276 @@
+package com.laravelshao.register.server.web;
+
+import com.laravelshao.register.server.cluster.PeersReplicator;
+import com.laravelshao.register.server.core.HeartbeatCounter;
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 注册表写入流水线(组提交)
+ * <p>
+ * 服务注册、服务下线先进入写入队列，由组提交后台任务(同一时刻只有一个线程执行)按组取出，一组变更只加一次写锁，
+ * 写完后只过期一次缓存、入队一次集群同步(自我保护阈值由注册表实例数推导，无需逐个更新)，用来扛住大规模发布时的注册风暴
+ *
+ * @author qinghua.shao
+ * @date 2022/7/31
+ * @since 1.0.0
+ */
+public class RegistryWritePipeline {
+
+    /**
+     * 一组最多提交的变更数量
+     */
+    private static final int MAX_GROUP_SIZE = 1000;
+    /**
+     * 组提交时间间隔：同一个间隔内到达的变更合并提交
+     */
+    private static final long GROUP_COMMIT_INTERVAL = RegisterServerConfig.getLong(
+            "register.server.group-commit-interval", 10L);
+
+    /**
+     * 单例
+     */
+    private static final RegistryWritePipeline instance = new RegistryWritePipeline();
+
+    /**
+     * 待提交的变更队列
+     */
+    private LinkedBlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
+    private ServiceRegistryCache registryCache = ServiceRegistryCache.getInstance();
+    private PeersReplicator peersReplicator = PeersReplicator.getInstance();
+
+    private RegistryWritePipeline() {
+        // 注册组提交后台任务
+        RegisterServerScheduler.getInstance().schedule("registry-group-commit", GROUP_COMMIT_INTERVAL, this::commitPending);
+    }
+
+    public static RegistryWritePipeline getInstance() {
+        return instance;
+    }
+
+    /**
+     * 写入队列中等待提交的变更数量
+     *
+     * @return
+     */
+    public int getBacklog() {
+        return writeQueue.size();
+    }
+
+    /**
+     * 异步服务注册
+     *
+     * @param registerRequest 注册请求
+     * @return 变更所在的组提交完成后返回注册响应
+     */
+    public CompletableFuture<RegisterResponse> register(RegisterRequest registerRequest) {
+        CompletableFuture<RegisterResponse> future = new CompletableFuture<>();
+        registerRequest.setType(AbstractRequest.REGISTER_REQUEST);
+
+        // 按服务端负载协商契约时长，同步到其他节点时保持不变
+        if (registerRequest.getLeaseDuration() == null) {
+            HeartbeatAdvisor heartbeatAdvisor = HeartbeatAdvisor.getInstance();
+            registerRequest.setLeaseDuration(heartbeatAdvisor.getLeaseDuration(heartbeatAdvisor.getHeartbeatInterval(
+                    registerRequest.getServiceName(), registerRequest.getServiceInstanceId())));
+        }
+        writeQueue.offer(new PendingWrite(registerRequest, future));
+        return future;
+    }
+
+    /**
+     * 异步服务下线
+     *
+     * @param cancelRequest 下线请求
+     * @return 变更所在的组提交完成后结束
+     */
+    public CompletableFuture<Void> cancel(CancelRequest cancelRequest) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        cancelRequest.setType(AbstractRequest.CANCEL_REQUEST);
+        writeQueue.offer(new PendingWrite(cancelRequest, future));
+        return future;
+    }
+
+    /**
+     * 提交一组变更
+     *
+     * @param group 一组待提交的变更
+     */
+    private void commit(List<PendingWrite> group) {
+
+        List<AbstractRequest> requests = new ArrayList<>(group.size());
+
+        try {
+            // 整组只加一次写锁(写锁可重入)，连续的同类变更合并成一次批量操作，保证变更顺序
+            registry.writeLock();
+            try {
+                List<ServiceInstance> run = new ArrayList<>();
+                List<AbstractRequest> runRequests = new ArrayList<>();
+                Integer runType = null;
+                for (PendingWrite pendingWrite : group) {
+                    AbstractRequest request = pendingWrite.request;
+                    if (runType != null && !runType.equals(request.getType())) {
+                        apply(runType, run, runRequests, requests);
+                        run = new ArrayList<>();
+                        runRequests = new ArrayList<>();
+                    }
+                    runType = request.getType();
+                    run.add(toServiceInstance(request));
+                    runRequests.add(request);
+                }
+                apply(runType, run, runRequests, requests);
+            } finally {
+                registry.writeUnlock();
+            }
+
+            // 整组都是没有变化的重复注册时不需要过期缓存
+            int renewed = 0;
+            for (AbstractRequest request : requests) {
+                if (AbstractRequest.HEARTBEAT_REQUEST.equals(request.getType())) {
+                    renewed++;
+                }
+            }
+            if (renewed < requests.size()) {
+                // 过期掉注册表缓存
+                registryCache.invalidate();
+            }
+            if (renewed > 0) {
+                HeartbeatCounter.getInstance().increment(renewed);
+            }
+
+            // 进行集群同步
+            peersReplicator.replicate(requests);
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (PendingWrite pendingWrite : group) {
+                pendingWrite.fail(e);
+            }
+            return;
+        }
+
+        for (PendingWrite pendingWrite : group) {
+            pendingWrite.complete();
+        }
+    }
+
+    /**
+     * 应用一批连续的同类变更，并收集需要同步的请求(注册内容没有变化的注册请求只续约，按心跳同步)
+     */
+    private void apply(Integer type, List<ServiceInstance> serviceInstances,
+                       List<AbstractRequest> runRequests, List<AbstractRequest> requests) {
+        if (AbstractRequest.REGISTER_REQUEST.equals(type)) {
+            boolean[] changed = registry.registerOrRenew(serviceInstances);
+            for (int i = 0; i < changed.length; i++) {
+                requests.add(changed[i] ? runRequests.get(i) : toHeartbeatRequest(runRequests.get(i)));
+            }
+        } else if (AbstractRequest.CANCEL_REQUEST.equals(type)) {
+            registry.remove(serviceInstances);
+            requests.addAll(runRequests);
+        }
+    }
+
+    /**
+     * 把注册请求转换成同一个服务实例的心跳请求
+     */
+    static HeartbeatRequest toHeartbeatRequest(AbstractRequest request) {
+        HeartbeatRequest heartbeatRequest = new HeartbeatRequest();
+        heartbeatRequest.setType(AbstractRequest.HEARTBEAT_REQUEST);
+        heartbeatRequest.setServiceName(request.getServiceName());
+        heartbeatRequest.setServiceInstanceId(request.getServiceInstanceId());
+        if (request instanceof RegisterRequest) {
+            heartbeatRequest.setLeaseDuration(((RegisterRequest) request).getLeaseDuration());
+        }
+        return heartbeatRequest;
+    }
+
+    /**
+     * 根据请求组装服务实例信息
+     */
+    static ServiceInstance toServiceInstance(AbstractRequest request) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(request.getServiceName());
+        serviceInstance.setServiceInstanceId(request.getServiceInstanceId());
+        if (request instanceof RegisterRequest) {
+            RegisterRequest registerRequest = (RegisterRequest) request;
+            serviceInstance.setIp(registerRequest.getIp());
+            serviceInstance.setHostname(registerRequest.getHostname());
+            serviceInstance.setPort(registerRequest.getPort());
+            serviceInstance.setZone(registerRequest.getZone());
+            serviceInstance.setVersion(registerRequest.getVersion());
+            serviceInstance.setTags(registerRequest.getTags());
+
+            // 首次接收注册请求的节点确定契约版本号，同步到其他节点时保持不变
+            if (registerRequest.getRegistrationTimestamp() == null) {
+                registerRequest.setRegistrationTimestamp(serviceInstance.getRegistrationTimestamp());
+            }
+            serviceInstance.setRegistrationTimestamp(registerRequest.getRegistrationTimestamp());
+            if (registerRequest.getLeaseDuration() != null) {
+                serviceInstance.setLeaseDuration(registerRequest.getLeaseDuration());
+            }
+        }
+        return serviceInstance;
+    }
+
+    /**
+     * 一个待提交的变更
+     */
+    private static class PendingWrite {
+
+        AbstractRequest request;
+        CompletableFuture<?> future;
+
+        PendingWrite(AbstractRequest request, CompletableFuture<?> future) {
+            this.request = request;
+            this.future = future;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete() {
+            if (request instanceof RegisterRequest) {
+                RegisterResponse regResponse = new RegisterResponse();
+                regResponse.setStatus(RegisterResponse.SUCCESS);
+                Long leaseDuration = ((RegisterRequest) request).getLeaseDuration();
+                if (leaseDuration != null) {
+                    regResponse.setLeaseDuration(leaseDuration);
+                    regResponse.setHeartbeatInterval(
+                            leaseDuration * ServiceInstance.HEARTBEAT_INTERVAL / ServiceInstance.NOT_ALIVE_PERIOD);
+                }
+                ((CompletableFuture<RegisterResponse>) future).complete(regResponse);
+            } else {
+                ((CompletableFuture<Void>) future).complete(null);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void fail(Exception e) {
+            if (request instanceof RegisterRequest) {
+                RegisterResponse regResponse = new RegisterResponse();
+                regResponse.setStatus(RegisterResponse.FAILURE);
+                ((CompletableFuture<RegisterResponse>) future).complete(regResponse);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 把写入队列中积压的变更按组取出并提交
+     */
+    void commitPending() {
+        while (!writeQueue.isEmpty()) {
+            List<PendingWrite> group = new ArrayList<>();
+            writeQueue.drainTo(group, MAX_GROUP_SIZE);
+
+            commit(group);
+        }
+    }
+}
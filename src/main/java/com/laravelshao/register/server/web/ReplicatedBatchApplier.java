@@ -0,0 +1,192 @@
+package com.laravelshao.register.server.web;
+
+import com.laravelshao.register.server.cluster.PeersReplicateBatch;
+import com.laravelshao.register.server.cluster.ReplicationMetrics;
+import com.laravelshao.register.server.core.HeartbeatCounter;
+import com.laravelshao.register.server.core.RegisterServerConfig;
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.SelfProtectionPolicy;
+import com.laravelshao.register.server.core.ServiceInstance;
+import com.laravelshao.register.server.core.ServiceRegistry;
+import com.laravelshao.register.server.core.ServiceRegistryCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 集群同步 batch 写入组件
+ * <p>
+ * 其他节点同步过来的 batch 按服务名称哈希分区，各分区在线程池中并行写入：
+ * <ul>
+ *     <li>同一个服务的请求落在同一个分区内按原顺序处理，保证单个服务实例的变更顺序</li>
+ *     <li>心跳(batch 中绝大多数)直接无锁续约，随核数扩展</li>
+ *     <li>分区内连续的注册、下线合并成一次写锁内的批量操作</li>
+ *     <li>整个 batch 写完后只记录一次心跳次数，有成员变更时只过期一次缓存、只重新计算一次自我保护阈值</li>
+ * </ul>
+ *
+ * @author qinghua.shao
+ * @date 2022/8/23
+ * @since 1.0.0
+ */
+public class ReplicatedBatchApplier {
+
+    /**
+     * 并行写入的线程数
+     */
+    private static final int APPLY_PARALLELISM = RegisterServerConfig.getInt(
+            "register.server.replication.apply-parallelism", Runtime.getRuntime().availableProcessors());
+    /**
+     * 请求数少于这个值的 batch 直接在调用线程上写入
+     */
+    private static final int PARALLEL_APPLY_THRESHOLD = RegisterServerConfig.getInt(
+            "register.server.replication.parallel-apply-threshold", 256);
+
+    private static final ReplicatedBatchApplier instance = new ReplicatedBatchApplier();
+
+    private ServiceRegistry registry = ServiceRegistry.getInstance();
+
+    /**
+     * 并行写入分区的线程池
+     */
+    private ForkJoinPool applyPool = new ForkJoinPool(APPLY_PARALLELISM);
+
+    private ReplicatedBatchApplier() {
+        RegisterServerScheduler.getInstance().onShutdown("replicated-batch-apply-pool", applyPool::shutdown);
+    }
+
+    public static ReplicatedBatchApplier getInstance() {
+        return instance;
+    }
+
+    /**
+     * 写入一个集群同步 batch(不再向其它节点同步)
+     *
+     * @param batch 集群同步 batch
+     */
+    public void apply(PeersReplicateBatch batch) {
+        List<AbstractRequest> requests = batch.getRequests();
+
+        long[] result;
+        if (requests.size() < PARALLEL_APPLY_THRESHOLD || APPLY_PARALLELISM <= 1) {
+            result = applyPartition(requests);
+        } else {
+            result = applyPartitions(partition(requests, APPLY_PARALLELISM));
+        }
+
+        // 记录端到端同步延迟
+        ReplicationMetrics.getInstance().applied(batch);
+
+        HeartbeatCounter.getInstance().increment(result[0]);
+        if (result[1] != 0) {
+            ServiceRegistryCache.getInstance().invalidate();
+            SelfProtectionPolicy.getInstance().recompute();
+        }
+    }
+
+    /**
+     * 按服务名称哈希分区，分区内保持原顺序
+     */
+    private List<List<AbstractRequest>> partition(List<AbstractRequest> requests, int partitionCount) {
+        List<List<AbstractRequest>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new ArrayList<>(requests.size() / partitionCount + 1));
+        }
+        for (AbstractRequest request : requests) {
+            int hash = request.getServiceName() == null ? 0 : request.getServiceName().hashCode();
+            partitions.get(((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitionCount).add(request);
+        }
+        return partitions;
+    }
+
+    private long[] applyPartitions(List<List<AbstractRequest>> partitions) {
+        List<Callable<long[]>> tasks = new ArrayList<>(partitions.size());
+        for (List<AbstractRequest> partition : partitions) {
+            if (!partition.isEmpty()) {
+                tasks.add(() -> applyPartition(partition));
+            }
+        }
+
+        long[] total = new long[2];
+        for (Future<long[]> future : applyPool.invokeAll(tasks)) {
+            try {
+                long[] result = future.get();
+                total[0] += result[0];
+                total[1] += result[1];
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 按顺序写入一个分区
+     *
+     * @return {续约成功的心跳数, 成员变更数}
+     */
+    private long[] applyPartition(List<AbstractRequest> requests) {
+        long heartbeats = 0L;
+        long changes = 0L;
+        List<AbstractRequest> membershipRun = new ArrayList<>();
+
+        for (AbstractRequest request : requests) {
+            if (AbstractRequest.HEARTBEAT_REQUEST.equals(request.getType())) {
+                // 先写入前面的注册、下线，保证同一个服务实例先注册再续约
+                changes += flush(membershipRun);
+                Long leaseDuration = request instanceof HeartbeatRequest
+                        ? ((HeartbeatRequest) request).getLeaseDuration() : null;
+                if (registry.renew(request.getServiceName(), request.getServiceInstanceId(),
+                        leaseDuration == null ? 0L : leaseDuration)) {
+                    heartbeats++;
+                }
+            } else {
+                membershipRun.add(request);
+            }
+        }
+        changes += flush(membershipRun);
+        return new long[]{heartbeats, changes};
+    }
+
+    /**
+     * 在一次写锁内写入连续的注册、下线(写锁可重入)，连续的同类变更合并成一次批量操作
+     */
+    private int flush(List<AbstractRequest> membershipRun) {
+        if (membershipRun.isEmpty()) {
+            return 0;
+        }
+
+        int changes = membershipRun.size();
+        registry.writeLock();
+        try {
+            List<ServiceInstance> run = new ArrayList<>();
+            Integer runType = null;
+            for (AbstractRequest request : membershipRun) {
+                if (runType != null && !runType.equals(request.getType())) {
+                    apply(runType, run);
+                    run = new ArrayList<>();
+                }
+                runType = request.getType();
+                run.add(RegistryWritePipeline.toServiceInstance(request));
+            }
+            apply(runType, run);
+        } finally {
+            registry.writeUnlock();
+        }
+        membershipRun.clear();
+        return changes;
+    }
+
+    private void apply(Integer type, List<ServiceInstance> serviceInstances) {
+        if (AbstractRequest.REGISTER_REQUEST.equals(type)) {
+            registry.register(serviceInstances);
+        } else if (AbstractRequest.CANCEL_REQUEST.equals(type)) {
+            registry.remove(serviceInstances);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.laravelshao.register.server.web;
+
+import com.laravelshao.register.server.core.RegisterServerConfig;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 请求准入控制
+ * <p>
+ * 每种操作一张令牌桶表，按客户端限流(注册、下线、心跳以服务实例为客户端，拉取注册表以调用方传入的客户端标识为客户端)，
+ * 一个循环注册或者循环拉取全量注册表的客户端只会耗尽自己的令牌，不会反复过期、重建整个注册表缓存。
+ * 服务端过载时拉取注册表还要再取一个全局令牌，心跳不受全局限制，保证已注册服务实例的续约优先于拉取。
+ * 没有客户端标识的拉取(旧接口)无法区分调用方，不按客户端限流，只受过载时的全局令牌限制
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RequestAdmission {
+
+    /**
+     * 操作类型
+     */
+    public static final int REGISTER = 0;
+    public static final int CANCEL = 1;
+    public static final int HEARTBEAT = 2;
+    public static final int FETCH_FULL_REGISTRY = 3;
+    public static final int FETCH_DELTA_REGISTRY = 4;
+
+    private static final String[] OPERATION_NAMES = {
+            "register", "cancel", "heartbeat", "fetch-full-registry", "fetch-delta-registry"};
+
+    /**
+     * 是否开启准入控制
+     */
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            RegisterServerConfig.getString("register.server.admission.enabled", "true"));
+
+    /**
+     * 每张令牌桶表的槽位数 = 2^slotBits
+     */
+    private static final int SLOT_BITS = RegisterServerConfig.getInt("register.server.admission.slot-bits", 16);
+
+    private static final RequestAdmission instance = new RequestAdmission();
+
+    /**
+     * 每种操作的按客户端令牌桶
+     */
+    private final TokenBucketTable[] clientBuckets = {
+            table(REGISTER, "1", 10),
+            table(CANCEL, "1", 10),
+            table(HEARTBEAT, "1", 10),
+            table(FETCH_FULL_REGISTRY, "1", 10),
+            table(FETCH_DELTA_REGISTRY, "2", 20)
+    };
+
+    /**
+     * 过载时拉取注册表的全局令牌桶
+     */
+    private final TokenBucketTable overloadFetchBucket = new TokenBucketTable(0,
+            Double.parseDouble(RegisterServerConfig.getString("register.server.admission.overload-fetch-rate", "200")),
+            RegisterServerConfig.getLong("register.server.admission.overload-fetch-capacity", 200L));
+
+    /**
+     * 每种操作被拒绝的次数
+     */
+    private final AtomicLongArray rejectedCounts = new AtomicLongArray(OPERATION_NAMES.length);
+
+    private RequestAdmission() {
+    }
+
+    public static RequestAdmission getInstance() {
+        return instance;
+    }
+
+    /**
+     * 判断请求能否放行
+     *
+     * @param operation 操作类型
+     * @param clientId  客户端标识，为空时不按客户端限流(所有匿名调用方共用一个令牌桶会互相拖累)
+     * @return 放行时返回0，否则返回建议的重试等待时间(毫秒)
+     */
+    public long admit(int operation, String clientId) {
+        if (!ENABLED) {
+            return 0L;
+        }
+
+        long retryAfter = clientId == null ? 0L : clientBuckets[operation].tryAcquire(clientId);
+        if (retryAfter == 0L && (operation == FETCH_FULL_REGISTRY || operation == FETCH_DELTA_REGISTRY)
+                && HeartbeatAdvisor.getInstance().isOverloaded()) {
+            retryAfter = overloadFetchBucket.tryAcquire("");
+        }
+        if (retryAfter > 0L) {
+            rejectedCounts.incrementAndGet(operation);
+        }
+        return retryAfter;
+    }
+
+    /**
+     * 判断请求能否放行，不能放行时抛出异常
+     *
+     * @param operation 操作类型
+     * @param clientId  客户端标识
+     * @throws RequestRejectedException
+     */
+    public void check(int operation, String clientId) {
+        long retryAfter = admit(operation, clientId);
+        if (retryAfter > 0L) {
+            throw new RequestRejectedException(clientId == null
+                    ? "服务端过载，" + OPERATION_NAMES[operation] + "请求请在" + retryAfter + "毫秒后重试"
+                    : "客户端【" + clientId + "】的" + OPERATION_NAMES[operation]
+                    + "请求过于频繁，请在" + retryAfter + "毫秒后重试", retryAfter);
+        }
+    }
+
+    /**
+     * 获取某种操作被拒绝的次数
+     *
+     * @param operation 操作类型
+     * @return
+     */
+    public long getRejectedCount(int operation) {
+        return rejectedCounts.get(operation);
+    }
+
+    private static TokenBucketTable table(int operation, String defaultRate, long defaultCapacity) {
+        String prefix = "register.server.admission." + OPERATION_NAMES[operation];
+        return new TokenBucketTable(SLOT_BITS,
+                Double.parseDouble(RegisterServerConfig.getString(prefix + "-rate", defaultRate)),
+                RegisterServerConfig.getLong(prefix + "-capacity", defaultCapacity));
+    }
+}
@@ -0,0 +1,27 @@
+package com.laravelshao.register.server.web;
+
+/**
+ * 请求被准入控制拒绝
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class RequestRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 建议的重试等待时间(毫秒)
+     */
+    private final long retryAfter;
+
+    public RequestRejectedException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
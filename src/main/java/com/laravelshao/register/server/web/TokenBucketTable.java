@@ -0,0 +1,105 @@
+package com.laravelshao.register.server.web;
+
+import com.laravelshao.register.server.core.RegisterServerScheduler;
+import com.laravelshao.register.server.core.RegistryHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 定长令牌桶表
+ * <p>
+ * 客户端按哈希映射到固定数量的槽位，每个槽位是一个 long：高44位为上次补充令牌的时间(相对创建时间的毫秒数)，
+ * 低20位为令牌数(定点数，1个令牌 = {@link #TOKEN_UNIT})。取令牌时 CAS 整个 long，不加锁；
+ * 内存占用只和槽位数有关，不随客户端数量增长，哈希冲突的客户端共享同一个桶
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+class TokenBucketTable {
+
+    private static final int TOKEN_BITS = 20;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TOKEN_UNIT = 16L;
+
+    /**
+     * 最大桶容量
+     */
+    static final long MAX_CAPACITY = TOKEN_MASK / TOKEN_UNIT;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    /**
+     * 每秒补充的令牌数(定点数)
+     */
+    private final double refillPerMillis;
+
+    /**
+     * 桶容量(定点数)
+     */
+    private final long capacity;
+
+    /**
+     * 时间基准
+     */
+    private final long epoch = RegisterServerScheduler.getInstance().now() - 1;
+
+    /**
+     * @param slotBits        槽位数 = 2^slotBits
+     * @param ratePerSecond   每秒补充的令牌数
+     * @param capacity        桶容量(允许的突发请求数)
+     */
+    TokenBucketTable(int slotBits, double ratePerSecond, long capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("令牌桶容量必须在1到" + MAX_CAPACITY + "之间：" + capacity);
+        }
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("令牌补充速率必须大于0：" + ratePerSecond);
+        }
+        this.slots = new AtomicLongArray(1 << slotBits);
+        this.mask = (1 << slotBits) - 1;
+        this.refillPerMillis = ratePerSecond * TOKEN_UNIT / 1000;
+        this.capacity = capacity * TOKEN_UNIT;
+    }
+
+    /**
+     * 取一个令牌
+     *
+     * @param key 客户端标识
+     * @return 取到令牌时返回0，否则返回建议的重试等待时间(毫秒)
+     */
+    long tryAcquire(String key) {
+        int slot = (int) RegistryHash.mix(RegistryHash.hash(key)) & mask;
+        long now = RegisterServerScheduler.getInstance().now() - epoch;
+        while (true) {
+            long current = slots.get(slot);
+            long time;
+            long tokens;
+            if (current == 0L) {
+                // 从未使用过的桶是满的
+                time = now;
+                tokens = capacity;
+            } else {
+                time = current >>> TOKEN_BITS;
+                tokens = current & TOKEN_MASK;
+                long added = (long) (Math.max(0L, now - time) * refillPerMillis);
+                if (tokens + added >= capacity) {
+                    tokens = capacity;
+                    time = now;
+                } else if (added > 0) {
+                    // 只推进补充令牌所对应的时间，不丢失不足一个单位的部分
+                    tokens += added;
+                    time += (long) (added / refillPerMillis);
+                }
+            }
+
+            if (tokens < TOKEN_UNIT) {
+                return Math.max(1L, (long) Math.ceil((TOKEN_UNIT - tokens) / refillPerMillis));
+            }
+            if (slots.compareAndSet(slot, current, (time << TOKEN_BITS) | (tokens - TOKEN_UNIT))) {
+                return 0L;
+            }
+        }
+    }
+}
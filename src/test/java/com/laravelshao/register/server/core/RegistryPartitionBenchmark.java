@@ -0,0 +1,140 @@
+package com.laravelshao.register.server.core;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分区注册表与全局读写锁注册表的吞吐基准
+ * <p>
+ * 两种注册表预先加载同样的服务实例，然后分别用多个线程压测：
+ * <ul>
+ *     <li>心跳：随机续约已注册的服务实例</li>
+ *     <li>注册变更：每次批量注册一组新服务实例再批量移除</li>
+ *     <li>读取：拼装增量注册表</li>
+ * </ul>
+ * 参数：[线程数] [每项压测毫秒] [服务数] [每个服务的实例数] [批量大小]
+ *
+ * @author qinghua.shao
+ * @date 2022/8/27
+ * @since 1.0.0
+ */
+public class RegistryPartitionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 3000L;
+        int services = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int instancesPerService = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+        PrintStream out = System.out;
+        out.println("线程数=" + threads + ", 服务数=" + services + ", 每个服务实例数=" + instancesPerService
+                + ", 批量大小=" + batchSize + ", 分区数=" + PartitionedServiceRegistry.PARTITIONS);
+        // 注册表写入路径会打印日志，压测期间丢弃标准输出
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        try {
+            ServiceRegistry locked = LockingServiceRegistry.getInstance();
+            PartitionedServiceRegistry partitioned = PartitionedServiceRegistry.getInstance();
+            List<ServiceInstance> preload = new ArrayList<>();
+            for (int s = 0; s < services; s++) {
+                for (int i = 0; i < instancesPerService; i++) {
+                    preload.add(instance("service-" + s, "service-" + s + "-" + i));
+                }
+            }
+            locked.register(preload);
+            partitioned.register(preload);
+
+            out.println(String.format("%-12s %16s %16s %16s", "registry", "heartbeat/s", "churn inst/s", "delta fetch/s"));
+            for (int round = 0; round < 2; round++) {
+                for (Object[] entry : new Object[][]{{"rwlock", locked}, {"partitioned", partitioned}}) {
+                    ServiceRegistry registry = (ServiceRegistry) entry[1];
+                    double heartbeats = run(threads, durationMillis, counter -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        int s = random.nextInt(services);
+                        registry.renew("service-" + s, "service-" + s + "-" + random.nextInt(instancesPerService));
+                        counter.incrementAndGet();
+                    });
+                    double churn = run(threads, durationMillis, counter -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        List<ServiceInstance> batch = new ArrayList<>(batchSize);
+                        long id = random.nextLong();
+                        for (int i = 0; i < batchSize; i++) {
+                            String serviceName = "service-" + random.nextInt(services);
+                            batch.add(instance(serviceName, serviceName + "-churn-" + id + "-" + i));
+                        }
+                        registry.register(batch);
+                        registry.remove(batch);
+                        counter.addAndGet(batchSize * 2);
+                    });
+                    double fetches = run(threads, durationMillis, counter -> {
+                        // 与注册表缓存一样在读锁内拼装增量注册表
+                        try {
+                            registry.readLock();
+                            registry.getDeltaRegistry();
+                        } finally {
+                            registry.readUnlock();
+                        }
+                        counter.incrementAndGet();
+                    });
+                    if (round > 0) {
+                        out.println(String.format("%-12s %,16.0f %,16.0f %,16.0f", entry[0], heartbeats, churn, fetches));
+                    }
+                }
+            }
+            partitioned.shutdown();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * 多线程循环执行 action 指定时长，返回每秒次数
+     */
+    private static double run(int threads, long durationMillis, Action action) throws InterruptedException {
+        AtomicLong counter = new AtomicLong(0L);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + durationMillis;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        action.run(counter);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return counter.get() * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static ServiceInstance instance(String serviceName, String serviceInstanceId) {
+        ServiceInstance serviceInstance = new ServiceInstance();
+        serviceInstance.setServiceName(serviceName);
+        serviceInstance.setServiceInstanceId(serviceInstanceId);
+        serviceInstance.setIp("10.0.0.1");
+        serviceInstance.setHostname("localhost");
+        serviceInstance.setPort(8080);
+        return serviceInstance;
+    }
+
+    private interface Action {
+        void run(AtomicLong counter);
+    }
+}
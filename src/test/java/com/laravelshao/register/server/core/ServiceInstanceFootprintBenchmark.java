@@ -0,0 +1,64 @@
+package com.laravelshao.register.server.core;
+
+import java.util.Arrays;
+
+/**
+ * 服务实例堆占用测量
+ * <p>
+ * 按反序列化后的情况构造服务实例：每个字段都是新分配的字符串，再由 setter 决定是否去重。
+ * 服务实例ID 预先分配并计入基线，结果是不含服务实例ID字符串的单实例保留堆大小。
+ * 建议用 -Xmx 固定堆大小、-XX:+UseSerialGC 运行，减少 GC 带来的测量误差。
+ * 参数：[服务实例数] [服务数] [主机数]
+ *
+ * @author qinghua.shao
+ * @date 2022/8/30
+ * @since 1.0.0
+ */
+public class ServiceInstanceFootprintBenchmark {
+
+    public static void main(String[] args) {
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int services = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int hosts = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+
+        String[] instanceIds = new String[instances];
+        for (int i = 0; i < instances; i++) {
+            instanceIds[i] = "instance-" + i;
+        }
+        ServiceInstance[] serviceInstances = new ServiceInstance[instances];
+
+        long before = usedHeap();
+        for (int i = 0; i < instances; i++) {
+            ServiceInstance serviceInstance = new ServiceInstance();
+            serviceInstance.setServiceName(new String("service-" + (i % services)));
+            serviceInstance.setServiceInstanceId(instanceIds[i]);
+            serviceInstance.setHostname(new String("host-" + (i % hosts) + ".example.com"));
+            serviceInstance.setIp(new String("10." + ((i >>> 16) & 0xFF) + "." + ((i >>> 8) & 0xFF) + "." + (i & 0xFF)));
+            serviceInstance.setPort(8080);
+            serviceInstance.setZone(new String("zone-" + (i % 3)));
+            serviceInstance.setVersion(new String("1.0." + (i % 4)));
+            serviceInstance.setTags(Arrays.asList(new String("canary"), new String("gray-" + (i % 2))));
+            serviceInstances[i] = serviceInstance;
+        }
+        long after = usedHeap();
+
+        System.out.println("服务实例数=" + instances + ", 服务数=" + services + ", 主机数=" + hosts
+                + ", 符号表大小=" + SymbolTable.getInstance().size());
+        System.out.println("单实例保留堆(不含服务实例ID)：" + (after - before) / instances + " bytes");
+        // 保证测量期间服务实例不被回收
+        System.out.println("最后一个服务实例：" + serviceInstances[instances - 1]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}